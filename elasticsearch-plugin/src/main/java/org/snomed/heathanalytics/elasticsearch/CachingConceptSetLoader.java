@@ -0,0 +1,98 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Reads concept set documents with a get request from the node and keeps the most recently used sets.
+ * Documents are identified by a hash of their content so a cached set never needs to be read again.
+ * <p>
+ * Each document is read once however many searches need it at the same time. The first search to miss reads the document
+ * and the others wait for that read rather than sending their own. Loads run on the search thread creating the script,
+ * so the get request has a timeout and a search thread is never held for longer than that.
+ */
+class CachingConceptSetLoader implements ConceptSetLoader {
+
+	// Documents hold at most 65,536 concepts so this is at most 32MB
+	private static final int MAX_CACHED_DOCUMENTS = 64;
+
+	private static final TimeValue GET_TIMEOUT = TimeValue.timeValueSeconds(30);
+
+	private final ConceptSetLoader documentLoader;
+
+	// Loads in progress are cached too, so concurrent misses on a key share one load
+	private final Map<String, CompletableFuture<long[]>> cache = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<long[]>> eldest) {
+			return size() > MAX_CACHED_DOCUMENTS;
+		}
+	};
+
+	CachingConceptSetLoader(Supplier<Client> client) {
+		this((index, id, path) -> read(client.get(), index, id, path));
+	}
+
+	CachingConceptSetLoader(ConceptSetLoader documentLoader) {
+		this.documentLoader = documentLoader;
+	}
+
+	@Override
+	public long[] load(String index, String id, String path) {
+		String key = index + "/" + id + "/" + path;
+		CompletableFuture<long[]> future;
+		boolean loadHere = false;
+		synchronized (cache) {
+			future = cache.get(key);
+			if (future == null) {
+				future = new CompletableFuture<>();
+				cache.put(key, future);
+				loadHere = true;
+			}
+		}
+		if (loadHere) {
+			try {
+				future.complete(documentLoader.load(index, id, path));
+			} catch (RuntimeException e) {
+				// Not cached so the next search tries again
+				synchronized (cache) {
+					cache.remove(key, future);
+				}
+				future.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static long[] read(Client client, String index, String id, String path) {
+		GetResponse response = client.prepareGet(index, id).setFetchSource(path, null).get(GET_TIMEOUT);
+		if (!response.isExists()) {
+			throw new IllegalArgumentException("Concept set document [" + index + "/" + id + "] not found.");
+		}
+		Object values = response.getSourceAsMap().get(path);
+		if (!(values instanceof List)) {
+			throw new IllegalArgumentException("Concept set document [" + index + "/" + id + "] has no list at [" + path + "].");
+		}
+		List<?> valueList = (List<?>) values;
+		long[] conceptIds = new long[valueList.size()];
+		for (int i = 0; i < conceptIds.length; i++) {
+			conceptIds[i] = ((Number) valueList.get(i)).longValue();
+		}
+		return conceptIds;
+	}
+}
@@ -0,0 +1,15 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+/**
+ * Loads the concept ids of a concept set stored in a document, so large sets can be referenced from the script params
+ * rather than sent with every query.
+ */
+public interface ConceptSetLoader {
+
+	/**
+	 * @return concept ids held in the field at path of the document.
+	 * @throws IllegalArgumentException if the document does not exist.
+	 */
+	long[] load(String index, String id, String path);
+
+}
@@ -0,0 +1,201 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import java.util.*;
+
+/**
+ * Primitive form of a server EventCriterion with the concepts of the ECL already expanded.
+ * Can be converted to and from the script params map so that the same criteria can be evaluated in-process or within Elasticsearch.
+ */
+public class TemporalCriterion {
+
+	public static final String CONCEPT_IDS_PARAM = "conceptIds";
+	public static final String CONCEPT_SET_PARAM = "conceptSet";
+
+	private final boolean has;
+	private final long[] conceptIds;
+	private Long minDate;
+	private Long maxDate;
+
+	// Value of -1 means apply constraint with unbounded value, otherwise use null.
+	private Integer withinDaysBeforePreviouslyMatchedEvent;
+	private Integer withinDaysAfterPreviouslyMatchedEvent;
+
+	private boolean frequency;
+	private int minRepetitions;
+	private Integer minTimeBetween;
+	private Integer maxTimeBetween;
+	private long timeUnitMillis;
+
+	public TemporalCriterion(boolean has, Collection<? extends Number> conceptIds) {
+		this.has = has;
+		long[] ids = new long[conceptIds.size()];
+		int i = 0;
+		for (Number conceptId : conceptIds) {
+			ids[i++] = conceptId.longValue();
+		}
+		Arrays.sort(ids);
+		this.conceptIds = ids;
+	}
+
+	private TemporalCriterion(boolean has, long[] conceptIds) {
+		this.has = has;
+		Arrays.sort(conceptIds);
+		this.conceptIds = conceptIds;
+	}
+
+	public TemporalCriterion setDateRange(Long minDate, Long maxDate) {
+		this.minDate = minDate;
+		this.maxDate = maxDate;
+		return this;
+	}
+
+	public TemporalCriterion setWithinDays(Integer withinDaysBeforePreviouslyMatchedEvent, Integer withinDaysAfterPreviouslyMatchedEvent) {
+		this.withinDaysBeforePreviouslyMatchedEvent = withinDaysBeforePreviouslyMatchedEvent;
+		this.withinDaysAfterPreviouslyMatchedEvent = withinDaysAfterPreviouslyMatchedEvent;
+		return this;
+	}
+
+	public TemporalCriterion setFrequency(Integer minRepetitions, Integer minTimeBetween, Integer maxTimeBetween, long timeUnitMillis) {
+		this.frequency = true;
+		this.minRepetitions = minRepetitions != null ? minRepetitions : 0;
+		this.minTimeBetween = minTimeBetween;
+		this.maxTimeBetween = maxTimeBetween;
+		this.timeUnitMillis = timeUnitMillis;
+		return this;
+	}
+
+	public boolean containsConcept(long conceptId) {
+		return Arrays.binarySearch(conceptIds, conceptId) >= 0;
+	}
+
+	public boolean isInDateRange(long date) {
+		return (minDate == null || date >= minDate) && (maxDate == null || date < maxDate);
+	}
+
+	public Map<String, Object> toParams() {
+		Map<String, Object> params = new HashMap<>();
+		params.put("has", has);
+		List<Long> conceptIdList = new ArrayList<>(conceptIds.length);
+		for (long conceptId : conceptIds) {
+			conceptIdList.add(conceptId);
+		}
+		params.put(CONCEPT_IDS_PARAM, conceptIdList);
+		params.put("minDate", minDate);
+		params.put("maxDate", maxDate);
+		params.put("withinDaysBeforePreviouslyMatchedEvent", withinDaysBeforePreviouslyMatchedEvent);
+		params.put("withinDaysAfterPreviouslyMatchedEvent", withinDaysAfterPreviouslyMatchedEvent);
+		if (frequency) {
+			Map<String, Object> frequencyParams = new HashMap<>();
+			frequencyParams.put("minRepetitions", minRepetitions);
+			frequencyParams.put("minTimeBetween", minTimeBetween);
+			frequencyParams.put("maxTimeBetween", maxTimeBetween);
+			frequencyParams.put("timeUnitMillis", timeUnitMillis);
+			params.put("frequency", frequencyParams);
+		}
+		return params;
+	}
+
+	/**
+	 * @param conceptSetDocuments documents holding the concept ids, see {@link #conceptSetDocument(String, String, String)}.
+	 * @return params which reference the documents rather than listing the concept ids of this criterion.
+	 */
+	public Map<String, Object> toParams(List<Map<String, String>> conceptSetDocuments) {
+		Map<String, Object> params = toParams();
+		params.remove(CONCEPT_IDS_PARAM);
+		params.put(CONCEPT_SET_PARAM, conceptSetDocuments);
+		return params;
+	}
+
+	public static Map<String, String> conceptSetDocument(String index, String id, String path) {
+		Map<String, String> document = new HashMap<>();
+		document.put("index", index);
+		document.put("id", id);
+		document.put("path", path);
+		return document;
+	}
+
+	public static TemporalCriterion fromParams(Map<String, Object> params) {
+		return fromParams(params, (index, id, path) -> {
+			throw new IllegalArgumentException("Concept set documents can not be loaded here.");
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	public static TemporalCriterion fromParams(Map<String, Object> params, ConceptSetLoader conceptSetLoader) {
+		TemporalCriterion criterion;
+		List<Map<String, String>> conceptSetDocuments = (List<Map<String, String>>) params.get(CONCEPT_SET_PARAM);
+		if (conceptSetDocuments != null) {
+			List<long[]> parts = new ArrayList<>();
+			int size = 0;
+			for (Map<String, String> document : conceptSetDocuments) {
+				long[] part = conceptSetLoader.load(document.get("index"), document.get("id"), document.get("path"));
+				parts.add(part);
+				size += part.length;
+			}
+			long[] conceptIds = new long[size];
+			int offset = 0;
+			for (long[] part : parts) {
+				System.arraycopy(part, 0, conceptIds, offset, part.length);
+				offset += part.length;
+			}
+			criterion = new TemporalCriterion((Boolean) params.get("has"), conceptIds);
+		} else {
+			// Elasticsearch converts number params to the smallest number type so all numbers are read as Number.
+			criterion = new TemporalCriterion((Boolean) params.get("has"), (List<Number>) params.get(CONCEPT_IDS_PARAM));
+		}
+		criterion
+				.setDateRange(toLong(params.get("minDate")), toLong(params.get("maxDate")))
+				.setWithinDays(toInteger(params.get("withinDaysBeforePreviouslyMatchedEvent")), toInteger(params.get("withinDaysAfterPreviouslyMatchedEvent")));
+		Map<String, Object> frequencyParams = (Map<String, Object>) params.get("frequency");
+		if (frequencyParams != null) {
+			Long timeUnitMillis = toLong(frequencyParams.get("timeUnitMillis"));
+			criterion.setFrequency(toInteger(frequencyParams.get("minRepetitions")), toInteger(frequencyParams.get("minTimeBetween")),
+					toInteger(frequencyParams.get("maxTimeBetween")), timeUnitMillis != null ? timeUnitMillis : 0);
+		}
+		return criterion;
+	}
+
+	private static Long toLong(Object value) {
+		return value != null ? ((Number) value).longValue() : null;
+	}
+
+	private static Integer toInteger(Object value) {
+		return value != null ? ((Number) value).intValue() : null;
+	}
+
+	public boolean isHas() {
+		return has;
+	}
+
+	public long[] getConceptIds() {
+		return conceptIds;
+	}
+
+	public Integer getWithinDaysBeforePreviouslyMatchedEvent() {
+		return withinDaysBeforePreviouslyMatchedEvent;
+	}
+
+	public Integer getWithinDaysAfterPreviouslyMatchedEvent() {
+		return withinDaysAfterPreviouslyMatchedEvent;
+	}
+
+	public boolean hasFrequency() {
+		return frequency;
+	}
+
+	public int getMinRepetitions() {
+		return minRepetitions;
+	}
+
+	public Integer getMinTimeBetween() {
+		return minTimeBetween;
+	}
+
+	public Integer getMaxTimeBetween() {
+		return maxTimeBetween;
+	}
+
+	public long getTimeUnitMillis() {
+		return timeUnitMillis;
+	}
+}
@@ -0,0 +1,167 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Evaluates a list of criteria against the events of one patient.
+ * Events are given as parallel primitive arrays of conceptId and date, sorted by conceptId then date, see {@link #sortEvents(long[], long[], int)}.
+ * <p>
+ * The criteria are applied in order. The first event matching a criterion becomes the base event for the relative time constraints
+ * of the next criterion. These are the same rules that were applied by the Painless script in PatientQueryService.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class TemporalEventMatcher {
+
+	private static final long DAY_IN_MILLIS = 1000L * 60 * 60 * 24;
+
+	// -1 days means unlimited time, 200 years seems enough
+	private static final int UNLIMITED_DAYS = 365 * 200;
+
+	private final TemporalCriterion[] criteria;
+
+	public TemporalEventMatcher(List<TemporalCriterion> criteria) {
+		this.criteria = criteria.toArray(new TemporalCriterion[0]);
+	}
+
+	public boolean matches(long[] conceptIds, long[] dates, int length) {
+		long baseEventDate = 0;
+		for (TemporalCriterion criterion : criteria) {
+
+			// If forward/back cut-off days set calculate relative dates
+			long minEventDate = 0;
+			long maxEventDate = 0;
+			Integer daysBeforePrevious = criterion.getWithinDaysBeforePreviouslyMatchedEvent();
+			Integer daysAfterPrevious = criterion.getWithinDaysAfterPreviouslyMatchedEvent();
+			if (baseEventDate != 0 && (daysBeforePrevious != null || daysAfterPrevious != null)) {
+				minEventDate = getRelativeDate(baseEventDate, daysBeforePrevious, -1);
+				maxEventDate = getRelativeDate(baseEventDate, daysAfterPrevious, 1);
+			}
+
+			boolean eventMatchFound = false;
+			for (int i = 0; i < length && !eventMatchFound; i++) {
+				long eventDate = dates[i];
+				if (criterion.containsConcept(conceptIds[i])
+						&& criterion.isInDateRange(eventDate)
+						&& (minEventDate == 0 || eventDate >= minEventDate)
+						&& (maxEventDate == 0 || eventDate <= maxEventDate)) {
+
+					if (!criterion.isHas()) {
+						// Criterion clauses match but criterion is negated
+						return false;
+					}
+
+					// This event matches so far, frequency check next
+					if (!frequencyMatch(criterion, conceptIds, dates, length)) {
+						return false;
+					}
+
+					// This criterion positive match
+					baseEventDate = eventDate;
+					eventMatchFound = true;
+				}
+			}
+
+			if (!eventMatchFound && criterion.isHas()) {
+				// None of the events matched the current criterion clauses.
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean frequencyMatch(TemporalCriterion criterion, long[] conceptIds, long[] dates, int length) {
+		if (!criterion.hasFrequency()) {
+			return true;
+		}
+
+		// Find all events for this patient with a matching conceptId
+		long[] matchingDates = new long[length];
+		int matchingCount = 0;
+		for (int i = 0; i < length; i++) {
+			if (criterion.containsConcept(conceptIds[i])) {
+				matchingDates[matchingCount++] = dates[i];
+			}
+		}
+
+		int minRepetitions = criterion.getMinRepetitions();
+		if (matchingCount < minRepetitions) {
+			// Not enough matching events
+			return false;
+		}
+		Integer minTimeBetween = criterion.getMinTimeBetween();
+		Integer maxTimeBetween = criterion.getMaxTimeBetween();
+		if (minTimeBetween == null && maxTimeBetween == null) {
+			// Enough matching events and no time constraints
+			return true;
+		}
+
+		// Apply frequency time constraints
+		Arrays.sort(matchingDates, 0, matchingCount);
+		long timeUnitMillis = criterion.getTimeUnitMillis();
+		long relativeEventTime = matchingDates[0];
+		int repetitionsFound = 1;
+		for (int i = 1; i < matchingCount; i++) {
+			long nextEventTime = matchingDates[i];
+			if (minTimeBetween != null && nextEventTime < relativeEventTime + (minTimeBetween * timeUnitMillis)) {
+				return false;
+			}
+			if (maxTimeBetween != null && nextEventTime > relativeEventTime + (maxTimeBetween * timeUnitMillis)) {
+				return false;
+			}
+			// The time between relativeEventTime and nextEventTime is valid
+			repetitionsFound++;
+			if (repetitionsFound == minRepetitions) {
+				return true;
+			}
+			// Make nextEventTime the new relativeEventTime and go round again
+			relativeEventTime = nextEventTime;
+		}
+		return false;
+	}
+
+	private long getRelativeDate(long baseDate, Integer days, int multiplier) {
+		if (days != null) {
+			int daysInt = days;
+			if (daysInt == -1) {
+				daysInt = UNLIMITED_DAYS;
+			}
+			return baseDate + ((long) daysInt * multiplier * DAY_IN_MILLIS);
+		}
+		return 0;
+	}
+
+	/**
+	 * Sorts parallel event arrays by conceptId then date and removes duplicate events.
+	 * Uses an insertion sort because the events are usually already in order, or nearly,
+	 * and the arrays for a single patient are small.
+	 * @return the number of unique events now at the start of the arrays.
+	 */
+	public static int sortEvents(long[] conceptIds, long[] dates, int length) {
+		for (int i = 1; i < length; i++) {
+			long conceptId = conceptIds[i];
+			long date = dates[i];
+			int j = i - 1;
+			while (j >= 0 && (conceptIds[j] > conceptId || (conceptIds[j] == conceptId && dates[j] > date))) {
+				conceptIds[j + 1] = conceptIds[j];
+				dates[j + 1] = dates[j];
+				j--;
+			}
+			conceptIds[j + 1] = conceptId;
+			dates[j + 1] = date;
+		}
+		if (length == 0) {
+			return 0;
+		}
+		int unique = 1;
+		for (int i = 1; i < length; i++) {
+			if (conceptIds[i] != conceptIds[unique - 1] || dates[i] != dates[unique - 1]) {
+				conceptIds[unique] = conceptIds[i];
+				dates[unique] = dates[i];
+				unique++;
+			}
+		}
+		return unique;
+	}
+}
@@ -0,0 +1,126 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.script.FilterScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reads the packed events binary doc value of a patient straight from the Lucene segment into primitive arrays
+ * and evaluates them with a {@link TemporalEventMatcher}. The packed value holds pairs of big-endian longs, concept id then date,
+ * already sorted and de-duplicated, so no parsing or sorting is needed.
+ * Documents written before the packed field was added are read from the "conceptId,date" keyword doc values instead.
+ * One instance is used per segment by a single thread so the arrays are reused between documents.
+ */
+public class TemporalFilterScript extends FilterScript {
+
+	private static final int PACKED_EVENT_BYTES = 16;
+
+	private final TemporalEventMatcher matcher;
+	private final BinaryDocValues packedEvents;
+	private final SortedSetDocValues conceptDates;
+	private long[] conceptIds = new long[64];
+	private long[] dates = new long[64];
+	private int docId;
+
+	public TemporalFilterScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext,
+			TemporalEventMatcher matcher, String field, String legacyField) throws IOException {
+
+		super(params, lookup, leafContext);
+		this.matcher = matcher;
+		this.packedEvents = DocValues.getBinary(leafContext.reader(), field);
+		this.conceptDates = DocValues.getSortedSet(leafContext.reader(), legacyField);
+	}
+
+	@Override
+	public void setDocument(int docId) {
+		// Doc values are read directly so the search lookup does not need to be positioned.
+		this.docId = docId;
+	}
+
+	@Override
+	public boolean execute() {
+		try {
+			int length;
+			if (packedEvents.advanceExact(docId)) {
+				length = readPacked(packedEvents.binaryValue());
+			} else {
+				length = readConceptDates();
+			}
+			return matcher.matches(conceptIds, dates, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private int readPacked(BytesRef binaryValue) {
+		// Elasticsearch stores binary doc values as a count of values then the length and bytes of each value
+		ByteArrayDataInput input = new ByteArrayDataInput(binaryValue.bytes, binaryValue.offset, binaryValue.length);
+		if (input.readVInt() == 0) {
+			return 0;
+		}
+		int length = input.readVInt() / PACKED_EVENT_BYTES;
+		ensureCapacity(length);
+		int position = input.getPosition();
+		for (int i = 0; i < length; i++) {
+			conceptIds[i] = readLong(binaryValue.bytes, position);
+			dates[i] = readLong(binaryValue.bytes, position + 8);
+			position += PACKED_EVENT_BYTES;
+		}
+		return length;
+	}
+
+	private int readConceptDates() throws IOException {
+		int length = 0;
+		if (conceptDates.advanceExact(docId)) {
+			for (long ord = conceptDates.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = conceptDates.nextOrd()) {
+				ensureCapacity(length + 1);
+				BytesRef conceptDate = conceptDates.lookupOrd(ord);
+				int end = conceptDate.offset + conceptDate.length;
+				int comma = conceptDate.offset;
+				while (comma < end && conceptDate.bytes[comma] != ',') {
+					comma++;
+				}
+				conceptIds[length] = parseLong(conceptDate.bytes, conceptDate.offset, comma);
+				dates[length] = parseLong(conceptDate.bytes, comma + 1, end);
+				length++;
+			}
+		}
+		// Keyword values are in string order, which differs from numeric order when concept ids have different lengths.
+		return TemporalEventMatcher.sortEvents(conceptIds, dates, length);
+	}
+
+	private void ensureCapacity(int length) {
+		if (length > conceptIds.length) {
+			int capacity = Math.max(length, conceptIds.length * 2);
+			conceptIds = Arrays.copyOf(conceptIds, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+		}
+	}
+
+	static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
+	}
+
+	static long parseLong(byte[] bytes, int start, int end) {
+		boolean negative = start < end && bytes[start] == '-';
+		long value = 0;
+		for (int i = negative ? start + 1 : start; i < end; i++) {
+			value = value * 10 + (bytes[i] - '0');
+		}
+		return negative ? -value : value;
+	}
+}
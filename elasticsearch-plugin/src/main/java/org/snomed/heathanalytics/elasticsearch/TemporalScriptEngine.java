@@ -0,0 +1,75 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.elasticsearch.script.FilterScript;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.util.*;
+
+/**
+ * Script engine with one filter script which matches patient documents against a list of temporal event criteria.
+ * <p>
+ * Usage: new Script(ScriptType.INLINE, "health-analytics", "temporal-event-match", params)
+ * where params contains "criteria", a list of {@link TemporalCriterion#toParams()} maps.
+ * Criteria with a large concept set may reference documents holding the set instead, see {@link TemporalCriterion#toParams(List)}.
+ */
+public class TemporalScriptEngine implements ScriptEngine {
+
+	public static final String LANG = "health-analytics";
+	public static final String TEMPORAL_EVENT_MATCH = "temporal-event-match";
+	public static final String CRITERIA_PARAM = "criteria";
+	public static final String FIELD_PARAM = "field";
+	public static final String DEFAULT_FIELD = "eventsPacked";
+	// Read for documents written before the packed field was added, until the index has been reindexed.
+	public static final String LEGACY_FIELD = "events.conceptDate.keyword";
+
+	private final ConceptSetLoader conceptSetLoader;
+
+	public TemporalScriptEngine(ConceptSetLoader conceptSetLoader) {
+		this.conceptSetLoader = conceptSetLoader;
+	}
+
+	@Override
+	public String getType() {
+		return LANG;
+	}
+
+	@Override
+	public <FactoryType> FactoryType compile(String name, String code, ScriptContext<FactoryType> context, Map<String, String> options) {
+		if (!context.equals(FilterScript.CONTEXT)) {
+			throw new IllegalArgumentException(getType() + " scripts cannot be used for context [" + context.name + "]");
+		}
+		if (!TEMPORAL_EVENT_MATCH.equals(code)) {
+			throw new IllegalArgumentException("Unknown script name [" + code + "]");
+		}
+		return context.factoryClazz.cast(new TemporalFilterScriptFactory(conceptSetLoader));
+	}
+
+	@Override
+	public Set<ScriptContext<?>> getSupportedContexts() {
+		return Collections.singleton(FilterScript.CONTEXT);
+	}
+
+	private static class TemporalFilterScriptFactory implements FilterScript.Factory {
+
+		private final ConceptSetLoader conceptSetLoader;
+
+		private TemporalFilterScriptFactory(ConceptSetLoader conceptSetLoader) {
+			this.conceptSetLoader = conceptSetLoader;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public FilterScript.LeafFactory newFactory(Map<String, Object> params, SearchLookup lookup) {
+			// Criteria are converted to primitive form once per shard rather than once per document.
+			List<TemporalCriterion> criteria = new ArrayList<>();
+			for (Map<String, Object> criterionParams : (List<Map<String, Object>>) params.get(CRITERIA_PARAM)) {
+				criteria.add(TemporalCriterion.fromParams(criterionParams, conceptSetLoader));
+			}
+			TemporalEventMatcher matcher = new TemporalEventMatcher(criteria);
+			String field = params.containsKey(FIELD_PARAM) ? (String) params.get(FIELD_PARAM) : DEFAULT_FIELD;
+			return leafContext -> new TemporalFilterScript(params, lookup, leafContext, matcher, field, LEGACY_FIELD);
+		}
+	}
+}
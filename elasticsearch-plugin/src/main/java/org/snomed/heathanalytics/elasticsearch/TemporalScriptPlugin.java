@@ -0,0 +1,49 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.script.ScriptContext;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Supplier;
+
+/**
+ * Elasticsearch plugin registering the native temporal event script engine.
+ * Install on every node with: bin/elasticsearch-plugin install file:///path/to/elasticsearch-plugin-[version].zip
+ */
+public class TemporalScriptPlugin extends Plugin implements ScriptPlugin {
+
+	// The script engine is created before the node client so the client is set later
+	private final SetOnce<Client> client = new SetOnce<>();
+
+	@Override
+	public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+			ResourceWatcherService resourceWatcherService, ScriptService scriptService, NamedXContentRegistry xContentRegistry,
+			Environment environment, NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry,
+			IndexNameExpressionResolver indexNameExpressionResolver, Supplier<RepositoriesService> repositoriesServiceSupplier) {
+
+		this.client.set(client);
+		return Collections.emptyList();
+	}
+
+	@Override
+	public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
+		return new TemporalScriptEngine(new CachingConceptSetLoader(client::get));
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CachingConceptSetLoaderTest {
+
+	@Test
+	public void testConcurrentMissesLoadOnce() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CachingConceptSetLoader loader = new CachingConceptSetLoader((index, id, path) -> {
+			loads.incrementAndGet();
+			loading.countDown();
+			try {
+				assertTrue(release.await(10, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			return new long[] {100, 200};
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<long[]>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> loader.load("concept-set", "set_0", "conceptIds")));
+			}
+			assertTrue(loading.await(10, TimeUnit.SECONDS));
+			// Give the other threads time to miss while the first load is running
+			Thread.sleep(100);
+			release.countDown();
+			for (Future<long[]> result : results) {
+				assertArrayEquals(new long[] {100, 200}, result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, loads.get());
+
+		loader.load("concept-set", "set_0", "conceptIds");
+		assertEquals(1, loads.get());
+		loader.load("concept-set", "set_1", "conceptIds");
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void testFailedLoadNotCached() {
+		AtomicInteger loads = new AtomicInteger();
+		CachingConceptSetLoader loader = new CachingConceptSetLoader((index, id, path) -> {
+			if (loads.incrementAndGet() == 1) {
+				throw new IllegalArgumentException("Concept set document [" + index + "/" + id + "] not found.");
+			}
+			return new long[] {100};
+		});
+		assertThrows(IllegalArgumentException.class, () -> loader.load("concept-set", "set_0", "conceptIds"));
+		assertArrayEquals(new long[] {100}, loader.load("concept-set", "set_0", "conceptIds"));
+		assertEquals(2, loads.get());
+	}
+}
@@ -0,0 +1,105 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import java.util.*;
+
+/**
+ * Compares the native matcher with the logic the Painless script applied to each document, which parsed the
+ * 'conceptId,date' keyword strings and looked up boxed concept ids in a new ArrayList for every document.
+ * Both evaluate the same criteria, any of 200 concepts then any of another 200 within 365 days, against the same patients.
+ * Not run as part of the build, run the main method with a fixed heap, for example -Xmx4g.
+ */
+public class TemporalEventMatcherBenchmark {
+
+	private static final int PATIENTS = 200_000;
+	private static final int EVENTS_PER_PATIENT = 50;
+	private static final int CONCEPTS = 5_000;
+	// Concepts of each criterion, as if expanded from ECL
+	private static final int CRITERION_CONCEPTS = 200;
+	private static final long START = new GregorianCalendar(2000, Calendar.JANUARY, 1).getTimeInMillis();
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		List<String[]> conceptDates = new ArrayList<>(PATIENTS);
+		for (int p = 0; p < PATIENTS; p++) {
+			String[] events = new String[EVENTS_PER_PATIENT];
+			for (int e = 0; e < EVENTS_PER_PATIENT; e++) {
+				events[e] = random.nextInt(CONCEPTS) + "," + (START + random.nextInt(20 * 365) * DAY);
+			}
+			// Doc values are sorted strings
+			Arrays.sort(events);
+			conceptDates.add(events);
+		}
+		List<Long> firstConcepts = new ArrayList<>();
+		List<Long> secondConcepts = new ArrayList<>();
+		for (long i = 0; i < CRITERION_CONCEPTS; i++) {
+			firstConcepts.add(10 + i);
+			secondConcepts.add(1_000 + i);
+		}
+		List<TemporalCriterion> criteria = List.of(new TemporalCriterion(true, firstConcepts),
+				new TemporalCriterion(true, secondConcepts).setWithinDays(null, 365));
+		TemporalEventMatcher matcher = new TemporalEventMatcher(criteria);
+		List<Map<String, Object>> params = List.of(criteria.get(0).toParams(), criteria.get(1).toParams());
+
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			int matched = 0;
+			for (String[] events : conceptDates) {
+				if (matchesAsScript(events, params)) {
+					matched++;
+				}
+			}
+			System.out.printf("Painless logic %,d ms (%d matched)%n", (System.nanoTime() - start) / 1_000_000, matched);
+
+			start = System.nanoTime();
+			matched = 0;
+			long[] conceptIds = new long[EVENTS_PER_PATIENT];
+			long[] dates = new long[EVENTS_PER_PATIENT];
+			for (String[] events : conceptDates) {
+				// Parsed as the native script reads the legacy field, the packed field needs no parsing
+				for (int e = 0; e < events.length; e++) {
+					int comma = events[e].indexOf(',');
+					conceptIds[e] = Long.parseLong(events[e], 0, comma, 10);
+					dates[e] = Long.parseLong(events[e], comma + 1, events[e].length(), 10);
+				}
+				int length = TemporalEventMatcher.sortEvents(conceptIds, dates, events.length);
+				if (matcher.matches(conceptIds, dates, length)) {
+					matched++;
+				}
+			}
+			System.out.printf("Native matcher %,d ms (%d matched)%n", (System.nanoTime() - start) / 1_000_000, matched);
+		}
+	}
+
+	// The Painless script logic for criteria with relative days after the previous match, without frequency
+	@SuppressWarnings("unchecked")
+	private static boolean matchesAsScript(String[] events, List<Map<String, Object>> criteria) {
+		long[] eventConceptIds = new long[events.length];
+		long[] eventDates = new long[events.length];
+		for (int e = 0; e < events.length; e++) {
+			String conceptDateString = events[e];
+			int commaIndex = conceptDateString.indexOf(',');
+			eventConceptIds[e] = Long.parseLong(conceptDateString.substring(0, commaIndex));
+			eventDates[e] = Long.parseLong(conceptDateString.substring(commaIndex + 1));
+		}
+		// The script sorts the events with the same insertion sort
+		int eventCount = TemporalEventMatcher.sortEvents(eventConceptIds, eventDates, events.length);
+		long baseEventDate = 0;
+		for (Map<String, Object> criterion : criteria) {
+			List<Long> criterionConceptIds = new ArrayList<>((List<Long>) criterion.get(TemporalCriterion.CONCEPT_IDS_PARAM));
+			Integer daysAfter = (Integer) criterion.get("withinDaysAfterPreviouslyMatchedEvent");
+			long maxEventDate = baseEventDate != 0 && daysAfter != null ? baseEventDate + daysAfter * DAY : 0;
+			boolean found = false;
+			for (int e = 0; e < eventCount && !found; e++) {
+				if (criterionConceptIds.contains(eventConceptIds[e]) && (maxEventDate == 0 || eventDates[e] <= maxEventDate)) {
+					baseEventDate = eventDates[e];
+					found = true;
+				}
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
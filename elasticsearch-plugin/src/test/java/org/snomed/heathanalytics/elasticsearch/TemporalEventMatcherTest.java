@@ -0,0 +1,104 @@
+package org.snomed.heathanalytics.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemporalEventMatcherTest {
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final long START = new GregorianCalendar(2020, Calendar.JANUARY, 1).getTimeInMillis();
+
+	// Sorted by concept then date
+	private final long[] conceptIds = {100, 200, 200};
+	private final long[] dates = {START, START + 10 * DAY, START + 100 * DAY};
+
+	@Test
+	public void testRelativeTime() {
+		// Within days after the previous match
+		assertTrue(matches(criterion(100), criterion(200).setWithinDays(null, 30)));
+		assertFalse(matches(criterion(100), criterion(200).setWithinDays(null, 5)));
+		// -1 is unbounded
+		assertTrue(matches(criterion(100), criterion(200).setWithinDays(null, -1)));
+		// Within days before the previous match
+		assertFalse(matches(criterion(200), criterion(100).setWithinDays(5, null)));
+		assertTrue(matches(criterion(200), criterion(100).setWithinDays(20, null)));
+		// Relative to the first event which matched the previous criterion
+		assertFalse(matches(criterion(200).setDateRange(START + 50 * DAY, null), criterion(100).setWithinDays(20, null)));
+	}
+
+	@Test
+	public void testHasNot() {
+		assertTrue(matches(criterion(100), new TemporalCriterion(false, List.of(200L)).setWithinDays(null, 5)));
+		assertFalse(matches(criterion(100), new TemporalCriterion(false, List.of(200L)).setWithinDays(null, 30)));
+		assertTrue(matches(new TemporalCriterion(false, List.of(300L))));
+		assertFalse(matches(new TemporalCriterion(false, List.of(300L, 100L))));
+	}
+
+	@Test
+	public void testDateRange() {
+		assertTrue(matches(criterion(200).setDateRange(START + 50 * DAY, null)));
+		assertFalse(matches(criterion(200).setDateRange(START + 20 * DAY, START + 50 * DAY)));
+		// Max date is exclusive
+		assertFalse(matches(criterion(100).setDateRange(null, START)));
+		assertTrue(matches(criterion(100).setDateRange(START, START + 1)));
+	}
+
+	@Test
+	public void testFrequency() {
+		assertTrue(matches(criterion(200).setFrequency(2, null, null, DAY)));
+		assertFalse(matches(criterion(200).setFrequency(3, null, null, DAY)));
+		assertFalse(matches(criterion(200).setFrequency(2, null, 30, DAY)));
+		assertTrue(matches(criterion(200).setFrequency(2, null, 100, DAY)));
+		assertFalse(matches(criterion(200).setFrequency(2, 100, null, DAY)));
+		assertTrue(matches(criterion(200).setFrequency(2, 90, null, DAY)));
+	}
+
+	@Test
+	public void testNoEvents() {
+		assertFalse(new TemporalEventMatcher(List.of(criterion(100))).matches(new long[0], new long[0], 0));
+		assertTrue(new TemporalEventMatcher(List.of(new TemporalCriterion(false, List.of(100L)))).matches(new long[0], new long[0], 0));
+		assertTrue(new TemporalEventMatcher(Collections.emptyList()).matches(conceptIds, dates, conceptIds.length));
+	}
+
+	@Test
+	public void testSortEvents() {
+		long[] conceptIds = {200, 100, 200, 200, 100, 0};
+		long[] dates = {START + 100 * DAY, START, START + 10 * DAY, START + 10 * DAY, START, 0};
+		// The last element is not part of the events
+		int length = TemporalEventMatcher.sortEvents(conceptIds, dates, 5);
+		assertEquals(3, length);
+		assertArrayEquals(this.conceptIds, Arrays.copyOf(conceptIds, length));
+		assertArrayEquals(this.dates, Arrays.copyOf(dates, length));
+		assertEquals(0, TemporalEventMatcher.sortEvents(new long[0], new long[0], 0));
+	}
+
+	@Test
+	public void testParamsRoundTrip() {
+		TemporalCriterion criterion = criterion(200, 100).setDateRange(START, null).setWithinDays(null, -1).setFrequency(2, null, 100, DAY);
+		TemporalCriterion copy = TemporalCriterion.fromParams(criterion.toParams());
+		assertArrayEquals(new long[] {100, 200}, copy.getConceptIds());
+		assertTrue(copy.isInDateRange(START));
+		assertFalse(copy.isInDateRange(START - 1));
+		assertEquals(Integer.valueOf(-1), copy.getWithinDaysAfterPreviouslyMatchedEvent());
+		assertNull(copy.getWithinDaysBeforePreviouslyMatchedEvent());
+		assertTrue(copy.hasFrequency());
+		assertEquals(2, copy.getMinRepetitions());
+		assertEquals(Integer.valueOf(100), copy.getMaxTimeBetween());
+		assertEquals(DAY, copy.getTimeUnitMillis());
+	}
+
+	private boolean matches(TemporalCriterion... criteria) {
+		return new TemporalEventMatcher(Arrays.asList(criteria)).matches(conceptIds, dates, conceptIds.length);
+	}
+
+	private static TemporalCriterion criterion(long... conceptIds) {
+		List<Long> ids = new ArrayList<>();
+		for (long conceptId : conceptIds) {
+			ids.add(conceptId);
+		}
+		return new TemporalCriterion(true, ids);
+	}
+}
@@ -9,6 +9,7 @@ import org.springframework.data.elasticsearch.annotations.FieldType;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
 
 public class ClinicalEvent {
@@ -19,16 +20,27 @@ public class ClinicalEvent {
 	@Field(type = FieldType.Keyword)
 	private Long conceptId;
 
+	// Optional, set during import when the subsumption index is enabled. Allows descendant queries to use a single term.
 	@Field(type = FieldType.Keyword)
-	private String conceptDate;
+	private List<Long> ancestorConceptIds;
+
+	// Optional, set during import when CPT enrichment is enabled.
+	@Field(type = FieldType.Keyword)
+	private String cptCode;
 
 	@Transient
 	private TermHolder conceptTerm;
 
+	// Set on events created by a ClinicalEventSet while iterating, so the set keeps the event once it is given detail
+	@Transient
+	ClinicalEventSet eventSet;
+
 	public interface Fields {
 		String ROLE_ID = "roleId";
 		String DATE_LONG = "dateLong";
 		String CONCEPT_ID = "conceptId";
+		String ANCESTOR_CONCEPT_IDS = "ancestorConceptIds";
+		String CPT_CODE = "cptCode";
 	}
 
 	public ClinicalEvent() {
@@ -37,11 +49,6 @@ public class ClinicalEvent {
 	public ClinicalEvent(Date date, Long conceptId) {
 		dateLong = date.getTime();
 		this.conceptId = conceptId;
-		updateConceptDate();
-	}
-
-	public void updateConceptDate() {
-		conceptDate = conceptId + "," + dateLong;
 	}
 
 	public ClinicalEvent(Calendar date, Long conceptId) {
@@ -77,9 +84,23 @@ public class ClinicalEvent {
 	}
 
 	@JsonView({View.Elasticsearch.class})
-	public String getConceptDate() {
-		updateConceptDate();
-		return conceptDate;
+	public List<Long> getAncestorConceptIds() {
+		return ancestorConceptIds;
+	}
+
+	public void setAncestorConceptIds(List<Long> ancestorConceptIds) {
+		this.ancestorConceptIds = ancestorConceptIds;
+		detailChanged();
+	}
+
+	@JsonView({View.Elasticsearch.class})
+	public String getCptCode() {
+		return cptCode;
+	}
+
+	public void setCptCode(String cptCode) {
+		this.cptCode = cptCode;
+		detailChanged();
 	}
 
 	@JsonView(View.API.class)
@@ -92,6 +113,21 @@ public class ClinicalEvent {
 
 	public void setConceptTerm(TermHolder conceptTerm) {
 		this.conceptTerm = conceptTerm;
+		detailChanged();
+	}
+
+	private void detailChanged() {
+		if (eventSet != null) {
+			eventSet.keep(this);
+			eventSet = null;
+		}
+	}
+
+	/**
+	 * @return true if this event holds more than the concept and date, so can not be recreated from those alone.
+	 */
+	boolean hasDetail() {
+		return ancestorConceptIds != null || cptCode != null || conceptTerm != null;
 	}
 
 	@Override
@@ -0,0 +1,301 @@
+package org.snomed.heathanalytics.model;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Compact set of clinical events held as parallel arrays of concept ids and dates, sorted by concept id then date.
+ * Uses 16 bytes per event rather than a ClinicalEvent object, boxed concept id, concept-date string and hash set entry per event.
+ * Events with the same concept and date are ignored on insert, in the same way as ClinicalEvent.equals.
+ * <p>
+ * ClinicalEvent objects are created as the set is iterated and are not kept, so iterating a large set allocates nothing that lasts.
+ * An event is kept only if it holds detail, such as a CPT code or concept term, either when added or when set on an event from the iterator,
+ * so the detail is seen by later iterations and by serialisation.
+ * <p>
+ * After sortByDate the set iterates in order of date then concept id, for display. Lookups and the arrays are not affected.
+ * Not thread safe.
+ */
+public class ClinicalEventSet extends AbstractSet<ClinicalEvent> {
+
+	public static final int PACKED_EVENT_BYTES = 16;
+
+	private static final long NULL_CONCEPT_ID = Long.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private long[] conceptIds;
+	private long[] dates;
+	// Events holding detail, at the same positions as the arrays. Null until an event has detail.
+	private ClinicalEvent[] details;
+	private int size;
+	private int modCount;
+	private boolean byDate;
+	// Positions in date order, null until needed after a change
+	private int[] dateOrder;
+
+	public ClinicalEventSet() {
+		conceptIds = new long[INITIAL_CAPACITY];
+		dates = new long[INITIAL_CAPACITY];
+	}
+
+	public ClinicalEventSet(Collection<ClinicalEvent> events) {
+		this();
+		addAll(events);
+	}
+
+	@Override
+	public boolean add(ClinicalEvent event) {
+		long conceptId = toPrimitive(event.getConceptId());
+		long date = event.getDateLong();
+		int index = indexOf(conceptId, date);
+		if (index >= 0) {
+			return false;
+		}
+		int insertion = -index - 1;
+		if (details == null && event.hasDetail()) {
+			// Keep the object so its detail is not lost
+			details = new ClinicalEvent[conceptIds.length];
+		}
+		if (size == conceptIds.length) {
+			int capacity = conceptIds.length + (conceptIds.length >> 1) + 1;
+			conceptIds = Arrays.copyOf(conceptIds, capacity);
+			dates = Arrays.copyOf(dates, capacity);
+			if (details != null) {
+				details = Arrays.copyOf(details, capacity);
+			}
+		}
+		System.arraycopy(conceptIds, insertion, conceptIds, insertion + 1, size - insertion);
+		System.arraycopy(dates, insertion, dates, insertion + 1, size - insertion);
+		conceptIds[insertion] = conceptId;
+		dates[insertion] = date;
+		if (details != null) {
+			System.arraycopy(details, insertion, details, insertion + 1, size - insertion);
+			details[insertion] = event.hasDetail() ? event : null;
+		}
+		size++;
+		modCount++;
+		dateOrder = null;
+		return true;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof ClinicalEvent)) {
+			return false;
+		}
+		ClinicalEvent event = (ClinicalEvent) o;
+		return indexOf(toPrimitive(event.getConceptId()), event.getDateLong()) >= 0;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof ClinicalEvent)) {
+			return false;
+		}
+		ClinicalEvent event = (ClinicalEvent) o;
+		int index = indexOf(toPrimitive(event.getConceptId()), event.getDateLong());
+		if (index < 0) {
+			return false;
+		}
+		removeAt(index);
+		return true;
+	}
+
+	private void removeAt(int index) {
+		int moved = size - index - 1;
+		System.arraycopy(conceptIds, index + 1, conceptIds, index, moved);
+		System.arraycopy(dates, index + 1, dates, index, moved);
+		if (details != null) {
+			System.arraycopy(details, index + 1, details, index, moved);
+			details[size - 1] = null;
+		}
+		size--;
+		modCount++;
+		dateOrder = null;
+	}
+
+	@Override
+	public void clear() {
+		size = 0;
+		details = null;
+		modCount++;
+		dateOrder = null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Iterate in order of date then concept id from now on. The order is worked out once, using the arrays, when the set is next iterated.
+	 * @return this set.
+	 */
+	public ClinicalEventSet sortByDate() {
+		byDate = true;
+		return this;
+	}
+
+	@Override
+	public Iterator<ClinicalEvent> iterator() {
+		if (byDate && dateOrder == null) {
+			dateOrder = createDateOrder();
+		}
+		return new Iterator<>() {
+
+			private int next;
+			private int expectedModCount = modCount;
+			private boolean canRemove;
+			private int[] order = dateOrder;
+
+			@Override
+			public boolean hasNext() {
+				return next < size;
+			}
+
+			@Override
+			public ClinicalEvent next() {
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (next >= size) {
+					throw new NoSuchElementException();
+				}
+				canRemove = true;
+				return get(order != null ? order[next++] : next++);
+			}
+
+			@Override
+			public void remove() {
+				if (!canRemove) {
+					throw new IllegalStateException();
+				}
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+				next--;
+				if (order != null) {
+					int removed = order[next];
+					removeAt(removed);
+					// Drop the position and shift those after the removed event down, as removeAt does to the arrays
+					int[] newOrder = new int[size];
+					for (int i = 0, j = 0; i <= size; i++) {
+						if (i != next) {
+							newOrder[j++] = order[i] > removed ? order[i] - 1 : order[i];
+						}
+					}
+					order = newOrder;
+					dateOrder = newOrder;
+				} else {
+					removeAt(next);
+				}
+				expectedModCount = modCount;
+				canRemove = false;
+			}
+		};
+	}
+
+	/**
+	 * Positions are in concept id order, and dates are in order within each concept,
+	 * so a stable merge sort by date alone leaves events with the same date in concept id order.
+	 */
+	private int[] createDateOrder() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++) {
+			order[i] = i;
+		}
+		int[] buffer = new int[size];
+		for (int width = 1; width < size; width <<= 1) {
+			for (int low = 0; low < size; low += width << 1) {
+				int middle = Math.min(low + width, size);
+				int high = Math.min(low + (width << 1), size);
+				int left = low;
+				int right = middle;
+				for (int i = low; i < high; i++) {
+					if (left < middle && (right >= high || dates[order[left]] <= dates[order[right]])) {
+						buffer[i] = order[left++];
+					} else {
+						buffer[i] = order[right++];
+					}
+				}
+			}
+			int[] sorted = buffer;
+			buffer = order;
+			order = sorted;
+		}
+		return order;
+	}
+
+	private ClinicalEvent get(int index) {
+		if (details != null && details[index] != null) {
+			return details[index];
+		}
+		ClinicalEvent event = new ClinicalEvent(new Date(dates[index]), conceptIds[index] != NULL_CONCEPT_ID ? conceptIds[index] : null);
+		event.eventSet = this;
+		return event;
+	}
+
+	/**
+	 * Keeps an event created by the iterator which has been given detail. Found by concept and date because positions change as events are added.
+	 */
+	void keep(ClinicalEvent event) {
+		int index = indexOf(toPrimitive(event.getConceptId()), event.getDateLong());
+		if (index >= 0) {
+			if (details == null) {
+				details = new ClinicalEvent[conceptIds.length];
+			}
+			details[index] = event;
+		}
+	}
+
+	/**
+	 * @return concept ids in ascending order, with dates ascending within each concept. Only the first size() values are used.
+	 * The array must not be modified.
+	 */
+	public long[] getConceptIds() {
+		return conceptIds;
+	}
+
+	/**
+	 * @return dates in the same order as the concept ids. Only the first size() values are used. The array must not be modified.
+	 */
+	public long[] getDates() {
+		return dates;
+	}
+
+	/**
+	 * @return the events as pairs of big-endian longs, concept id then date, in the order of this set.
+	 * This is the format of the packed events field read by the temporal query scripts.
+	 */
+	public byte[] toPackedBytes() {
+		ByteBuffer buffer = ByteBuffer.allocate(size * PACKED_EVENT_BYTES);
+		for (int i = 0; i < size; i++) {
+			buffer.putLong(conceptIds[i]);
+			buffer.putLong(dates[i]);
+		}
+		return buffer.array();
+	}
+
+	private int indexOf(long conceptId, long date) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int comparison = Long.compare(conceptIds[mid], conceptId);
+			if (comparison == 0) {
+				comparison = Long.compare(dates[mid], date);
+			}
+			if (comparison < 0) {
+				low = mid + 1;
+			} else if (comparison > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	private static long toPrimitive(Long conceptId) {
+		return conceptId != null ? conceptId : NULL_CONCEPT_ID;
+	}
+}
@@ -1,12 +1,16 @@
 package org.snomed.heathanalytics.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import org.springframework.data.annotation.AccessType;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.elasticsearch.annotations.Document;
 import org.springframework.data.elasticsearch.annotations.Field;
 import org.springframework.data.elasticsearch.annotations.FieldType;
+import org.springframework.data.elasticsearch.annotations.Mapping;
 
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -38,6 +42,15 @@ public class Patient {
 
 	private Set<ClinicalEvent> events;
 
+	// Optional, set during import when CPT enrichment is enabled.
+	@Field(type = FieldType.Object)
+	private RVUTotals rvuTotals;
+
+	// Derived from events when the document is written, see getEventsPacked. Binary with doc values so scripts can read it without parsing.
+	@Mapping(mappingPath = "/mappings/patient-events-packed.json")
+	@AccessType(AccessType.Type.PROPERTY)
+	private String eventsPacked;
+
 	public interface Fields {
 		String ROLE_ID = "roleId";
 		String DATASET = "dataset";
@@ -46,6 +59,8 @@ public class Patient {
 		String GENDER = "gender";
 		String numEvents = "numEvents";
 		String events = "events";
+		String EVENTS_PACKED = "eventsPacked";
+		String RVU_TOTALS = "rvuTotals";
 	}
 
 	public Patient() {
@@ -63,7 +78,7 @@ public class Patient {
 
 	public Patient addEvent(ClinicalEvent event) {
 		if (events == null) {
-			events = new HashSet<>();
+			events = new ClinicalEventSet();
 		}
 		events.add(event);
 		return this;
@@ -147,10 +162,42 @@ public class Patient {
 		this.gender = gender;
 	}
 
+	/**
+	 * @return totals over the events of this patient which map to a CPT code, or null if not enriched.
+	 */
+	@JsonView(View.Elasticsearch.class)
+	public RVUTotals getRvuTotals() {
+		return rvuTotals;
+	}
+
+	public void setRvuTotals(RVUTotals rvuTotals) {
+		this.rvuTotals = rvuTotals;
+	}
+
+	// Events read from JSON are held in compact form
+	@JsonDeserialize(as = ClinicalEventSet.class)
 	public void setEvents(Set<ClinicalEvent> events) {
 		this.events = events;
 	}
 
+	/**
+	 * @return events sorted by concept id then date, without duplicates, packed as pairs of big-endian longs and base64 encoded.
+	 * Used by the temporal query scripts, which read both values of every event from a single doc value.
+	 */
+	@JsonIgnore
+	public String getEventsPacked() {
+		if (events == null || events.isEmpty()) {
+			return null;
+		}
+		ClinicalEventSet eventSet = events instanceof ClinicalEventSet ? (ClinicalEventSet) events : new ClinicalEventSet(events);
+		return Base64.getEncoder().encodeToString(eventSet.toPackedBytes());
+	}
+
+	@JsonIgnore
+	public void setEventsPacked(String eventsPacked) {
+		// Derived from events, so the value read from the store is not kept
+	}
+
 	@Override
 	public String toString() {
 		return "Patient{" +
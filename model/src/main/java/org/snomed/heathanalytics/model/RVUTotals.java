@@ -0,0 +1,166 @@
+package org.snomed.heathanalytics.model;
+
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+/**
+ * Relative value units and Medicare payments summed over events which map to a CPT code.
+ * Held per patient, written during import when CPT enrichment is enabled, so cohort totals are plain sum aggregations.
+ * An event counts once per occurrence.
+ */
+public class RVUTotals {
+
+	@Field(type = FieldType.Long)
+	private long cptEvents;
+
+	@Field(type = FieldType.Double)
+	private double workRVU;
+
+	@Field(type = FieldType.Double)
+	private double facilityPracticeExpenseRVU;
+
+	@Field(type = FieldType.Double)
+	private double nonfacilityPracticeExpenseRVU;
+
+	@Field(type = FieldType.Double)
+	private double pliRVU;
+
+	@Field(type = FieldType.Double)
+	private double totalFacilityRVU;
+
+	@Field(type = FieldType.Double)
+	private double totalMedicarePhysicianFeeScheduleFacilityPayment;
+
+	@Field(type = FieldType.Double)
+	private double totalNonfacilityRVU;
+
+	@Field(type = FieldType.Double)
+	private double totalMedicarePhysicianFeeScheduleNonFacilityPayment;
+
+	public interface Fields {
+		String CPT_EVENTS = "cptEvents";
+		String WORK_RVU = "workRVU";
+		String FACILITY_PRACTICE_EXPENSE_RVU = "facilityPracticeExpenseRVU";
+		String NONFACILITY_PRACTICE_EXPENSE_RVU = "nonfacilityPracticeExpenseRVU";
+		String PLI_RVU = "pliRVU";
+		String TOTAL_FACILITY_RVU = "totalFacilityRVU";
+		String TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_FACILITY_PAYMENT = "totalMedicarePhysicianFeeScheduleFacilityPayment";
+		String TOTAL_NONFACILITY_RVU = "totalNonfacilityRVU";
+		String TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_NON_FACILITY_PAYMENT = "totalMedicarePhysicianFeeScheduleNonFacilityPayment";
+
+		String[] ALL = {CPT_EVENTS, WORK_RVU, FACILITY_PRACTICE_EXPENSE_RVU, NONFACILITY_PRACTICE_EXPENSE_RVU, PLI_RVU, TOTAL_FACILITY_RVU,
+				TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_FACILITY_PAYMENT, TOTAL_NONFACILITY_RVU, TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_NON_FACILITY_PAYMENT};
+	}
+
+	public RVUTotals() {
+	}
+
+	public RVUTotals(long cptEvents, double workRVU, double facilityPracticeExpenseRVU, double nonfacilityPracticeExpenseRVU, double pliRVU,
+			double totalFacilityRVU, double totalMedicarePhysicianFeeScheduleFacilityPayment, double totalNonfacilityRVU,
+			double totalMedicarePhysicianFeeScheduleNonFacilityPayment) {
+
+		this.cptEvents = cptEvents;
+		this.workRVU = workRVU;
+		this.facilityPracticeExpenseRVU = facilityPracticeExpenseRVU;
+		this.nonfacilityPracticeExpenseRVU = nonfacilityPracticeExpenseRVU;
+		this.pliRVU = pliRVU;
+		this.totalFacilityRVU = totalFacilityRVU;
+		this.totalMedicarePhysicianFeeScheduleFacilityPayment = totalMedicarePhysicianFeeScheduleFacilityPayment;
+		this.totalNonfacilityRVU = totalNonfacilityRVU;
+		this.totalMedicarePhysicianFeeScheduleNonFacilityPayment = totalMedicarePhysicianFeeScheduleNonFacilityPayment;
+	}
+
+	public void add(RVUTotals other) {
+		cptEvents += other.cptEvents;
+		workRVU += other.workRVU;
+		facilityPracticeExpenseRVU += other.facilityPracticeExpenseRVU;
+		nonfacilityPracticeExpenseRVU += other.nonfacilityPracticeExpenseRVU;
+		pliRVU += other.pliRVU;
+		totalFacilityRVU += other.totalFacilityRVU;
+		totalMedicarePhysicianFeeScheduleFacilityPayment += other.totalMedicarePhysicianFeeScheduleFacilityPayment;
+		totalNonfacilityRVU += other.totalNonfacilityRVU;
+		totalMedicarePhysicianFeeScheduleNonFacilityPayment += other.totalMedicarePhysicianFeeScheduleNonFacilityPayment;
+	}
+
+	public long getCptEvents() {
+		return cptEvents;
+	}
+
+	public void setCptEvents(long cptEvents) {
+		this.cptEvents = cptEvents;
+	}
+
+	public double getWorkRVU() {
+		return workRVU;
+	}
+
+	public void setWorkRVU(double workRVU) {
+		this.workRVU = workRVU;
+	}
+
+	public double getFacilityPracticeExpenseRVU() {
+		return facilityPracticeExpenseRVU;
+	}
+
+	public void setFacilityPracticeExpenseRVU(double facilityPracticeExpenseRVU) {
+		this.facilityPracticeExpenseRVU = facilityPracticeExpenseRVU;
+	}
+
+	public double getNonfacilityPracticeExpenseRVU() {
+		return nonfacilityPracticeExpenseRVU;
+	}
+
+	public void setNonfacilityPracticeExpenseRVU(double nonfacilityPracticeExpenseRVU) {
+		this.nonfacilityPracticeExpenseRVU = nonfacilityPracticeExpenseRVU;
+	}
+
+	public double getPliRVU() {
+		return pliRVU;
+	}
+
+	public void setPliRVU(double pliRVU) {
+		this.pliRVU = pliRVU;
+	}
+
+	public double getTotalFacilityRVU() {
+		return totalFacilityRVU;
+	}
+
+	public void setTotalFacilityRVU(double totalFacilityRVU) {
+		this.totalFacilityRVU = totalFacilityRVU;
+	}
+
+	public double getTotalMedicarePhysicianFeeScheduleFacilityPayment() {
+		return totalMedicarePhysicianFeeScheduleFacilityPayment;
+	}
+
+	public void setTotalMedicarePhysicianFeeScheduleFacilityPayment(double totalMedicarePhysicianFeeScheduleFacilityPayment) {
+		this.totalMedicarePhysicianFeeScheduleFacilityPayment = totalMedicarePhysicianFeeScheduleFacilityPayment;
+	}
+
+	public double getTotalNonfacilityRVU() {
+		return totalNonfacilityRVU;
+	}
+
+	public void setTotalNonfacilityRVU(double totalNonfacilityRVU) {
+		this.totalNonfacilityRVU = totalNonfacilityRVU;
+	}
+
+	public double getTotalMedicarePhysicianFeeScheduleNonFacilityPayment() {
+		return totalMedicarePhysicianFeeScheduleNonFacilityPayment;
+	}
+
+	public void setTotalMedicarePhysicianFeeScheduleNonFacilityPayment(double totalMedicarePhysicianFeeScheduleNonFacilityPayment) {
+		this.totalMedicarePhysicianFeeScheduleNonFacilityPayment = totalMedicarePhysicianFeeScheduleNonFacilityPayment;
+	}
+
+	@Override
+	public String toString() {
+		return "RVUTotals{" +
+				"cptEvents=" + cptEvents +
+				", workRVU=" + workRVU +
+				", totalFacilityRVU=" + totalFacilityRVU +
+				", totalNonfacilityRVU=" + totalNonfacilityRVU +
+				'}';
+	}
+}
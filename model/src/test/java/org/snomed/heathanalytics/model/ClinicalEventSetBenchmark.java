@@ -0,0 +1,87 @@
+package org.snomed.heathanalytics.model;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Compares memory use and throughput of patient events held in a HashSet and in a ClinicalEventSet.
+ * Not run as part of the build, run the main method with a fixed heap, for example -Xmx4g.
+ */
+public class ClinicalEventSetBenchmark {
+
+	private static final int PATIENTS = 100_000;
+	private static final int EVENTS_PER_PATIENT = 50;
+	private static final int CONCEPTS = 5_000;
+	private static final long START = new GregorianCalendar(2000, Calendar.JANUARY, 1).getTimeInMillis();
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	public static void main(String[] args) {
+		for (int round = 0; round < 3; round++) {
+			run("HashSet", HashSet::new);
+			run("ClinicalEventSet", ClinicalEventSet::new);
+		}
+	}
+
+	private static void run(String name, Supplier<Set<ClinicalEvent>> setSupplier) {
+		long memoryBefore = usedMemory();
+		long start = System.nanoTime();
+		List<Patient> patients = createPatients(setSupplier);
+		long loadMillis = (System.nanoTime() - start) / 1_000_000;
+		long memoryAfter = usedMemory();
+
+		start = System.nanoTime();
+		int matched = 0;
+		for (Patient patient : patients) {
+			if (matches(patient)) {
+				matched++;
+			}
+		}
+		long matchMillis = (System.nanoTime() - start) / 1_000_000;
+
+		int events = patients.stream().mapToInt(Patient::getNumEvents).sum();
+		System.out.printf("%-17s %,d events, %d bytes per event, load %,d ms, match %,d ms (%d matched)%n",
+				name, events, (memoryAfter - memoryBefore) / events, loadMillis, matchMillis, matched);
+	}
+
+	// Concept 10 then concept 20 within 365 days, iterating the events as the cohort matcher does
+	private static boolean matches(Patient patient) {
+		long first = Long.MAX_VALUE;
+		for (ClinicalEvent event : patient.getEvents()) {
+			if (event.getConceptId() == 10 && event.getDateLong() < first) {
+				first = event.getDateLong();
+			}
+		}
+		if (first == Long.MAX_VALUE) {
+			return false;
+		}
+		for (ClinicalEvent event : patient.getEvents()) {
+			if (event.getConceptId() == 20 && event.getDateLong() > first && event.getDateLong() <= first + 365 * DAY) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<Patient> createPatients(Supplier<Set<ClinicalEvent>> setSupplier) {
+		Random random = new Random(1);
+		List<Patient> patients = new ArrayList<>(PATIENTS);
+		for (int i = 0; i < PATIENTS; i++) {
+			Patient patient = new Patient(Integer.toString(i));
+			Set<ClinicalEvent> events = setSupplier.get();
+			for (int j = 0; j < EVENTS_PER_PATIENT; j++) {
+				events.add(new ClinicalEvent(new Date(START + random.nextInt(7000) * DAY), (long) random.nextInt(CONCEPTS)));
+			}
+			patient.setEvents(events);
+			patients.add(patient);
+		}
+		return patients;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,138 @@
+package org.snomed.heathanalytics.model;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.pojo.TermHolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClinicalEventSetTest {
+
+	@Test
+	public void testSortedAndDeduplicated() {
+		ClinicalEventSet events = new ClinicalEventSet();
+		assertTrue(events.add(event(200, 10)));
+		assertTrue(events.add(event(100, 20)));
+		assertTrue(events.add(event(200, 5)));
+		assertFalse(events.add(event(200, 10)));
+		assertTrue(events.add(event(100, 10)));
+
+		assertEquals(4, events.size());
+		assertArrayEquals(new long[] {100, 100, 200, 200}, Arrays.copyOf(events.getConceptIds(), events.size()));
+		assertArrayEquals(new long[] {10, 20, 5, 10}, Arrays.copyOf(events.getDates(), events.size()));
+		assertEquals(List.of(event(100, 10), event(100, 20), event(200, 5), event(200, 10)), new ArrayList<>(events));
+		assertTrue(events.contains(event(200, 5)));
+		assertFalse(events.contains(event(200, 6)));
+		assertEquals(new HashSet<>(events), events);
+	}
+
+	@Test
+	public void testGrowAndRemove() {
+		ClinicalEventSet events = new ClinicalEventSet();
+		for (int i = 1000; i > 0; i--) {
+			events.add(event(i % 10, i));
+		}
+		assertEquals(1000, events.size());
+		assertTrue(events.remove(event(3, 13)));
+		assertFalse(events.remove(event(3, 13)));
+		events.removeIf(event -> event.getConceptId() == 5);
+		assertEquals(899, events.size());
+		long previous = Long.MIN_VALUE;
+		for (ClinicalEvent event : events) {
+			long key = event.getConceptId() * 10_000 + event.getDateLong();
+			assertTrue(key > previous);
+			assertNotEquals(5L, event.getConceptId());
+			previous = key;
+		}
+	}
+
+	@Test
+	public void testViewChangesKept() {
+		ClinicalEventSet events = new ClinicalEventSet(List.of(event(100, 10), event(200, 10)));
+		for (ClinicalEvent event : events) {
+			event.setConceptTerm(new TermHolder("Term " + event.getConceptId()));
+		}
+		events.add(event(150, 10));
+		Iterator<ClinicalEvent> iterator = events.iterator();
+		assertEquals("Term 100", iterator.next().getConceptTerm());
+		assertNull(iterator.next().getConceptTerm());
+		assertEquals("Term 200", iterator.next().getConceptTerm());
+
+		// An event with detail is kept rather than recreated from the arrays
+		ClinicalEvent withAncestors = event(300, 10);
+		withAncestors.setAncestorConceptIds(List.of(1L, 2L));
+		ClinicalEventSet other = new ClinicalEventSet();
+		other.add(event(400, 10));
+		other.add(withAncestors);
+		assertSame(withAncestors, other.iterator().next());
+	}
+
+	@Test
+	public void testViewsNotKept() {
+		ClinicalEventSet events = new ClinicalEventSet(List.of(event(100, 10), event(200, 10)));
+		ClinicalEvent first = events.iterator().next();
+		assertEquals(event(100, 10), first);
+		assertNotSame(first, events.iterator().next());
+
+		// Detail set on an event from the iterator keeps it, even after the positions change
+		events.add(event(50, 10));
+		first.setCptCode("12345");
+		assertSame(first, new ArrayList<>(events).get(1));
+		events.remove(event(50, 10));
+		assertEquals("12345", events.iterator().next().getCptCode());
+	}
+
+	@Test
+	public void testSortByDate() {
+		ClinicalEventSet events = new ClinicalEventSet(List.of(event(300, 10), event(100, 30), event(200, 10), event(100, 5), event(300, 1)));
+		assertSame(events, events.sortByDate());
+		assertEquals(List.of(event(300, 1), event(100, 5), event(200, 10), event(300, 10), event(100, 30)), new ArrayList<>(events));
+
+		// Order is kept through changes, lookups still work
+		events.add(event(50, 10));
+		assertEquals(List.of(event(300, 1), event(100, 5), event(50, 10), event(200, 10), event(300, 10), event(100, 30)), new ArrayList<>(events));
+		assertTrue(events.contains(event(100, 30)));
+		events.removeIf(event -> event.getConceptId() == 200 || event.getConceptId() == 300);
+		assertEquals(List.of(event(100, 5), event(50, 10), event(100, 30)), new ArrayList<>(events));
+		assertArrayEquals(new long[] {50, 100, 100}, Arrays.copyOf(events.getConceptIds(), events.size()));
+	}
+
+	@Test
+	public void testPatientJsonRoundTrip() throws IOException {
+		Patient patient = new Patient("1").addEvent(event(200, 10)).addEvent(event(100, 10)).addEvent(event(100, 10));
+		assertTrue(patient.getEvents() instanceof ClinicalEventSet);
+		assertEquals(2, patient.getNumEvents());
+
+		// As configured by Spring Boot
+		ObjectMapper objectMapper = new ObjectMapper().disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+		Patient read = objectMapper.readValue(objectMapper.writerWithView(View.Elasticsearch.class).writeValueAsString(patient), Patient.class);
+		assertTrue(read.getEvents() instanceof ClinicalEventSet);
+		assertEquals(patient.getEvents(), read.getEvents());
+	}
+
+	@Test
+	public void testPacked() {
+		ClinicalEventSet events = new ClinicalEventSet(List.of(event(200, 10), event(100, 20)));
+		ByteBuffer packed = ByteBuffer.wrap(events.toPackedBytes());
+		assertEquals(2 * ClinicalEventSet.PACKED_EVENT_BYTES, packed.capacity());
+		assertEquals(100, packed.getLong());
+		assertEquals(20, packed.getLong());
+		assertEquals(200, packed.getLong());
+		assertEquals(10, packed.getLong());
+
+		// Same value whichever type of set the patient holds
+		Patient patient = new Patient("1");
+		patient.setEvents(new HashSet<>(List.of(event(100, 20), event(200, 10))));
+		assertEquals(Base64.getEncoder().encodeToString(events.toPackedBytes()), patient.getEventsPacked());
+		assertNull(new Patient("2").getEventsPacked());
+	}
+
+	private static ClinicalEvent event(long conceptId, long date) {
+		return new ClinicalEvent(new Date(date), conceptId);
+	}
+}
@@ -3,7 +3,12 @@ package org.snomed.heathanalytics.server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.server.config.Config;
+import org.snomed.heathanalytics.server.ingestion.CompressionUtils;
+import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
+import org.snomed.heathanalytics.server.ingestion.elasticsearch.ElasticBulkOutputStream;
 import org.snomed.heathanalytics.server.ingestion.elasticsearch.ElasticOutputStream;
+import org.snomed.heathanalytics.server.ingestion.elasticsearch.PatientReindexer;
 import org.snomed.heathanalytics.server.ingestion.fhir.FHIRBulkLocalIngestionSource;
 import org.snomed.heathanalytics.server.ingestion.fhir.FHIRBulkLocalIngestionSourceConfiguration;
 import org.snomed.heathanalytics.server.ingestion.fhir.FHIRLocalIngestionSource;
@@ -33,11 +38,27 @@ public class ServerApplication extends Config implements ApplicationRunner {
 	public static final String IMPORT_POPULATION_FHIR = "import-population-fhir";
 	public static final String IMPORT_POPULATION_FHIR_SINGLE_RESOURCES = "import-population-fhir-single";
 	public static final String IMPORT_FHIR_VERSION = "import-fhir-version";
+	public static final String IMPORT_READER_THREADS = "import-reader-threads";
+	public static final String IMPORT_WRITER_THREADS = "import-writer-threads";
+	public static final String IMPORT_BULK = "import-bulk";
+	public static final String IMPORT_RESUME = "resume";
+	public static final String IMPORT_INCREMENTAL = "import-incremental";
+	public static final String REINDEX = "reindex";
 
 	@Autowired
 	@Lazy
 	private ElasticOutputStream elasticOutputStream;
 
+	@Autowired
+	@Lazy
+	private ElasticBulkOutputStream elasticBulkOutputStream;
+
+	@Autowired
+	@Lazy
+	private PatientReindexer patientReindexer;
+
+	private HealthDataOutputStream outputStream;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public static void main(String[] args) {
@@ -46,7 +67,18 @@ public class ServerApplication extends Config implements ApplicationRunner {
 
 	@Override
 	public void run(ApplicationArguments applicationArguments) {
+		if (applicationArguments.containsOption(IMPORT_INCREMENTAL)) {
+			// Merging with existing patients needs scripted updates, which only the bulk stream supports
+			elasticBulkOutputStream.setIncremental(true);
+			outputStream = elasticBulkOutputStream;
+		} else {
+			outputStream = applicationArguments.containsOption(IMPORT_BULK) ? elasticBulkOutputStream : elasticOutputStream;
+		}
 		try {
+			if (applicationArguments.containsOption(REINDEX)) {
+				patientReindexer.reindex();
+				System.exit(0);
+			}
 			if (applicationArguments.containsOption(IMPORT_POPULATION_NATIVE)) {
 				List<String> values = applicationArguments.getOptionValues(IMPORT_POPULATION_NATIVE);
 				if (values.size() != 1) {
@@ -54,7 +86,11 @@ public class ServerApplication extends Config implements ApplicationRunner {
 				}
 				File directory = new File(values.get(0));
 				checkDirectoryExists(directory);
-				importPopulationNativeFormat(directory, getDataSetLabel(applicationArguments));
+				String dataSetLabel = getDataSetLabel(applicationArguments);
+				importPopulationNativeFormat(directory, dataSetLabel,
+						getIntOption(applicationArguments, IMPORT_READER_THREADS, Runtime.getRuntime().availableProcessors()),
+						getIntOption(applicationArguments, IMPORT_WRITER_THREADS, 4),
+						openCheckpoint(directory, dataSetLabel, applicationArguments));
 				System.exit(0);
 			}
 			if (applicationArguments.containsOption(IMPORT_POPULATION_FHIR)) {
@@ -64,7 +100,8 @@ public class ServerApplication extends Config implements ApplicationRunner {
 				}
 				File directory = new File(values.get(0));
 				checkDirectoryExists(directory);
-				importPopulationFHIRFormat(directory, getDataSetLabel(applicationArguments));
+				String dataSetLabel = getDataSetLabel(applicationArguments);
+				importPopulationFHIRFormat(directory, dataSetLabel, openCheckpoint(directory, dataSetLabel, applicationArguments));
 				System.exit(0);
 			}
 			if (applicationArguments.containsOption(IMPORT_POPULATION_FHIR_SINGLE_RESOURCES)) {
@@ -74,7 +111,8 @@ public class ServerApplication extends Config implements ApplicationRunner {
 				}
 				List<String> fhirVersionOption = applicationArguments.getOptionValues(IMPORT_FHIR_VERSION);
 				final String fhirVersion = (fhirVersionOption != null && fhirVersionOption.size() == 1) ? fhirVersionOption.get(0) : "R4";
-				importPopulationSingleFhirResources(new File(values.get(0)), fhirVersion, getDataSetLabel(applicationArguments));
+				importPopulationSingleFhirResources(new File(values.get(0)), fhirVersion, getDataSetLabel(applicationArguments),
+						getIntOption(applicationArguments, IMPORT_READER_THREADS, Runtime.getRuntime().availableProcessors()));
 				System.exit(0);
 			}
 		} catch (IllegalArgumentException e) {
@@ -95,6 +133,23 @@ public class ServerApplication extends Config implements ApplicationRunner {
 		return dataset;
 	}
 
+	private ImportCheckpoint openCheckpoint(File directory, String dataSetLabel, ApplicationArguments applicationArguments) {
+		File checkpointFile = new File(directory, ".import-checkpoint-" + dataSetLabel + ".json");
+		return ImportCheckpoint.open(checkpointFile, dataSetLabel, applicationArguments.containsOption(IMPORT_RESUME), objectMapper());
+	}
+
+	private int getIntOption(ApplicationArguments applicationArguments, String option, int defaultValue) {
+		List<String> values = applicationArguments.getOptionValues(option);
+		if (values == null || values.isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(values.get(0));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option " + option + " must be a number.");
+		}
+	}
+
 	private void checkDirectoryExists(File directory) {
 		if (!directory.isDirectory()) {
 			logger.error("Directory not found: " + directory.getAbsolutePath());
@@ -102,25 +157,30 @@ public class ServerApplication extends Config implements ApplicationRunner {
 		}
 	}
 
-	private void importPopulationNativeFormat(File populationNDJSONDirectory, String dataSetLabel) {
+	private void importPopulationNativeFormat(File populationNDJSONDirectory, String dataSetLabel, int readerThreads, int writerThreads,
+			ImportCheckpoint checkpoint) {
+
 		logger.info("******** Importing patient data in native format from {} ...", populationNDJSONDirectory.getPath());
-		new LocalFileNDJsonIngestionSource(objectMapper()).stream(new LocalFileNDJsonIngestionSourceConfiguration(dataSetLabel, populationNDJSONDirectory), elasticOutputStream);
+		new LocalFileNDJsonIngestionSource(objectMapper()).stream(
+				new LocalFileNDJsonIngestionSourceConfiguration(dataSetLabel, populationNDJSONDirectory, readerThreads, writerThreads, checkpoint), outputStream);
 	}
 
-	private void importPopulationSingleFhirResources(File populationSingleFhirResourcesDirectory, String fhirVersion, String dataSetLabel) {
+	private void importPopulationSingleFhirResources(File populationSingleFhirResourcesDirectory, String fhirVersion, String dataSetLabel, int threads) {
 		logger.info("******** Importing patient data from single FHIR {} resources from {} ...", fhirVersion, populationSingleFhirResourcesDirectory.getPath());
-		new FHIRLocalIngestionSource().stream(new FHIRLocalIngestionSourceConfiguration(dataSetLabel, populationSingleFhirResourcesDirectory, fhirVersion), elasticOutputStream);
+		new FHIRLocalIngestionSource().stream(new FHIRLocalIngestionSourceConfiguration(dataSetLabel, populationSingleFhirResourcesDirectory, fhirVersion, threads),
+				outputStream);
 	}
 
-	private void importPopulationFHIRFormat(File populationNDJSONDirectory, String dataSetLabel) {
+	private void importPopulationFHIRFormat(File populationNDJSONDirectory, String dataSetLabel, ImportCheckpoint checkpoint) {
 		logger.info("******** Importing patient data in FHIR format from {} ...", populationNDJSONDirectory.getPath());
 		if (!populationNDJSONDirectory.isDirectory()) {
 			throw new IllegalArgumentException(String.format("The path '%s' is not a directory.", populationNDJSONDirectory.getAbsolutePath()));
 		}
 
-		File[] files = populationNDJSONDirectory.listFiles((dir, name) -> name.endsWith(".ndjson"));
+		File[] files = populationNDJSONDirectory.listFiles((dir, name) -> CompressionUtils.hasExtension(name, ".ndjson"));
 		if (files == null || files.length == 0) {
-			throw new IllegalArgumentException(String.format("No files with '.ndjson' extension found in directory '%s'.", populationNDJSONDirectory.getAbsolutePath()));
+			throw new IllegalArgumentException(String.format("No files with '.ndjson' extension, optionally compressed, found in directory '%s'.",
+					populationNDJSONDirectory.getAbsolutePath()));
 		}
 
 		File patientFile = null;
@@ -143,8 +203,8 @@ public class ServerApplication extends Config implements ApplicationRunner {
 		}
 
 		new FHIRBulkLocalIngestionSource(objectMapper()).stream(
-				new FHIRBulkLocalIngestionSourceConfiguration(dataSetLabel, patientFile, conditionFile, procedureFile, medicationRequestFile, serviceRequestFile),
-				elasticOutputStream);
+				new FHIRBulkLocalIngestionSourceConfiguration(dataSetLabel, patientFile, conditionFile, procedureFile, medicationRequestFile, serviceRequestFile, checkpoint),
+				outputStream);
 	}
 
 }
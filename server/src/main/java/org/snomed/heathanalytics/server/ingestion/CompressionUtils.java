@@ -0,0 +1,85 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens input files which may be compressed with gzip, bzip2 or Zstandard.
+ * The format is detected from the first bytes of the file rather than the file name.
+ * Compressed files are decompressed on a separate thread so decompression runs in parallel with parsing.
+ */
+public class CompressionUtils {
+
+	private static final String[] COMPRESSED_EXTENSIONS = {".gz", ".bz2", ".zst", ".zstd"};
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+	private static final int READ_AHEAD_BUFFERS = 4;
+
+	enum Format {
+		PLAIN, GZIP, BZIP2, ZSTD
+	}
+
+	/**
+	 * @return true if the file name ends with the extension, optionally followed by a compressed file extension, for example 'Patient.ndjson.gz'.
+	 */
+	public static boolean hasExtension(String fileName, String extension) {
+		if (fileName.endsWith(extension)) {
+			return true;
+		}
+		for (String compressedExtension : COMPRESSED_EXTENSIONS) {
+			if (fileName.endsWith(extension + compressedExtension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static boolean isCompressed(File file) throws IOException {
+		try (InputStream inputStream = new FileInputStream(file)) {
+			return detectFormat(inputStream.readNBytes(4)) != Format.PLAIN;
+		}
+	}
+
+	public static InputStream open(File file) throws IOException {
+		BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			return decompress(inputStream);
+		} catch (IOException | RuntimeException e) {
+			inputStream.close();
+			throw e;
+		}
+	}
+
+	public static InputStream decompress(BufferedInputStream inputStream) throws IOException {
+		inputStream.mark(4);
+		Format format = detectFormat(inputStream.readNBytes(4));
+		inputStream.reset();
+		switch (format) {
+			case GZIP:
+				// Also reads files made of several gzip members, as written by parallel compressors
+				return new ReadAheadInputStream(new GZIPInputStream(inputStream, BUFFER_SIZE), READ_AHEAD_BUFFER_SIZE, READ_AHEAD_BUFFERS);
+			case BZIP2:
+				return new ReadAheadInputStream(new BZip2CompressorInputStream(inputStream, true), READ_AHEAD_BUFFER_SIZE, READ_AHEAD_BUFFERS);
+			case ZSTD:
+				return new ReadAheadInputStream(new ZstdCompressorInputStream(inputStream), READ_AHEAD_BUFFER_SIZE, READ_AHEAD_BUFFERS);
+			default:
+				return inputStream;
+		}
+	}
+
+	static Format detectFormat(byte[] magic) {
+		if (magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+			return Format.GZIP;
+		}
+		if (magic.length >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+			return Format.BZIP2;
+		}
+		if (magic.length >= 4 && (magic[0] & 0xff) == 0x28 && (magic[1] & 0xff) == 0xb5 && (magic[2] & 0xff) == 0x2f && (magic[3] & 0xff) == 0xfd) {
+			return Format.ZSTD;
+		}
+		return Format.PLAIN;
+	}
+}
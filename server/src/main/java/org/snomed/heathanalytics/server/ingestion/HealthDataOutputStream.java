@@ -13,5 +13,26 @@ public interface HealthDataOutputStream extends AutoCloseable {
 
 	void addClinicalEvent(String roleId, ClinicalEvent event, String dataset);
 
+	default void addClinicalEvents(String roleId, Collection<ClinicalEvent> events, String dataset) {
+		for (ClinicalEvent event : events) {
+			addClinicalEvent(roleId, event, dataset);
+		}
+	}
+
+	/**
+	 * @return true if patients are merged with patients already in the store rather than replacing them,
+	 * so events may also be added to patients which are not part of this import.
+	 */
+	default boolean isIncremental() {
+		return false;
+	}
+
+	/**
+	 * Blocks until everything passed to this stream so far has been written to the store.
+	 * @throws RuntimeException if anything could not be written, so progress is not recorded past it.
+	 */
+	default void flush() {
+	}
+
 	void close();
 }
@@ -0,0 +1,267 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.NumberFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Progress of an import, saved to a file at regular intervals so that an interrupted import can be resumed.
+ * The output stream is flushed before each save, so a saved checkpoint only records data that has been written to the store.
+ * The state is copied under the lock and the flush and file write happen outside it, so other threads can record progress meanwhile.
+ * Patients are stored using the composite role id as the document id, so work repeated after resuming overwrites the same documents.
+ * <p>
+ * The native import records the file chunks which have been completely written.
+ * The FHIR bulk import records the last patient written by the sort-merge stage, patients are written in sort order.
+ */
+public class ImportCheckpoint {
+
+	private static final long SAVE_INTERVAL_MILLIS = 30_000;
+
+	private String dataset;
+	private Set<String> completedChunks = new HashSet<>();
+	private long recordsConsumed;
+	private long batchesFlushed;
+	private String lastFlushedDataset;
+	private String lastFlushedRoleId;
+	private Date updated;
+
+	// Not persisted
+	private File file;
+	private ObjectMapper objectMapper;
+	private long lastSaveMillis;
+	private boolean saving;
+	private long snapshotCount;
+	private long writtenSnapshot;
+	private final Object writeLock = new Object();
+
+	private static final Logger logger = LoggerFactory.getLogger(ImportCheckpoint.class);
+
+	public ImportCheckpoint() {
+		// For Jackson
+	}
+
+	/**
+	 * Loads the checkpoint from the file if resuming, otherwise starts a new checkpoint which will replace any existing file.
+	 */
+	public static ImportCheckpoint open(File file, String dataset, boolean resume, ObjectMapper objectMapper) {
+		ImportCheckpoint checkpoint = null;
+		if (file.isFile()) {
+			if (resume) {
+				try {
+					checkpoint = objectMapper.readValue(file, ImportCheckpoint.class);
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Failed to read import checkpoint " + file.getAbsolutePath() +
+							". Please delete the file or run the import without --resume.", e);
+				}
+				if (!dataset.equals(checkpoint.getDataset())) {
+					throw new IllegalArgumentException("Import checkpoint " + file.getAbsolutePath() + " belongs to data-set " + checkpoint.getDataset() + ".");
+				}
+				logger.info("Resuming import from checkpoint saved {}, {} records already consumed.", checkpoint.getUpdated(),
+						NumberFormat.getNumberInstance().format(checkpoint.getRecordsConsumed()));
+			} else {
+				logger.warn("Replacing existing import checkpoint {}. Use --resume to continue an interrupted import.", file.getAbsolutePath());
+			}
+		} else if (resume) {
+			logger.info("No import checkpoint found at {}, starting from the beginning.", file.getAbsolutePath());
+		}
+		if (checkpoint == null) {
+			checkpoint = new ImportCheckpoint();
+			checkpoint.dataset = dataset;
+		}
+		checkpoint.file = file;
+		checkpoint.objectMapper = objectMapper;
+		checkpoint.lastSaveMillis = System.currentTimeMillis();
+		return checkpoint;
+	}
+
+	public synchronized boolean isChunkComplete(String chunkKey) {
+		return completedChunks.contains(chunkKey);
+	}
+
+	/**
+	 * Records a chunk whose patients have all been passed to the output stream.
+	 */
+	public void chunkCompleted(String chunkKey, long records, HealthDataOutputStream stream) {
+		ImportCheckpoint snapshot;
+		synchronized (this) {
+			completedChunks.add(chunkKey);
+			recordsConsumed += records;
+			snapshot = snapshotIfDue();
+		}
+		saveSnapshot(snapshot, stream);
+	}
+
+	/**
+	 * @return true if a patient with this dataset and role id, in sort order, was written before the checkpoint was saved.
+	 */
+	public synchronized boolean isFlushed(String dataset, String roleId) {
+		if (lastFlushedDataset == null) {
+			return false;
+		}
+		int datasetComparison = dataset.compareTo(lastFlushedDataset);
+		return datasetComparison < 0 || (datasetComparison == 0 && roleId.compareTo(lastFlushedRoleId) <= 0);
+	}
+
+	/**
+	 * Records a batch of patients, in sort order, which has been passed to the output stream.
+	 */
+	public void batchFlushed(String dataset, String lastRoleId, int records, HealthDataOutputStream stream) {
+		ImportCheckpoint snapshot;
+		synchronized (this) {
+			lastFlushedDataset = dataset;
+			lastFlushedRoleId = lastRoleId;
+			recordsConsumed += records;
+			batchesFlushed++;
+			snapshot = snapshotIfDue();
+		}
+		saveSnapshot(snapshot, stream);
+	}
+
+	// Called holding the lock, one save runs at a time and the others skip it
+	private ImportCheckpoint snapshotIfDue() {
+		if (saving || System.currentTimeMillis() - lastSaveMillis < SAVE_INTERVAL_MILLIS) {
+			return null;
+		}
+		saving = true;
+		return snapshot();
+	}
+
+	private void saveSnapshot(ImportCheckpoint snapshot, HealthDataOutputStream stream) {
+		if (snapshot == null) {
+			return;
+		}
+		try {
+			// Everything recorded in the snapshot was passed to the stream before this flush.
+			// Throws if anything could not be written, so the checkpoint is not saved
+			stream.flush();
+			write(snapshot);
+		} finally {
+			synchronized (this) {
+				saving = false;
+				lastSaveMillis = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file then moves it into place, so a crash during the save leaves the previous checkpoint intact.
+	 * The output stream must have been flushed.
+	 */
+	public void save() {
+		ImportCheckpoint snapshot;
+		synchronized (this) {
+			snapshot = snapshot();
+		}
+		write(snapshot);
+		synchronized (this) {
+			lastSaveMillis = System.currentTimeMillis();
+		}
+	}
+
+	// Called holding the lock
+	private ImportCheckpoint snapshot() {
+		updated = new Date();
+		ImportCheckpoint snapshot = new ImportCheckpoint();
+		snapshot.dataset = dataset;
+		snapshot.completedChunks = new HashSet<>(completedChunks);
+		snapshot.recordsConsumed = recordsConsumed;
+		snapshot.batchesFlushed = batchesFlushed;
+		snapshot.lastFlushedDataset = lastFlushedDataset;
+		snapshot.lastFlushedRoleId = lastFlushedRoleId;
+		snapshot.updated = updated;
+		snapshot.snapshotCount = ++snapshotCount;
+		return snapshot;
+	}
+
+	private void write(ImportCheckpoint snapshot) {
+		synchronized (writeLock) {
+			// A save which finished its flush later must not replace a newer snapshot
+			if (snapshot.snapshotCount < writtenSnapshot) {
+				return;
+			}
+			File tempFile = new File(file.getPath() + ".tmp");
+			try {
+				objectMapper.writeValue(tempFile, snapshot);
+				Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to save import checkpoint " + file.getAbsolutePath(), e);
+			}
+			writtenSnapshot = snapshot.snapshotCount;
+		}
+	}
+
+	/**
+	 * Deletes the checkpoint file once the import has finished.
+	 */
+	public synchronized void complete() {
+		if (file.isFile() && !file.delete()) {
+			logger.warn("Failed to delete import checkpoint {}", file.getAbsolutePath());
+		}
+	}
+
+	public String getDataset() {
+		return dataset;
+	}
+
+	public void setDataset(String dataset) {
+		this.dataset = dataset;
+	}
+
+	public Set<String> getCompletedChunks() {
+		return completedChunks;
+	}
+
+	public void setCompletedChunks(Set<String> completedChunks) {
+		this.completedChunks = completedChunks;
+	}
+
+	public long getRecordsConsumed() {
+		return recordsConsumed;
+	}
+
+	public void setRecordsConsumed(long recordsConsumed) {
+		this.recordsConsumed = recordsConsumed;
+	}
+
+	public long getBatchesFlushed() {
+		return batchesFlushed;
+	}
+
+	public void setBatchesFlushed(long batchesFlushed) {
+		this.batchesFlushed = batchesFlushed;
+	}
+
+	public String getLastFlushedDataset() {
+		return lastFlushedDataset;
+	}
+
+	public void setLastFlushedDataset(String lastFlushedDataset) {
+		this.lastFlushedDataset = lastFlushedDataset;
+	}
+
+	public String getLastFlushedRoleId() {
+		return lastFlushedRoleId;
+	}
+
+	public void setLastFlushedRoleId(String lastFlushedRoleId) {
+		this.lastFlushedRoleId = lastFlushedRoleId;
+	}
+
+	public Date getUpdated() {
+		return updated;
+	}
+
+	public void setUpdated(Date updated) {
+		this.updated = updated;
+	}
+}
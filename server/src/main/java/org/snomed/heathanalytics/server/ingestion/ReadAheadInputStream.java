@@ -0,0 +1,117 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the underlying stream on a separate thread into a small queue of buffers.
+ * Work done by the underlying stream, such as decompression, then runs in parallel with the consumer, such as JSON parsing.
+ * The underlying stream is closed by the reading thread when it finishes or when this stream is closed.
+ * Anything thrown by the underlying stream is thrown to the consumer, wrapped in an IOException if necessary, once the data read before it has been consumed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	private static final byte[] END = new byte[0];
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final BlockingQueue<byte[]> queue;
+	private final Thread readerThread;
+	private volatile Throwable failure;
+	private byte[] current;
+	private int position;
+	private boolean closed;
+
+	public ReadAheadInputStream(InputStream inputStream, int bufferSize, int buffers) {
+		queue = new ArrayBlockingQueue<>(buffers);
+		readerThread = new Thread(() -> readAhead(inputStream, bufferSize), "read-ahead-" + threadNumber.incrementAndGet());
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	private void readAhead(InputStream inputStream, int bufferSize) {
+		try (InputStream in = inputStream) {
+			while (true) {
+				byte[] buffer = new byte[bufferSize];
+				int length = in.readNBytes(buffer, 0, bufferSize);
+				if (length > 0) {
+					queue.put(length == bufferSize ? buffer : Arrays.copyOf(buffer, length));
+				}
+				if (length < bufferSize) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed by the consumer
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			// Always ends the queue so the consumer is never left waiting
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				// Closed by the consumer
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBuffer()) {
+			return -1;
+		}
+		return current[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) {
+			return 0;
+		}
+		if (!nextBuffer()) {
+			return -1;
+		}
+		int count = Math.min(length, current.length - position);
+		System.arraycopy(current, position, bytes, offset, count);
+		position += count;
+		return count;
+	}
+
+	private boolean nextBuffer() throws IOException {
+		if (closed) {
+			throw new IOException("Stream closed.");
+		}
+		while (current == null || (current != END && position == current.length)) {
+			try {
+				current = queue.take();
+				position = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for data.");
+			}
+		}
+		if (current == END) {
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			}
+			if (failure != null) {
+				throw new IOException("Failed to read ahead.", failure);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			readerThread.interrupt();
+			queue.clear();
+		}
+	}
+}
@@ -0,0 +1,353 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.model.Patient;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.text.NumberFormat;
+import java.util.*;
+
+/**
+ * Output stream stage which collects patients and clinical events in any order and writes each patient, with all of its events,
+ * to the target stream exactly once.
+ * <p>
+ * Records are buffered in memory up to a fixed number, sorted by dataset and patient id and spilled to a temporary file as a sorted run.
+ * On close the runs are merged, so memory use is bounded by the run size rather than by the number of patients or events,
+ * and complete patients are written to the target in batches using createPatients.
+ * <p>
+ * Because patients are written in sort order an optional {@link ImportCheckpoint} can record the last patient written,
+ * so a resumed import skips patients already in the store.
+ * <p>
+ * Events for patients which are not part of the import are dropped, unless the target stream is incremental
+ * in which case they are passed to the target to be added to patients already in the store.
+ */
+public class SortMergePatientOutputStream implements HealthDataOutputStream {
+
+	private static final int DEFAULT_RUN_SIZE = 500_000;
+	private static final byte PATIENT = 0;
+	private static final byte EVENT = 1;
+	private static final Comparator<SortRecord> RECORD_ORDER = Comparator.<SortRecord, String>comparing(record -> record.dataset)
+			.thenComparing(record -> record.roleId)
+			.thenComparingInt(record -> record.type);
+
+	private final HealthDataOutputStream target;
+	private final int runSize;
+	private final ImportCheckpoint checkpoint;
+	private final List<SortRecord> buffer = new ArrayList<>();
+	private final List<File> runs = new ArrayList<>();
+	private File runDirectory;
+	private long recordCount;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public SortMergePatientOutputStream(HealthDataOutputStream target) {
+		this(target, DEFAULT_RUN_SIZE, null);
+	}
+
+	public SortMergePatientOutputStream(HealthDataOutputStream target, ImportCheckpoint checkpoint) {
+		this(target, DEFAULT_RUN_SIZE, checkpoint);
+	}
+
+	public SortMergePatientOutputStream(HealthDataOutputStream target, int runSize) {
+		this(target, runSize, null);
+	}
+
+	public SortMergePatientOutputStream(HealthDataOutputStream target, int runSize, ImportCheckpoint checkpoint) {
+		this.target = target;
+		this.runSize = runSize;
+		this.checkpoint = checkpoint;
+	}
+
+	@Override
+	public void createPatient(Patient patient, String dataset) {
+		SortRecord record = new SortRecord(dataset, patient.getRoleId(), PATIENT);
+		record.first = patient.getDobLong();
+		record.second = patient.getGender() != null ? patient.getGender().ordinal() : -1;
+		record.third = patient.getDobYear();
+		add(record);
+		if (patient.getEvents() != null) {
+			for (ClinicalEvent event : patient.getEvents()) {
+				addClinicalEvent(patient.getRoleId(), event, dataset);
+			}
+		}
+	}
+
+	@Override
+	public void createPatients(Collection<Patient> patients, String dataset) {
+		for (Patient patient : patients) {
+			createPatient(patient, dataset);
+		}
+	}
+
+	@Override
+	public void addClinicalEvent(String roleId, ClinicalEvent event, String dataset) {
+		SortRecord record = new SortRecord(dataset, roleId, EVENT);
+		record.first = event.getConceptId();
+		record.second = event.getDateLong();
+		add(record);
+	}
+
+	private void add(SortRecord record) {
+		buffer.add(record);
+		recordCount++;
+		if (buffer.size() == runSize) {
+			spillRun();
+		}
+	}
+
+	private void spillRun() {
+		buffer.sort(RECORD_ORDER);
+		try {
+			if (runDirectory == null) {
+				runDirectory = Files.createTempDirectory("patient-sort-runs").toFile();
+			}
+			File runFile = new File(runDirectory, "run-" + runs.size() + ".bin");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16))) {
+				for (SortRecord record : buffer) {
+					record.write(out);
+				}
+			}
+			runs.add(runFile);
+			buffer.clear();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to write sorted run to temporary file.", e);
+		}
+	}
+
+	/**
+	 * Merges all records and writes the complete patients to the target stream. Does not close the target stream.
+	 */
+	@Override
+	public void close() {
+		long start = System.currentTimeMillis();
+		List<RunReader> readers = new ArrayList<>();
+		try {
+			PriorityQueue<RunReader> queue = new PriorityQueue<>(Comparator.comparing((RunReader reader) -> reader.current, RECORD_ORDER));
+			if (!runs.isEmpty()) {
+				if (!buffer.isEmpty()) {
+					spillRun();
+				}
+				for (File run : runs) {
+					RunReader reader = new RunReader(run);
+					readers.add(reader);
+					if (reader.next()) {
+						queue.add(reader);
+					}
+				}
+			} else {
+				// Everything fits in memory, no need to use the disk
+				buffer.sort(RECORD_ORDER);
+				RunReader reader = new RunReader(buffer.iterator());
+				readers.add(reader);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			logger.info("Merging {} records from {} sorted runs.", NumberFormat.getNumberInstance().format(recordCount), Math.max(runs.size(), 1));
+
+			PatientAssembler assembler = new PatientAssembler();
+			while (!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				assembler.accept(reader.current);
+				if (reader.next()) {
+					queue.add(reader);
+				}
+			}
+			assembler.finish();
+			if (assembler.forwardedEvents > 0) {
+				logger.info("Passed {} events for patients not in this import to the target.", NumberFormat.getNumberInstance().format(assembler.forwardedEvents));
+			}
+			if (assembler.skippedCount > 0) {
+				logger.info("Skipped {} patients written before the import checkpoint.", NumberFormat.getNumberInstance().format(assembler.skippedCount));
+			}
+			logger.info("Wrote {} patients in {} seconds.", NumberFormat.getNumberInstance().format(assembler.patientCount),
+					(System.currentTimeMillis() - start) / 1_000);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to merge sorted runs.", e);
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+			discard();
+		}
+	}
+
+	/**
+	 * Deletes the temporary files and drops every record without writing anything to the target stream.
+	 * Used in place of close when reading the import failed.
+	 */
+	public void discard() {
+		for (File run : runs) {
+			if (!run.delete()) {
+				logger.warn("Failed to delete temporary file {}", run.getAbsolutePath());
+			}
+		}
+		if (runDirectory != null && !runDirectory.delete()) {
+			logger.warn("Failed to delete temporary directory {}", runDirectory.getAbsolutePath());
+		}
+		runDirectory = null;
+		runs.clear();
+		buffer.clear();
+		recordCount = 0;
+	}
+
+	private class PatientAssembler {
+
+		private final List<Patient> batch = new ArrayList<>();
+		private String batchDataset;
+		private String dataset;
+		private String roleId;
+		private Patient patient;
+		private final List<ClinicalEvent> orphanEvents = new ArrayList<>();
+		private long forwardedEvents;
+		private long patientCount;
+		private long skippedCount;
+
+		void accept(SortRecord record) {
+			if (!record.roleId.equals(roleId) || !record.dataset.equals(dataset)) {
+				endPatient();
+				dataset = record.dataset;
+				roleId = record.roleId;
+			}
+			if (record.type == PATIENT) {
+				if (patient == null) {
+					patient = new Patient(record.roleId);
+					patient.setDobLong(record.first);
+					patient.setDobYear(record.third);
+					patient.setGender(record.second != -1 ? Gender.values()[(int) record.second] : null);
+				}
+			} else if (patient != null) {
+				patient.addEvent(new ClinicalEvent(new Date(record.second), record.first));
+			} else {
+				// Patient records sort before event records so there is no patient with this id
+				orphanEvents.add(new ClinicalEvent(new Date(record.second), record.first));
+			}
+		}
+
+		private void endPatient() {
+			if (!orphanEvents.isEmpty()) {
+				if (target.isIncremental()) {
+					target.addClinicalEvents(roleId, orphanEvents, dataset);
+					forwardedEvents += orphanEvents.size();
+				} else {
+					logger.error("Failed to add {} clinical events - patient not found with id {}|{}", orphanEvents.size(), dataset, roleId);
+				}
+				orphanEvents.clear();
+			}
+			if (patient != null && checkpoint != null && checkpoint.isFlushed(dataset, roleId)) {
+				skippedCount++;
+				patient = null;
+			}
+			if (patient != null) {
+				if (!batch.isEmpty() && !dataset.equals(batchDataset)) {
+					writeBatch();
+				}
+				batchDataset = dataset;
+				batch.add(patient);
+				patient = null;
+				if (batch.size() == HealthDataIngestionSource.ES_WRITE_BATCH_SIZE) {
+					writeBatch();
+				}
+			}
+		}
+
+		private void writeBatch() {
+			target.createPatients(batch, batchDataset);
+			if (checkpoint != null) {
+				checkpoint.batchFlushed(batchDataset, batch.get(batch.size() - 1).getRoleId(), batch.size(), target);
+			}
+			patientCount += batch.size();
+			if (patientCount % 100_000 == 0) {
+				logger.info("Wrote {} patients.", NumberFormat.getNumberInstance().format(patientCount));
+			}
+			batch.clear();
+		}
+
+		void finish() {
+			endPatient();
+			if (!batch.isEmpty()) {
+				writeBatch();
+			}
+		}
+	}
+
+	private static class SortRecord {
+
+		private final String dataset;
+		private final String roleId;
+		private final byte type;
+		// Patient: dobLong, gender ordinal, dobYear. Event: conceptId, dateLong.
+		private long first;
+		private long second;
+		private int third;
+
+		SortRecord(String dataset, String roleId, byte type) {
+			this.dataset = dataset;
+			this.roleId = roleId;
+			this.type = type;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeUTF(dataset);
+			out.writeUTF(roleId);
+			out.writeByte(type);
+			out.writeLong(first);
+			out.writeLong(second);
+			out.writeInt(third);
+		}
+
+		static SortRecord read(DataInputStream in) throws IOException {
+			SortRecord record = new SortRecord(in.readUTF(), in.readUTF(), in.readByte());
+			record.first = in.readLong();
+			record.second = in.readLong();
+			record.third = in.readInt();
+			return record;
+		}
+	}
+
+	private static class RunReader implements Closeable {
+
+		private final DataInputStream in;
+		private final Iterator<SortRecord> iterator;
+		private SortRecord current;
+
+		RunReader(File run) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+			iterator = null;
+		}
+
+		RunReader(Iterator<SortRecord> iterator) {
+			this.in = null;
+			this.iterator = iterator;
+		}
+
+		boolean next() throws IOException {
+			if (iterator != null) {
+				current = iterator.hasNext() ? iterator.next() : null;
+				return current != null;
+			}
+			try {
+				current = SortRecord.read(in);
+				return true;
+			} catch (EOFException e) {
+				current = null;
+				return false;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// Nothing to do, the file is deleted next
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.RVUTotals;
+import org.snomed.heathanalytics.server.model.CPTCode;
+import org.snomed.heathanalytics.server.service.CPTService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sets the CPT code of each event, and the RVU totals of each patient, before they are written, when CPT enrichment is enabled.
+ * The totals of a patient are summed over all of the patient's events with a CPT code,
+ * so report RVU totals are not limited to the events matching a group's criteria.
+ * Patients written before the CPT files changed are updated by running with --reindex.
+ */
+@Component
+public class CPTEnricher {
+
+	private final CPTService cptService;
+
+	private final boolean enabled;
+
+	// Values of one event of each CPT code
+	private final Map<String, RVUTotals> eventValues = new ConcurrentHashMap<>();
+
+	public CPTEnricher(@Autowired CPTService cptService, @Value("${cpt.enrich-events.enabled}") boolean enabled) {
+		this.cptService = cptService;
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Sets the CPT code of every event of the patient and recalculates the totals of the patient from all of its events.
+	 */
+	public void enrich(Patient patient) {
+		if (!enabled) {
+			return;
+		}
+		addCptCodes(patient.getEvents());
+		RVUTotals totals = null;
+		if (patient.getEvents() != null) {
+			for (ClinicalEvent event : patient.getEvents()) {
+				if (event.getCptCode() != null) {
+					if (totals == null) {
+						totals = new RVUTotals();
+					}
+					totals.add(getEventValues(event.getCptCode()));
+				}
+			}
+		}
+		patient.setRvuTotals(totals);
+	}
+
+	/**
+	 * Sets the CPT code of the events, or clears it if the concept no longer maps to CPT.
+	 */
+	public void addCptCodes(Collection<ClinicalEvent> events) {
+		if (enabled && events != null) {
+			Map<String, CPTCode> snomedToCptMap = cptService.getSnomedToCptMap();
+			for (ClinicalEvent event : events) {
+				CPTCode cptCode = event.getConceptId() != null ? snomedToCptMap.get(event.getConceptId().toString()) : null;
+				event.setCptCode(cptCode != null ? cptCode.getCptCode() : null);
+			}
+		}
+	}
+
+	/**
+	 * @return values of one event of each CPT code of the events, which must already have CPT codes set.
+	 * Used to add to the totals of an existing patient when events are merged in Elasticsearch.
+	 */
+	public Map<String, RVUTotals> getEventValues(Collection<ClinicalEvent> events) {
+		Map<String, RVUTotals> values = new HashMap<>();
+		for (ClinicalEvent event : events) {
+			if (event.getCptCode() != null) {
+				values.computeIfAbsent(event.getCptCode(), this::getEventValues);
+			}
+		}
+		return values;
+	}
+
+	private RVUTotals getEventValues(String cptCode) {
+		return eventValues.computeIfAbsent(cptCode, code -> {
+			CPTCode cpt = cptService.getCptCodeMap().get(code);
+			if (cpt == null) {
+				throw new IllegalStateException("CPT code " + code + " is not loaded.");
+			}
+			return new RVUTotals(1, value(cpt.getWorkRVU()), value(cpt.getFacilityPracticeExpenseRVU()), value(cpt.getNonfacilityPracticeExpenseRVU()),
+					value(cpt.getPliRVU()), value(cpt.getTotalFacilityRVU()), value(cpt.getTotalMedicarePhysicianFeeScheduleFacilityPayment()),
+					value(cpt.getTotalNonfacilityRVU()), value(cpt.getTotalMedicarePhysicianFeeScheduleNonFacilityPayment()));
+		});
+	}
+
+	private static double value(Float value) {
+		return value != null ? value : 0;
+	}
+}
@@ -0,0 +1,338 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.*;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
+import org.snomed.heathanalytics.server.service.DatasetVersionService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * High throughput output stream for imports, built on the Elasticsearch bulk API rather than the patient repository.
+ * Requests are flushed by number of actions, size in bytes or time, several requests can be in flight at once
+ * and requests rejected because the cluster is busy are retried with exponential backoff.
+ * <p>
+ * While an import is running the patient index has refresh disabled and no replicas. The previous settings are restored on close.
+ * If the index still has these settings when an import starts, an earlier import did not finish, so the index defaults are restored instead.
+ * <p>
+ * Flush fails if any document of the import could not be written, so an import checkpoint is never saved past a failed document.
+ * <p>
+ * In incremental mode patients are upserted rather than replaced. New events are merged into an existing patient document
+ * by a script running in Elasticsearch, so existing documents are never read into the application,
+ * and the index settings are left alone because the index may be serving queries.
+ * All methods are thread safe.
+ */
+@Service
+public class ElasticBulkOutputStream implements HealthDataOutputStream {
+
+	private static final String REFRESH_INTERVAL = "index.refresh_interval";
+	private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+	private static final String IMPORT_REFRESH_INTERVAL = "-1";
+	private static final String IMPORT_NUMBER_OF_REPLICAS = "0";
+
+	@Autowired
+	private RestHighLevelClient elasticsearchRestClient;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private SubsumptionIndexer subsumptionIndexer;
+
+	@Autowired
+	private CPTEnricher cptEnricher;
+
+	@Autowired
+	private PatientUpdateRequests patientUpdateRequests;
+
+	@Autowired
+	private DatasetVersionService datasetVersionService;
+
+	@Value("${import.bulk.max-actions}")
+	private int maxActions;
+
+	@Value("${import.bulk.max-size-mb}")
+	private int maxSizeMb;
+
+	@Value("${import.bulk.concurrent-requests}")
+	private int concurrentRequests;
+
+	@Value("${import.bulk.force-merge}")
+	private boolean forceMerge;
+
+	private volatile boolean incremental;
+	private boolean settingsChanged;
+	private BulkProcessor bulkProcessor;
+	private String indexName;
+	private Settings originalSettings;
+	private final AtomicLong documentsAdded = new AtomicLong();
+	private final AtomicLong documentsWritten = new AtomicLong();
+	private final AtomicLong documentsFailed = new AtomicLong();
+	private long startMillis;
+	private final Object pendingLock = new Object();
+	private final Set<String> updatedDatasets = ConcurrentHashMap.newKeySet();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@Override
+	public void createPatient(Patient patient, String dataset) {
+		BulkProcessor processor = getBulkProcessor();
+		documentsAdded.incrementAndGet();
+		processor.add(toPatientRequest(patient, dataset));
+		updatedDatasets.add(dataset);
+	}
+
+	@Override
+	public void createPatients(Collection<Patient> patients, String dataset) {
+		BulkProcessor processor = getBulkProcessor();
+		for (Patient patient : patients) {
+			documentsAdded.incrementAndGet();
+			processor.add(toPatientRequest(patient, dataset));
+		}
+		updatedDatasets.add(dataset);
+	}
+
+	/**
+	 * Adds the event to a patient that has already been written, using a scripted update.
+	 * Events for patients written in the same import may be applied before the patient exists,
+	 * so a source should write complete patients using createPatients where possible.
+	 */
+	@Override
+	public void addClinicalEvent(String roleId, ClinicalEvent event, String dataset) {
+		addClinicalEvents(roleId, Collections.singletonList(event), dataset);
+	}
+
+	/**
+	 * Adds the events to a patient that has already been written using one scripted update.
+	 * Events with the same concept and date as an existing event are skipped. Fails if the patient does not exist.
+	 */
+	@Override
+	public void addClinicalEvents(String roleId, Collection<ClinicalEvent> events, String dataset) {
+		subsumptionIndexer.addAncestors(events);
+		BulkProcessor processor = getBulkProcessor();
+		documentsAdded.incrementAndGet();
+		processor.add(patientUpdateRequests.addEvents(ElasticOutputStream.getCompositeRoleId(dataset, roleId), events));
+		updatedDatasets.add(dataset);
+	}
+
+	private DocWriteRequest<?> toPatientRequest(Patient patient, String dataset) {
+		patient.setCompositeRoleId(ElasticOutputStream.getCompositeRoleId(dataset, patient.getRoleId()));
+		patient.setDataset(dataset);
+		subsumptionIndexer.addAncestors(patient.getEvents());
+		cptEnricher.enrich(patient);
+		// Use the Spring Data converter so documents are the same as those written by the repository
+		Document document = elasticsearchTemplate.getElasticsearchConverter().mapObject(patient);
+		if (!incremental) {
+			return new IndexRequest(getIndexName()).id(patient.getCompositeRoleId()).source(document.toJson(), XContentType.JSON);
+		}
+		// New patients are inserted as they are, existing patients are merged by the script
+		return patientUpdateRequests.upsertPatient(patient, document);
+	}
+
+	/**
+	 * In incremental mode patients are merged with any existing document, rather than replacing it.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	@Override
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	private synchronized BulkProcessor getBulkProcessor() {
+		if (bulkProcessor == null) {
+			startImport();
+		}
+		return bulkProcessor;
+	}
+
+	private void startImport() {
+		String index = getIndexName();
+		settingsChanged = !incremental;
+		if (settingsChanged) {
+			try {
+				GetSettingsResponse settingsResponse = elasticsearchRestClient.indices().getSettings(
+						new GetSettingsRequest().indices(index).names(REFRESH_INTERVAL, NUMBER_OF_REPLICAS), RequestOptions.DEFAULT);
+				originalSettings = settingsResponse.getIndexToSettings().getOrDefault(index, Settings.EMPTY);
+				if (IMPORT_REFRESH_INTERVAL.equals(originalSettings.get(REFRESH_INTERVAL)) && IMPORT_NUMBER_OF_REPLICAS.equals(originalSettings.get(NUMBER_OF_REPLICAS))) {
+					logger.warn("Index {} still has the settings of an import which did not finish, default settings will be restored afterwards.", index);
+					originalSettings = Settings.EMPTY;
+				}
+				logger.info("Disabling refresh and replicas of index {} for import.", index);
+				updateSettings(index, Settings.builder().put(REFRESH_INTERVAL, IMPORT_REFRESH_INTERVAL).put(NUMBER_OF_REPLICAS, IMPORT_NUMBER_OF_REPLICAS).build());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to update index settings for import.", e);
+			}
+		}
+
+		documentsAdded.set(0);
+		documentsWritten.set(0);
+		documentsFailed.set(0);
+		startMillis = System.currentTimeMillis();
+		bulkProcessor = BulkProcessor.builder(
+				(request, bulkListener) -> elasticsearchRestClient.bulkAsync(request, RequestOptions.DEFAULT, bulkListener),
+				new BulkProcessor.Listener() {
+					@Override
+					public void beforeBulk(long executionId, BulkRequest request) {
+					}
+
+					@Override
+					public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+						long failed = 0;
+						if (response.hasFailures()) {
+							for (BulkItemResponse item : response.getItems()) {
+								if (item.isFailed()) {
+									failed++;
+									logger.error("Failed to write document {}: {}", item.getId(), item.getFailureMessage());
+								}
+							}
+							documentsFailed.addAndGet(failed);
+						}
+						long total = documentsWritten.addAndGet(request.numberOfActions() - failed);
+						if (total / 100_000 != (total - request.numberOfActions() + failed) / 100_000) {
+							logger.info("Written {} documents.", NumberFormat.getNumberInstance().format(total));
+						}
+						notifyPending();
+					}
+
+					@Override
+					public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+						documentsFailed.addAndGet(request.numberOfActions());
+						logger.error("Bulk request of {} documents failed.", request.numberOfActions(), failure);
+						notifyPending();
+					}
+				})
+				.setBulkActions(maxActions)
+				.setBulkSize(new ByteSizeValue(maxSizeMb, ByteSizeUnit.MB))
+				.setConcurrentRequests(concurrentRequests)
+				.setFlushInterval(TimeValue.timeValueSeconds(10))
+				.setBackoffPolicy(BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(500), 8))
+				.build();
+	}
+
+	private void notifyPending() {
+		synchronized (pendingLock) {
+			pendingLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Sends any buffered requests and waits for all requests in flight to complete.
+	 * @throws IllegalStateException if any document of this import failed to be written.
+	 */
+	@Override
+	public void flush() {
+		BulkProcessor processor;
+		synchronized (this) {
+			processor = bulkProcessor;
+		}
+		if (processor == null) {
+			return;
+		}
+		processor.flush();
+		synchronized (pendingLock) {
+			while (documentsWritten.get() + documentsFailed.get() < documentsAdded.get()) {
+				try {
+					pendingLock.wait(1_000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for bulk requests to complete.", e);
+				}
+			}
+		}
+		long failed = documentsFailed.get();
+		if (failed > 0) {
+			throw new IllegalStateException(String.format("Failed to write %s documents in this import, see the log for details.", failed));
+		}
+	}
+
+	/**
+	 * Waits for all requests to complete, restores the index settings and refreshes the index.
+	 * The datasets written are then marked as updated, so cached cohort results are no longer used.
+	 * Can be used for another import afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		if (bulkProcessor == null) {
+			return;
+		}
+		String index = getIndexName();
+		try {
+			if (!bulkProcessor.awaitClose(1, TimeUnit.HOURS)) {
+				logger.error("Timed out waiting for bulk requests to complete.");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			bulkProcessor = null;
+			try {
+				if (settingsChanged) {
+					logger.info("Restoring settings of index {}.", index);
+					Settings.Builder restore = Settings.builder();
+					for (String setting : new String[] {REFRESH_INTERVAL, NUMBER_OF_REPLICAS}) {
+						String value = originalSettings.get(setting);
+						if (value != null) {
+							restore.put(setting, value);
+						} else {
+							restore.putNull(setting);
+						}
+					}
+					updateSettings(index, restore.build());
+				}
+				elasticsearchRestClient.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+				if (forceMerge) {
+					logger.info("Force merging index {}.", index);
+					elasticsearchRestClient.indices().forcemerge(new ForceMergeRequest(index).maxNumSegments(1), RequestOptions.DEFAULT);
+				}
+			} catch (IOException e) {
+				logger.error("Failed to restore settings of index {}.", index, e);
+			}
+		}
+		datasetVersionService.datasetsUpdated(new ArrayList<>(updatedDatasets));
+		updatedDatasets.clear();
+		long seconds = Math.max((System.currentTimeMillis() - startMillis) / 1_000, 1);
+		logger.info("Bulk import wrote {} documents, {} failed, {} documents per second.", NumberFormat.getNumberInstance().format(documentsWritten.get()),
+				NumberFormat.getNumberInstance().format(documentsFailed.get()), NumberFormat.getNumberInstance().format(documentsWritten.get() / seconds));
+	}
+
+	private void updateSettings(String index, Settings settings) throws IOException {
+		elasticsearchRestClient.indices().putSettings(new UpdateSettingsRequest(index).settings(settings), RequestOptions.DEFAULT);
+	}
+
+	private String getIndexName() {
+		if (indexName == null) {
+			indexName = elasticsearchTemplate.getIndexCoordinatesFor(Patient.class).getIndexName();
+		}
+		return indexName;
+	}
+}
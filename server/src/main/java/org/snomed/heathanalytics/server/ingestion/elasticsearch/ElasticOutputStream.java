@@ -1,39 +1,84 @@
 package org.snomed.heathanalytics.server.ingestion.elasticsearch;
 
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Patient;
 import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
+import org.snomed.heathanalytics.server.service.DatasetVersionService;
 import org.snomed.heathanalytics.server.store.PatientRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
 import org.springframework.stereotype.Service;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.lang.String.format;
 
 @Service
 public class ElasticOutputStream implements HealthDataOutputStream {
 
+	private static final int PATIENT_BUFFER_SIZE = 10_000;
+	private static final int EVENT_BUFFER_SIZE = 100_000;
+
 	private final PatientRepository patientRepository;
 
+	private final SubsumptionIndexer subsumptionIndexer;
+
+	private final CPTEnricher cptEnricher;
+
+	private final DatasetVersionService datasetVersionService;
+
+	private final PatientUpdateRequests patientUpdateRequests;
+
+	private final ElasticsearchOperations elasticsearchTemplate;
+
+	private final RestHighLevelClient elasticsearchRestClient;
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
-	private final Map<String, Patient> patientBuffer = new HashMap<>();
+	// Events waiting to be attached to existing patients, grouped by compositeRoleId.
+	private final Map<String, List<ClinicalEvent>> eventBuffer = new HashMap<>();
+	private int eventBufferSize;
+
+	// Datasets written since the stream was last closed, createPatients may be called by several writer threads
+	private final Set<String> updatedDatasets = ConcurrentHashMap.newKeySet();
 
-	public ElasticOutputStream(@Autowired PatientRepository patientRepository) {
+	private long eventsAttached;
+	private long eventAttachmentMillis;
+
+	public ElasticOutputStream(@Autowired PatientRepository patientRepository, @Autowired SubsumptionIndexer subsumptionIndexer,
+			@Autowired CPTEnricher cptEnricher, @Autowired DatasetVersionService datasetVersionService,
+			@Autowired PatientUpdateRequests patientUpdateRequests, @Autowired ElasticsearchOperations elasticsearchTemplate,
+			@Autowired RestHighLevelClient elasticsearchRestClient) {
 		this.patientRepository = patientRepository;
+		this.subsumptionIndexer = subsumptionIndexer;
+		this.cptEnricher = cptEnricher;
+		this.datasetVersionService = datasetVersionService;
+		this.patientUpdateRequests = patientUpdateRequests;
+		this.elasticsearchTemplate = elasticsearchTemplate;
+		this.elasticsearchRestClient = elasticsearchRestClient;
 	}
 
 	@Override
 	public void createPatient(Patient patient, String dataset) {
 		patient.setCompositeRoleId(getCompositeRoleId(dataset, patient.getRoleId()));
 		patient.setDataset(dataset);
+		subsumptionIndexer.addAncestors(patient.getEvents());
+		cptEnricher.enrich(patient);
 		patientRepository.save(patient);
+		updatedDatasets.add(dataset);
 	}
 
 	@Override
@@ -41,44 +86,95 @@ public class ElasticOutputStream implements HealthDataOutputStream {
 		patients.forEach(patient -> {
 			patient.setCompositeRoleId(getCompositeRoleId(dataset, patient.getRoleId()));
 			patient.setDataset(dataset);
+			subsumptionIndexer.addAncestors(patient.getEvents());
+			cptEnricher.enrich(patient);
 		});
 		patientRepository.saveAll(patients);
+		updatedDatasets.add(dataset);
 	}
 
-	private static String getCompositeRoleId(String dataset, String roleId) {
+	static String getCompositeRoleId(String dataset, String roleId) {
 		return format("%s|%s", dataset, roleId);
 	}
 
+	/**
+	 * Buffers the event. Buffered events are grouped by patient and attached when the buffer is flushed,
+	 * using one bulk request of scripted updates so existing patients are never read into the application.
+	 * Imports with many events should use {@link ElasticBulkOutputStream}, which does not wait for each request.
+	 */
 	@Override
 	public void addClinicalEvent(String roleId, ClinicalEvent event, String dataset) {
-		String compositeRoleId = getCompositeRoleId(dataset, roleId);
-		Patient patient = patientBuffer.get(compositeRoleId);
-		if (patient == null) {
-			Optional<Patient> patientOptional = patientRepository.findById(compositeRoleId);
-			if (patientOptional.isPresent()) {
-				patient = patientOptional.get();
-				patientBuffer.put(compositeRoleId, patient);
-			}
-		}
-		if (patient != null) {
-			patient.addEvent(event);
-			if (patientBuffer.size() == 10_000) {
-				flush();
-			}
-		} else {
-			logger.error("Failed to add clinical event {}/{} - patient not found with id {}", event.getDate(), event.getConceptId(), compositeRoleId);
+		subsumptionIndexer.addAncestors(event);
+		eventBuffer.computeIfAbsent(getCompositeRoleId(dataset, roleId), id -> new ArrayList<>()).add(event);
+		eventBufferSize++;
+		updatedDatasets.add(dataset);
+		if (eventBuffer.size() == PATIENT_BUFFER_SIZE || eventBufferSize == EVENT_BUFFER_SIZE) {
+			flush();
 		}
 	}
 
+	/**
+	 * Flushes buffered events and refreshes the patient index, so attached events can be searched.
+	 * The datasets written are then marked as updated, so cached cohort results are no longer used.
+	 */
 	@Override
 	public void close() {
 		flush();
+		if (eventsAttached > 0) {
+			try {
+				elasticsearchRestClient.indices().refresh(new RefreshRequest(elasticsearchTemplate.getIndexCoordinatesFor(Patient.class).getIndexName()),
+						RequestOptions.DEFAULT);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to refresh the patient index.", e);
+			}
+		}
+		datasetVersionService.datasetsUpdated(new ArrayList<>(updatedDatasets));
+		updatedDatasets.clear();
+		if (eventsAttached > 0) {
+			logger.info("Attached {} clinical events at {} events per second.", NumberFormat.getNumberInstance().format(eventsAttached),
+					NumberFormat.getNumberInstance().format(eventsAttached * 1000 / Math.max(eventAttachmentMillis, 1)));
+			eventsAttached = 0;
+			eventAttachmentMillis = 0;
+		}
 	}
 
+	@Override
 	public void flush() {
-		if (!patientBuffer.isEmpty()) {
-			patientRepository.saveAll(patientBuffer.values());
-			patientBuffer.clear();
+		if (!eventBuffer.isEmpty()) {
+			long start = System.currentTimeMillis();
+			// Not refreshed for each request, the index is refreshed once on close
+			BulkRequest bulkRequest = new BulkRequest();
+			List<Integer> eventCounts = new ArrayList<>();
+			for (Map.Entry<String, List<ClinicalEvent>> patientEvents : eventBuffer.entrySet()) {
+				// Same script as the bulk stream, merged in Elasticsearch with events of the same concept and date skipped
+				bulkRequest.add(patientUpdateRequests.addEvents(patientEvents.getKey(), patientEvents.getValue()));
+				eventCounts.add(patientEvents.getValue().size());
+			}
+			eventBuffer.clear();
+			eventBufferSize = 0;
+			BulkResponse response;
+			try {
+				response = elasticsearchRestClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to add clinical events.", e);
+			}
+			int failed = 0;
+			BulkItemResponse[] items = response.getItems();
+			for (int i = 0; i < items.length; i++) {
+				BulkItemResponse item = items[i];
+				if (!item.isFailed()) {
+					eventsAttached += eventCounts.get(i);
+				} else if (item.status() == RestStatus.NOT_FOUND) {
+					logger.error("Failed to add {} clinical events - patient not found with id {}", eventCounts.get(i), item.getId());
+				} else {
+					logger.error("Failed to add {} clinical events to patient {}: {}", eventCounts.get(i), item.getId(), item.getFailureMessage());
+					failed++;
+				}
+			}
+			eventAttachmentMillis += System.currentTimeMillis() - start;
+			if (failed > 0) {
+				throw new IllegalStateException(format("Failed to add clinical events to %s patients.", failed));
+			}
 		}
 	}
 }
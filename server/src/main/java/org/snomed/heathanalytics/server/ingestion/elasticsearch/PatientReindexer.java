@@ -0,0 +1,60 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.model.Patient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.IndexOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import java.text.NumberFormat;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+
+/**
+ * Rewrites every patient document in place so it has the current mapping and derived fields.
+ * Needed once for an index written before the packed events field was added, temporal queries read the slower
+ * "conceptId,date" keywords of a document until it has been reindexed.
+ * Also run after the CPT files change when CPT enrichment is enabled, so event CPT codes and patient RVU totals are written again.
+ * Documents are read with a scroll and written back with the bulk output stream using the same ids.
+ */
+@Service
+public class PatientReindexer {
+
+	private static final int BATCH_SIZE = 1_000;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private ElasticBulkOutputStream bulkOutputStream;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public void reindex() {
+		IndexOperations indexOperations = elasticsearchTemplate.indexOps(Patient.class);
+		logger.info("Adding new fields to the mapping of index {}.", indexOperations.getIndexCoordinates().getIndexName());
+		indexOperations.putMapping(indexOperations.createMapping());
+
+		NativeSearchQuery query = new NativeSearchQueryBuilder()
+				.withQuery(matchAllQuery())
+				.withPageable(PageRequest.of(0, BATCH_SIZE))
+				.build();
+		long count = 0;
+		try (SearchHitsIterator<Patient> hits = elasticsearchTemplate.searchForStream(query, Patient.class)) {
+			while (hits.hasNext()) {
+				Patient patient = hits.next().getContent();
+				bulkOutputStream.createPatient(patient, patient.getDataset());
+				count++;
+			}
+		} finally {
+			bulkOutputStream.close();
+		}
+		logger.info("Reindexed {} patients.", NumberFormat.getNumberInstance().format(count));
+	}
+}
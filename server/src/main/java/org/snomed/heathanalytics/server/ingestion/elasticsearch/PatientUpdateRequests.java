@@ -0,0 +1,144 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Builds the scripted updates which merge events and fields into existing patient documents,
+ * so existing documents are never read into the application. Used by both patient output streams.
+ */
+@Component
+public class PatientUpdateRequests {
+
+	private static final int RETRY_ON_CONFLICT = 5;
+
+	// Adds events to an existing patient, skipping events with the same concept and date as an event already present.
+	// The values of each added event with a CPT code are added to the RVU totals of the patient.
+	// Updates the other patient fields given, then rebuilds the packed events in the same format as Patient.getEventsPacked.
+	// The document is not written if nothing changed.
+	private static final String MERGE_PATIENT_SCRIPT = "" +
+			"boolean changed = false;" +
+			"if (ctx._source.events == null) { ctx._source.events = new ArrayList(); }" +
+			"Set keys = new HashSet();" +
+			"for (def event : ctx._source.events) { keys.add(event.conceptId + ',' + event.dateLong); }" +
+			"for (def event : params.events) {" +
+			"	if (keys.add(event.conceptId + ',' + event.dateLong)) {" +
+			"		ctx._source.events.add(event);" +
+			"		changed = true;" +
+			"		if (event.cptCode != null && params.rvu.containsKey(event.cptCode)) {" +
+			"			if (ctx._source.rvuTotals == null) { ctx._source.rvuTotals = new HashMap(); }" +
+			"			for (def value : params.rvu[event.cptCode].entrySet()) {" +
+			"				def total = ctx._source.rvuTotals[value.getKey()];" +
+			"				ctx._source.rvuTotals[value.getKey()] = (total != null ? total : 0) + value.getValue();" +
+			"			}" +
+			"		}" +
+			"	}" +
+			"}" +
+			"for (def field : params.fields.entrySet()) {" +
+			"	if (ctx._source[field.getKey()] != field.getValue()) { ctx._source[field.getKey()] = field.getValue(); changed = true; }" +
+			"}" +
+			"if (changed) {" +
+			"	ctx._source.numEvents = ctx._source.events.size();" +
+			"	List sorted = new ArrayList(ctx._source.events);" +
+			"	sorted.sort((a, b) -> a.conceptId.longValue() != b.conceptId.longValue() ?" +
+			"			Long.compare(a.conceptId.longValue(), b.conceptId.longValue()) : Long.compare(a.dateLong.longValue(), b.dateLong.longValue()));" +
+			"	byte[] packed = new byte[sorted.size() * 16];" +
+			"	int position = 0;" +
+			"	for (def event : sorted) {" +
+			"		long[] values = new long[] {event.conceptId.longValue(), event.dateLong.longValue()};" +
+			"		for (long value : values) {" +
+			"			for (int shift = 56; shift >= 0; shift = shift - 8) { packed[position] = (byte) (value >> shift); position = position + 1; }" +
+			"		}" +
+			"	}" +
+			"	ctx._source.eventsPacked = Base64.getEncoder().encodeToString(packed);" +
+			"} else {" +
+			"	ctx.op = 'none';" +
+			"}";
+
+	private final ElasticsearchOperations elasticsearchTemplate;
+
+	private final CPTEnricher cptEnricher;
+
+	private final ObjectMapper objectMapper;
+
+	private String indexName;
+
+	public PatientUpdateRequests(@Autowired ElasticsearchOperations elasticsearchTemplate, @Autowired CPTEnricher cptEnricher,
+			@Autowired ObjectMapper objectMapper) {
+		this.elasticsearchTemplate = elasticsearchTemplate;
+		this.cptEnricher = cptEnricher;
+		this.objectMapper = objectMapper;
+	}
+
+	/**
+	 * @return scripted update adding the events to an existing patient, which fails if the patient does not exist.
+	 * Events with the same concept and date as an existing event are skipped.
+	 * The events must already have their ancestors set, if the subsumption index is enabled.
+	 */
+	public UpdateRequest addEvents(String compositeRoleId, Collection<ClinicalEvent> events) {
+		cptEnricher.addCptCodes(events);
+		List<Map<String, Object>> eventMaps = new ArrayList<>();
+		for (ClinicalEvent event : events) {
+			Map<String, Object> eventMap = new HashMap<>();
+			eventMap.put(ClinicalEvent.Fields.DATE_LONG, event.getDateLong());
+			eventMap.put(ClinicalEvent.Fields.CONCEPT_ID, event.getConceptId());
+			if (event.getAncestorConceptIds() != null) {
+				eventMap.put(ClinicalEvent.Fields.ANCESTOR_CONCEPT_IDS, event.getAncestorConceptIds());
+			}
+			if (event.getCptCode() != null) {
+				eventMap.put(ClinicalEvent.Fields.CPT_CODE, event.getCptCode());
+			}
+			eventMaps.add(eventMap);
+		}
+		return new UpdateRequest(getIndexName(), compositeRoleId)
+				.script(mergeScript(Collections.emptyMap(), eventMaps, events))
+				.retryOnConflict(RETRY_ON_CONFLICT);
+	}
+
+	/**
+	 * @param document the enriched patient, as mapped by the Spring Data converter.
+	 * @return update inserting the patient document if the patient does not exist, otherwise merging its fields and events
+	 * into the existing document.
+	 */
+	public UpdateRequest upsertPatient(Patient patient, Document document) {
+		Map<String, Object> fields = new HashMap<>(document);
+		Object events = fields.remove(Patient.Fields.events);
+		fields.remove(Patient.Fields.numEvents);
+		fields.remove(Patient.Fields.EVENTS_PACKED);
+		// Totals of the new events are added by the script as events not already present are merged
+		fields.remove(Patient.Fields.RVU_TOTALS);
+		return new UpdateRequest(getIndexName(), patient.getCompositeRoleId())
+				.script(mergeScript(fields, events != null ? events : Collections.emptyList(),
+						patient.getEvents() != null ? patient.getEvents() : Collections.emptyList()))
+				.upsert(document.toJson(), XContentType.JSON)
+				.retryOnConflict(RETRY_ON_CONFLICT);
+	}
+
+	private Script mergeScript(Map<String, Object> fields, Object events, Collection<ClinicalEvent> clinicalEvents) {
+		Map<String, Object> params = new HashMap<>();
+		params.put("fields", fields);
+		params.put("events", events);
+		Map<String, Object> rvu = new HashMap<>();
+		cptEnricher.getEventValues(clinicalEvents).forEach((cptCode, values) -> rvu.put(cptCode, objectMapper.convertValue(values, Map.class)));
+		params.put("rvu", rvu);
+		return new Script(ScriptType.INLINE, "painless", MERGE_PATIENT_SCRIPT, params);
+	}
+
+	private String getIndexName() {
+		if (indexName == null) {
+			indexName = elasticsearchTemplate.getIndexCoordinatesFor(Patient.class).getIndexName();
+		}
+		return indexName;
+	}
+}
@@ -0,0 +1,56 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.server.service.SnomedHierarchy;
+import org.snomed.heathanalytics.server.service.SnomedService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+
+/**
+ * Sets the ancestors of event concepts before they are written, when the subsumption index is enabled.
+ */
+@Component
+public class SubsumptionIndexer {
+
+	private final SnomedService snomedService;
+
+	private final boolean enabled;
+
+	public SubsumptionIndexer(@Autowired SnomedService snomedService, @Value("${subsumption-index.enabled}") boolean enabled) {
+		this.snomedService = snomedService;
+		this.enabled = enabled;
+	}
+
+	public void addAncestors(Collection<ClinicalEvent> events) {
+		if (enabled && events != null) {
+			SnomedHierarchy hierarchy = getHierarchy();
+			for (ClinicalEvent event : events) {
+				addAncestors(event, hierarchy);
+			}
+		}
+	}
+
+	public void addAncestors(ClinicalEvent event) {
+		if (enabled) {
+			addAncestors(event, getHierarchy());
+		}
+	}
+
+	private void addAncestors(ClinicalEvent event, SnomedHierarchy hierarchy) {
+		if (event.getConceptId() != null) {
+			event.setAncestorConceptIds(hierarchy.getAncestorConceptIds(event.getConceptId()));
+		}
+	}
+
+	private SnomedHierarchy getHierarchy() {
+		SnomedHierarchy hierarchy = snomedService.getHierarchy();
+		if (hierarchy == null) {
+			throw new IllegalStateException("The subsumption index is enabled but no SNOMED CT hierarchy is loaded. " +
+					"Please set snomed.rf2-snapshot.directory.");
+		}
+		return hierarchy;
+	}
+}
@@ -11,13 +11,18 @@ import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Gender;
 import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.ingestion.CompressionUtils;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSource;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSourceConfiguration;
 import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
 import org.snomed.heathanalytics.server.ingestion.SnomedIdentifierUtils;
+import org.snomed.heathanalytics.server.ingestion.SortMergePatientOutputStream;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -35,15 +40,35 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		this.objectMapper = objectMapper;
 	}
 
+	/**
+	 * Reads all resource files then writes each patient once, with all of its events.
+	 * Patients and events are collected through a {@link SortMergePatientOutputStream} which spills to temporary files
+	 * so memory use does not depend on the size of the files. Files may be compressed with gzip, bzip2 or Zstandard.
+	 * When the configuration has a checkpoint the files are read again on resume but patients already written are skipped.
+	 * If any file can not be read nothing is written and the checkpoint is left as it was.
+	 */
 	@Override
 	public void stream(HealthDataIngestionSourceConfiguration configuration, HealthDataOutputStream healthDataOutputStream) {
-		try (HealthDataOutputStream stream = healthDataOutputStream) {
-			FHIRBulkLocalIngestionSourceConfiguration fhirConfiguration = (FHIRBulkLocalIngestionSourceConfiguration) configuration;
-			ingestPatients(stream, fhirConfiguration.getPatientFile(), fhirConfiguration.getDataset());
-			ingestConditions(stream, fhirConfiguration.getConditionFile(), fhirConfiguration.getDataset());
-			ingestProcedures(stream, fhirConfiguration.getProcedureFile(), fhirConfiguration.getDataset());
-			ingestMedicationRequests(stream, fhirConfiguration.getMedicationRequestFile(), fhirConfiguration.getDataset());
-			ingestServiceRequests(stream, fhirConfiguration.getServiceRequestFile(), fhirConfiguration.getDataset());
+		FHIRBulkLocalIngestionSourceConfiguration fhirConfiguration = (FHIRBulkLocalIngestionSourceConfiguration) configuration;
+		ImportCheckpoint checkpoint = fhirConfiguration.getCheckpoint();
+		try (HealthDataOutputStream target = healthDataOutputStream) {
+			SortMergePatientOutputStream stream = new SortMergePatientOutputStream(target, checkpoint);
+			try {
+				ingestPatients(stream, fhirConfiguration.getPatientFile(), fhirConfiguration.getDataset());
+				ingestConditions(stream, fhirConfiguration.getConditionFile(), fhirConfiguration.getDataset());
+				ingestProcedures(stream, fhirConfiguration.getProcedureFile(), fhirConfiguration.getDataset());
+				ingestMedicationRequests(stream, fhirConfiguration.getMedicationRequestFile(), fhirConfiguration.getDataset());
+				ingestServiceRequests(stream, fhirConfiguration.getServiceRequestFile(), fhirConfiguration.getDataset());
+			} catch (RuntimeException e) {
+				// Patients would be missing events, so none are written
+				stream.discard();
+				throw e;
+			}
+			// Merges the sorted runs and writes all patients, before the target is closed
+			stream.close();
+		}
+		if (checkpoint != null) {
+			checkpoint.complete();
 		}
 	}
 
@@ -55,7 +80,8 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		logger.info("Reading Patients from {}.", patientFile.getPath());
 		ObjectReader objectReader = objectMapper.readerFor(FHIRPatient.class);
 		Date start = new Date();
-		try (MappingIterator<FHIRPatient> patientIterator = objectReader.readValues(patientFile)) {
+		try (InputStream inputStream = CompressionUtils.open(patientFile);
+				MappingIterator<FHIRPatient> patientIterator = objectReader.readValues(inputStream)) {
 			long read = 0;
 			for (UnmodifiableIterator<List<FHIRPatient>> it = Iterators.partition(patientIterator, ES_WRITE_BATCH_SIZE); it.hasNext(); ) {
 				List<FHIRPatient> fhirPatients = it.next();
@@ -72,7 +98,7 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 			}
 			logger.info("Read {} Patients from {} in {} seconds.", NumberFormat.getNumberInstance().format(read), patientFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000);
 		} catch (IOException e) {
-			logger.error("Failed to read values from {}.", patientFile.getAbsolutePath(), e);
+			throw new UncheckedIOException("Failed to read values from " + patientFile.getAbsolutePath() + ".", e);
 		}
 	}
 
@@ -84,7 +110,8 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		logger.info("Reading Conditions from {}.", conditionFile.getPath());
 		ObjectReader objectReader = objectMapper.readerFor(FHIRCondition.class);
 		Date start = new Date();
-		try (MappingIterator<FHIRCondition> conditionIterator = objectReader.readValues(conditionFile)) {
+		try (InputStream inputStream = CompressionUtils.open(conditionFile);
+				MappingIterator<FHIRCondition> conditionIterator = objectReader.readValues(inputStream)) {
 			long active = 0;
 			long all = 0;
 			while (conditionIterator.hasNext()) {
@@ -107,7 +134,7 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 			logger.info("Consumed {} Conditions from {} in {} seconds. {} were inactive, not confirmed or not SNOMED CT codes so were discarded.",
 					NumberFormat.getNumberInstance().format(active), conditionFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000, all - active);
 		} catch (IOException e) {
-			logger.error("Failed to read values from {}.", conditionFile.getAbsolutePath(), e);
+			throw new UncheckedIOException("Failed to read values from " + conditionFile.getAbsolutePath() + ".", e);
 		}
 	}
 
@@ -119,7 +146,8 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		logger.info("Reading Procedures from {}.", procedureFile.getPath());
 		ObjectReader objectReader = objectMapper.readerFor(FHIRProcedure.class);
 		Date start = new Date();
-		try (MappingIterator<FHIRProcedure> procedureIterator = objectReader.readValues(procedureFile)) {
+		try (InputStream inputStream = CompressionUtils.open(procedureFile);
+				MappingIterator<FHIRProcedure> procedureIterator = objectReader.readValues(inputStream)) {
 			long active = 0;
 			long all = 0;
 			while (procedureIterator.hasNext()) {
@@ -142,7 +170,7 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 			logger.info("Consumed {} Procedures from {} in {} seconds. {} were inactive, not confirmed or not SNOMED CT codes so were discarded.",
 					NumberFormat.getNumberInstance().format(active), procedureFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000, all - active);
 		} catch (IOException e) {
-			logger.error("Failed to read values from {}.", procedureFile.getAbsolutePath(), e);
+			throw new UncheckedIOException("Failed to read values from " + procedureFile.getAbsolutePath() + ".", e);
 		}
 	}
 
@@ -154,7 +182,8 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		logger.info("Reading MedicationRequests from {}.", medicationRequestFile.getPath());
 		ObjectReader objectReader = objectMapper.readerFor(FHIRMedicationRequest.class);
 		Date start = new Date();
-		try (MappingIterator<FHIRMedicationRequest> medicationRequestMappingIterator = objectReader.readValues(medicationRequestFile)) {
+		try (InputStream inputStream = CompressionUtils.open(medicationRequestFile);
+				MappingIterator<FHIRMedicationRequest> medicationRequestMappingIterator = objectReader.readValues(inputStream)) {
 			long active = 0;
 			long all = 0;
 			while (medicationRequestMappingIterator.hasNext()) {
@@ -177,7 +206,7 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 			logger.info("Consumed {} Medications from {} in {} seconds. {} were inactive, not confirmed or not SNOMED CT codes so were discarded.",
 					NumberFormat.getNumberInstance().format(active), medicationRequestFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000, all - active);
 		} catch (IOException e) {
-			logger.error("Failed to read values from {}.", medicationRequestFile.getAbsolutePath(), e);
+			throw new UncheckedIOException("Failed to read values from " + medicationRequestFile.getAbsolutePath() + ".", e);
 		}
 	}
 
@@ -189,7 +218,8 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 		logger.info("Reading ServiceRequests from {}.", serviceRequestFile.getPath());
 		ObjectReader objectReader = objectMapper.readerFor(FHIRServiceRequest.class);
 		Date start = new Date();
-		try (MappingIterator<FHIRServiceRequest> serviceRequestIterator = objectReader.readValues(serviceRequestFile)) {
+		try (InputStream inputStream = CompressionUtils.open(serviceRequestFile);
+				MappingIterator<FHIRServiceRequest> serviceRequestIterator = objectReader.readValues(inputStream)) {
 			long active = 0;
 			long all = 0;
 			while (serviceRequestIterator.hasNext()) {
@@ -213,7 +243,7 @@ public class FHIRBulkLocalIngestionSource implements HealthDataIngestionSource {
 			logger.info("Consumed {} ServiceRequests from {} in {} seconds. {} were inactive, not confirmed or not SNOMED CT codes so were discarded.",
 					NumberFormat.getNumberInstance().format(active), serviceRequestFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000, all - active);
 		} catch (IOException e) {
-			logger.error("Failed to read values from {}.", serviceRequestFile.getAbsolutePath(), e);
+			throw new UncheckedIOException("Failed to read values from " + serviceRequestFile.getAbsolutePath() + ".", e);
 		}
 	}
 
@@ -1,6 +1,7 @@
 package org.snomed.heathanalytics.server.ingestion.fhir;
 
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSourceConfiguration;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
 
 import java.io.File;
 
@@ -12,15 +13,25 @@ public class FHIRBulkLocalIngestionSourceConfiguration implements HealthDataInge
 	private final File procedureFile;
 	private final File medicationRequestFile;
 	private final File serviceRequestFile;
+	private final ImportCheckpoint checkpoint;
 
 	public FHIRBulkLocalIngestionSourceConfiguration(String dataset, File patientFile, File conditionFile, File procedureFile, File medicationRequestFile,
 			File serviceRequestFile) {
+		this(dataset, patientFile, conditionFile, procedureFile, medicationRequestFile, serviceRequestFile, null);
+	}
+
+	/**
+	 * @param checkpoint optional, patients already written are skipped and progress is saved.
+	 */
+	public FHIRBulkLocalIngestionSourceConfiguration(String dataset, File patientFile, File conditionFile, File procedureFile, File medicationRequestFile,
+			File serviceRequestFile, ImportCheckpoint checkpoint) {
 		this.dataset = dataset;
 		this.patientFile = patientFile;
 		this.conditionFile = conditionFile;
 		this.procedureFile = procedureFile;
 		this.medicationRequestFile = medicationRequestFile;
 		this.serviceRequestFile = serviceRequestFile;
+		this.checkpoint = checkpoint;
 	}
 
 	@Override
@@ -47,4 +58,8 @@ public class FHIRBulkLocalIngestionSourceConfiguration implements HealthDataInge
 	public File getServiceRequestFile() {
 		return serviceRequestFile;
 	}
+
+	public ImportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
 }
@@ -8,20 +8,35 @@ import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Gender;
 import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.ingestion.CompressionUtils;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSource;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSourceConfiguration;
 import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
 import org.snomed.heathanalytics.server.ingestion.SnomedIdentifierUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Long.parseLong;
 
+/**
+ * Reads FHIR bundle files, one patient per file, using a pool of worker threads.
+ * Each worker has its own HAPI parser because parsers are not thread safe, the FHIR context is shared.
+ * Workers pass batches of patients through a bounded queue to the calling thread which writes them to the output stream,
+ * so the workers wait when the store can not keep up.
+ */
 public class FHIRLocalIngestionSource implements HealthDataIngestionSource {
 
+	private static final List<Patient> END_OF_BATCHES = new ArrayList<>();
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	@Override
@@ -29,8 +44,7 @@ public class FHIRLocalIngestionSource implements HealthDataIngestionSource {
 		try (HealthDataOutputStream stream = healthDataOutputStream) {
 			FHIRLocalIngestionSourceConfiguration config = (FHIRLocalIngestionSourceConfiguration) configuration;
 			File jsonDirectory = config.getFileDirectory();
-			String dataset = config.getDataset();
-			File[] files = jsonDirectory.listFiles((dir, name) -> name.endsWith(".json"));
+			File[] files = jsonDirectory.listFiles((dir, name) -> CompressionUtils.hasExtension(name, ".json"));
 			if (files != null) {
 				FhirContext ctx;
 				logger.info("Setting FHIR context to {}", config.getFhirVersion());
@@ -38,108 +52,196 @@ public class FHIRLocalIngestionSource implements HealthDataIngestionSource {
 					case dstu3: ctx = FhirContext.forDstu3();break;
 					default   : ctx = FhirContext.forR4();
 				}
-				IParser parser = ctx.newJsonParser();
-				List<org.snomed.heathanalytics.model.Patient> patients = new ArrayList<>();
-				for (File jsonFile : files) {
-					Date start = new Date();
-					logger.info("Reading Patient from {}.", jsonFile.getPath());
-					try {
-						org.snomed.heathanalytics.model.Patient elPatient;
-						switch (config.getFhirVersion()) {
-							case dstu3: elPatient = parse_dstu3(jsonFile, parser);break;
-							default   : elPatient = parse_r4(jsonFile, parser);
-						}
-						if (elPatient != null)
-							patients.add(elPatient);
-						if (patients.size() == 1000) {
-							stream.createPatients(patients, dataset);
-							patients.clear();
+				ingestFiles(files, ctx, config, stream);
+			}
+		}
+	}
+
+	private void ingestFiles(File[] files, FhirContext ctx, FHIRLocalIngestionSourceConfiguration config, HealthDataOutputStream stream) {
+		int threads = config.getThreads();
+		logger.info("Reading {} FHIR bundle files using {} threads.", NumberFormat.getNumberInstance().format(files.length), threads);
+		Date start = new Date();
+		AtomicInteger nextFile = new AtomicInteger();
+		BlockingQueue<List<Patient>> queue = new ArrayBlockingQueue<>(threads * 2);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		long written = 0;
+		try {
+			for (int i = 0; i < threads; i++) {
+				workers.submit(() -> parseFiles(files, nextFile, ctx, config.getFhirVersion(), queue));
+			}
+			int finishedWorkers = 0;
+			while (finishedWorkers < threads) {
+				List<Patient> batch = queue.take();
+				if (batch == END_OF_BATCHES) {
+					finishedWorkers++;
+				} else {
+					stream.createPatients(batch, config.getDataset());
+					written += batch.size();
+					if (written / 10_000 != (written - batch.size()) / 10_000) {
+						logger.info("Consumed {} patients into store.", NumberFormat.getNumberInstance().format(written / 10_000 * 10_000));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while ingesting patients.", e);
+		} finally {
+			workers.shutdownNow();
+		}
+		long seconds = (new Date().getTime() - start.getTime()) / 1_000;
+		logger.info("Read {} Patients in {} seconds, {} patients per second.", NumberFormat.getNumberInstance().format(written), seconds,
+				NumberFormat.getNumberInstance().format(written / Math.max(seconds, 1)));
+	}
+
+	private void parseFiles(File[] files, AtomicInteger nextFile, FhirContext ctx, FHIRLocalIngestionSourceConfiguration.FHIR_VERSION fhirVersion,
+			BlockingQueue<List<Patient>> queue) {
+
+		boolean interrupted = false;
+		try {
+			IParser parser = ctx.newJsonParser();
+			List<Patient> batch = new ArrayList<>(ES_WRITE_BATCH_SIZE);
+			int index;
+			while ((index = nextFile.getAndIncrement()) < files.length) {
+				File jsonFile = files[index];
+				logger.debug("Reading Patient from {}.", jsonFile.getPath());
+				try {
+					Patient patient;
+					switch (fhirVersion) {
+						case dstu3: patient = parse_dstu3(jsonFile, parser);break;
+						default   : patient = parse_r4(jsonFile, parser);
+					}
+					if (patient != null) {
+						batch.add(patient);
+						if (batch.size() == ES_WRITE_BATCH_SIZE) {
+							queue.put(batch);
+							batch = new ArrayList<>(ES_WRITE_BATCH_SIZE);
 						}
-					} catch (Exception e) {
-						logger.error("Failed to read values from {}.", jsonFile.getAbsolutePath(), e);
 					}
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					logger.error("Failed to read values from {}.", jsonFile.getAbsolutePath(), e);
 				}
-				if (!patients.isEmpty()) {
-					stream.createPatients(patients, dataset);
+			}
+			if (!batch.isEmpty()) {
+				queue.put(batch);
+			}
+		} catch (InterruptedException e) {
+			// Writing has failed and the pool has been shut down
+			interrupted = true;
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!interrupted) {
+				// Always signal the writing thread, even if this worker failed
+				try {
+					queue.put(END_OF_BATCHES);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
 			}
 		}
 	}
 
-	private Patient parse_r4(File jsonFile, IParser parser) throws FileNotFoundException {
+	/**
+	 * Reads the bundle and makes a single pass over the entries. Events may come before the Patient resource.
+	 */
+	private Patient parse_r4(File jsonFile, IParser parser) throws IOException {
+		org.hl7.fhir.r4.model.Bundle bundle;
+		try (InputStream inputStream = CompressionUtils.open(jsonFile)) {
+			bundle = parser.parseResource(org.hl7.fhir.r4.model.Bundle.class, inputStream);
+		}
 		org.snomed.heathanalytics.model.Patient elPatient = null;
-		org.hl7.fhir.r4.model.Bundle bundle = parser.parseResource(org.hl7.fhir.r4.model.Bundle.class, new FileInputStream(jsonFile));
-		Optional<org.hl7.fhir.r4.model.Bundle.BundleEntryComponent> patientResource =
-				bundle.getEntry().stream().filter(
-						(entry) -> entry.getResource().fhirType().equals("Patient")
-				).findFirst();
-		if (patientResource.isPresent()) {
-			org.hl7.fhir.r4.model.Patient patient = (org.hl7.fhir.r4.model.Patient) patientResource.get().getResource();
-			elPatient = new org.snomed.heathanalytics.model.Patient(
-					patient.getId(),
-					patient.getBirthDate(),
-					Gender.from(patient.getGender().getDisplay())
-			);
-			Patient finalElPatient = elPatient;
-			bundle.getEntry().stream().forEach(bundleEntryComponent -> {
-				if (bundleEntryComponent.getResource().fhirType().equals("Condition")) {
-					org.hl7.fhir.r4.model.Condition condition = (org.hl7.fhir.r4.model.Condition) bundleEntryComponent.getResource();
+		List<ClinicalEvent> events = new ArrayList<>();
+		for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent bundleEntryComponent : bundle.getEntry()) {
+			org.hl7.fhir.r4.model.Resource resource = bundleEntryComponent.getResource();
+			if (resource == null) {
+				continue;
+			}
+			switch (resource.fhirType()) {
+				case "Patient":
+					if (elPatient == null) {
+						org.hl7.fhir.r4.model.Patient patient = (org.hl7.fhir.r4.model.Patient) resource;
+						elPatient = new org.snomed.heathanalytics.model.Patient(
+								patient.getId(),
+								patient.getBirthDate(),
+								Gender.from(patient.getGender().getDisplay())
+						);
+					}
+					break;
+				case "Condition":
+					org.hl7.fhir.r4.model.Condition condition = (org.hl7.fhir.r4.model.Condition) resource;
 					if (isConfirmedActive(condition)) {
 						String conceptId = getSCTCode(condition.getCode());
 						if ((conceptId != null) && (condition.getRecordedDate() != null))
-							finalElPatient.addEvent(new ClinicalEvent(condition.getRecordedDate(), parseLong(conceptId)));
+							events.add(new ClinicalEvent(condition.getRecordedDate(), parseLong(conceptId)));
 					}
-				}
-				if (bundleEntryComponent.getResource().fhirType().equals("Procedure")) {
-					org.hl7.fhir.r4.model.Procedure procedure = (org.hl7.fhir.r4.model.Procedure) bundleEntryComponent.getResource();
-					String conceptId = getSCTCode(procedure.getCode());
+					break;
+				case "Procedure":
+					org.hl7.fhir.r4.model.Procedure procedure = (org.hl7.fhir.r4.model.Procedure) resource;
+					String procedureConceptId = getSCTCode(procedure.getCode());
 					Date performedOn = getProcedureDate(procedure);
-					if ((conceptId != null) && (performedOn != null))
-						finalElPatient.addEvent(new ClinicalEvent(performedOn, parseLong(conceptId)));
-				}
-				if (bundleEntryComponent.getResource().fhirType().equals("MedicationRequest")) {
-					org.hl7.fhir.r4.model.MedicationRequest medicationRequest = (org.hl7.fhir.r4.model.MedicationRequest) bundleEntryComponent.getResource();
-					String conceptId = getSCTCode(medicationRequest.getMedicationCodeableConcept());
-					if ((conceptId != null) && (medicationRequest.getAuthoredOn() != null))
-						finalElPatient.addEvent(new ClinicalEvent(medicationRequest.getAuthoredOn(), parseLong(conceptId)));
-				}
-			});
+					if ((procedureConceptId != null) && (performedOn != null))
+						events.add(new ClinicalEvent(performedOn, parseLong(procedureConceptId)));
+					break;
+				case "MedicationRequest":
+					org.hl7.fhir.r4.model.MedicationRequest medicationRequest = (org.hl7.fhir.r4.model.MedicationRequest) resource;
+					String medicationConceptId = getSCTCode(medicationRequest.getMedicationCodeableConcept());
+					if ((medicationConceptId != null) && (medicationRequest.getAuthoredOn() != null))
+						events.add(new ClinicalEvent(medicationRequest.getAuthoredOn(), parseLong(medicationConceptId)));
+					break;
+			}
+		}
+		if (elPatient != null) {
+			events.forEach(elPatient::addEvent);
 		}
 		return elPatient;
 	}
 
-	private Patient parse_dstu3(File jsonFile, IParser parser) throws FileNotFoundException {
+	/**
+	 * Reads the bundle and makes a single pass over the entries. Events may come before the Patient resource.
+	 */
+	private Patient parse_dstu3(File jsonFile, IParser parser) throws IOException {
+		org.hl7.fhir.dstu3.model.Bundle bundle;
+		try (InputStream inputStream = CompressionUtils.open(jsonFile)) {
+			bundle = parser.parseResource(org.hl7.fhir.dstu3.model.Bundle.class, inputStream);
+		}
 		org.snomed.heathanalytics.model.Patient elPatient = null;
-		org.hl7.fhir.dstu3.model.Bundle bundle = parser.parseResource(org.hl7.fhir.dstu3.model.Bundle.class, new FileInputStream(jsonFile));
-		Optional<org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent> patientResource =
-				bundle.getEntry().stream().filter(
-						(entry) -> entry.getResource().fhirType().equals("Patient")
-				).findFirst();
-		if (patientResource.isPresent()) {
-			org.hl7.fhir.dstu3.model.Patient patient = (org.hl7.fhir.dstu3.model.Patient) patientResource.get().getResource();
-			elPatient = new org.snomed.heathanalytics.model.Patient(
-					patient.getId(),
-					patient.getBirthDate(),
-					Gender.from(patient.getGender().getDisplay())
-			);
-			Patient finalElPatient = elPatient;
-			bundle.getEntry().stream().forEach(bundleEntryComponent -> {
-				if (bundleEntryComponent.getResource().fhirType().equals("Condition")) {
-					org.hl7.fhir.dstu3.model.Condition condition = (org.hl7.fhir.dstu3.model.Condition) bundleEntryComponent.getResource();
+		List<ClinicalEvent> events = new ArrayList<>();
+		for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent bundleEntryComponent : bundle.getEntry()) {
+			org.hl7.fhir.dstu3.model.Resource resource = bundleEntryComponent.getResource();
+			if (resource == null) {
+				continue;
+			}
+			switch (resource.fhirType()) {
+				case "Patient":
+					if (elPatient == null) {
+						org.hl7.fhir.dstu3.model.Patient patient = (org.hl7.fhir.dstu3.model.Patient) resource;
+						elPatient = new org.snomed.heathanalytics.model.Patient(
+								patient.getId(),
+								patient.getBirthDate(),
+								Gender.from(patient.getGender().getDisplay())
+						);
+					}
+					break;
+				case "Condition":
+					org.hl7.fhir.dstu3.model.Condition condition = (org.hl7.fhir.dstu3.model.Condition) resource;
 					if (isConfirmedActive(condition)) {
 						String conceptId = getSCTCode(condition.getCode());
 						if ((conceptId != null) && (condition.getAssertedDate() != null))
-							finalElPatient.addEvent(new ClinicalEvent(condition.getAssertedDate(), parseLong(conceptId)));
+							events.add(new ClinicalEvent(condition.getAssertedDate(), parseLong(conceptId)));
 					}
-				}
-				if (bundleEntryComponent.getResource().fhirType().equals("Procedure")) {
-					org.hl7.fhir.dstu3.model.Procedure procedure = (org.hl7.fhir.dstu3.model.Procedure) bundleEntryComponent.getResource();
-					String conceptId = getSCTCode(procedure.getCode());
+					break;
+				case "Procedure":
+					org.hl7.fhir.dstu3.model.Procedure procedure = (org.hl7.fhir.dstu3.model.Procedure) resource;
+					String procedureConceptId = getSCTCode(procedure.getCode());
 					Date performedOn = getProcedureDate(procedure);
-					if ((conceptId != null) && (performedOn != null))
-						finalElPatient.addEvent(new ClinicalEvent(performedOn, parseLong(conceptId)));
-				}
-			});
+					if ((procedureConceptId != null) && (performedOn != null))
+						events.add(new ClinicalEvent(performedOn, parseLong(procedureConceptId)));
+					break;
+			}
+		}
+		if (elPatient != null) {
+			events.forEach(elPatient::addEvent);
 		}
 		return elPatient;
 	}
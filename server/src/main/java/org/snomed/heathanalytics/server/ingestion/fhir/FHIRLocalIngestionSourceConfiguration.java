@@ -12,10 +12,22 @@ public class FHIRLocalIngestionSourceConfiguration implements HealthDataIngestio
 
 	private final File fileDirectory;
 	private FHIR_VERSION fhirVersion = FHIR_VERSION.r4;
+	private final int threads;
 
 	public FHIRLocalIngestionSourceConfiguration(String dataset, File fileDirectory, String fhirVersion) {
+		this(dataset, fileDirectory, fhirVersion, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threads number of threads reading and parsing bundle files.
+	 */
+	public FHIRLocalIngestionSourceConfiguration(String dataset, File fileDirectory, String fhirVersion, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1.");
+		}
 		this.dataset = dataset;
 		this.fileDirectory = fileDirectory;
+		this.threads = threads;
 		for (FHIR_VERSION fhir_version : FHIR_VERSION.values()) {
 			if (fhir_version.name().equalsIgnoreCase(fhirVersion)) {
 				this.fhirVersion = fhir_version;
@@ -36,4 +48,8 @@ public class FHIRLocalIngestionSourceConfiguration implements HealthDataIngestio
 	public FHIR_VERSION getFhirVersion() {
 		return fhirVersion;
 	}
+
+	public int getThreads() {
+		return threads;
+	}
 }
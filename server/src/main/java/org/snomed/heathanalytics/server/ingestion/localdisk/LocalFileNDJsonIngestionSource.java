@@ -3,24 +3,49 @@ package org.snomed.heathanalytics.server.ingestion.localdisk;
 import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
-import com.google.common.collect.Iterators;
-import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.io.ByteStreams;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.ingestion.CompressionUtils;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSource;
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSourceConfiguration;
 import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
-import org.snomed.heathanalytics.server.service.CollectionUtils;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Reads patients in the native NDJSON format.
+ * Files are split into chunks on line boundaries which are parsed by a pool of reader threads.
+ * Compressed files, gzip, bzip2 or Zstandard, can not be split so each is read as a single chunk and decompressed as it is parsed.
+ * Batches of patients pass through a bounded queue to a pool of writer threads, so readers wait when the store can not keep up.
+ * Bulk requests rejected by Elasticsearch because it is overloaded are retried with exponential backoff.
+ * The createPatients method of the output stream must be thread safe when more than one writer thread is configured.
+ * <p>
+ * When the configuration has a checkpoint, each chunk is recorded once all of its patients have been written
+ * and chunks recorded by an earlier run are skipped.
+ * If a chunk can not be read or a batch can not be written the remaining chunks are abandoned and the import fails,
+ * the checkpoint is saved with only the chunks already complete. If a file can not be split the import fails before any chunk is read.
+ */
 public class LocalFileNDJsonIngestionSource implements HealthDataIngestionSource {
 
+	private static final long CHUNK_SIZE = 64L * 1024 * 1024;
+	private static final int MAX_WRITE_ATTEMPTS = 8;
+	private static final long INITIAL_RETRY_DELAY_MILLIS = 500;
+	private static final Batch END_OF_BATCHES = new Batch(Collections.emptyList(), null);
+
 	private final ObjectMapper objectMapper;
 
 	private final Logger logger = LoggerFactory.getLogger(getClass());
@@ -33,36 +58,329 @@ public class LocalFileNDJsonIngestionSource implements HealthDataIngestionSource
 		try (HealthDataOutputStream stream = healthDataOutputStream) {
 			LocalFileNDJsonIngestionSourceConfiguration config = (LocalFileNDJsonIngestionSourceConfiguration) configuration;
 			File ndJsonDirectory = config.getFileDirectory();
-			String dataset = config.getDataset();
-			File[] files = ndJsonDirectory.listFiles((dir, name) -> name.endsWith(".ndjson"));
+			File[] files = ndJsonDirectory.listFiles((dir, name) -> CompressionUtils.hasExtension(name, ".ndjson"));
 			if (files != null) {
-				ObjectReader patientReader = objectMapper.readerFor(Patient.class);
+				ImportCheckpoint checkpoint = config.getCheckpoint();
+				List<FileChunk> chunks = new ArrayList<>();
+				int skipped = 0;
 				for (File ndJsonFile : files) {
-					Date start = new Date();
-					logger.info("Reading Patients from {}.", ndJsonFile.getPath());
 					try {
-						long read = 0;
-						MappingIterator<Patient> patientIterator = patientReader.readValues(ndJsonFile);
-						for (UnmodifiableIterator<List<Patient>> it = Iterators.partition(patientIterator, ES_WRITE_BATCH_SIZE); it.hasNext(); ) {
-							List<Patient> patients = it.next();
-							for (Patient patient : patients) {
-								for (ClinicalEvent clinicalEvent : CollectionUtils.orEmpty(patient.getEvents())) {
-									clinicalEvent.updateConceptDate();
-								}
-							}
-							stream.createPatients(patients, dataset);
-							read += patients.size();
-							if (read % 10_000 == 0) {
-								logger.info("Consumed {} patients into store.", NumberFormat.getNumberInstance().format(read));
+						for (FileChunk chunk : splitFile(ndJsonFile, CHUNK_SIZE)) {
+							if (checkpoint != null && checkpoint.isChunkComplete(chunk.getKey())) {
+								skipped++;
+							} else {
+								chunks.add(chunk);
 							}
 						}
-						logger.info("Read {} Patients from {} in {} seconds.", NumberFormat.getNumberInstance().format(read), ndJsonFile.getPath(), (new Date().getTime() - start.getTime()) / 1_000);
 					} catch (IOException e) {
+						// Fails before anything is written, so the checkpoint is left as it was
 						logger.error("Failed to read values from {}.", ndJsonFile.getAbsolutePath(), e);
+						throw new UncheckedIOException("Failed to read values from " + ndJsonFile.getAbsolutePath() + ".", e);
+					}
+				}
+				if (skipped > 0) {
+					logger.info("Skipping {} chunks completed before the import checkpoint.", skipped);
+				}
+				boolean allChunksComplete = ingestChunks(chunks, stream, config);
+				if (checkpoint != null) {
+					if (allChunksComplete) {
+						checkpoint.complete();
+					} else {
+						checkpoint.save();
+						logger.warn("Some chunks were not imported. Use --resume to retry them.");
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if every chunk was read and written.
+	 */
+	private boolean ingestChunks(List<FileChunk> chunks, HealthDataOutputStream stream, LocalFileNDJsonIngestionSourceConfiguration config) {
+		Date start = new Date();
+		logger.info("Reading Patients from {} chunks using {} reader and {} writer threads.", chunks.size(), config.getReaderThreads(), config.getWriterThreads());
+		ObjectReader patientReader = objectMapper.readerFor(Patient.class);
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(config.getWriterThreads() * 2);
+		AtomicLong written = new AtomicLong();
+		AtomicReference<RuntimeException> failure = new AtomicReference<>();
+		List<ChunkProgress> progressList = new ArrayList<>();
+
+		ExecutorService readers = Executors.newFixedThreadPool(config.getReaderThreads());
+		ExecutorService writers = Executors.newFixedThreadPool(config.getWriterThreads());
+		try {
+			List<Future<?>> writerFutures = new ArrayList<>();
+			for (int i = 0; i < config.getWriterThreads(); i++) {
+				writerFutures.add(writers.submit(() -> writeBatches(queue, stream, config.getDataset(), written, failure)));
+			}
+			List<Future<?>> readerFutures = new ArrayList<>();
+			for (FileChunk chunk : chunks) {
+				ChunkProgress progress = new ChunkProgress(chunk, config.getCheckpoint(), stream);
+				progressList.add(progress);
+				readerFutures.add(readers.submit(() -> readChunk(progress, patientReader, queue, failure)));
+			}
+			waitFor(readerFutures, failure);
+			for (int i = 0; i < config.getWriterThreads(); i++) {
+				queue.put(END_OF_BATCHES);
+			}
+			waitFor(writerFutures, failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while ingesting patients.", e);
+		} finally {
+			readers.shutdownNow();
+			writers.shutdownNow();
+		}
+
+		// Everything in the completed chunks must be in the store before the checkpoint is saved
+		RuntimeException flushFailure = null;
+		try {
+			stream.flush();
+		} catch (RuntimeException e) {
+			flushFailure = e;
+		}
+		if (failure.get() != null || flushFailure != null) {
+			// Not saved if the flush failed because patients of chunks already recorded may be missing
+			if (config.getCheckpoint() != null && flushFailure == null) {
+				config.getCheckpoint().save();
+			}
+			throw failure.get() != null ? failure.get() : flushFailure;
+		}
+		long seconds = (new Date().getTime() - start.getTime()) / 1_000;
+		logger.info("Read {} Patients in {} seconds, {} patients per second.", NumberFormat.getNumberInstance().format(written.get()), seconds,
+				NumberFormat.getNumberInstance().format(written.get() / Math.max(seconds, 1)));
+		return progressList.stream().allMatch(ChunkProgress::isComplete);
+	}
+
+	private void readChunk(ChunkProgress progress, ObjectReader patientReader, BlockingQueue<Batch> queue, AtomicReference<RuntimeException> failure) {
+		FileChunk chunk = progress.chunk;
+		try (InputStream inputStream = chunk.open();
+				MappingIterator<Patient> patientIterator = patientReader.readValues(inputStream)) {
+			List<Patient> batch = new ArrayList<>(ES_WRITE_BATCH_SIZE);
+			while (patientIterator.hasNext() && failure.get() == null) {
+				batch.add(patientIterator.next());
+				if (batch.size() == ES_WRITE_BATCH_SIZE) {
+					queue.put(progress.newBatch(batch));
+					batch = new ArrayList<>(ES_WRITE_BATCH_SIZE);
+				}
+			}
+			if (!batch.isEmpty()) {
+				queue.put(progress.newBatch(batch));
+			}
+			if (failure.get() == null) {
+				progress.readComplete();
+			}
+		} catch (IOException e) {
+			logger.error("Failed to read values from {}.", chunk, e);
+			failure.compareAndSet(null, new UncheckedIOException("Failed to read values from " + chunk + ".", e));
+		} catch (RuntimeException e) {
+			logger.error("Failed to read values from {}.", chunk, e);
+			failure.compareAndSet(null, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeBatches(BlockingQueue<Batch> queue, HealthDataOutputStream stream, String dataset, AtomicLong written,
+			AtomicReference<RuntimeException> failure) {
+		try {
+			Batch batch;
+			while ((batch = queue.take()) != END_OF_BATCHES) {
+				// After a failure keep taking batches so that readers are not blocked
+				if (failure.get() == null && writeWithRetry(batch.patients, stream, dataset, failure)) {
+					batch.progress.batchWritten(batch.patients.size());
+					long total = written.addAndGet(batch.patients.size());
+					if (total / 10_000 != (total - batch.patients.size()) / 10_000) {
+						logger.info("Consumed {} patients into store.", NumberFormat.getNumberInstance().format(total / 10_000 * 10_000));
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean writeWithRetry(List<Patient> batch, HealthDataOutputStream stream, String dataset, AtomicReference<RuntimeException> failure)
+			throws InterruptedException {
+
+		long delay = INITIAL_RETRY_DELAY_MILLIS;
+		for (int attempt = 1; ; attempt++) {
+			try {
+				stream.createPatients(batch, dataset);
+				return true;
+			} catch (RuntimeException e) {
+				if (!isRejection(e) || attempt == MAX_WRITE_ATTEMPTS) {
+					logger.error("Failed to write batch of {} patients after {} attempts.", batch.size(), attempt, e);
+					failure.compareAndSet(null, e);
+					return false;
+				}
+				logger.warn("Store rejected bulk request, attempt {}, retrying in {} ms.", attempt, delay);
+				Thread.sleep(delay);
+				delay *= 2;
+			}
+		}
+	}
+
+	// Elasticsearch rejects requests with status 429 when its write queue is full
+	private static boolean isRejection(Throwable throwable) {
+		for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ElasticsearchStatusException && ((ElasticsearchStatusException) cause).status() == RestStatus.TOO_MANY_REQUESTS) {
+				return true;
+			}
+			if (cause.getMessage() != null && cause.getMessage().contains("rejected_execution_exception")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void waitFor(List<Future<?>> futures, AtomicReference<RuntimeException> failure) throws InterruptedException {
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				logger.error("Ingestion task failed.", e.getCause());
+				failure.compareAndSet(null, new IllegalStateException("Ingestion task failed.", e.getCause()));
+			}
+		}
+	}
+
+	/**
+	 * Splits a file into chunks of roughly chunkSize bytes. Each chunk ends immediately after a newline, or at the end of the file.
+	 * A compressed file is returned as a single chunk.
+	 */
+	static List<FileChunk> splitFile(File file, long chunkSize) throws IOException {
+		long length = file.length();
+		if (CompressionUtils.isCompressed(file)) {
+			return Collections.singletonList(new FileChunk(file, 0, length, true));
+		}
+		List<FileChunk> chunks = new ArrayList<>();
+		byte[] buffer = new byte[8 * 1024];
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+			long start = 0;
+			while (start < length) {
+				long end = Math.min(start + chunkSize, length);
+				if (end < length) {
+					// Move the end forward to the next line
+					randomAccessFile.seek(end);
+					int read;
+					boolean found = false;
+					while (!found && (read = randomAccessFile.read(buffer)) != -1) {
+						for (int i = 0; i < read; i++) {
+							if (buffer[i] == '\n') {
+								end += i + 1;
+								found = true;
+								break;
+							}
+						}
+						if (!found) {
+							end += read;
+						}
 					}
 				}
+				chunks.add(new FileChunk(file, start, end, false));
+				start = end;
 			}
 		}
+		return chunks;
 	}
 
+	static class FileChunk {
+
+		private final File file;
+		private final long start;
+		private final long end;
+		private final boolean compressed;
+
+		FileChunk(File file, long start, long end, boolean compressed) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+			this.compressed = compressed;
+		}
+
+		InputStream open() throws IOException {
+			if (compressed) {
+				return CompressionUtils.open(file);
+			}
+			FileChannel channel = FileChannel.open(file.toPath());
+			channel.position(start);
+			return new BufferedInputStream(ByteStreams.limit(Channels.newInputStream(channel), end - start), 64 * 1024);
+		}
+
+		long getStart() {
+			return start;
+		}
+
+		long getEnd() {
+			return end;
+		}
+
+		String getKey() {
+			return file.getName() + ":" + start + "-" + end;
+		}
+
+		@Override
+		public String toString() {
+			return file.getPath() + " bytes " + start + "-" + end;
+		}
+	}
+
+	private static class Batch {
+
+		private final List<Patient> patients;
+		private final ChunkProgress progress;
+
+		Batch(List<Patient> patients, ChunkProgress progress) {
+			this.patients = patients;
+			this.progress = progress;
+		}
+	}
+
+	/**
+	 * Tracks the batches of a chunk which are still waiting to be written.
+	 * The chunk is complete once it has been read to the end and every batch has been written.
+	 */
+	private static class ChunkProgress {
+
+		private final FileChunk chunk;
+		private final ImportCheckpoint checkpoint;
+		private final HealthDataOutputStream stream;
+		private final AtomicInteger pendingBatches = new AtomicInteger();
+		private final AtomicLong records = new AtomicLong();
+		private final AtomicBoolean complete = new AtomicBoolean();
+		private volatile boolean readComplete;
+
+		ChunkProgress(FileChunk chunk, ImportCheckpoint checkpoint, HealthDataOutputStream stream) {
+			this.chunk = chunk;
+			this.checkpoint = checkpoint;
+			this.stream = stream;
+		}
+
+		Batch newBatch(List<Patient> patients) {
+			pendingBatches.incrementAndGet();
+			return new Batch(patients, this);
+		}
+
+		void batchWritten(int size) {
+			records.addAndGet(size);
+			pendingBatches.decrementAndGet();
+			completeIfDone();
+		}
+
+		void readComplete() {
+			readComplete = true;
+			completeIfDone();
+		}
+
+		private void completeIfDone() {
+			if (readComplete && pendingBatches.get() == 0 && complete.compareAndSet(false, true) && checkpoint != null) {
+				checkpoint.chunkCompleted(chunk.getKey(), records.get(), stream);
+			}
+		}
+
+		boolean isComplete() {
+			return complete.get();
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package org.snomed.heathanalytics.server.ingestion.localdisk;
 
 import org.snomed.heathanalytics.server.ingestion.HealthDataIngestionSourceConfiguration;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
 
 import java.io.File;
 
@@ -8,16 +9,50 @@ public class LocalFileNDJsonIngestionSourceConfiguration implements HealthDataIn
 
 	private final File fileDirectory;
 	private final String dataset;
+	private final int readerThreads;
+	private final int writerThreads;
+	private final ImportCheckpoint checkpoint;
 
 	public LocalFileNDJsonIngestionSourceConfiguration(String dataset, File fileDirectory) {
+		this(dataset, fileDirectory, Runtime.getRuntime().availableProcessors(), 4);
+	}
+
+	public LocalFileNDJsonIngestionSourceConfiguration(String dataset, File fileDirectory, int readerThreads, int writerThreads) {
+		this(dataset, fileDirectory, readerThreads, writerThreads, null);
+	}
+
+	/**
+	 * @param readerThreads number of threads reading and parsing file chunks.
+	 * @param writerThreads number of threads sending concurrent bulk requests to the store.
+	 * @param checkpoint optional, chunks already completed are skipped and progress is saved.
+	 */
+	public LocalFileNDJsonIngestionSourceConfiguration(String dataset, File fileDirectory, int readerThreads, int writerThreads, ImportCheckpoint checkpoint) {
+		if (readerThreads < 1 || writerThreads < 1) {
+			throw new IllegalArgumentException("Reader and writer thread counts must be at least 1.");
+		}
 		this.dataset = dataset;
 		this.fileDirectory = fileDirectory;
+		this.readerThreads = readerThreads;
+		this.writerThreads = writerThreads;
+		this.checkpoint = checkpoint;
 	}
 
 	public File getFileDirectory() {
 		return fileDirectory;
 	}
 
+	public int getReaderThreads() {
+		return readerThreads;
+	}
+
+	public int getWriterThreads() {
+		return writerThreads;
+	}
+
+	public ImportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
 	@Override
 	public String getDataset() {
 		return dataset;
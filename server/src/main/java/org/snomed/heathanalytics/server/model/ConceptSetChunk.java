@@ -0,0 +1,42 @@
+package org.snomed.heathanalytics.server.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+import java.util.List;
+
+/**
+ * Part of a large concept set stored so that patient queries can reference it with a terms lookup rather than inlining every concept id.
+ */
+@Document(indexName = "concept-set")
+public class ConceptSetChunk {
+
+	@Id
+	private String id;
+
+	// Only read from the source by terms lookups, not searched
+	@Field(type = FieldType.Long, index = false, docValues = false)
+	private List<Long> conceptIds;
+
+	public static final class Fields {
+		public static final String CONCEPT_IDS = "conceptIds";
+	}
+
+	public ConceptSetChunk() {
+	}
+
+	public ConceptSetChunk(String id, List<Long> conceptIds) {
+		this.id = id;
+		this.conceptIds = conceptIds;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public List<Long> getConceptIds() {
+		return conceptIds;
+	}
+}
@@ -0,0 +1,32 @@
+package org.snomed.heathanalytics.server.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.Document;
+
+/**
+ * Time of the last completed write to a dataset. Written by imports, which may run in another process,
+ * and read by the server to know when cached cohort results are out of date.
+ */
+@Document(indexName = "dataset-version")
+public class DatasetVersion {
+
+	@Id
+	private String dataset;
+	private long version;
+
+	public DatasetVersion() {
+	}
+
+	public DatasetVersion(String dataset, long version) {
+		this.dataset = dataset;
+		this.version = version;
+	}
+
+	public String getDataset() {
+		return dataset;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+}
@@ -49,6 +49,9 @@ public class EventCriterion {
 		eventCriterion.minDate = minDate;
 		eventCriterion.maxDate = maxDate;
 		eventCriterion.frequency = frequency;
+		eventCriterion.withinDaysBeforePreviouslyMatchedEvent = withinDaysBeforePreviouslyMatchedEvent;
+		eventCriterion.withinDaysAfterPreviouslyMatchedEvent = withinDaysAfterPreviouslyMatchedEvent;
+		eventCriterion.includeCPTAnalysis = includeCPTAnalysis;
 		return eventCriterion;
 	}
 
@@ -149,13 +152,18 @@ public class EventCriterion {
 		EventCriterion that = (EventCriterion) o;
 		return has == that.has &&
 				Objects.equals(conceptECL, that.conceptECL) &&
+				includeCPTAnalysis == that.includeCPTAnalysis &&
 				Objects.equals(conceptSubsetId, that.conceptSubsetId) &&
+				Objects.equals(minDate, that.minDate) &&
+				Objects.equals(maxDate, that.maxDate) &&
+				Objects.equals(frequency, that.frequency) &&
 				Objects.equals(withinDaysBeforePreviouslyMatchedEvent, that.withinDaysBeforePreviouslyMatchedEvent) &&
 				Objects.equals(withinDaysAfterPreviouslyMatchedEvent, that.withinDaysAfterPreviouslyMatchedEvent);
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(has, conceptECL, conceptSubsetId, withinDaysBeforePreviouslyMatchedEvent, withinDaysAfterPreviouslyMatchedEvent);
+		return Objects.hash(has, conceptECL, conceptSubsetId, minDate, maxDate, frequency, withinDaysBeforePreviouslyMatchedEvent,
+				withinDaysAfterPreviouslyMatchedEvent, includeCPTAnalysis);
 	}
 }
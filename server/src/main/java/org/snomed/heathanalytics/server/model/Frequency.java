@@ -2,6 +2,8 @@ package org.snomed.heathanalytics.server.model;
 
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 
+import java.util.Objects;
+
 @JsonPropertyOrder({"minRepetitions", "minTimeBetween", "maxTimeBetween", "timeUnit"})
 public class Frequency {
 
@@ -36,4 +38,20 @@ public class Frequency {
 		return timeUnit;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+		Frequency frequency = (Frequency) o;
+		return Objects.equals(minRepetitions, frequency.minRepetitions) &&
+				Objects.equals(minTimeBetween, frequency.minTimeBetween) &&
+				Objects.equals(maxTimeBetween, frequency.maxTimeBetween) &&
+				timeUnit == frequency.timeUnit;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(minRepetitions, minTimeBetween, maxTimeBetween, timeUnit);
+	}
+
 }
@@ -0,0 +1,42 @@
+package org.snomed.heathanalytics.server.model;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import org.snomed.heathanalytics.model.Patient;
+
+import java.util.List;
+
+/**
+ * Page of a cohort fetched using a cursor rather than a page number.
+ */
+@JsonPropertyOrder({"totalElements", "numberOfElements", "cursor", "content"})
+public class PatientCursorPage {
+
+	private final List<Patient> content;
+	private final long totalElements;
+	private final String cursor;
+
+	public PatientCursorPage(List<Patient> content, long totalElements, String cursor) {
+		this.content = content;
+		this.totalElements = totalElements;
+		this.cursor = cursor;
+	}
+
+	public List<Patient> getContent() {
+		return content;
+	}
+
+	public int getNumberOfElements() {
+		return content.size();
+	}
+
+	public long getTotalElements() {
+		return totalElements;
+	}
+
+	/**
+	 * @return cursor to fetch the next page, or null if this is the last page.
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+}
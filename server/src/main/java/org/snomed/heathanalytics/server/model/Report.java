@@ -1,5 +1,7 @@
 package org.snomed.heathanalytics.server.model;
 
+import org.snomed.heathanalytics.model.RVUTotals;
+
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -7,22 +9,30 @@ import java.util.Map;
 public class Report {
 
 	private final String name;
-	private final int patientCount;
+	private final long patientCount;
 	private final CohortCriteria criteria;
 	private Map<String, CPTTotals> cptTotals;
+	// Sum of the RVU totals of the patients counted, each of which covers all of the patient's events with a CPT code,
+	// not only the events matching the group's criteria
+	private RVUTotals rvuTotals;
 	private List<Report> groups;
 
-	public Report(String name, int patientCount, CohortCriteria criteria) {
+	public Report(String name, long patientCount, CohortCriteria criteria) {
 		this.name = name;
 		this.patientCount = patientCount;
 		this.criteria = criteria;
 	}
 
-	public Report(String name, int patientCount, CohortCriteria criteria, Map<String, CPTTotals> cptTotals) {
+	public Report(String name, long patientCount, CohortCriteria criteria, Map<String, CPTTotals> cptTotals) {
 		this(name, patientCount, criteria);
 		this.cptTotals = cptTotals;
 	}
 
+	public Report(String name, long patientCount, CohortCriteria criteria, Map<String, CPTTotals> cptTotals, RVUTotals rvuTotals) {
+		this(name, patientCount, criteria, cptTotals);
+		this.rvuTotals = rvuTotals;
+	}
+
 	public void addGroup(Report group) {
 		if (groups == null) {
 			groups = new ArrayList<>();
@@ -34,7 +44,7 @@ public class Report {
 		return name;
 	}
 
-	public int getPatientCount() {
+	public long getPatientCount() {
 		return patientCount;
 	}
 
@@ -46,6 +56,10 @@ public class Report {
 		return cptTotals;
 	}
 
+	public RVUTotals getRvuTotals() {
+		return rvuTotals;
+	}
+
 	public List<Report> getGroups() {
 		return groups;
 	}
@@ -57,6 +71,7 @@ public class Report {
 				", patientCount=" + patientCount +
 				", criteria=" + criteria +
 				", cptTotals=" + cptTotals +
+				", rvuTotals=" + rvuTotals +
 				", groups=" + groups +
 				'}';
 	}
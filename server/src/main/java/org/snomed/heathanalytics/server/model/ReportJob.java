@@ -0,0 +1,153 @@
+package org.snomed.heathanalytics.server.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.elasticsearch.annotations.Document;
+import org.springframework.data.elasticsearch.annotations.Field;
+import org.springframework.data.elasticsearch.annotations.FieldType;
+
+/**
+ * A report run in the background. Stored with its result, as JSON, so the result can be fetched later
+ * and is reused when the same report is submitted again before the data changes.
+ */
+@Document(indexName = "report-job")
+public class ReportJob {
+
+	public enum Type {
+		REPORT, STATISTICAL_CORRELATION
+	}
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+		public boolean isFinished() {
+			return this == COMPLETED || this == FAILED || this == CANCELLED;
+		}
+	}
+
+	@Id
+	private String id;
+
+	@Field(type = FieldType.Keyword)
+	private String user;
+
+	@Field(type = FieldType.Keyword)
+	private Type type;
+
+	@Field(type = FieldType.Keyword)
+	private Status status;
+
+	// Hash of the type and definition, with the data version, used to find an earlier result of the same report
+	@Field(type = FieldType.Keyword)
+	private String resultKey;
+
+	@Field(type = FieldType.Integer)
+	private int cohortsCounted;
+
+	@Field(type = FieldType.Integer)
+	private int cohortsTotal;
+
+	@Field(type = FieldType.Long)
+	private long created;
+
+	@Field(type = FieldType.Long)
+	private Long finished;
+
+	@Field(type = FieldType.Text, index = false)
+	private String message;
+
+	@Field(type = FieldType.Text, index = false)
+	private String definitionJson;
+
+	@Field(type = FieldType.Text, index = false)
+	private String resultJson;
+
+	public ReportJob() {
+	}
+
+	public ReportJob(String id, String user, Type type, String definitionJson, String resultKey) {
+		this.id = id;
+		this.user = user;
+		this.type = type;
+		this.definitionJson = definitionJson;
+		this.resultKey = resultKey;
+		status = Status.QUEUED;
+		created = System.currentTimeMillis();
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public void setStatus(Status status) {
+		this.status = status;
+		if (status.isFinished()) {
+			finished = System.currentTimeMillis();
+		}
+	}
+
+	public String getResultKey() {
+		return resultKey;
+	}
+
+	/**
+	 * @return number of distinct cohorts of the report counted so far.
+	 */
+	public int getCohortsCounted() {
+		return cohortsCounted;
+	}
+
+	public int getCohortsTotal() {
+		return cohortsTotal;
+	}
+
+	public void setProgress(int cohortsCounted, int cohortsTotal) {
+		this.cohortsCounted = cohortsCounted;
+		this.cohortsTotal = cohortsTotal;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public Long getFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return reason the job failed, or null.
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
+	@JsonIgnore
+	public String getDefinitionJson() {
+		return definitionJson;
+	}
+
+	@JsonIgnore
+	public String getResultJson() {
+		return resultJson;
+	}
+
+	public void setResultJson(String resultJson) {
+		this.resultJson = resultJson;
+	}
+}
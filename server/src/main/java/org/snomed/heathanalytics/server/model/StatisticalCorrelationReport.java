@@ -6,15 +6,15 @@ import java.text.NumberFormat;
 
 public class StatisticalCorrelationReport {
 
-	private final int allPatientsCount;
+	private final long allPatientsCount;
 
-	private final int withTreatmentCount;
-	private final int withTreatmentWithNegativeOutcomeCount;
+	private final long withTreatmentCount;
+	private final long withTreatmentWithNegativeOutcomeCount;
 
-	private final int withoutTreatmentCount;
-	private final int withoutTreatmentWithNegativeOutcomeCount;
+	private final long withoutTreatmentCount;
+	private final long withoutTreatmentWithNegativeOutcomeCount;
 
-	public StatisticalCorrelationReport(int allPatientsCount, int withTreatmentCount, int withTreatmentWithNegativeOutcomeCount, int withoutTreatmentCount, int withoutTreatmentWithNegativeOutcomeCount) {
+	public StatisticalCorrelationReport(long allPatientsCount, long withTreatmentCount, long withTreatmentWithNegativeOutcomeCount, long withoutTreatmentCount, long withoutTreatmentWithNegativeOutcomeCount) {
 		this.allPatientsCount = allPatientsCount;
 		this.withTreatmentCount = withTreatmentCount;
 		this.withTreatmentWithNegativeOutcomeCount = withTreatmentWithNegativeOutcomeCount;
@@ -22,7 +22,7 @@ public class StatisticalCorrelationReport {
 		this.withoutTreatmentWithNegativeOutcomeCount = withoutTreatmentWithNegativeOutcomeCount;
 	}
 
-	public int getAllPatientsCount() {
+	public long getAllPatientsCount() {
 		return allPatientsCount;
 	}
 
@@ -30,7 +30,7 @@ public class StatisticalCorrelationReport {
 		return NumberFormat.getNumberInstance().format(getAllPatientsCount());
 	}
 
-	public int getCohortTotal() {
+	public long getCohortTotal() {
 		return withTreatmentCount + withoutTreatmentCount;
 	}
 
@@ -38,7 +38,7 @@ public class StatisticalCorrelationReport {
 		return NumberFormat.getNumberInstance().format(getCohortTotal());
 	}
 
-	public int getWithTreatmentCount() {
+	public long getWithTreatmentCount() {
 		return withTreatmentCount;
 	}
 
@@ -54,7 +54,7 @@ public class StatisticalCorrelationReport {
 		return getFractionAsPercentage(withoutTreatmentCount, getCohortTotal());
 	}
 
-	public int getWithTreatmentWithNegativeOutcomeCount() {
+	public long getWithTreatmentWithNegativeOutcomeCount() {
 		return withTreatmentWithNegativeOutcomeCount;
 	}
 
@@ -66,7 +66,7 @@ public class StatisticalCorrelationReport {
 		return getFractionAsPercentage(withTreatmentWithNegativeOutcomeCount, withTreatmentCount);
 	}
 
-	public int getWithoutTreatmentCount() {
+	public long getWithoutTreatmentCount() {
 		return withoutTreatmentCount;
 	}
 
@@ -74,7 +74,7 @@ public class StatisticalCorrelationReport {
 		return NumberFormat.getNumberInstance().format(getWithoutTreatmentCount());
 	}
 
-	public int getWithoutTreatmentWithNegativeOutcomeCount() {
+	public long getWithoutTreatmentWithNegativeOutcomeCount() {
 		return withoutTreatmentWithNegativeOutcomeCount;
 	}
 
@@ -94,7 +94,7 @@ public class StatisticalCorrelationReport {
 				((float) withoutTreatmentWithNegativeOutcomeCount / (float) withoutTreatmentCount)).setScale(2,  RoundingMode.HALF_UP).toString();
 	}
 
-	private String getFractionAsPercentage(int a, int b) {
+	private String getFractionAsPercentage(long a, long b) {
 		if (a == 0 || b == 0) return "-";
 		return BigDecimal.valueOf(((float) a / (float) b) * 100f).setScale(1,  RoundingMode.HALF_UP).toString();
 	}
@@ -0,0 +1,70 @@
+package org.snomed.heathanalytics.server.pojo;
+
+import com.google.common.cache.CacheStats;
+
+public class CohortCacheStats {
+
+	private final long resultHitCount;
+	private final long resultMissCount;
+	private final double resultHitRate;
+	private final long resultEvictionCount;
+	private final long cachedResults;
+	private final long pageHitCount;
+	private final long pageMissCount;
+	private final double pageHitRate;
+	private final long pageEvictionCount;
+	private final long cachedPages;
+
+	public CohortCacheStats(CacheStats resultStats, long cachedResults, CacheStats pageStats, long cachedPages) {
+		resultHitCount = resultStats.hitCount();
+		resultMissCount = resultStats.missCount();
+		resultHitRate = resultStats.hitRate();
+		resultEvictionCount = resultStats.evictionCount();
+		this.cachedResults = cachedResults;
+		pageHitCount = pageStats.hitCount();
+		pageMissCount = pageStats.missCount();
+		pageHitRate = pageStats.hitRate();
+		pageEvictionCount = pageStats.evictionCount();
+		this.cachedPages = cachedPages;
+	}
+
+	public long getResultHitCount() {
+		return resultHitCount;
+	}
+
+	public long getResultMissCount() {
+		return resultMissCount;
+	}
+
+	public double getResultHitRate() {
+		return resultHitRate;
+	}
+
+	public long getResultEvictionCount() {
+		return resultEvictionCount;
+	}
+
+	public long getCachedResults() {
+		return cachedResults;
+	}
+
+	public long getPageHitCount() {
+		return pageHitCount;
+	}
+
+	public long getPageMissCount() {
+		return pageMissCount;
+	}
+
+	public double getPageHitRate() {
+		return pageHitRate;
+	}
+
+	public long getPageEvictionCount() {
+		return pageEvictionCount;
+	}
+
+	public long getCachedPages() {
+		return cachedPages;
+	}
+}
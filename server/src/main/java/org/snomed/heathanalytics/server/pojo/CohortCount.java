@@ -0,0 +1,43 @@
+package org.snomed.heathanalytics.server.pojo;
+
+import org.snomed.heathanalytics.model.RVUTotals;
+import org.snomed.heathanalytics.server.model.CPTTotals;
+
+import java.util.Map;
+
+public class CohortCount {
+
+	private final long count;
+	private final Map<String, CPTTotals> cptTotals;
+	private final RVUTotals rvuTotals;
+
+	public CohortCount(long count, Map<String, CPTTotals> cptTotals) {
+		this(count, cptTotals, null);
+	}
+
+	public CohortCount(long count, Map<String, CPTTotals> cptTotals, RVUTotals rvuTotals) {
+		this.count = count;
+		this.cptTotals = cptTotals;
+		this.rvuTotals = rvuTotals;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return totals by CPT code, or null if the criteria did not request CPT analysis.
+	 */
+	public Map<String, CPTTotals> getCptTotals() {
+		return cptTotals;
+	}
+
+	/**
+	 * @return totals over all events of the cohort's patients which map to a CPT code,
+	 * or null if the criteria did not request CPT analysis or CPT enrichment is disabled.
+	 */
+	public RVUTotals getRvuTotals() {
+		return rvuTotals;
+	}
+
+}
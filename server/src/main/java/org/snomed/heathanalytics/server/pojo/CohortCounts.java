@@ -0,0 +1,21 @@
+package org.snomed.heathanalytics.server.pojo;
+
+public class CohortCounts {
+
+	private final long allPatientsCount;
+	private final long[] counts;
+
+	public CohortCounts(long allPatientsCount, long[] counts) {
+		this.allPatientsCount = allPatientsCount;
+		this.counts = counts;
+	}
+
+	public long getAllPatientsCount() {
+		return allPatientsCount;
+	}
+
+	public long getCount(int cohortIndex) {
+		return counts[cohortIndex];
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.snomed.heathanalytics.server.pojo;
+
+import com.google.common.cache.CacheStats;
+
+public class EclCacheStats {
+
+	private final long hitCount;
+	private final long missCount;
+	private final double hitRate;
+	private final long loadCount;
+	private final long loadExceptionCount;
+	private final double averageLoadMillis;
+	private final long evictionCount;
+	private final long cachedExpansions;
+	private final long cachedConcepts;
+
+	public EclCacheStats(CacheStats stats, long cachedExpansions, long cachedConcepts) {
+		hitCount = stats.hitCount();
+		missCount = stats.missCount();
+		hitRate = stats.hitRate();
+		loadCount = stats.loadCount();
+		loadExceptionCount = stats.loadExceptionCount();
+		averageLoadMillis = stats.averageLoadPenalty() / 1_000_000;
+		evictionCount = stats.evictionCount();
+		this.cachedExpansions = cachedExpansions;
+		this.cachedConcepts = cachedConcepts;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public double getHitRate() {
+		return hitRate;
+	}
+
+	public long getLoadCount() {
+		return loadCount;
+	}
+
+	public long getLoadExceptionCount() {
+		return loadExceptionCount;
+	}
+
+	public double getAverageLoadMillis() {
+		return averageLoadMillis;
+	}
+
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public long getCachedExpansions() {
+		return cachedExpansions;
+	}
+
+	public long getCachedConcepts() {
+		return cachedConcepts;
+	}
+}
@@ -1,19 +1,21 @@
 package org.snomed.heathanalytics.server.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
-import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Patient;
 import org.snomed.heathanalytics.server.model.CohortCriteria;
-import org.snomed.heathanalytics.server.service.PatientQueryService;
-import org.snomed.heathanalytics.server.service.ServiceException;
+import org.snomed.heathanalytics.server.model.PatientCursorPage;
+import org.snomed.heathanalytics.server.pojo.CohortCacheStats;
+import org.snomed.heathanalytics.server.service.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Page;
+import org.springframework.http.HttpHeaders;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.Comparator;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.List;
-import java.util.TreeSet;
 
 @RestController
 @RequestMapping("/api")
@@ -23,6 +25,15 @@ public class CohortController {
 	@Autowired
 	private PatientQueryService patientQueryService;
 
+	@Autowired
+	private CohortResultCache cohortResultCache;
+
+	@Autowired
+	private CohortCursorService cohortCursorService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	@Operation(summary = "Retrieve patients using cohort criteria",
 			description = "Retrieve patients which match the given cohort criteria. " +
 			"Within additionalCriteria a days value of '-1' can be used as an unbounded value.")
@@ -31,13 +42,42 @@ public class CohortController {
 	public Page<Patient> runCohortSelection(@RequestBody CohortCriteria cohortCriteria,
 											@RequestParam(required = false, defaultValue = "0") int page,
 											@RequestParam(required = false, defaultValue = "100") int size) throws ServiceException {
-		Page<Patient> patients = patientQueryService.fetchCohort(cohortCriteria, page, size);
-		for (Patient patient : patients.getContent()) {
-			TreeSet<ClinicalEvent> events = new TreeSet<>(Comparator.comparing(ClinicalEvent::getDate).thenComparing(ClinicalEvent::getConceptId));
-			events.addAll(patient.getEvents());
-			patient.setEvents(events);
+		return patientQueryService.fetchCohort(cohortCriteria, page, size);
+	}
+
+	@Operation(summary = "Retrieve patients using cohort criteria and a cursor",
+			description = "Retrieve patients which match the given cohort criteria, a page at a time. " +
+			"Leave out the cursor to fetch the first page, then give the cursor from each page, with the same criteria, to fetch the next. " +
+			"The cursor is null on the last page. Pages are read from a snapshot of the data taken when the first page was fetched, " +
+			"there is no limit on the number of patients that can be read and later pages cost the same as the first.")
+	@RequestMapping(value = "/cohorts/select/cursor", method = RequestMethod.POST, produces = "application/json")
+	@ResponseBody
+	public PatientCursorPage runCohortSelectionWithCursor(@RequestBody CohortCriteria cohortCriteria,
+											@RequestParam(required = false) String cursor,
+											@RequestParam(required = false, defaultValue = "100") int size) throws ServiceException {
+		return cohortCursorService.fetchCohortPage(cohortCriteria, cursor, size);
+	}
+
+	@Operation(summary = "Export all patients matching cohort criteria",
+			description = "Streams every patient which matches the given cohort criteria. " +
+			"Format 'NDJSON' writes one patient per line. Format 'CSV' writes one row per event with columns roleId, dataset, gender, dob, conceptId and date.")
+	@RequestMapping(value = "/cohorts/export", method = RequestMethod.POST)
+	public void exportCohort(@RequestBody CohortCriteria cohortCriteria,
+			@RequestParam(required = false, defaultValue = "NDJSON") PatientExportWriter.Format format,
+			HttpServletResponse response) throws ServiceException, IOException {
+
+		response.setContentType(format.getContentType());
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"cohort." + format.getFileExtension() + "\"");
+		try (PatientExportWriter writer = PatientExportWriter.create(format, response.getOutputStream(), objectMapper)) {
+			cohortCursorService.exportCohort(cohortCriteria, writer);
 		}
-		return patients;
+	}
+
+	@RequestMapping(value = "/cohorts/cache/stats", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public CohortCacheStats getCohortCacheStats() {
+		return cohortResultCache.getStats();
 	}
 
 	@RequestMapping(value = "/datasets", method = RequestMethod.GET, produces = "application/json")
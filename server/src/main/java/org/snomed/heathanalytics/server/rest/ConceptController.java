@@ -2,6 +2,7 @@ package org.snomed.heathanalytics.server.rest;
 
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.snomed.heathanalytics.server.pojo.ConceptResult;
+import org.snomed.heathanalytics.server.pojo.EclCacheStats;
 import org.snomed.heathanalytics.server.service.ServiceException;
 import org.snomed.heathanalytics.server.service.SnomedService;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -29,4 +30,9 @@ public class ConceptController {
 		return snomedService.findConcept(conceptId);
 	}
 
+	@RequestMapping(value = "/ecl-cache/stats", method = RequestMethod.GET, produces = "application/json")
+	public EclCacheStats getEclCacheStats() {
+		return snomedService.getEclCacheStats();
+	}
+
 }
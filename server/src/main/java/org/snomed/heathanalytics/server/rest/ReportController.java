@@ -4,15 +4,20 @@ import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import org.snomed.heathanalytics.server.model.Report;
 import org.snomed.heathanalytics.server.model.ReportDefinition;
+import org.snomed.heathanalytics.server.model.ReportJob;
 import org.snomed.heathanalytics.server.model.StatisticalCorrelationReport;
 import org.snomed.heathanalytics.server.model.StatisticalCorrelationReportDefinition;
 import org.snomed.heathanalytics.server.pojo.Stats;
 import org.snomed.heathanalytics.server.service.PatientQueryService;
+import org.snomed.heathanalytics.server.service.ReportJobService;
 import org.snomed.heathanalytics.server.service.ReportService;
 import org.snomed.heathanalytics.server.service.ServiceException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
+import java.security.Principal;
+
 @RestController
 @RequestMapping("/api")
 @Tag(name = "Reports", description = "-")
@@ -21,6 +26,9 @@ public class ReportController {
 	@Autowired
 	private ReportService reportService;
 
+	@Autowired
+	private ReportJobService reportJobService;
+
 	@Autowired
 	private PatientQueryService patientQueryService;
 
@@ -41,6 +49,7 @@ public class ReportController {
 					"\n" +
 					"For event criteria marked with includeCPTAnalysis=true a CPT report will be included in the response for that group.  \n" +
 					"The CPT report will list the matching CPT codes for events which could be mapped to CPT together with total counts and total RVUs.  \n" +
+					"The rvuTotals of a group are summed over all CPT mapped events of the patients in the group, not only the events matching the criteria.  \n" +
 					"This functionality requires CPT codes and SNOMED CT to CPT mapping to be loaded.  \n" +
 					"\n" +
 					"In the report request the groups section is a list of lists. If a second list of groups is given " +
@@ -65,4 +74,59 @@ public class ReportController {
 		return reportService.runStatisticalReport(reportDefinition);
 	}
 
+	@Operation(summary = "Submit a report to run in the background.",
+			description = "Takes the same report definition as the report endpoint but returns a job straight away.  \n" +
+					"Poll the job for progress, the result can be fetched once the status is COMPLETED.  \n" +
+					"If the same report completed recently and the data has not changed since, the completed job is returned.  \n" +
+					"The number of jobs waiting is limited in total and per user, status 429 is returned when the limit is reached. " +
+					"Waiting jobs of different users run in turn.")
+	@RequestMapping(value = "/report-jobs", method = RequestMethod.POST, produces = "application/json")
+	@ResponseBody
+	public ReportJob submitReportJob(@RequestBody ReportDefinition reportDefinition, HttpServletRequest request) throws ServiceException {
+		return reportJobService.submitReport(reportDefinition, getUser(request));
+	}
+
+	@Operation(summary = "Submit a statistical event correlation report to run in the background.")
+	@RequestMapping(value = "/report-jobs/statistical-correlation", method = RequestMethod.POST, produces = "application/json")
+	@ResponseBody
+	public ReportJob submitStatisticalReportJob(@RequestBody StatisticalCorrelationReportDefinition reportDefinition, HttpServletRequest request) throws ServiceException {
+		return reportJobService.submitStatisticalReport(reportDefinition, getUser(request));
+	}
+
+	@Operation(summary = "Fetch the status and progress of a report job.")
+	@RequestMapping(value = "/report-jobs/{id}", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public ReportJob getReportJob(@PathVariable String id) {
+		return reportJobService.getJob(id);
+	}
+
+	@Operation(summary = "Fetch the result of a completed report job.",
+			description = "Returns the same report as the synchronous report endpoints.")
+	@RequestMapping(value = "/report-jobs/{id}/result", method = RequestMethod.GET, produces = "application/json")
+	@ResponseBody
+	public String getReportJobResult(@PathVariable String id) {
+		return reportJobService.getResultJson(id);
+	}
+
+	@Operation(summary = "Cancel a report job.",
+			description = "A waiting job is cancelled straight away, a running job stops after the current batch of cohorts.")
+	@RequestMapping(value = "/report-jobs/{id}", method = RequestMethod.DELETE, produces = "application/json")
+	@ResponseBody
+	public ReportJob cancelReportJob(@PathVariable String id) {
+		return reportJobService.cancel(id);
+	}
+
+	// There is no login in this application, the user may be set by an authenticating proxy
+	private String getUser(HttpServletRequest request) {
+		Principal principal = request.getUserPrincipal();
+		if (principal != null) {
+			return principal.getName();
+		}
+		String forwardedUser = request.getHeader("X-Forwarded-User");
+		if (forwardedUser != null && !forwardedUser.isEmpty()) {
+			return forwardedUser;
+		}
+		return request.getRemoteAddr();
+	}
+
 }
@@ -3,6 +3,7 @@ package org.snomed.heathanalytics.server.rest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.server.service.NotFoundException;
+import org.snomed.heathanalytics.server.service.TooManyJobsException;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.HttpMediaTypeNotSupportedException;
 import org.springframework.web.HttpRequestMethodNotSupportedException;
@@ -45,6 +46,16 @@ public class RestControllerAdvice {
 		return result;
 	}
 
+	@ExceptionHandler({TooManyJobsException.class})
+	@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+	@ResponseBody
+	public Map<String,Object> handleTooManyJobsException(Exception exception) {
+		HashMap<String, Object> result = new HashMap<>();
+		result.put("error", HttpStatus.TOO_MANY_REQUESTS);
+		result.put("message", exception.getMessage());
+		return result;
+	}
+
 	@ExceptionHandler(Exception.class)
 	@ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
 	@ResponseBody
@@ -0,0 +1,305 @@
+package org.snomed.heathanalytics.server.service;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.roaringbitmap.FastAggregation;
+import org.roaringbitmap.RoaringBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.model.CohortCriteria;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.SearchHitsIterator;
+import org.springframework.data.elasticsearch.core.query.FetchSourceFilter;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQuery;
+import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilder;
+import org.springframework.stereotype.Service;
+
+import java.text.NumberFormat;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+
+/**
+ * Optional in-memory index which holds patient ordinals in compressed bitmaps.
+ * One bitmap is kept per event conceptId plus bitmaps for dataset, gender and year of birth.
+ * Cohort criteria without time or frequency constraints can be answered using bitmap AND, OR and ANDNOT operations.
+ * Elasticsearch is then only needed to load the requested page of Patient documents.
+ * The index is rebuilt in the background when the dataset version changes, queries use Elasticsearch until the rebuild is complete.
+ */
+@Service
+public class CohortBitmapIndex {
+
+	private static final int LOAD_BATCH_SIZE = 5_000;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private DatasetVersionService datasetVersionService;
+
+	@Value("${cohort-bitmap-index.enabled}")
+	private boolean enabled;
+
+	private volatile Snapshot snapshot;
+
+	private final ExecutorService loadExecutor = Executors.newSingleThreadExecutor();
+	private final AtomicBoolean rebuildQueued = new AtomicBoolean();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void loadOnStartup() {
+		queueRebuild();
+	}
+
+	private void queueRebuild() {
+		if (enabled && rebuildQueued.compareAndSet(false, true)) {
+			loadExecutor.submit(() -> {
+				// Cleared before building so a change during the build queues another rebuild
+				rebuildQueued.set(false);
+				rebuild();
+			});
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the patient store. Queries use Elasticsearch until the new snapshot is complete.
+	 */
+	public synchronized void rebuild() {
+		Timer timer = new Timer();
+		logger.info("Building cohort bitmap index.");
+		try {
+			// Read before the patients so that an import completing during the build makes this snapshot stale
+			long datasetVersion = datasetVersionService.getVersion(null);
+			NativeSearchQuery query = new NativeSearchQueryBuilder()
+					.withQuery(matchAllQuery())
+					.withSourceFilter(new FetchSourceFilter(new String[]{Patient.Fields.DATASET, Patient.Fields.GENDER, Patient.Fields.DOB_YEAR,
+							Patient.Fields.events + "." + ClinicalEvent.Fields.CONCEPT_ID}, null))
+					.withPageable(PageRequest.of(0, LOAD_BATCH_SIZE))
+					.build();
+			Builder builder = new Builder();
+			try (SearchHitsIterator<Patient> hits = elasticsearchTemplate.searchForStream(query, Patient.class)) {
+				while (hits.hasNext()) {
+					Patient patient = hits.next().getContent();
+					builder.addPatient(patient.getCompositeRoleId(), patient.getDataset(), patient.getGender(), patient.getDobYear(), patient.getEvents());
+				}
+			}
+			snapshot = builder.build(datasetVersion);
+			timer.split("Build");
+			logger.info("Cohort bitmap index built with {} patients and {} concepts. Times: {}",
+					NumberFormat.getNumberInstance().format(snapshot.compositeRoleIds.length),
+					NumberFormat.getNumberInstance().format(snapshot.conceptBitmaps.size()), timer.getTimes());
+		} catch (RuntimeException e) {
+			logger.error("Failed to build cohort bitmap index. Cohort queries will continue to use Elasticsearch.", e);
+		}
+	}
+
+	/**
+	 * @return true if the index is loaded and no dataset has changed since it was built.
+	 * A stale index is rebuilt in the background.
+	 */
+	public boolean isReady() {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			return false;
+		}
+		if (snapshot.datasetVersion != datasetVersionService.getVersion(null)) {
+			queueRebuild();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the index is loaded and all criteria, including exclusion criteria, can be evaluated using bitmaps.
+	 * Criteria with time or frequency constraints need the event dates so can not be answered by this index.
+	 */
+	public boolean canAnswer(CohortCriteria cohortCriteria) {
+		return isReady() && isSupported(cohortCriteria) && cohortCriteria.getExclusionCriteria().stream().allMatch(CohortBitmapIndex::isSupported);
+	}
+
+	private static boolean isSupported(CohortCriteria cohortCriteria) {
+		return cohortCriteria.getEventCriteria().stream().noneMatch(criterion -> criterion.hasTimeConstraint() || criterion.hasFrequency());
+	}
+
+	public Selection selectCohort(CohortCriteria cohortCriteria, ConceptLookup conceptLookup, int thisYear) throws ServiceException {
+		Snapshot snapshot = this.snapshot;
+		if (snapshot == null) {
+			throw new IllegalStateException("Cohort bitmap index is not loaded.");
+		}
+		return new Selection(snapshot, snapshot.selectCohort(cohortCriteria, conceptLookup, thisYear));
+	}
+
+	public interface ConceptLookup {
+		List<Long> getConceptIds(EventCriterion criterion) throws ServiceException;
+	}
+
+	/**
+	 * Patients selected from a single snapshot of the index.
+	 * Keeps a reference to the snapshot so that ordinals still resolve if the index is rebuilt.
+	 */
+	public static class Selection {
+
+		private final Snapshot snapshot;
+		private final RoaringBitmap patients;
+
+		Selection(Snapshot snapshot, RoaringBitmap patients) {
+			this.snapshot = snapshot;
+			this.patients = patients;
+		}
+
+		public long getCount() {
+			return patients.getLongCardinality();
+		}
+
+		public List<String> getCompositeRoleIds(int offset, int limit) {
+			return snapshot.getCompositeRoleIds(patients, offset, limit);
+		}
+
+		public RoaringBitmap getPatients() {
+			return patients;
+		}
+	}
+
+	static class Builder {
+
+		private final List<String> compositeRoleIds = new ArrayList<>();
+		private final Long2ObjectOpenHashMap<RoaringBitmap> conceptBitmaps = new Long2ObjectOpenHashMap<>();
+		private final Map<String, RoaringBitmap> datasetBitmaps = new HashMap<>();
+		private final Map<Gender, RoaringBitmap> genderBitmaps = new EnumMap<>(Gender.class);
+		private final TreeMap<Integer, RoaringBitmap> dobYearBitmaps = new TreeMap<>();
+
+		int addPatient(String compositeRoleId, String dataset, Gender gender, int dobYear, Collection<ClinicalEvent> events) {
+			int ordinal = compositeRoleIds.size();
+			compositeRoleIds.add(compositeRoleId);
+			if (dataset != null) {
+				datasetBitmaps.computeIfAbsent(dataset, key -> new RoaringBitmap()).add(ordinal);
+			}
+			if (gender != null) {
+				genderBitmaps.computeIfAbsent(gender, key -> new RoaringBitmap()).add(ordinal);
+			}
+			dobYearBitmaps.computeIfAbsent(dobYear, key -> new RoaringBitmap()).add(ordinal);
+			for (ClinicalEvent event : CollectionUtils.orEmpty(events)) {
+				Long conceptId = event.getConceptId();
+				if (conceptId != null) {
+					RoaringBitmap bitmap = conceptBitmaps.get(conceptId.longValue());
+					if (bitmap == null) {
+						bitmap = new RoaringBitmap();
+						conceptBitmaps.put(conceptId.longValue(), bitmap);
+					}
+					bitmap.add(ordinal);
+				}
+			}
+			return ordinal;
+		}
+
+		Snapshot build(long datasetVersion) {
+			conceptBitmaps.values().forEach(RoaringBitmap::runOptimize);
+			datasetBitmaps.values().forEach(RoaringBitmap::runOptimize);
+			genderBitmaps.values().forEach(RoaringBitmap::runOptimize);
+			dobYearBitmaps.values().forEach(RoaringBitmap::runOptimize);
+			return new Snapshot(datasetVersion, compositeRoleIds.toArray(new String[0]), conceptBitmaps, datasetBitmaps, genderBitmaps, dobYearBitmaps);
+		}
+	}
+
+	static class Snapshot {
+
+		private final long datasetVersion;
+		private final String[] compositeRoleIds;
+		private final Long2ObjectOpenHashMap<RoaringBitmap> conceptBitmaps;
+		private final Map<String, RoaringBitmap> datasetBitmaps;
+		private final Map<Gender, RoaringBitmap> genderBitmaps;
+		private final TreeMap<Integer, RoaringBitmap> dobYearBitmaps;
+
+		private Snapshot(long datasetVersion, String[] compositeRoleIds, Long2ObjectOpenHashMap<RoaringBitmap> conceptBitmaps, Map<String, RoaringBitmap> datasetBitmaps,
+				Map<Gender, RoaringBitmap> genderBitmaps, TreeMap<Integer, RoaringBitmap> dobYearBitmaps) {
+
+			this.datasetVersion = datasetVersion;
+			this.compositeRoleIds = compositeRoleIds;
+			this.conceptBitmaps = conceptBitmaps;
+			this.datasetBitmaps = datasetBitmaps;
+			this.genderBitmaps = genderBitmaps;
+			this.dobYearBitmaps = dobYearBitmaps;
+		}
+
+		RoaringBitmap selectCohort(CohortCriteria cohortCriteria, ConceptLookup conceptLookup, int thisYear) throws ServiceException {
+			RoaringBitmap cohort = selectPatients(cohortCriteria.getDataset(), cohortCriteria.getGender(),
+					cohortCriteria.getMinAgeNow(), cohortCriteria.getMaxAgeNow(), thisYear);
+			applyEventCriteria(cohort, cohortCriteria.getEventCriteria(), conceptLookup);
+			for (CohortCriteria exclusionCriteria : cohortCriteria.getExclusionCriteria()) {
+				// Dataset is not used in exclusion criteria, same as the Elasticsearch query.
+				RoaringBitmap excluded = selectPatients(null, exclusionCriteria.getGender(),
+						exclusionCriteria.getMinAgeNow(), exclusionCriteria.getMaxAgeNow(), thisYear);
+				applyEventCriteria(excluded, exclusionCriteria.getEventCriteria(), conceptLookup);
+				cohort.andNot(excluded);
+			}
+			return cohort;
+		}
+
+		private RoaringBitmap selectPatients(String dataset, Gender gender, Integer minAgeNow, Integer maxAgeNow, int thisYear) {
+			RoaringBitmap patients = new RoaringBitmap();
+			patients.add(0L, compositeRoleIds.length);
+			if (dataset != null) {
+				patients.and(datasetBitmaps.getOrDefault(dataset, new RoaringBitmap()));
+			}
+			if (gender != null) {
+				patients.and(genderBitmaps.getOrDefault(gender, new RoaringBitmap()));
+			}
+			if (minAgeNow != null || maxAgeNow != null) {
+				// Crude match using birth year, same as the Elasticsearch query
+				int minYear = maxAgeNow != null ? thisYear - maxAgeNow : Integer.MIN_VALUE;
+				int maxYear = minAgeNow != null ? thisYear - minAgeNow : Integer.MAX_VALUE;
+				if (minYear > maxYear) {
+					return new RoaringBitmap();
+				}
+				patients.and(FastAggregation.or(dobYearBitmaps.subMap(minYear, true, maxYear, true).values().iterator()));
+			}
+			return patients;
+		}
+
+		private void applyEventCriteria(RoaringBitmap patients, List<EventCriterion> eventCriteria, ConceptLookup conceptLookup) throws ServiceException {
+			for (EventCriterion criterion : eventCriteria) {
+				List<Long> conceptIds = conceptLookup.getConceptIds(criterion);
+				if (conceptIds != null) {
+					RoaringBitmap patientsWithEvent = getPatientsWithAnyConcept(conceptIds);
+					if (criterion.isHas()) {
+						patients.and(patientsWithEvent);
+					} else {
+						patients.andNot(patientsWithEvent);
+					}
+				}
+			}
+		}
+
+		private RoaringBitmap getPatientsWithAnyConcept(List<Long> conceptIds) {
+			List<RoaringBitmap> bitmaps = new ArrayList<>();
+			for (Long conceptId : conceptIds) {
+				RoaringBitmap bitmap = conceptBitmaps.get(conceptId.longValue());
+				if (bitmap != null) {
+					bitmaps.add(bitmap);
+				}
+			}
+			return FastAggregation.or(bitmaps.iterator());
+		}
+
+		List<String> getCompositeRoleIds(RoaringBitmap cohort, int offset, int limit) {
+			List<String> ids = new ArrayList<>();
+			int end = (int) Math.min(cohort.getLongCardinality(), (long) offset + limit);
+			for (int i = offset; i < end; i++) {
+				ids.add(compositeRoleIds[cohort.select(i)]);
+			}
+			return ids;
+		}
+	}
+}
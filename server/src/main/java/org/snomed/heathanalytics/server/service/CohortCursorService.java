@@ -0,0 +1,249 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.model.CohortCriteria;
+import org.snomed.heathanalytics.server.model.PatientCursorPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.document.Document;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.util.*;
+
+/**
+ * Reads cohorts in order of dataset then roleId, which is unique, using search_after within an Elasticsearch point in time.
+ * Unlike page numbers the cost of a page does not grow with its position and there is no limit on the number of patients read,
+ * and all pages come from the same snapshot of the index.
+ * <p>
+ * A point in time needs the default distribution of Elasticsearch. If one can not be opened pages are read from the live index,
+ * so they may miss or repeat patients written while the cohort is being read.
+ */
+@Service
+public class CohortCursorService {
+
+	private static final int MAX_PAGE_SIZE = 10_000;
+	private static final int EXPORT_BATCH_SIZE = 1_000;
+	private static final String CURSOR_PIT = "pit";
+	private static final String CURSOR_SEARCH_AFTER = "after";
+	private static final String CURSOR_TOTAL = "total";
+
+	@Autowired
+	private PatientQueryService patientQueryService;
+
+	@Autowired
+	private RestHighLevelClient elasticsearchRestClient;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Value("${cohort-cursor.keep-alive-minutes}")
+	private int keepAliveMinutes;
+
+	private volatile boolean pointInTimeSupported = true;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Fetches the first page of the cohort if cursor is null, otherwise the page after the cursor.
+	 * The same criteria must be given with each cursor. A cursor expires if it is not used within cohort-cursor.keep-alive-minutes.
+	 */
+	public PatientCursorPage fetchCohortPage(CohortCriteria cohortCriteria, String cursor, int size) throws ServiceException {
+		if (size < 1 || size > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException(String.format("Size must be between 1 and %s.", MAX_PAGE_SIZE));
+		}
+		Timer timer = new Timer();
+		QueryBuilder query = patientQueryService.getCohortQuery(cohortCriteria, new GregorianCalendar(), timer);
+
+		String pit;
+		Object[] searchAfter = null;
+		long total = -1;
+		if (cursor != null) {
+			Map<String, Object> cursorValues = decodeCursor(cursor);
+			pit = (String) cursorValues.get(CURSOR_PIT);
+			searchAfter = ((List<?>) cursorValues.get(CURSOR_SEARCH_AFTER)).toArray();
+			total = ((Number) cursorValues.get(CURSOR_TOTAL)).longValue();
+		} else {
+			pit = openPointInTime();
+		}
+
+		SearchResponse response = search(query, pit, searchAfter, size, total == -1);
+		SearchHit[] hits = response.getHits().getHits();
+		if (total == -1) {
+			total = response.getHits().getTotalHits().value;
+		}
+		List<Patient> patients = new ArrayList<>(hits.length);
+		for (SearchHit hit : hits) {
+			patients.add(toPatient(hit));
+		}
+		timer.split("Fetching patients");
+
+		String nextCursor = null;
+		if (hits.length == size) {
+			Map<String, Object> cursorValues = new HashMap<>();
+			cursorValues.put(CURSOR_PIT, pit);
+			cursorValues.put(CURSOR_SEARCH_AFTER, hits[hits.length - 1].getSortValues());
+			cursorValues.put(CURSOR_TOTAL, total);
+			nextCursor = encodeCursor(cursorValues);
+		} else {
+			closePointInTime(pit);
+		}
+		patientQueryService.processPatientsForDisplay(patients, timer);
+		logger.info("Times: {}", timer.getTimes());
+		return new PatientCursorPage(patients, total, nextCursor);
+	}
+
+	/**
+	 * Passes every patient of the cohort to the consumer, in batches read from a single point in time.
+	 * Only one batch is held in memory. Patients are given as stored, with events in order of concept then date.
+	 * @return number of patients exported.
+	 */
+	public long exportCohort(CohortCriteria cohortCriteria, PatientConsumer consumer) throws ServiceException, IOException {
+		Timer timer = new Timer();
+		QueryBuilder query = patientQueryService.getCohortQuery(cohortCriteria, new GregorianCalendar(), timer);
+		String pit = openPointInTime();
+		long count = 0;
+		try {
+			Object[] searchAfter = null;
+			SearchHit[] hits;
+			do {
+				hits = search(query, pit, searchAfter, EXPORT_BATCH_SIZE, false).getHits().getHits();
+				for (SearchHit hit : hits) {
+					consumer.accept(toPatient(hit));
+				}
+				count += hits.length;
+				if (hits.length > 0) {
+					searchAfter = hits[hits.length - 1].getSortValues();
+				}
+			} while (hits.length == EXPORT_BATCH_SIZE);
+		} finally {
+			closePointInTime(pit);
+		}
+		timer.split("Exporting patients");
+		logger.info("Exported {} patients. Times: {}", NumberFormat.getNumberInstance().format(count), timer.getTimes());
+		return count;
+	}
+
+	private SearchResponse search(QueryBuilder query, String pit, Object[] searchAfter, int size, boolean trackTotalHits) throws ServiceException {
+		SearchSourceBuilder source = new SearchSourceBuilder()
+				.query(query)
+				.size(size)
+				.trackTotalHits(trackTotalHits)
+				.sort(Patient.Fields.DATASET, SortOrder.ASC)
+				.sort(Patient.Fields.ROLE_ID, SortOrder.ASC);
+		if (searchAfter != null) {
+			source.searchAfter(searchAfter);
+		}
+		SearchRequest searchRequest;
+		if (pit != null) {
+			// The index is part of the point in time so must not be given
+			source.pointInTimeBuilder(new SearchSourceBuilder.PointInTimeBuilder(pit, TimeValue.timeValueMinutes(keepAliveMinutes)));
+			searchRequest = new SearchRequest().source(source);
+		} else {
+			searchRequest = new SearchRequest(patientQueryService.getPatientIndexNames()).source(source);
+		}
+		try {
+			return elasticsearchRestClient.search(searchRequest, RequestOptions.DEFAULT);
+		} catch (ElasticsearchStatusException e) {
+			if (pit != null && e.status() == RestStatus.NOT_FOUND) {
+				throw new IllegalArgumentException("The cursor has expired, fetch the first page again without a cursor.");
+			}
+			throw new ServiceException("Failed to fetch patients.", e);
+		} catch (IOException e) {
+			throw new ServiceException("Failed to fetch patients.", e);
+		}
+	}
+
+	private Patient toPatient(SearchHit hit) {
+		// Read with the Spring Data converter, the same as documents fetched using the repository
+		Document document = Document.from(hit.getSourceAsMap());
+		document.setId(hit.getId());
+		return elasticsearchTemplate.getElasticsearchConverter().read(Patient.class, document);
+	}
+
+	/**
+	 * @return id of a new point in time on the patient index, or null if not supported by the Elasticsearch server.
+	 */
+	private String openPointInTime() throws ServiceException {
+		if (!pointInTimeSupported) {
+			return null;
+		}
+		// Not supported by the high level client of this Elasticsearch version
+		Request request = new Request("POST", "/" + String.join(",", patientQueryService.getPatientIndexNames()) + "/_pit");
+		request.addParameter("keep_alive", keepAliveMinutes + "m");
+		try {
+			Response response = elasticsearchRestClient.getLowLevelClient().performRequest(request);
+			return objectMapper.readTree(response.getEntity().getContent()).get("id").asText();
+		} catch (ResponseException e) {
+			if (e.getResponse().getStatusLine().getStatusCode() >= 500) {
+				throw new ServiceException("Failed to open point in time.", e);
+			}
+			pointInTimeSupported = false;
+			logger.warn("Elasticsearch does not support point in time, cohort pages will be read from the live index. {}", e.getMessage());
+			return null;
+		} catch (IOException e) {
+			throw new ServiceException("Failed to open point in time.", e);
+		}
+	}
+
+	private void closePointInTime(String pit) {
+		if (pit == null) {
+			return;
+		}
+		Request request = new Request("DELETE", "/_pit");
+		try {
+			request.setJsonEntity(objectMapper.writeValueAsString(Collections.singletonMap("id", pit)));
+			elasticsearchRestClient.getLowLevelClient().performRequest(request);
+		} catch (IOException e) {
+			// It will expire after the keep alive time
+			logger.info("Failed to close point in time. {}", e.getMessage());
+		}
+	}
+
+	private String encodeCursor(Map<String, Object> cursorValues) throws ServiceException {
+		try {
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(cursorValues));
+		} catch (IOException e) {
+			throw new ServiceException("Failed to create cursor.", e);
+		}
+	}
+
+	private Map<String, Object> decodeCursor(String cursor) {
+		try {
+			Map<String, Object> cursorValues = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), new TypeReference<>() {});
+			if (!(cursorValues.get(CURSOR_SEARCH_AFTER) instanceof List) || !(cursorValues.get(CURSOR_TOTAL) instanceof Number)) {
+				throw new IllegalArgumentException("Invalid cursor.");
+			}
+			return cursorValues;
+		} catch (IOException | IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cursor.", e);
+		}
+	}
+
+	public interface PatientConsumer {
+		void accept(Patient patient) throws IOException;
+	}
+}
@@ -0,0 +1,231 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.RVUTotals;
+import org.snomed.heathanalytics.server.pojo.CohortCacheStats;
+import org.snomed.heathanalytics.server.model.CPTTotals;
+import org.snomed.heathanalytics.server.model.CohortCriteria;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+import org.snomed.heathanalytics.server.model.Frequency;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of cohort query results so that paging through a cohort, or rendering a report again, does not repeat the same queries.
+ * Results are keyed by a canonical form of the criteria, with subsets replaced by their ECL and criteria sorted where the order does not matter,
+ * plus the version of the dataset queried. When an ingestion into the dataset completes its version changes,
+ * so results from before the ingestion are no longer found and are evicted by size or age.
+ * <p>
+ * Totals, CPT totals and, when the bitmap index answered the query, the bitmap of matched patients are kept per criteria.
+ * Pages of patients are kept separately, limited by the total number of patients held.
+ * Cached values are shared so must not be modified.
+ */
+@Service
+public class CohortResultCache {
+
+	private static final Pattern ECL_TERM = Pattern.compile("\\|[^|]*\\|");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	private static final Pattern SPACE_AROUND_SYMBOL = Pattern.compile(" ?([^\\w ]) ?");
+
+	@Autowired
+	private DatasetVersionService datasetVersionService;
+
+	private final Cache<String, CohortResult> resultCache;
+	private final Cache<String, Page<Patient>> pageCache;
+	private final boolean enabled;
+
+	public CohortResultCache(@Value("${cohort-cache.max-results}") long maxResults,
+			@Value("${cohort-cache.max-page-patients}") long maxPagePatients,
+			@Value("${cohort-cache.expire-after-write-minutes}") long expireMinutes) {
+
+		enabled = maxResults > 0;
+		resultCache = CacheBuilder.newBuilder()
+				.maximumSize(maxResults)
+				.expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+		pageCache = CacheBuilder.newBuilder()
+				.maximumWeight(maxPagePatients)
+				.weigher((String key, Page<Patient> page) -> Math.max(page.getNumberOfElements(), 1))
+				.expireAfterWrite(expireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * @return key for the results of the criteria, or null if caching is disabled.
+	 * @param eclLookup returns the ECL of a criterion, or the ECL of its subset.
+	 * @param thisYear only part of the key if the criteria use age, which is calculated from the year of birth.
+	 */
+	public String getKey(CohortCriteria cohortCriteria, EclLookup eclLookup, int thisYear) throws ServiceException {
+		if (!enabled) {
+			return null;
+		}
+		String dataset = cohortCriteria.getDataset();
+		return dataset + "@" + datasetVersionService.getVersion(dataset) + getCriteriaKey(cohortCriteria, eclLookup, thisYear);
+	}
+
+	static String getCriteriaKey(CohortCriteria cohortCriteria, EclLookup eclLookup, int thisYear) throws ServiceException {
+		StringBuilder key = new StringBuilder();
+		if (usesAge(cohortCriteria)) {
+			key.append(";year=").append(thisYear);
+		}
+		appendCriteria(cohortCriteria, eclLookup, key);
+		List<String> exclusions = new ArrayList<>();
+		for (CohortCriteria exclusionCriteria : cohortCriteria.getExclusionCriteria()) {
+			exclusions.add(appendCriteria(exclusionCriteria, eclLookup, new StringBuilder()).toString());
+		}
+		// A patient matching any of the exclusions is excluded, so the order does not matter
+		Collections.sort(exclusions);
+		for (String exclusion : exclusions) {
+			key.append(";exclude(").append(exclusion).append(')');
+		}
+		return key.toString();
+	}
+
+	private static StringBuilder appendCriteria(CohortCriteria cohortCriteria, EclLookup eclLookup, StringBuilder key) throws ServiceException {
+		key.append(";gender=").append(cohortCriteria.getGender())
+				.append(";age=").append(cohortCriteria.getMinAgeNow()).append('-').append(cohortCriteria.getMaxAgeNow());
+		List<String> eventCriteria = new ArrayList<>();
+		boolean ordered = false;
+		for (EventCriterion criterion : cohortCriteria.getEventCriteria()) {
+			eventCriteria.add(getEventCriterionKey(criterion, eclLookup));
+			ordered |= criterion.getWithinDaysBeforePreviouslyMatchedEvent() != null || criterion.getWithinDaysAfterPreviouslyMatchedEvent() != null;
+		}
+		// Criteria are independent unless one is relative to the event matched by the previous criterion
+		if (!ordered) {
+			Collections.sort(eventCriteria);
+		}
+		for (String eventCriterion : eventCriteria) {
+			key.append(";event(").append(eventCriterion).append(')');
+		}
+		return key;
+	}
+
+	private static String getEventCriterionKey(EventCriterion criterion, EclLookup eclLookup) throws ServiceException {
+		String ecl = eclLookup.getEcl(criterion);
+		// Terms and spacing do not change the meaning of the ECL
+		if (ecl != null) {
+			ecl = WHITESPACE.matcher(ECL_TERM.matcher(ecl).replaceAll(" ")).replaceAll(" ").trim();
+			ecl = SPACE_AROUND_SYMBOL.matcher(ecl).replaceAll("$1");
+		}
+		StringBuilder key = new StringBuilder()
+				.append(criterion.isHas() ? "has " : "not ").append(ecl)
+				.append(",dates=").append(getTime(criterion.getMinDate())).append('-').append(getTime(criterion.getMaxDate()))
+				.append(",before=").append(criterion.getWithinDaysBeforePreviouslyMatchedEvent())
+				.append(",after=").append(criterion.getWithinDaysAfterPreviouslyMatchedEvent());
+		Frequency frequency = criterion.getFrequency();
+		if (frequency != null) {
+			key.append(",frequency=").append(frequency.getMinRepetitions())
+					.append('/').append(frequency.getMinTimeBetween())
+					.append('/').append(frequency.getMaxTimeBetween())
+					.append('/').append(frequency.getTimeUnit());
+		}
+		if (criterion.isIncludeCPTAnalysis()) {
+			key.append(",cpt");
+		}
+		return key.toString();
+	}
+
+	private static Long getTime(Date date) {
+		return date != null ? date.getTime() : null;
+	}
+
+	private static boolean usesAge(CohortCriteria cohortCriteria) {
+		return cohortCriteria.getMinAgeNow() != null || cohortCriteria.getMaxAgeNow() != null
+				|| cohortCriteria.getExclusionCriteria().stream().anyMatch(CohortResultCache::usesAge);
+	}
+
+	public CohortResult getResult(String key) {
+		return key != null ? resultCache.getIfPresent(key) : null;
+	}
+
+	public void putResult(String key, CohortResult result) {
+		if (key != null) {
+			resultCache.put(key, result);
+		}
+	}
+
+	public Page<Patient> getPage(String key, int page, int size) {
+		return key != null ? pageCache.getIfPresent(getPageKey(key, page, size)) : null;
+	}
+
+	public void putPage(String key, int page, int size, Page<Patient> patients) {
+		if (key != null) {
+			pageCache.put(getPageKey(key, page, size), patients);
+		}
+	}
+
+	private static String getPageKey(String key, int page, int size) {
+		return key + ";page=" + page + "," + size;
+	}
+
+	public CohortCacheStats getStats() {
+		return new CohortCacheStats(resultCache.stats(), resultCache.size(), pageCache.stats(), pageCache.size());
+	}
+
+	public void invalidateAll() {
+		resultCache.invalidateAll();
+		pageCache.invalidateAll();
+	}
+
+	public interface EclLookup {
+		String getEcl(EventCriterion criterion) throws ServiceException;
+	}
+
+	/**
+	 * Result of one cohort query.
+	 */
+	public static class CohortResult {
+
+		private final long count;
+		private final Map<String, CPTTotals> cptTotals;
+		private final CohortBitmapIndex.Selection selection;
+		private final RVUTotals rvuTotals;
+
+		public CohortResult(long count, Map<String, CPTTotals> cptTotals, CohortBitmapIndex.Selection selection) {
+			this(count, cptTotals, selection, null);
+		}
+
+		public CohortResult(long count, Map<String, CPTTotals> cptTotals, CohortBitmapIndex.Selection selection, RVUTotals rvuTotals) {
+			this.count = count;
+			this.cptTotals = cptTotals;
+			this.selection = selection;
+			this.rvuTotals = rvuTotals;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return totals by CPT code, or null if the criteria did not request CPT analysis.
+		 */
+		public Map<String, CPTTotals> getCptTotals() {
+			return cptTotals;
+		}
+
+		/**
+		 * @return the matched patients, or null if the bitmap index did not answer the query.
+		 * Keeps the index snapshot it was selected from until the result is evicted.
+		 */
+		public CohortBitmapIndex.Selection getSelection() {
+			return selection;
+		}
+
+		/**
+		 * @return totals from CPT enrichment, or null if not calculated for the query.
+		 */
+		public RVUTotals getRvuTotals() {
+			return rvuTotals;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.server.model.ConceptSetChunk;
+import org.snomed.heathanalytics.server.store.ConceptSetChunkRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import static org.elasticsearch.index.query.QueryBuilders.*;
+
+/**
+ * Builds terms queries for concept sets of any size.
+ * Large sets are stored in Elasticsearch once and referenced with terms lookups so they are not sent with every request.
+ * The native temporal script reads the same stored sets.
+ */
+@Service
+public class ConceptSetService {
+
+	// Elasticsearch limits the number of terms in one terms lookup, index.max_terms_count defaults to 65,536.
+	private static final int LOOKUP_CHUNK_SIZE = 65_536;
+
+	// A lookup of a missing document finds no terms, rather than failing, so stored sets are checked again after this time
+	// in case the index has been deleted and recreated.
+	private static final long VERIFY_STORED_SET_MILLIS = 60_000;
+
+	@Autowired
+	private ConceptSetChunkRepository conceptSetChunkRepository;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchTemplate;
+
+	@Value("${concept-set.max-inline-terms}")
+	private int maxInlineTerms;
+
+	// Sets are identified by a hash of their content so a changed expansion of the same ECL is stored again.
+	// Value is the time the set was last stored or seen in the index.
+	private final Map<String, Long> storedSetTimes = new ConcurrentHashMap<>();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public QueryBuilder getTermsQuery(String field, List<Long> conceptIds) {
+		List<TermsLookup> lookups = getStoredSetLookups(conceptIds);
+		if (lookups == null) {
+			return termsQuery(field, conceptIds);
+		}
+		BoolQueryBuilder anyChunk = boolQuery();
+		for (TermsLookup lookup : lookups) {
+			anyChunk.should(termsLookupQuery(field, lookup));
+		}
+		return anyChunk;
+	}
+
+	/**
+	 * Stores the set if it is not already stored.
+	 * @return lookups of the documents holding the set, or null if the set is small enough to send inline.
+	 */
+	public List<TermsLookup> getStoredSetLookups(List<Long> conceptIds) {
+		if (conceptIds.size() <= maxInlineTerms) {
+			return null;
+		}
+
+		String setId = getSetId(conceptIds);
+		int chunks = (conceptIds.size() + LOOKUP_CHUNK_SIZE - 1) / LOOKUP_CHUNK_SIZE;
+		Long storedTime = storedSetTimes.get(setId);
+		long now = System.currentTimeMillis();
+		if (storedTime == null || now - storedTime > VERIFY_STORED_SET_MILLIS) {
+			if (storedTime == null || !IntStream.range(0, chunks).allMatch(chunk -> conceptSetChunkRepository.existsById(getChunkId(setId, chunk)))) {
+				List<ConceptSetChunk> setChunks = new ArrayList<>();
+				for (int chunk = 0; chunk < chunks; chunk++) {
+					setChunks.add(new ConceptSetChunk(getChunkId(setId, chunk),
+							new ArrayList<>(conceptIds.subList(chunk * LOOKUP_CHUNK_SIZE, Math.min((chunk + 1) * LOOKUP_CHUNK_SIZE, conceptIds.size())))));
+				}
+				// Terms lookups use a realtime get so the chunks can be used without waiting for a refresh.
+				conceptSetChunkRepository.saveAll(setChunks);
+				logger.info("Stored concept set {} of {} concepts in {} chunks.", setId, conceptIds.size(), chunks);
+			}
+			storedSetTimes.put(setId, now);
+		}
+
+		String index = elasticsearchTemplate.getIndexCoordinatesFor(ConceptSetChunk.class).getIndexName();
+		List<TermsLookup> lookups = new ArrayList<>();
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			lookups.add(new TermsLookup(index, getChunkId(setId, chunk), ConceptSetChunk.Fields.CONCEPT_IDS));
+		}
+		return lookups;
+	}
+
+	private String getSetId(List<Long> conceptIds) {
+		Hasher hasher = Hashing.murmur3_128().newHasher();
+		if (conceptIds instanceof LongList) {
+			LongList longList = (LongList) conceptIds;
+			for (int i = 0; i < longList.size(); i++) {
+				hasher.putLong(longList.getLong(i));
+			}
+		} else {
+			conceptIds.forEach(hasher::putLong);
+		}
+		return hasher.hash().toString();
+	}
+
+	private String getChunkId(String setId, int chunk) {
+		return setId + "_" + chunk;
+	}
+}
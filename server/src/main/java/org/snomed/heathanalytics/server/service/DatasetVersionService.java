@@ -0,0 +1,86 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.server.model.DatasetVersion;
+import org.snomed.heathanalytics.server.store.DatasetVersionRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Keeps a version number per dataset which changes each time an ingestion into the dataset completes.
+ * Versions are stored in the 'dataset-version' index because imports usually run in a separate process to the server.
+ * The server reads them again at most every cohort-cache.version-check-seconds, changes made by this process are seen immediately.
+ */
+@Service
+public class DatasetVersionService {
+
+	@Autowired
+	private DatasetVersionRepository datasetVersionRepository;
+
+	@Value("${cohort-cache.version-check-seconds}")
+	private int versionCheckSeconds;
+
+	private volatile Map<String, Long> versions = Collections.emptyMap();
+	private volatile long lastCheckMillis;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	/**
+	 * Records that writes to the datasets are complete. Called by the output streams when they are closed.
+	 */
+	public synchronized void datasetsUpdated(Collection<String> datasets) {
+		if (datasets.isEmpty()) {
+			return;
+		}
+		Map<String, Long> newVersions = new HashMap<>(versions);
+		List<DatasetVersion> toSave = new ArrayList<>();
+		for (String dataset : datasets) {
+			// Greater than the previous version even if the clock has not moved on
+			long version = Math.max(System.currentTimeMillis(), newVersions.getOrDefault(dataset, 0L) + 1);
+			newVersions.put(dataset, version);
+			toSave.add(new DatasetVersion(dataset, version));
+		}
+		versions = newVersions;
+		try {
+			datasetVersionRepository.saveAll(toSave);
+		} catch (RuntimeException e) {
+			logger.error("Failed to store versions of datasets {}, other processes may use cached cohort results until they expire.", datasets, e);
+		}
+	}
+
+	/**
+	 * @return version of the dataset, or of the latest change to any dataset if dataset is null.
+	 * Zero if the dataset has not been written since versions were introduced.
+	 */
+	public long getVersion(String dataset) {
+		Map<String, Long> versions = getVersions();
+		if (dataset == null) {
+			return versions.values().stream().mapToLong(Long::longValue).max().orElse(0);
+		}
+		return versions.getOrDefault(dataset, 0L);
+	}
+
+	private Map<String, Long> getVersions() {
+		if (System.currentTimeMillis() - lastCheckMillis >= versionCheckSeconds * 1_000L) {
+			synchronized (this) {
+				if (System.currentTimeMillis() - lastCheckMillis >= versionCheckSeconds * 1_000L) {
+					try {
+						Map<String, Long> newVersions = new HashMap<>(versions);
+						for (DatasetVersion datasetVersion : datasetVersionRepository.findAll()) {
+							newVersions.merge(datasetVersion.getDataset(), datasetVersion.getVersion(), Math::max);
+						}
+						versions = newVersions;
+					} catch (RuntimeException e) {
+						logger.warn("Failed to read dataset versions, using the previous versions.", e);
+					}
+					lastCheckMillis = System.currentTimeMillis();
+				}
+			}
+		}
+		return versions;
+	}
+}
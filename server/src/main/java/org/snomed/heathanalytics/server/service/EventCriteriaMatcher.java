@@ -0,0 +1,73 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.snomed.heathanalytics.elasticsearch.TemporalCriterion;
+import org.snomed.heathanalytics.elasticsearch.TemporalEventMatcher;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.ClinicalEventSet;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+import org.snomed.heathanalytics.server.model.Frequency;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * In-process evaluation of event criteria, including time and frequency constraints, against a patient.
+ * Uses the same matcher as the native Elasticsearch script so can be used to test and benchmark that logic without a cluster.
+ */
+public class EventCriteriaMatcher {
+
+	private final List<TemporalCriterion> criteria;
+	private final TemporalEventMatcher matcher;
+
+	public EventCriteriaMatcher(List<EventCriterion> eventCriteria, CohortBitmapIndex.ConceptLookup conceptLookup) throws ServiceException {
+		criteria = new ArrayList<>();
+		for (EventCriterion eventCriterion : eventCriteria) {
+			List<Long> conceptIds = conceptLookup.getConceptIds(eventCriterion);
+			criteria.add(toTemporalCriterion(eventCriterion, conceptIds != null ? conceptIds : Collections.emptyList()));
+		}
+		matcher = new TemporalEventMatcher(criteria);
+	}
+
+	static TemporalCriterion toTemporalCriterion(EventCriterion eventCriterion, List<Long> conceptIds) {
+		TemporalCriterion criterion = new TemporalCriterion(eventCriterion.isHas(), conceptIds)
+				.setDateRange(eventCriterion.getMinDate() != null ? eventCriterion.getMinDate().getTime() : null,
+						eventCriterion.getMaxDate() != null ? eventCriterion.getMaxDate().getTime() : null)
+				.setWithinDays(eventCriterion.getWithinDaysBeforePreviouslyMatchedEvent(), eventCriterion.getWithinDaysAfterPreviouslyMatchedEvent());
+		Frequency frequency = eventCriterion.getFrequency();
+		if (frequency != null) {
+			criterion.setFrequency(frequency.getMinRepetitions(), frequency.getMinTimeBetween(), frequency.getMaxTimeBetween(),
+					frequency.getTimeUnit() != null ? frequency.getTimeUnit().getMilliseconds() : 0);
+		}
+		return criterion;
+	}
+
+	/**
+	 * @return criteria in the form expected by the "criteria" param of the native Elasticsearch script.
+	 */
+	public List<Map<String, Object>> getScriptParams() {
+		return criteria.stream().map(TemporalCriterion::toParams).collect(Collectors.toList());
+	}
+
+	public boolean matches(Patient patient) {
+		Set<ClinicalEvent> events = patient.getEvents();
+		if (events == null) {
+			return matcher.matches(new long[0], new long[0], 0);
+		}
+		if (events instanceof ClinicalEventSet) {
+			// Already sorted and de-duplicated in the order the matcher expects
+			ClinicalEventSet eventSet = (ClinicalEventSet) events;
+			return matcher.matches(eventSet.getConceptIds(), eventSet.getDates(), eventSet.size());
+		}
+		long[] conceptIds = new long[events.size()];
+		long[] dates = new long[events.size()];
+		int length = 0;
+		for (ClinicalEvent event : events) {
+			conceptIds[length] = event.getConceptId();
+			dates[length] = event.getDateLong();
+			length++;
+		}
+		length = TemporalEventMatcher.sortEvents(conceptIds, dates, length);
+		return matcher.matches(conceptIds, dates, length);
+	}
+}
@@ -0,0 +1,81 @@
+package org.snomed.heathanalytics.server.service;
+
+import java.util.*;
+
+/**
+ * Queue of jobs which takes from each user in turn, so one user submitting many jobs does not hold up the jobs of others.
+ * Jobs of a single user are taken in the order they were added. The number of jobs waiting is limited in total and per user.
+ * Thread safe.
+ */
+class FairJobQueue<T> {
+
+	private final int maxQueued;
+	private final int maxQueuedPerUser;
+
+	private final Map<String, Deque<T>> userQueues = new HashMap<>();
+	// Users with waiting jobs, the user at the front is next
+	private final Deque<String> userTurns = new ArrayDeque<>();
+	private int size;
+
+	FairJobQueue(int maxQueued, int maxQueuedPerUser) {
+		this.maxQueued = maxQueued;
+		this.maxQueuedPerUser = maxQueuedPerUser;
+	}
+
+	/**
+	 * @throws TooManyJobsException if the queue, or the user's queue, is full.
+	 */
+	synchronized void add(String user, T job) {
+		if (size >= maxQueued) {
+			throw new TooManyJobsException(String.format("There are already %s jobs waiting, please try again later.", size));
+		}
+		Deque<T> userQueue = userQueues.computeIfAbsent(user, u -> new ArrayDeque<>());
+		if (userQueue.size() >= maxQueuedPerUser) {
+			throw new TooManyJobsException(String.format("You already have %s jobs waiting, please wait for them to complete.", userQueue.size()));
+		}
+		if (userQueue.isEmpty()) {
+			userTurns.addLast(user);
+		}
+		userQueue.addLast(job);
+		size++;
+	}
+
+	/**
+	 * @return next job, from the user whose turn it is, or null if the queue is empty.
+	 */
+	synchronized T poll() {
+		String user = userTurns.pollFirst();
+		if (user == null) {
+			return null;
+		}
+		Deque<T> userQueue = userQueues.get(user);
+		T job = userQueue.pollFirst();
+		size--;
+		if (userQueue.isEmpty()) {
+			userQueues.remove(user);
+		} else {
+			userTurns.addLast(user);
+		}
+		return job;
+	}
+
+	/**
+	 * @return true if the job was waiting and has been removed.
+	 */
+	synchronized boolean remove(String user, T job) {
+		Deque<T> userQueue = userQueues.get(user);
+		if (userQueue == null || !userQueue.remove(job)) {
+			return false;
+		}
+		size--;
+		if (userQueue.isEmpty()) {
+			userQueues.remove(user);
+			userTurns.remove(user);
+		}
+		return true;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+}
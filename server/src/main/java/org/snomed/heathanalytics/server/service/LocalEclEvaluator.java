@@ -0,0 +1,277 @@
+package org.snomed.heathanalytics.server.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Evaluates ECL against a {@link SnomedHierarchy} without calling the terminology server.
+ * Supports the hierarchy operators (<, <<, <!, <<!, >, >>, >!, >>!), memberOf (^), the wildcard (*),
+ * AND, OR, MINUS and brackets. Refinements, filters, other ECL features and concepts or refsets not in the loaded snapshot
+ * cause an {@link UnsupportedEclException} so that the caller can fall back to the terminology server.
+ */
+public class LocalEclEvaluator {
+
+	private final SnomedHierarchy hierarchy;
+
+	public LocalEclEvaluator(SnomedHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * @return sorted concept ids matching the ECL.
+	 */
+	public long[] evaluate(String ecl) throws UnsupportedEclException {
+		Parser parser = new Parser(tokenize(ecl));
+		int[] result = parser.expressionConstraint();
+		if (parser.hasNext()) {
+			throw new UnsupportedEclException("Unexpected '" + parser.next() + "'.");
+		}
+		return hierarchy.toConceptIds(result);
+	}
+
+	private static List<String> tokenize(String ecl) throws UnsupportedEclException {
+		List<String> tokens = new ArrayList<>();
+		int i = 0;
+		while (i < ecl.length()) {
+			char c = ecl.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '|') {
+				// Terms are ignored
+				int end = ecl.indexOf('|', i + 1);
+				if (end == -1) {
+					throw new UnsupportedEclException("Term is not closed.");
+				}
+				i = end + 1;
+			} else if (ecl.startsWith("/*", i)) {
+				int end = ecl.indexOf("*/", i + 2);
+				if (end == -1) {
+					throw new UnsupportedEclException("Comment is not closed.");
+				}
+				i = end + 2;
+			} else if (Character.isDigit(c)) {
+				int start = i;
+				while (i < ecl.length() && Character.isDigit(ecl.charAt(i))) {
+					i++;
+				}
+				tokens.add(ecl.substring(start, i));
+			} else if (Character.isLetter(c)) {
+				int start = i;
+				while (i < ecl.length() && Character.isLetter(ecl.charAt(i))) {
+					i++;
+				}
+				tokens.add(ecl.substring(start, i).toUpperCase());
+			} else if (c == '<' || c == '>') {
+				// One of <, <<, <!, <<! or the same with >
+				int start = i++;
+				if (i < ecl.length() && ecl.charAt(i) == c) {
+					i++;
+				}
+				if (i < ecl.length() && ecl.charAt(i) == '!') {
+					i++;
+				}
+				tokens.add(ecl.substring(start, i));
+			} else if ("^()*,".indexOf(c) != -1) {
+				tokens.add(String.valueOf(c));
+				i++;
+			} else {
+				throw new UnsupportedEclException("Unsupported ECL syntax '" + c + "'.");
+			}
+		}
+		return tokens;
+	}
+
+	private class Parser {
+
+		private final List<String> tokens;
+		private int position;
+
+		Parser(List<String> tokens) {
+			this.tokens = tokens;
+		}
+
+		int[] expressionConstraint() throws UnsupportedEclException {
+			int[] result = subExpressionConstraint();
+			String operator = null;
+			while (hasNext() && !")".equals(peek())) {
+				String token = next();
+				String nextOperator = ",".equals(token) ? "AND" : token;
+				if (!nextOperator.equals("AND") && !nextOperator.equals("OR") && !nextOperator.equals("MINUS")) {
+					throw new UnsupportedEclException("Unexpected '" + token + "'.");
+				}
+				if (operator != null && (!operator.equals(nextOperator) || operator.equals("MINUS"))) {
+					// ECL requires brackets when mixing operators
+					throw new UnsupportedEclException("Mixed operators without brackets.");
+				}
+				operator = nextOperator;
+				int[] operand = subExpressionConstraint();
+				if (operator.equals("AND")) {
+					result = intersection(result, operand);
+				} else if (operator.equals("OR")) {
+					result = union(result, operand);
+				} else {
+					result = difference(result, operand);
+				}
+			}
+			return result;
+		}
+
+		private int[] subExpressionConstraint() throws UnsupportedEclException {
+			String constraintOperator = null;
+			if (hasNext() && (peek().startsWith("<") || peek().startsWith(">"))) {
+				constraintOperator = next();
+			}
+			boolean memberOf = false;
+			if (hasNext() && "^".equals(peek())) {
+				next();
+				memberOf = true;
+			}
+
+			int[] focus;
+			String token = next();
+			if ("(".equals(token)) {
+				focus = expressionConstraint();
+				if (!")".equals(next())) {
+					throw new UnsupportedEclException("Bracket is not closed.");
+				}
+			} else if ("*".equals(token)) {
+				focus = new int[hierarchy.size()];
+				for (int i = 0; i < focus.length; i++) {
+					focus[i] = i;
+				}
+			} else if (!token.isEmpty() && Character.isDigit(token.charAt(0))) {
+				int index = hierarchy.indexOf(Long.parseLong(token));
+				if (index == -1) {
+					// Inactive or not in the loaded snapshot, the terminology server may know
+					throw new UnsupportedEclException("Concept " + token + " is not in the loaded hierarchy.");
+				}
+				focus = new int[] {index};
+			} else {
+				throw new UnsupportedEclException("Unexpected '" + token + "'.");
+			}
+
+			if (memberOf) {
+				focus = members(focus);
+			}
+			return constraintOperator != null ? applyConstraintOperator(constraintOperator, focus) : focus;
+		}
+
+		private int[] members(int[] refsets) throws UnsupportedEclException {
+			int[] result = new int[0];
+			for (int refset : refsets) {
+				int[] members = hierarchy.getRefsetMembers(hierarchy.getConceptId(refset));
+				if (members == null) {
+					// Not a simple refset or not loaded, the terminology server may know
+					throw new UnsupportedEclException("No members loaded for refset " + hierarchy.getConceptId(refset) + ".");
+				}
+				result = union(result, members);
+			}
+			return result;
+		}
+
+		private int[] applyConstraintOperator(String constraintOperator, int[] focus) {
+			boolean descendants = constraintOperator.startsWith("<");
+			boolean orSelf = constraintOperator.length() > 1 && constraintOperator.charAt(1) != '!';
+			boolean immediate = constraintOperator.endsWith("!");
+			if (focus.length == 1) {
+				int concept = focus[0];
+				int[] related = related(concept, descendants, immediate);
+				return orSelf ? union(related, focus) : related;
+			}
+			BitSet result = new BitSet(hierarchy.size());
+			for (int concept : focus) {
+				for (int relatedConcept : related(concept, descendants, immediate)) {
+					result.set(relatedConcept);
+				}
+				if (orSelf) {
+					result.set(concept);
+				}
+			}
+			return result.stream().toArray();
+		}
+
+		private int[] related(int concept, boolean descendants, boolean immediate) {
+			if (descendants) {
+				return immediate ? hierarchy.getChildren(concept) : hierarchy.getDescendants(concept);
+			}
+			return immediate ? hierarchy.getParents(concept) : hierarchy.getAncestors(concept);
+		}
+
+		boolean hasNext() {
+			return position < tokens.size();
+		}
+
+		String peek() {
+			return tokens.get(position);
+		}
+
+		String next() throws UnsupportedEclException {
+			if (!hasNext()) {
+				throw new UnsupportedEclException("Unexpected end of expression.");
+			}
+			return tokens.get(position++);
+		}
+	}
+
+	static int[] union(int[] a, int[] b) {
+		int[] result = new int[a.length + b.length];
+		int i = 0, j = 0, length = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				result[length++] = a[i++];
+			} else if (a[i] > b[j]) {
+				result[length++] = b[j++];
+			} else {
+				result[length++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length) {
+			result[length++] = a[i++];
+		}
+		while (j < b.length) {
+			result[length++] = b[j++];
+		}
+		return length == result.length ? result : Arrays.copyOf(result, length);
+	}
+
+	static int[] intersection(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, length = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				result[length++] = a[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, length);
+	}
+
+	static int[] difference(int[] a, int[] b) {
+		int[] result = new int[a.length];
+		int i = 0, j = 0, length = 0;
+		while (i < a.length) {
+			if (j == b.length || a[i] < b[j]) {
+				result[length++] = a[i++];
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, length);
+	}
+
+	public static class UnsupportedEclException extends Exception {
+		public UnsupportedEclException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.View;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Writes exported patients to a stream as they are read, nothing is held after a patient has been written.
+ */
+public abstract class PatientExportWriter implements CohortCursorService.PatientConsumer, Closeable {
+
+	public enum Format {
+
+		NDJSON("application/x-ndjson", "ndjson"), CSV("text/csv", "csv");
+
+		private final String contentType;
+		private final String fileExtension;
+
+		Format(String contentType, String fileExtension) {
+			this.contentType = contentType;
+			this.fileExtension = fileExtension;
+		}
+
+		public String getContentType() {
+			return contentType;
+		}
+
+		public String getFileExtension() {
+			return fileExtension;
+		}
+	}
+
+	public static PatientExportWriter create(Format format, OutputStream outputStream, ObjectMapper objectMapper) throws IOException {
+		if (format == Format.CSV) {
+			return new CsvWriter(outputStream, objectMapper);
+		}
+		return new NDJsonWriter(outputStream, objectMapper);
+	}
+
+	/**
+	 * One patient per line in the same JSON form as the cohort API.
+	 */
+	private static class NDJsonWriter extends PatientExportWriter {
+
+		private final SequenceWriter sequenceWriter;
+
+		NDJsonWriter(OutputStream outputStream, ObjectMapper objectMapper) throws IOException {
+			sequenceWriter = objectMapper.writerWithView(View.API.class)
+					.without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+					.withRootValueSeparator("\n")
+					.writeValues(outputStream);
+		}
+
+		@Override
+		public void accept(Patient patient) throws IOException {
+			sequenceWriter.write(patient);
+		}
+
+		@Override
+		public void close() throws IOException {
+			sequenceWriter.close();
+		}
+	}
+
+	/**
+	 * One row per event, with the patient columns repeated, for loading into statistics tools.
+	 * A patient without events has a single row with empty event columns.
+	 * Dates are written in the same format as the cohort API.
+	 */
+	private static class CsvWriter extends PatientExportWriter {
+
+		private final Writer writer;
+		private final DateFormat dobFormat;
+		private final DateFormat eventDateFormat;
+
+		CsvWriter(OutputStream outputStream, ObjectMapper objectMapper) throws IOException {
+			writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+			dobFormat = getApiDateFormat(Patient.class, "getDob", objectMapper);
+			eventDateFormat = getApiDateFormat(ClinicalEvent.class, "getDate", objectMapper);
+			writer.write("roleId,dataset,gender,dob,conceptId,date\n");
+		}
+
+		// Taken from the @JsonFormat of the getter and the settings of the object mapper, as Jackson does
+		private static DateFormat getApiDateFormat(Class<?> type, String getter, ObjectMapper objectMapper) {
+			JsonFormat format;
+			try {
+				format = type.getMethod(getter).getAnnotation(JsonFormat.class);
+			} catch (NoSuchMethodException e) {
+				throw new IllegalStateException(e);
+			}
+			DateFormat dateFormat = new SimpleDateFormat(format.pattern(), objectMapper.getSerializationConfig().getLocale());
+			dateFormat.setTimeZone(format.timezone().equals(JsonFormat.DEFAULT_TIMEZONE) ?
+					objectMapper.getSerializationConfig().getTimeZone() : TimeZone.getTimeZone(format.timezone()));
+			return dateFormat;
+		}
+
+		@Override
+		public void accept(Patient patient) throws IOException {
+			String patientColumns = escape(patient.getRoleId()) + "," + escape(patient.getDataset()) + ","
+					+ (patient.getGender() != null ? patient.getGender() : "") + ","
+					+ (patient.getDob() != null ? dobFormat.format(patient.getDob()) : "") + ",";
+			if (patient.getEvents() == null || patient.getEvents().isEmpty()) {
+				writer.write(patientColumns);
+				writer.write(",\n");
+				return;
+			}
+			for (ClinicalEvent event : patient.getEvents()) {
+				writer.write(patientColumns);
+				writer.write(event.getConceptId() != null ? event.getConceptId().toString() : "");
+				writer.write(',');
+				writer.write(event.getDate() != null ? eventDateFormat.format(event.getDate()) : "");
+				writer.write('\n');
+			}
+		}
+
+		private static String escape(String value) {
+			if (value == null) {
+				return "";
+			}
+			if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+				return value;
+			}
+			return "\"" + value.replace("\"", "\"\"") + "\"";
+		}
+
+		@Override
+		public void close() throws IOException {
+			writer.flush();
+		}
+	}
+}
@@ -1,27 +1,48 @@
 package org.snomed.heathanalytics.server.service;
 
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.RangeQueryBuilder;
+import org.elasticsearch.indices.TermsLookup;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
-import org.elasticsearch.search.aggregations.Aggregation;
 import org.elasticsearch.search.aggregations.AggregationBuilders;
 import org.elasticsearch.search.aggregations.Aggregations;
 import org.elasticsearch.search.aggregations.bucket.MultiBucketsAggregation;
+import org.elasticsearch.search.aggregations.bucket.filter.Filters;
+import org.elasticsearch.search.aggregations.bucket.filter.FiltersAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.IncludeExclude;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
-import org.elasticsearch.search.aggregations.metrics.ParsedScriptedMetric;
+import org.elasticsearch.search.aggregations.metrics.Sum;
+import org.elasticsearch.search.aggregations.metrics.SumAggregationBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.elasticsearch.TemporalCriterion;
+import org.snomed.heathanalytics.elasticsearch.TemporalScriptEngine;
 import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.ClinicalEventSet;
 import org.snomed.heathanalytics.model.Gender;
 import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.RVUTotals;
 import org.snomed.heathanalytics.model.pojo.TermHolder;
 import org.snomed.heathanalytics.server.model.*;
+import org.snomed.heathanalytics.server.pojo.CohortCount;
+import org.snomed.heathanalytics.server.pojo.CohortCounts;
 import org.snomed.heathanalytics.server.pojo.Stats;
 import org.snomed.heathanalytics.server.store.SubsetRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
@@ -33,7 +54,10 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import org.springframework.data.elasticsearch.core.query.Query;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import static java.lang.String.format;
@@ -48,12 +72,39 @@ public class PatientQueryService {
 	@Autowired
 	private ElasticsearchOperations elasticsearchTemplate;
 
+	@Autowired
+	private RestHighLevelClient elasticsearchRestClient;
+
 	@Autowired
 	private SubsetRepository subsetRepository;
 
 	@Autowired
 	private CPTService cptService;
 
+	@Autowired
+	private CohortBitmapIndex cohortBitmapIndex;
+
+	@Autowired
+	private ConceptSetService conceptSetService;
+
+	@Autowired
+	private CohortResultCache cohortResultCache;
+
+	@Value("${cohort.event-filter-script}")
+	private String eventFilterScript;
+
+	@Value("${subsumption-index.query.enabled}")
+	private boolean subsumptionQueryEnabled;
+
+	@Value("${cpt.enrich-events.enabled}")
+	private boolean cptEnrichmentEnabled;
+
+	private static final String COHORT_COUNTS_AGGREGATION = "cohortCounts";
+	private static final String CPT_ANALYSIS_AGGREGATION = "eventConceptCounts";
+	private static final String RVU_TOTALS_AGGREGATION_PREFIX = "rvuTotals_";
+	private static final int MULTI_SEARCH_BATCH_SIZE = 100;
+	private static final Pattern DESCENDANTS_ECL_PATTERN = Pattern.compile("\\s*(<<?)\\s*([0-9]{6,18})\\s*(\\|[^|]*\\|)?\\s*");
+
 	private final Logger logger = LoggerFactory.getLogger(getClass());
 
 	public Stats getStats() {
@@ -89,8 +140,250 @@ public class PatientQueryService {
 		return sortedDatasets;
 	}
 
-	public int fetchCohortCount(CohortCriteria patientCriteria) throws ServiceException {
-		return (int) fetchCohort(patientCriteria, 0, 1).getTotalElements();
+	/**
+	 * Counts the patients matching the criteria without fetching any patient documents.
+	 * Uses a cached result, or the bitmap index if it can answer the criteria, otherwise the Elasticsearch count API.
+	 */
+	public long fetchCohortCount(CohortCriteria patientCriteria) throws ServiceException {
+		validateCriteria(patientCriteria);
+		GregorianCalendar now = new GregorianCalendar();
+		String cacheKey = cohortResultCache.getKey(patientCriteria, this::getGivenOrSubsetEcl, now.get(Calendar.YEAR));
+		CohortResultCache.CohortResult cachedResult = cohortResultCache.getResult(cacheKey);
+		if (cachedResult != null) {
+			return cachedResult.getCount();
+		}
+		Timer timer = new Timer();
+		Map<String, List<Long>> eclToConceptsMap = fetchConceptIds(patientCriteria, timer);
+
+		long count;
+		CohortBitmapIndex.Selection selection = null;
+		if (cohortBitmapIndex.canAnswer(patientCriteria)) {
+			selection = cohortBitmapIndex.selectCohort(patientCriteria,
+					criterion -> getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion)), now.get(Calendar.YEAR));
+			count = selection.getCount();
+			timer.split("Counting patients using bitmap index");
+		} else {
+			CountRequest countRequest = new CountRequest(getPatientIndexNames())
+					.query(getCohortQuery(patientCriteria, eclToConceptsMap, now));
+			try {
+				count = elasticsearchRestClient.count(countRequest, RequestOptions.DEFAULT).getCount();
+			} catch (IOException e) {
+				throw new ServiceException("Failed to count cohort.", e);
+			}
+			timer.split("Counting patients");
+		}
+		// A count does not calculate the CPT totals requested by the criteria so can not be used as the cached result
+		if (getCPTAnalysisCriteria(patientCriteria).isEmpty()) {
+			cohortResultCache.putResult(cacheKey, new CohortResultCache.CohortResult(count, null, selection));
+		}
+		logger.info("Times: {}", timer.getTimes());
+		return count;
+	}
+
+	/**
+	 * Counts several cohorts, and all patients, in a single search using a filters aggregation.
+	 * The concepts of all criteria are fetched up front so ECL shared between the cohorts is only expanded once.
+	 * No search is made if all of the counts are cached.
+	 */
+	public CohortCounts fetchCohortCounts(List<CohortCriteria> cohorts) throws ServiceException {
+		return fetchCohortCounts(cohorts, (counted, total) -> {});
+	}
+
+	/**
+	 * As fetchCohortCounts, giving the number of cohorts counted after each step.
+	 * Cohorts counted by the bitmap index are given one at a time, those counted by the search all at once.
+	 * The progress listener may throw an unchecked exception to stop counting.
+	 */
+	public CohortCounts fetchCohortCounts(List<CohortCriteria> cohorts, CountProgress progress) throws ServiceException {
+		GregorianCalendar now = new GregorianCalendar();
+		int thisYear = now.get(Calendar.YEAR);
+		Timer timer = new Timer();
+		for (CohortCriteria cohort : cohorts) {
+			validateCriteria(cohort);
+		}
+		// Counts only, so criteria requesting CPT analysis are not cached
+		String[] cacheKeys = new String[cohorts.size()];
+		for (int i = 0; i < cohorts.size(); i++) {
+			if (getCPTAnalysisCriteria(cohorts.get(i)).isEmpty()) {
+				cacheKeys[i] = cohortResultCache.getKey(cohorts.get(i), this::getGivenOrSubsetEcl, thisYear);
+			}
+		}
+		String allPatientsCacheKey = cohortResultCache.getKey(new CohortCriteria(), this::getGivenOrSubsetEcl, thisYear);
+		CohortCounts cachedCounts = getCachedCohortCounts(cacheKeys, allPatientsCacheKey);
+		if (cachedCounts != null) {
+			progress.cohortsCounted(cohorts.size(), cohorts.size());
+			return cachedCounts;
+		}
+		progress.cohortsCounted(0, cohorts.size());
+
+		Map<String, List<Long>> eclToConceptsMap = new HashMap<>();
+		for (CohortCriteria cohort : cohorts) {
+			fetchConceptIds(cohort, eclToConceptsMap, timer);
+			// Expanding ECL can take a while, gives the listener a chance to stop
+			progress.cohortsCounted(0, cohorts.size());
+		}
+		CohortBitmapIndex.ConceptLookup conceptLookup = criterion -> getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion));
+
+		long allPatientsCount;
+		long[] counts = new long[cohorts.size()];
+		CohortBitmapIndex.Selection[] selections = new CohortBitmapIndex.Selection[cohorts.size()];
+		if (cohorts.stream().allMatch(cohortBitmapIndex::canAnswer)) {
+			for (int i = 0; i < cohorts.size(); i++) {
+				selections[i] = cohortBitmapIndex.selectCohort(cohorts.get(i), conceptLookup, thisYear);
+				counts[i] = selections[i].getCount();
+				progress.cohortsCounted(i + 1, cohorts.size());
+			}
+			allPatientsCount = cohortBitmapIndex.selectCohort(new CohortCriteria(), conceptLookup, thisYear).getCount();
+			timer.split("Counting patients using bitmap index");
+		} else {
+			QueryBuilder[] cohortQueries = new QueryBuilder[cohorts.size()];
+			for (int i = 0; i < cohorts.size(); i++) {
+				cohortQueries[i] = getCohortQuery(cohorts.get(i), eclToConceptsMap, now);
+			}
+			// Unkeyed filters buckets are named by position
+			SearchRequest searchRequest = new SearchRequest(getPatientIndexNames()).source(new SearchSourceBuilder()
+					.size(0)
+					.trackTotalHits(true)
+					.aggregation(new FiltersAggregationBuilder(COHORT_COUNTS_AGGREGATION, cohortQueries)));
+			try {
+				SearchResponse response = elasticsearchRestClient.search(searchRequest, RequestOptions.DEFAULT);
+				Filters cohortCounts = response.getAggregations().get(COHORT_COUNTS_AGGREGATION);
+				for (int i = 0; i < cohorts.size(); i++) {
+					counts[i] = cohortCounts.getBucketByKey(Integer.toString(i)).getDocCount();
+				}
+				allPatientsCount = response.getHits().getTotalHits().value;
+			} catch (IOException e) {
+				throw new ServiceException("Failed to count cohorts.", e);
+			}
+			timer.split("Counting patients");
+			progress.cohortsCounted(cohorts.size(), cohorts.size());
+		}
+		for (int i = 0; i < cohorts.size(); i++) {
+			cohortResultCache.putResult(cacheKeys[i], new CohortResultCache.CohortResult(counts[i], null, selections[i]));
+		}
+		cohortResultCache.putResult(allPatientsCacheKey, new CohortResultCache.CohortResult(allPatientsCount, null, null));
+		logger.info("Times: {}", timer.getTimes());
+		return new CohortCounts(allPatientsCount, counts);
+	}
+
+	private CohortCounts getCachedCohortCounts(String[] cacheKeys, String allPatientsCacheKey) {
+		CohortResultCache.CohortResult allPatients = cohortResultCache.getResult(allPatientsCacheKey);
+		if (allPatients == null) {
+			return null;
+		}
+		long[] counts = new long[cacheKeys.length];
+		for (int i = 0; i < cacheKeys.length; i++) {
+			CohortResultCache.CohortResult result = cohortResultCache.getResult(cacheKeys[i]);
+			if (result == null) {
+				return null;
+			}
+			counts[i] = result.getCount();
+		}
+		return new CohortCounts(allPatients.getCount(), counts);
+	}
+
+	/**
+	 * Counts many cohorts, with CPT totals where requested, using batched multi-search requests.
+	 * Identical criteria are only counted once and cached counts are not counted again.
+	 * Cohorts without CPT analysis are counted by the bitmap index when it can answer them.
+	 * @return counts in the same order as the given cohorts.
+	 */
+	public List<CohortCount> fetchCohortCountsBatch(List<CohortCriteria> cohorts) throws ServiceException {
+		return fetchCohortCountsBatch(cohorts, (counted, total) -> {});
+	}
+
+	/**
+	 * As fetchCohortCountsBatch, giving the number of distinct cohorts counted after each step.
+	 * The progress listener may throw an unchecked exception to stop counting.
+	 */
+	public List<CohortCount> fetchCohortCountsBatch(List<CohortCriteria> cohorts, CountProgress progress) throws ServiceException {
+		GregorianCalendar now = new GregorianCalendar();
+		int thisYear = now.get(Calendar.YEAR);
+		Timer timer = new Timer();
+		Map<CohortCriteria, CohortCount> uniqueCohortCounts = new LinkedHashMap<>();
+		cohorts.forEach(cohort -> uniqueCohortCounts.put(cohort, null));
+
+		Map<CohortCriteria, String> cacheKeys = new HashMap<>();
+		List<CohortCriteria> uncachedCohorts = new ArrayList<>();
+		for (CohortCriteria cohort : uniqueCohortCounts.keySet()) {
+			validateCriteria(cohort);
+			String cacheKey = cohortResultCache.getKey(cohort, this::getGivenOrSubsetEcl, thisYear);
+			CohortResultCache.CohortResult cachedResult = cohortResultCache.getResult(cacheKey);
+			// Results cached by a cohort selection do not have RVU totals
+			if (cachedResult != null && (cachedResult.getRvuTotals() != null || !isRVUAnalysis(cohort))) {
+				uniqueCohortCounts.put(cohort, new CohortCount(cachedResult.getCount(), cachedResult.getCptTotals(), cachedResult.getRvuTotals()));
+			} else {
+				cacheKeys.put(cohort, cacheKey);
+				uncachedCohorts.add(cohort);
+			}
+		}
+
+		int counted = uniqueCohortCounts.size() - uncachedCohorts.size();
+		progress.cohortsCounted(counted, uniqueCohortCounts.size());
+
+		Map<String, List<Long>> eclToConceptsMap = new HashMap<>();
+		for (CohortCriteria cohort : uncachedCohorts) {
+			fetchConceptIds(cohort, eclToConceptsMap, timer);
+		}
+		CohortBitmapIndex.ConceptLookup conceptLookup = criterion -> getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion));
+
+		List<CohortCriteria> elasticsearchCohorts = new ArrayList<>();
+		for (CohortCriteria cohort : uncachedCohorts) {
+			if (getCPTAnalysisCriteria(cohort).isEmpty() && cohortBitmapIndex.canAnswer(cohort)) {
+				CohortBitmapIndex.Selection selection = cohortBitmapIndex.selectCohort(cohort, conceptLookup, thisYear);
+				uniqueCohortCounts.put(cohort, new CohortCount(selection.getCount(), null));
+				cohortResultCache.putResult(cacheKeys.get(cohort), new CohortResultCache.CohortResult(selection.getCount(), null, selection));
+			} else {
+				elasticsearchCohorts.add(cohort);
+			}
+		}
+		timer.split("Counting patients using bitmap index");
+		counted += uncachedCohorts.size() - elasticsearchCohorts.size();
+		progress.cohortsCounted(counted, uniqueCohortCounts.size());
+
+		for (int start = 0; start < elasticsearchCohorts.size(); start += MULTI_SEARCH_BATCH_SIZE) {
+			List<CohortCriteria> batch = elasticsearchCohorts.subList(start, Math.min(start + MULTI_SEARCH_BATCH_SIZE, elasticsearchCohorts.size()));
+			MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+			for (CohortCriteria cohort : batch) {
+				SearchSourceBuilder source = new SearchSourceBuilder()
+						.query(getCohortQuery(cohort, eclToConceptsMap, now))
+						.size(0)
+						.trackTotalHits(true);
+				List<EventCriterion> eventCriteriaWithCPTAnalysis = getCPTAnalysisCriteria(cohort);
+				if (!eventCriteriaWithCPTAnalysis.isEmpty()) {
+					source.aggregation(getCPTAnalysisAggregation(eventCriteriaWithCPTAnalysis, eclToConceptsMap));
+				}
+				if (isRVUAnalysis(cohort)) {
+					getRVUTotalsAggregations().forEach(source::aggregation);
+				}
+				multiSearchRequest.add(new SearchRequest(getPatientIndexNames()).source(source));
+			}
+			MultiSearchResponse.Item[] responses;
+			try {
+				responses = elasticsearchRestClient.msearch(multiSearchRequest, RequestOptions.DEFAULT).getResponses();
+			} catch (IOException e) {
+				throw new ServiceException("Failed to count cohorts.", e);
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				MultiSearchResponse.Item item = responses[i];
+				if (item.isFailure()) {
+					throw new ServiceException("Failed to count cohort.", item.getFailure());
+				}
+				CohortCriteria cohort = batch.get(i);
+				SearchResponse response = item.getResponse();
+				Map<String, CPTTotals> cptTotals = getCPTAnalysisCriteria(cohort).isEmpty() ? null : getCPTTotals(response.getAggregations());
+				RVUTotals rvuTotals = isRVUAnalysis(cohort) ? getRVUTotals(response.getAggregations()) : null;
+				long count = response.getHits().getTotalHits().value;
+				uniqueCohortCounts.put(cohort, new CohortCount(count, cptTotals, rvuTotals));
+				cohortResultCache.putResult(cacheKeys.get(cohort), new CohortResultCache.CohortResult(count, cptTotals, null, rvuTotals));
+			}
+			timer.split("Counting patients batch");
+			counted += batch.size();
+			progress.cohortsCounted(counted, uniqueCohortCounts.size());
+		}
+		logger.info("Counted {} cohorts, {} unique, {} cached, {} using Elasticsearch. Times: {}",
+				cohorts.size(), uniqueCohortCounts.size(), uniqueCohortCounts.size() - uncachedCohorts.size(), elasticsearchCohorts.size(), timer.getTimes());
+		return cohorts.stream().map(uniqueCohortCounts::get).collect(Collectors.toList());
 	}
 
 	public Page<Patient> fetchCohort(CohortCriteria cohortCriteria) throws ServiceException {
@@ -105,28 +398,111 @@ public class PatientQueryService {
 
 		validateCriteria(patientCriteria);
 
-		BoolQueryBuilder patientQuery = getPatientClauses(patientCriteria.getDataset(), patientCriteria.getGender(), patientCriteria.getMinAgeNow(),
-				patientCriteria.getMaxAgeNow(), now);
-		List<EventCriterion> eventCriteria = patientCriteria.getEventCriteria();
+		String cacheKey = cohortResultCache.getKey(patientCriteria, this::getGivenOrSubsetEcl, now.get(Calendar.YEAR));
+		Page<Patient> cachedPage = cohortResultCache.getPage(cacheKey, page, size);
+		if (cachedPage != null) {
+			return cachedPage;
+		}
+		CohortResultCache.CohortResult cachedResult = cohortResultCache.getResult(cacheKey);
+		List<EventCriterion> eventCriteriaWithCPTAnalysis = getCPTAnalysisCriteria(patientCriteria);
+		if (eventCriteriaWithCPTAnalysis.isEmpty() && cachedResult != null && cachedResult.getSelection() != null) {
+			return fetchCohortPage(cachedResult.getSelection(), cacheKey, page, size, timer);
+		}
+
+		Map<String, List<Long>> eclToConceptsMap = fetchConceptIds(patientCriteria, timer);
+
+		if (eventCriteriaWithCPTAnalysis.isEmpty() && cohortBitmapIndex.canAnswer(patientCriteria)) {
+			CohortBitmapIndex.Selection selection = cohortBitmapIndex.selectCohort(patientCriteria,
+					criterion -> getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion)), now.get(Calendar.YEAR));
+			timer.split("Selecting patients using bitmap index");
+			cohortResultCache.putResult(cacheKey, new CohortResultCache.CohortResult(selection.getCount(), null, selection));
+			return fetchCohortPage(selection, cacheKey, page, size, timer);
+		}
+
+		BoolQueryBuilder patientQuery = getCohortQuery(patientCriteria, eclToConceptsMap, now);
+
+		PageRequest pageable = PageRequest.of(page, size);
+		NativeSearchQueryBuilder patientElasticQuery = new NativeSearchQueryBuilder()
+				.withQuery(patientQuery)
+				.withPageable(pageable);
+
+		// The total and CPT totals of a cached result are used, only the page of patients is fetched
+		if (!eventCriteriaWithCPTAnalysis.isEmpty() && cachedResult == null) {
+			patientElasticQuery.addAggregation(getCPTAnalysisAggregation(eventCriteriaWithCPTAnalysis, eclToConceptsMap));
+		}
+
+		// Grab page of Patients from Elasticsearch.
+		Query query = patientElasticQuery.build();
+		query.setTrackTotalHits(cachedResult == null);
+		SearchHits<Patient> searchHits = elasticsearchTemplate.search(query, Patient.class);
+		List<Patient> content = searchHits.stream().map(SearchHit::getContent).collect(Collectors.toList());
+		long total = cachedResult != null ? cachedResult.getCount() : searchHits.getTotalHits();
+		Page<Patient> patients = new PageImpl<>(content, query.getPageable(), total);
+
+		timer.split("Fetching patients");
+		Map<String, CPTTotals> cptTotalsMap = null;
+		if (!eventCriteriaWithCPTAnalysis.isEmpty()) {
+			cptTotalsMap = cachedResult != null ? cachedResult.getCptTotals() : getCPTTotals(searchHits.getAggregations());
+			patients = new PatientPageWithCPTTotals(patients.getContent(), pageable, patients.getTotalElements(), cptTotalsMap);
+		}
+		if (cachedResult == null) {
+			cohortResultCache.putResult(cacheKey, new CohortResultCache.CohortResult(total, cptTotalsMap, null));
+		}
 
+		processPatientsForDisplay(patients.getContent(), timer);
+		cohortResultCache.putPage(cacheKey, page, size, patients);
+		logger.info("Times: {}", timer.getTimes());
+		return patients;
+	}
+
+	private Map<String, List<Long>> fetchConceptIds(CohortCriteria patientCriteria, Timer timer) throws ServiceException {
+		return fetchConceptIds(patientCriteria, new HashMap<>(), timer);
+	}
+
+	private Map<String, List<Long>> fetchConceptIds(CohortCriteria patientCriteria, Map<String, List<Long>> eclToConceptsMap, Timer timer) throws ServiceException {
 		// Fetch conceptIds of each criterion
-		Map<String, List<Long>> eclToConceptsMap = new HashMap<>();
-		List<EventCriterion> allEventCriteria = new ArrayList<>(eventCriteria);
-		List<CohortCriteria> exclusionCriteria = patientCriteria.getExclusionCriteria();
-		exclusionCriteria.forEach(excludeCohort -> allEventCriteria.addAll(excludeCohort.getEventCriteria()));
+		List<EventCriterion> allEventCriteria = new ArrayList<>(patientCriteria.getEventCriteria());
+		patientCriteria.getExclusionCriteria().forEach(excludeCohort -> allEventCriteria.addAll(excludeCohort.getEventCriteria()));
 		for (EventCriterion criterion : allEventCriteria) {
 			String criterionEcl = getGivenOrSubsetEcl(criterion);
-			if (criterionEcl != null) {
+			// Not expanded when queried using the subsumption index, the bitmap index, scripts and CPT analysis expand these when used
+			if (criterionEcl != null && !isDescendantQuery(criterionEcl)) {
 				if (!eclToConceptsMap.containsKey(criterionEcl)) {
 					timer.split("Fetching concepts for ECL " + criterionEcl);
 					eclToConceptsMap.put(criterionEcl, snomedService.getConceptIds(criterionEcl));
 				}
 			}
 		}
+		return eclToConceptsMap;
+	}
+
+	private List<Long> getConceptIds(Map<String, List<Long>> eclToConceptsMap, String ecl) throws ServiceException {
+		if (ecl == null) {
+			return Collections.emptyList();
+		}
+		List<Long> conceptIds = eclToConceptsMap.get(ecl);
+		if (conceptIds == null) {
+			conceptIds = snomedService.getConceptIds(ecl);
+			eclToConceptsMap.put(ecl, conceptIds);
+		}
+		return conceptIds;
+	}
+
+	/**
+	 * @return query matching the patients of the cohort, without CPT analysis.
+	 */
+	BoolQueryBuilder getCohortQuery(CohortCriteria patientCriteria, GregorianCalendar now, Timer timer) throws ServiceException {
+		validateCriteria(patientCriteria);
+		return getCohortQuery(patientCriteria, fetchConceptIds(patientCriteria, timer), now);
+	}
+
+	private BoolQueryBuilder getCohortQuery(CohortCriteria patientCriteria, Map<String, List<Long>> eclToConceptsMap, GregorianCalendar now) throws ServiceException {
+		BoolQueryBuilder patientQuery = getPatientClauses(patientCriteria.getDataset(), patientCriteria.getGender(), patientCriteria.getMinAgeNow(),
+				patientCriteria.getMaxAgeNow(), now);
 
 		BoolQueryBuilder filterBoolBuilder = boolQuery();
-		filterBoolBuilder.must(getPatientEventFilter(eventCriteria, eclToConceptsMap));
-		for (CohortCriteria exclusionCriterion : exclusionCriteria) {
+		filterBoolBuilder.must(getPatientEventFilter(patientCriteria.getEventCriteria(), eclToConceptsMap));
+		for (CohortCriteria exclusionCriterion : patientCriteria.getExclusionCriteria()) {
 			BoolQueryBuilder exclusionBool = boolQuery();
 			exclusionBool.must(getPatientClauses(null, exclusionCriterion.getGender(), exclusionCriterion.getMinAgeNow(), exclusionCriterion.getMaxAgeNow(), now));
 			if (!exclusionCriterion.getEventCriteria().isEmpty()) {
@@ -135,96 +511,135 @@ public class PatientQueryService {
 			filterBoolBuilder.mustNot(exclusionBool);
 		}
 		patientQuery.filter(filterBoolBuilder);
+		return patientQuery;
+	}
 
-		Map<Long, TermHolder> conceptTerms = new Long2ObjectOpenHashMap<>();
-		PageRequest pageable = PageRequest.of(page, size);
-		NativeSearchQueryBuilder patientElasticQuery = new NativeSearchQueryBuilder()
-				.withQuery(patientQuery)
-				.withPageable(pageable);
+	private List<EventCriterion> getCPTAnalysisCriteria(CohortCriteria patientCriteria) {
+		return patientCriteria.getEventCriteria().stream().filter(EventCriterion::isIncludeCPTAnalysis).collect(Collectors.toList());
+	}
 
-		List<EventCriterion> eventCriteriaWithCPTAnalysis = eventCriteria.stream().filter(EventCriterion::isIncludeCPTAnalysis).collect(Collectors.toList());
-		if (!eventCriteriaWithCPTAnalysis.isEmpty()) {
-			Set<Long> includeConcepts = new HashSet<>();
-			for (EventCriterion criterion : eventCriteriaWithCPTAnalysis) {
-				List<Long> concepts = eclToConceptsMap.get(criterion.getConceptECL());
-				includeConcepts.addAll(concepts);
+	/**
+	 * Counts patients with each concept of the criteria that maps to a CPT code, using a terms aggregation.
+	 * A patient with several events for a concept is counted once for it, the same as the doc count of the bucket.
+	 */
+	private TermsAggregationBuilder getCPTAnalysisAggregation(List<EventCriterion> eventCriteriaWithCPTAnalysis, Map<String, List<Long>> eclToConceptsMap)
+			throws ServiceException {
+
+		// Only concepts which map to CPT are counted, this keeps the number of buckets small for large concept sets
+		Map<String, CPTCode> snomedToCptMap = cptService.getSnomedToCptMap();
+		Set<String> includeConcepts = new HashSet<>();
+		for (EventCriterion criterion : eventCriteriaWithCPTAnalysis) {
+			List<Long> concepts = getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion));
+			for (Long concept : concepts) {
+				String conceptId = concept.toString();
+				if (snomedToCptMap.containsKey(conceptId)) {
+					includeConcepts.add(conceptId);
+				}
 			}
-			Map<String, Object> params = new HashMap<>();
-			params.put("includeConcepts", includeConcepts);
-			patientElasticQuery.addAggregation(
-					AggregationBuilders.scriptedMetric("eventConceptCounts")
-							.initScript(new Script(ScriptType.INLINE, "painless",
-									"state.concepts = new HashMap();" +
-									// Force elements of includeConcepts set to be of type Long.
-									// Elasticsearch converts number params to the smallest number type which we don't want.
-									"Set forceLongSet = new HashSet();" +
-									"for (def includeConcept : params.includeConcepts) {" +
-									"	forceLongSet.add((Long) includeConcept);" +
-									"}" +
-									"state.includeConcepts = forceLongSet;", params))
-							.mapScript(new Script(
-									"Map concepts = state.concepts;" +
-									"for (Long conceptIdLong : doc['events.conceptId']) {" +
-									"	if (state.includeConcepts.contains(conceptIdLong)) {" +
-									"		String conceptId = conceptIdLong.toString();" +
-									"		if (concepts.containsKey(conceptId)) {" +
-									"			long count = concepts.get(conceptId).longValue() + 1L;" +
-									"			concepts.put(conceptId, count);" +
-									"		} else {" +
-									"			concepts.put(conceptId, 1L);" +
-									"		}" +
-									"	}" +
-									"}"))
-							.combineScript(new Script("return state;"))
-							.reduceScript(new Script(
-									"Map allConcepts = new HashMap();" +
-									"for (state in states) {" +
-									"	if (state != null && state.concepts != null) {" +
-									"		for (conceptId in state.concepts.keySet()) {" +
-									"			if (allConcepts.containsKey(conceptId)) {" +
-									"				long count = allConcepts.get(conceptId) + state.concepts.get(conceptId);" +
-									"				allConcepts.put(conceptId, count);" +
-									"			} else {" +
-									"				allConcepts.put(conceptId, state.concepts.get(conceptId));" +
-									"			}" +
-									"		}" +
-									"	}" +
-									"}" +
-									"return allConcepts;")));
 		}
+		// Size covers every included concept so shards return all buckets and counts are exact
+		return AggregationBuilders.terms(CPT_ANALYSIS_AGGREGATION)
+				.field(Patient.Fields.events + "." + ClinicalEvent.Fields.CONCEPT_ID)
+				.includeExclude(new IncludeExclude(includeConcepts.toArray(new String[0]), null))
+				.size(Math.max(includeConcepts.size(), 1));
+	}
 
-		// Grab page of Patients from Elasticsearch.
-		Query query = patientElasticQuery.build();
-		query.setTrackTotalHits(true);
-		SearchHits<Patient> searchHits = elasticsearchTemplate.search(query, Patient.class);
-		List<Patient> content = searchHits.stream().map(SearchHit::getContent).collect(Collectors.toList());
-		Page<Patient> patients = new PageImpl<>(content, query.getPageable(), searchHits.getTotalHits());
+	private Map<String, CPTTotals> getCPTTotals(Aggregations aggregations) {
+		Terms eventConceptCounts = aggregations.get(CPT_ANALYSIS_AGGREGATION);
+		Map<String, CPTCode> snomedToCptMap = cptService.getSnomedToCptMap();
+		Map<String, CPTTotals> cptTotalsMap = new HashMap<>();
+		for (Terms.Bucket bucket : eventConceptCounts.getBuckets()) {
+			CPTCode cptCode = snomedToCptMap.get(bucket.getKeyAsString());
+			if (cptCode != null) {
+				cptTotalsMap.computeIfAbsent(cptCode.getCptCode(), (c) -> new CPTTotals(cptCode)).addCount(bucket.getDocCount());
+			}
+		}
+		return cptTotalsMap;
+	}
+
+	private boolean isRVUAnalysis(CohortCriteria patientCriteria) {
+		return cptEnrichmentEnabled && !getCPTAnalysisCriteria(patientCriteria).isEmpty();
+	}
+
+	/**
+	 * Sums the RVU totals written to each patient by CPT enrichment.
+	 * These cover all events of each patient with a CPT code, whichever events matched the cohort criteria.
+	 */
+	private List<SumAggregationBuilder> getRVUTotalsAggregations() {
+		List<SumAggregationBuilder> aggregations = new ArrayList<>();
+		for (String field : RVUTotals.Fields.ALL) {
+			aggregations.add(AggregationBuilders.sum(RVU_TOTALS_AGGREGATION_PREFIX + field).field(Patient.Fields.RVU_TOTALS + "." + field));
+		}
+		return aggregations;
+	}
+
+	private RVUTotals getRVUTotals(Aggregations aggregations) {
+		return new RVUTotals(
+				(long) getSum(aggregations, RVUTotals.Fields.CPT_EVENTS),
+				getSum(aggregations, RVUTotals.Fields.WORK_RVU),
+				getSum(aggregations, RVUTotals.Fields.FACILITY_PRACTICE_EXPENSE_RVU),
+				getSum(aggregations, RVUTotals.Fields.NONFACILITY_PRACTICE_EXPENSE_RVU),
+				getSum(aggregations, RVUTotals.Fields.PLI_RVU),
+				getSum(aggregations, RVUTotals.Fields.TOTAL_FACILITY_RVU),
+				getSum(aggregations, RVUTotals.Fields.TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_FACILITY_PAYMENT),
+				getSum(aggregations, RVUTotals.Fields.TOTAL_NONFACILITY_RVU),
+				getSum(aggregations, RVUTotals.Fields.TOTAL_MEDICARE_PHYSICIAN_FEE_SCHEDULE_NON_FACILITY_PAYMENT));
+	}
+
+	private static double getSum(Aggregations aggregations, String field) {
+		Sum sum = aggregations.get(RVU_TOTALS_AGGREGATION_PREFIX + field);
+		return sum.getValue();
+	}
+
+	String[] getPatientIndexNames() {
+		return elasticsearchTemplate.getIndexCoordinatesFor(Patient.class).getIndexNames();
+	}
 
+	/**
+	 * Fetches a page of patients selected by the bitmap index, only the patient documents of the page are loaded from Elasticsearch.
+	 */
+	private Page<Patient> fetchCohortPage(CohortBitmapIndex.Selection selection, String cacheKey, int page, int size, Timer timer) {
+		PageRequest pageable = PageRequest.of(page, size);
+		List<Patient> content = fetchPatientsById(selection.getCompositeRoleIds((int) pageable.getOffset(), size));
+		Page<Patient> patients = new PageImpl<>(content, pageable, selection.getCount());
 		timer.split("Fetching patients");
-		if (!eventCriteriaWithCPTAnalysis.isEmpty()) {
 
-			Aggregations aggregations = searchHits.getAggregations();
-			Map<String, Aggregation> stringAggregationMap = aggregations.asMap();
-			ParsedScriptedMetric eventConceptCounts = (ParsedScriptedMetric) stringAggregationMap.get("eventConceptCounts");
-			Object aggregation = eventConceptCounts.aggregation();
-			@SuppressWarnings("unchecked")
-			Map<String, Integer> conceptCounts = (Map<String, Integer>) aggregation;
-			Map<String, CPTCode> snomedToCptMap = cptService.getSnomedToCptMap();
-			Map<String, CPTTotals> cptTotalsMap = new HashMap<>();
-			for (String conceptId : conceptCounts.keySet()) {
-				CPTCode cptCode = snomedToCptMap.get(conceptId);
-				if (cptCode != null) {
-					cptTotalsMap.computeIfAbsent(cptCode.getCptCode(), (c) -> new CPTTotals(cptCode)).addCount(conceptCounts.get(conceptId));
-				}
-			}
-			patients = new PatientPageWithCPTTotals(patients.getContent(), pageable, patients.getTotalElements(), cptTotalsMap);
+		processPatientsForDisplay(patients.getContent(), timer);
+		cohortResultCache.putPage(cacheKey, page, size, patients);
+		logger.info("Times: {}", timer.getTimes());
+		return patients;
+	}
+
+	private List<Patient> fetchPatientsById(List<String> compositeRoleIds) {
+		if (compositeRoleIds.isEmpty()) {
+			return new ArrayList<>();
 		}
+		NativeSearchQuery query = new NativeSearchQueryBuilder()
+				.withQuery(idsQuery().addIds(compositeRoleIds.toArray(new String[0])))
+				.withPageable(PageRequest.of(0, compositeRoleIds.size()))
+				.build();
+		Map<String, Patient> patientMap = elasticsearchTemplate.search(query, Patient.class).stream()
+				.map(SearchHit::getContent)
+				.collect(Collectors.toMap(Patient::getCompositeRoleId, patient -> patient));
+		// Keep the bitmap order so that pages are stable
+		return compositeRoleIds.stream().map(patientMap::get).filter(Objects::nonNull).collect(Collectors.toList());
+	}
 
-		// Process matching patients for display
-		patients.getContent().forEach(patient -> {
-			if (patient.getEvents() == null) {
-				patient.setEvents(Collections.emptySet());
+	/**
+	 * Prepares patients to be returned, events are put in date order and given a term holder.
+	 * Done before the page is cached so cached patients are not modified afterwards.
+	 */
+	void processPatientsForDisplay(List<Patient> patients, Timer timer) {
+		Map<Long, TermHolder> conceptTerms = new Long2ObjectOpenHashMap<>();
+		patients.forEach(patient -> {
+			// Sorted in place using the primitive arrays of the set, rather than copied
+			ClinicalEventSet events;
+			if (patient.getEvents() instanceof ClinicalEventSet) {
+				events = (ClinicalEventSet) patient.getEvents();
+			} else {
+				events = patient.getEvents() != null ? new ClinicalEventSet(patient.getEvents()) : new ClinicalEventSet();
 			}
+			patient.setEvents(events.sortByDate());
 			patient.getEvents().forEach(event ->
 					event.setConceptTerm(conceptTerms.computeIfAbsent(event.getConceptId(), conceptId -> new TermHolder())));
 		});
@@ -240,8 +655,6 @@ public class PatientQueryService {
 			}
 			timer.split("Fetching concept terms");
 		}
-		logger.info("Times: {}", timer.getTimes());
-		return patients;
 	}
 
 	private void validateCriteria(CohortCriteria patientCriteria) {
@@ -318,9 +731,8 @@ public class PatientQueryService {
 		for (EventCriterion criterion : eventCriteria) {
 			String criterionEcl = getGivenOrSubsetEcl(criterion);
 			if (criterionEcl != null) {
-				List<Long> conceptIds = eclToConceptsMap.get(criterionEcl);
 				BoolQueryBuilder eventQuery = boolQuery();
-				eventQuery.must(termsQuery(Patient.Fields.events + "." + ClinicalEvent.Fields.CONCEPT_ID, conceptIds));
+				eventQuery.must(getEventConceptQuery(criterionEcl, eclToConceptsMap));
 				if (criterion.getMinDate() != null || criterion.getMaxDate() != null) {
 					// Setting this date range is not enough to filter the patient events because all events and all dates
 					// are stored together in the index of the patient document.
@@ -346,11 +758,38 @@ public class PatientQueryService {
 		if (eventCriteria.stream().anyMatch(EventCriterion::hasTimeConstraint)
 				|| eventCriteria.stream().anyMatch(EventCriterion::hasFrequency)) {
 
+			if ("native".equals(eventFilterScript)) {
+				// Same logic as the Painless script below, compiled into the Elasticsearch plugin.
+				// Both evaluate events in concept id then date order, so relative criteria use the same base event.
+				List<Map<String, Object>> criteriaParams = new ArrayList<>();
+				for (EventCriterion criterion : eventCriteria) {
+					List<Long> conceptIds = getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion));
+					List<TermsLookup> lookups = conceptSetService.getStoredSetLookups(conceptIds);
+					if (lookups == null) {
+						criteriaParams.add(EventCriteriaMatcher.toTemporalCriterion(criterion, conceptIds).toParams());
+					} else {
+						// Large sets are read by the script from the stored set, which each node caches, rather than sent with every query
+						criteriaParams.add(EventCriteriaMatcher.toTemporalCriterion(criterion, Collections.emptyList()).toParams(lookups.stream()
+								.map(lookup -> TemporalCriterion.conceptSetDocument(lookup.index(), lookup.id(), lookup.path()))
+								.collect(Collectors.toList())));
+					}
+				}
+				Map<String, Object> params = new HashMap<>();
+				params.put(TemporalScriptEngine.CRITERIA_PARAM, criteriaParams);
+				patientFilter.filter(scriptQuery(new Script(ScriptType.INLINE, TemporalScriptEngine.LANG, TemporalScriptEngine.TEMPORAL_EVENT_MATCH, params)));
+				return patientFilter;
+			}
+
 			// Convert parameter objects to simple types to be used in Elasticsearch Painless script which executes within a node.
-			List<Map<String, Object>> eventCriteriaMaps = eventCriteria.stream().map(criterion -> {
+			// Painless can not read other documents so concept ids are always sent inline, the native script is better for large concept sets.
+			List<Map<String, Object>> eventCriteriaMaps = new ArrayList<>();
+			for (EventCriterion criterion : eventCriteria) {
 				Map<String, Object> criterionMap = new HashMap<>();
 				criterionMap.put("has", criterion.isHas());
 				criterionMap.put("conceptECL", criterion.getConceptECL());
+				// Concept ids sorted so the script can binary search them.
+				List<Long> conceptIds = getConceptIds(eclToConceptsMap, getGivenOrSubsetEcl(criterion));
+				criterionMap.put("conceptIds", conceptIds.stream().sorted().collect(Collectors.toList()));
 				criterionMap.put("minDate", criterion.getMinDate() != null ? criterion.getMinDate().getTime() : null);
 				criterionMap.put("maxDate", criterion.getMaxDate() != null ? criterion.getMaxDate().getTime() : null);
 				criterionMap.put("withinDaysAfterPreviouslyMatchedEvent", criterion.getWithinDaysAfterPreviouslyMatchedEvent());
@@ -365,14 +804,13 @@ public class PatientQueryService {
 					frequencyMap.put("timeUnitMillis", frequency.getTimeUnit() != null ? frequency.getTimeUnit().getMilliseconds() : 0);
 					criterionMap.put("frequency", frequencyMap);
 				}
-				return criterionMap;
-			}).collect(Collectors.toList());
+				eventCriteriaMaps.add(criterionMap);
+			}
 
 			int dayInMillis = 1000 * 60 * 60 * 24;
 			Map<String, Object> params = new HashMap<>();
 			params.put("dayInMillis", dayInMillis);
 			params.put("criterionMapsList", eventCriteriaMaps);
-			params.put("eclToConceptsMap", eclToConceptsMap);
 
 			/*
 				The following script is written in the Elasticsearch Painless script which is a Java like language.
@@ -393,8 +831,33 @@ public class PatientQueryService {
 					"	}" +
 					"	return 0;" +
 					"}" +
+					// Util method, reads a big-endian long from the packed events
+					"long readLong(byte[] bytes, int offset) {" +
+					"	long value = 0;" +
+					"	for (int i = 0; i < 8; i = i + 1) {" +
+					"		value = (value << 8) | (bytes[offset + i] & 0xff);" +
+					"	}" +
+					"	return value;" +
+					"}" +
+					// Util method, binary search of the sorted criterion concept ids
+					"boolean containsConcept(List criterionConceptIds, long conceptId) {" +
+					"	int low = 0;" +
+					"	int high = criterionConceptIds.size() - 1;" +
+					"	while (low <= high) {" +
+					"		int mid = (low + high) / 2;" +
+					"		long midConceptId = criterionConceptIds.get(mid).longValue();" +
+					"		if (midConceptId < conceptId) {" +
+					"			low = mid + 1;" +
+					"		} else if (midConceptId > conceptId) {" +
+					"			high = mid - 1;" +
+					"		} else {" +
+					"			return true;" +
+					"		}" +
+					"	}" +
+					"	return false;" +
+					"}" +
 					// Util method
-					"boolean frequencyMatch(def doc, Map criterionMap, List criterionConceptIds) {" +
+					"boolean frequencyMatch(long[] eventConceptIds, long[] eventDates, Map criterionMap, List criterionConceptIds) {" +
 					"	Map frequencyMap = criterionMap.get('frequency');" +
 					"	if (frequencyMap == null) {" +
 					"		return true;" +
@@ -406,12 +869,9 @@ public class PatientQueryService {
 
 						// Find all events for this patient with a matching conceptId
 					"	List dates = new ArrayList();" +
-					"	for (String conceptDateString : doc['events.conceptDate.keyword']) {" +
-					"		int commaIndex = conceptDateString.indexOf(',');" +
-					"		long candidateEventConceptId = Long.parseLong(conceptDateString.substring(0, commaIndex));" +
-					"		long candidateEventDate = Long.parseLong(conceptDateString.substring(commaIndex + 1));" +
-					"		if (criterionConceptIds.contains(candidateEventConceptId)) {" +
-					"			dates.add(candidateEventDate);" +
+					"	for (int e = 0; e < eventConceptIds.length; e = e + 1) {" +
+					"		if (containsConcept(criterionConceptIds, eventConceptIds[e])) {" +
+					"			dates.add(eventDates[e]);" +
 					"		}" +
 					"	}" +
 					"" +
@@ -462,20 +922,53 @@ public class PatientQueryService {
 					"	return true;" +
 					"}\n" +
 //					"Debug.explain(criterionMapsList);" +
-//					"Debug.explain(doc['events.conceptDate.keyword']);" +
+
+					// Load the patient's events into arrays once, from the packed doc value of pairs of longs, concept id then date.
+					// Documents written before the packed field was added, and not yet reindexed, use the "conceptId,date" keywords.
+					"long[] eventConceptIds = null;" +
+					"long[] eventDates = null;" +
+					"if (doc.containsKey('" + Patient.Fields.EVENTS_PACKED + "') && doc['" + Patient.Fields.EVENTS_PACKED + "'].size() > 0) {" +
+					"	def packed = doc['" + Patient.Fields.EVENTS_PACKED + "'].value;" +
+					"	int eventCount = packed.length / 16;" +
+					"	eventConceptIds = new long[eventCount];" +
+					"	eventDates = new long[eventCount];" +
+					"	for (int e = 0; e < eventCount; e = e + 1) {" +
+					"		eventConceptIds[e] = readLong(packed.bytes, packed.offset + e * 16);" +
+					"		eventDates[e] = readLong(packed.bytes, packed.offset + e * 16 + 8);" +
+					"	}" +
+					"} else {" +
+					"	List conceptDates = doc.containsKey('" + TemporalScriptEngine.LEGACY_FIELD + "') ? doc['" + TemporalScriptEngine.LEGACY_FIELD + "'] : new ArrayList();" +
+					"	int eventCount = conceptDates.size();" +
+					"	eventConceptIds = new long[eventCount];" +
+					"	eventDates = new long[eventCount];" +
+					"	for (int e = 0; e < eventCount; e = e + 1) {" +
+					"		String conceptDateString = conceptDates.get(e);" +
+					"		int commaIndex = conceptDateString.indexOf(',');" +
+					"		eventConceptIds[e] = Long.parseLong(conceptDateString.substring(0, commaIndex));" +
+					"		eventDates[e] = Long.parseLong(conceptDateString.substring(commaIndex + 1));" +
+					"	}" +
+						// Keyword values are in string order, sort by concept id then date so the base event of relative criteria
+						// is the same as from the packed value and the native script, see TemporalEventMatcher.sortEvents.
+					"	for (int i = 1; i < eventCount; i = i + 1) {" +
+					"		long conceptId = eventConceptIds[i];" +
+					"		long date = eventDates[i];" +
+					"		int j = i - 1;" +
+					"		while (j >= 0 && (eventConceptIds[j] > conceptId || (eventConceptIds[j] == conceptId && eventDates[j] > date))) {" +
+					"			eventConceptIds[j + 1] = eventConceptIds[j];" +
+					"			eventDates[j + 1] = eventDates[j];" +
+					"			j = j - 1;" +
+					"		}" +
+					"		eventConceptIds[j + 1] = conceptId;" +
+					"		eventDates[j + 1] = date;" +
+					"	}" +
+					"}" +
 
 					"boolean match = false;" +
 					"long baseEventDate = 0;" +
 					// Iterate each criterion to validate the events for this patient document
 					"for (def criterionMap : criterionMapsList) {" +
 //					"	Debug.explain('criterionMapsList:' + criterionMapsList);" +
-					"	List criterionConceptIds = params.eclToConceptsMap.get(criterionMap.get('conceptECL'));" +
-						// Force elements of criterionConceptIds to be long. Elasticsearch converts number params to the smallest number type which we don't want.
-					"	List forceLongList = new ArrayList();" +
-					"	for (def criterionConceptId : criterionConceptIds) {" +
-					"		forceLongList.add(((Long) criterionConceptId).longValue());" +
-					"	}" +
-					"	criterionConceptIds = forceLongList;" +
+					"	List criterionConceptIds = criterionMap.get('conceptIds');" +
 					"" +
 					"	long minDate = -1;" +
 					"	long maxDate = -1;" +
@@ -504,12 +997,10 @@ public class PatientQueryService {
 
 						// Iterate patient's events
 					"	boolean eventMatchFound = false;" +
-					"	for (String conceptDateString : doc['events.conceptDate.keyword']) {" +
+					"	for (int e = 0; e < eventConceptIds.length; e = e + 1) {" +
 					"		if (eventMatchFound == false) {" +
-					"			int commaIndex = conceptDateString.indexOf(',');" +
-					"			long eventConceptId = Long.parseLong(conceptDateString.substring(0, commaIndex));" +
-					"			long eventDate = Long.parseLong(conceptDateString.substring(commaIndex + 1));" +
-					"			if (criterionConceptIds.contains(eventConceptId)) {" +
+					"			if (containsConcept(criterionConceptIds, eventConceptIds[e])) {" +
+					"				long eventDate = eventDates[e];" +
 					"				if ((minDate == -1 || eventDate >= minDate)" +
 					"					&& (maxDate == -1 || eventDate < maxDate)" +
 					"					&& (minEventDate == 0 || eventDate >= minEventDate)" +
@@ -522,7 +1013,7 @@ public class PatientQueryService {
 					"					}" +
 					"" +
 										// This event matches so far, frequency check next
-					"					boolean frequencyMatch = frequencyMatch(doc, criterionMap, criterionConceptIds);" +
+					"					boolean frequencyMatch = frequencyMatch(eventConceptIds, eventDates, criterionMap, criterionConceptIds);" +
 					"					if (frequencyMatch == false) {" +
 //					"						Debug.explain('frequencyMatch: false');"
 					"						return false;" +
@@ -547,6 +1038,29 @@ public class PatientQueryService {
 		return patientFilter;
 	}
 
+	private boolean isDescendantQuery(String ecl) {
+		return subsumptionQueryEnabled && DESCENDANTS_ECL_PATTERN.matcher(ecl).matches();
+	}
+
+	private QueryBuilder getEventConceptQuery(String ecl, Map<String, List<Long>> eclToConceptsMap) throws ServiceException {
+		String conceptIdField = Patient.Fields.events + "." + ClinicalEvent.Fields.CONCEPT_ID;
+		if (subsumptionQueryEnabled) {
+			Matcher matcher = DESCENDANTS_ECL_PATTERN.matcher(ecl);
+			if (matcher.matches()) {
+				// Events are indexed with their ancestors so descendants are found using the focus concept alone.
+				String focusConceptId = matcher.group(2);
+				QueryBuilder descendantQuery = termQuery(Patient.Fields.events + "." + ClinicalEvent.Fields.ANCESTOR_CONCEPT_IDS, focusConceptId);
+				if ("<<".equals(matcher.group(1))) {
+					return boolQuery()
+							.should(termQuery(conceptIdField, Long.parseLong(focusConceptId)))
+							.should(descendantQuery);
+				}
+				return descendantQuery;
+			}
+		}
+		return conceptSetService.getTermsQuery(conceptIdField, getConceptIds(eclToConceptsMap, ecl));
+	}
+
 	private String getGivenOrSubsetEcl(EventCriterion criterion) throws ServiceException {
 		if (criterion != null) {
 			String subsetId = criterion.getConceptSubsetId();
@@ -563,4 +1077,8 @@ public class PatientQueryService {
 		}
 		return null;
 	}
+
+	public interface CountProgress {
+		void cohortsCounted(int counted, int total);
+	}
 }
@@ -0,0 +1,215 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.snomed.heathanalytics.server.model.ReportDefinition;
+import org.snomed.heathanalytics.server.model.ReportJob;
+import org.snomed.heathanalytics.server.model.StatisticalCorrelationReportDefinition;
+import org.snomed.heathanalytics.server.store.ReportJobRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs reports in the background so that long reports do not hold a request open.
+ * Jobs run on a fixed number of threads, waiting jobs are taken from each user in turn.
+ * Jobs and their results are stored in the 'report-job' index. A report submitted again is not run again
+ * if a completed job has the same definition, no dataset has changed since it was run and it finished within report-jobs.reuse-result-minutes.
+ * The age limit covers changes the key does not see, such as edits to subsets, a new terminology release or new CPT files.
+ */
+@Service
+public class ReportJobService {
+
+	@Autowired
+	private ReportService reportService;
+
+	@Autowired
+	private ReportJobRepository reportJobRepository;
+
+	@Autowired
+	private DatasetVersionService datasetVersionService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	private final FairJobQueue<ActiveJob> queue;
+	private final ExecutorService executor;
+	private final long reuseResultMillis;
+
+	// Jobs waiting or running in this process, by id
+	private final Map<String, ActiveJob> activeJobs = new ConcurrentHashMap<>();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public ReportJobService(@Value("${report-jobs.threads}") int threads,
+			@Value("${report-jobs.max-queued}") int maxQueued,
+			@Value("${report-jobs.max-queued-per-user}") int maxQueuedPerUser,
+			@Value("${report-jobs.reuse-result-minutes}") long reuseResultMinutes) {
+
+		queue = new FairJobQueue<>(maxQueued, maxQueuedPerUser);
+		executor = Executors.newFixedThreadPool(threads);
+		reuseResultMillis = TimeUnit.MINUTES.toMillis(reuseResultMinutes);
+	}
+
+	/**
+	 * @throws TooManyJobsException if the queue, or the user's queue, is full.
+	 */
+	public ReportJob submitReport(ReportDefinition reportDefinition, String user) throws ServiceException {
+		return submit(ReportJob.Type.REPORT, reportDefinition, user);
+	}
+
+	/**
+	 * @throws TooManyJobsException if the queue, or the user's queue, is full.
+	 */
+	public ReportJob submitStatisticalReport(StatisticalCorrelationReportDefinition reportDefinition, String user) throws ServiceException {
+		return submit(ReportJob.Type.STATISTICAL_CORRELATION, reportDefinition, user);
+	}
+
+	private ReportJob submit(ReportJob.Type type, Object definition, String user) throws ServiceException {
+		String definitionJson;
+		try {
+			definitionJson = objectMapper.writeValueAsString(definition);
+		} catch (JsonProcessingException e) {
+			throw new ServiceException("Failed to store report definition.", e);
+		}
+		String resultKey = Hashing.sha256().hashString(type + definitionJson, StandardCharsets.UTF_8) + "@" + datasetVersionService.getVersion(null);
+		if (reuseResultMillis > 0) {
+			List<ReportJob> completedJobs = reportJobRepository.findByResultKeyAndStatusAndFinishedGreaterThan(resultKey,
+					ReportJob.Status.COMPLETED, System.currentTimeMillis() - reuseResultMillis);
+			if (!completedJobs.isEmpty()) {
+				return completedJobs.get(0);
+			}
+		}
+
+		ActiveJob activeJob = new ActiveJob(new ReportJob(UUID.randomUUID().toString(), user, type, definitionJson, resultKey), definition);
+		// Active and stored before it is queued, so a job started straight away is never overwritten with the queued status
+		activeJobs.put(activeJob.job.getId(), activeJob);
+		reportJobRepository.save(activeJob.job);
+		try {
+			queue.add(user, activeJob);
+		} catch (TooManyJobsException e) {
+			// Never accepted so not kept
+			activeJobs.remove(activeJob.job.getId());
+			reportJobRepository.deleteById(activeJob.job.getId());
+			throw e;
+		}
+		// Each task runs whichever job is next, so jobs start in the order of the fair queue rather than the order submitted
+		executor.execute(this::runNextJob);
+		return activeJob.job;
+	}
+
+	public ReportJob getJob(String id) {
+		ActiveJob activeJob = activeJobs.get(id);
+		if (activeJob != null) {
+			return activeJob.job;
+		}
+		ReportJob job = reportJobRepository.findById(id).orElseThrow(() -> new NotFoundException("Report job not found."));
+		if (!job.getStatus().isFinished()) {
+			// Not active in this process so it was lost when the server stopped
+			job.setMessage("The server was restarted before the report completed, please submit it again.");
+			job.setStatus(ReportJob.Status.FAILED);
+			reportJobRepository.save(job);
+		}
+		return job;
+	}
+
+	/**
+	 * @return result of the report as JSON.
+	 * @throws IllegalStateException if the job has not completed.
+	 */
+	public String getResultJson(String id) {
+		ReportJob job = getJob(id);
+		if (job.getStatus() != ReportJob.Status.COMPLETED) {
+			throw new IllegalStateException(String.format("The report job is %s.", job.getStatus()));
+		}
+		return job.getResultJson();
+	}
+
+	/**
+	 * Removes the job from the queue, or stops it after the current batch of cohorts if it is running.
+	 */
+	public ReportJob cancel(String id) {
+		ActiveJob activeJob = activeJobs.get(id);
+		if (activeJob == null) {
+			return getJob(id);
+		}
+		if (queue.remove(activeJob.job.getUser(), activeJob)) {
+			activeJob.job.setStatus(ReportJob.Status.CANCELLED);
+			activeJobs.remove(id);
+			reportJobRepository.save(activeJob.job);
+		} else {
+			activeJob.cancelled = true;
+		}
+		return activeJob.job;
+	}
+
+	private void runNextJob() {
+		ActiveJob activeJob = queue.poll();
+		if (activeJob == null) {
+			// Cancelled while waiting
+			return;
+		}
+		ReportJob job = activeJob.job;
+		job.setStatus(ReportJob.Status.RUNNING);
+		reportJobRepository.save(job);
+		PatientQueryService.CountProgress progress = (counted, total) -> {
+			if (activeJob.cancelled) {
+				throw new CancellationException();
+			}
+			job.setProgress(counted, total);
+		};
+		try {
+			Object result;
+			if (job.getType() == ReportJob.Type.REPORT) {
+				result = reportService.runReport((ReportDefinition) activeJob.definition, progress);
+			} else {
+				result = reportService.runStatisticalReport((StatisticalCorrelationReportDefinition) activeJob.definition, progress);
+			}
+			job.setResultJson(objectMapper.writeValueAsString(result));
+			job.setStatus(ReportJob.Status.COMPLETED);
+		} catch (CancellationException e) {
+			job.setStatus(ReportJob.Status.CANCELLED);
+		} catch (Exception e) {
+			logger.error("Report job {} failed.", job.getId(), e);
+			job.setMessage(e.getMessage());
+			job.setStatus(ReportJob.Status.FAILED);
+		} finally {
+			try {
+				reportJobRepository.save(job);
+			} finally {
+				activeJobs.remove(job.getId());
+			}
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private static final class ActiveJob {
+
+		private final ReportJob job;
+		private final Object definition;
+		private volatile boolean cancelled;
+
+		private ActiveJob(ReportJob job, Object definition) {
+			this.job = job;
+			this.definition = definition;
+		}
+	}
+}
@@ -1,19 +1,16 @@
 package org.snomed.heathanalytics.server.service;
 
 import org.slf4j.LoggerFactory;
-import org.snomed.heathanalytics.model.Patient;
 import org.snomed.heathanalytics.server.model.*;
+import org.snomed.heathanalytics.server.pojo.CohortCount;
+import org.snomed.heathanalytics.server.pojo.CohortCounts;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.domain.Page;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 @Service
 public class ReportService {
@@ -21,109 +18,108 @@ public class ReportService {
 	@Autowired
 	private PatientQueryService patientQueryService;
 
-	private final ExecutorService executorService = Executors.newFixedThreadPool(4);
-
 	public Report runReport(ReportDefinition reportDefinition) throws ServiceException {
+		return runReport(reportDefinition, (counted, total) -> {});
+	}
+
+	public Report runReport(ReportDefinition reportDefinition, PatientQueryService.CountProgress progress) throws ServiceException {
 		Timer timer = new Timer();
-		// Fetch page of patients matching top level criteria
 		CohortCriteria patientCriteria = reportDefinition.getCriteria();
-		int count;
-		if (patientCriteria != null) {
-			count = patientQueryService.fetchCohortCount(patientCriteria);
-		} else {
-			count = (int) patientQueryService.getStats().getPatientCount();
-		}
-		timer.split("cohort count");
-		Report report = new Report(reportDefinition.getName(), count, patientCriteria);
 
-		List<List<SubReportDefinition>> subGroupLists = reportDefinition.getGroups();
-		addReportGroups(report, subGroupLists, 0, patientCriteria, timer);
+		// Plan the whole group tree up front so that all cohorts are counted together in batched searches
+		List<PlannedGroup> plannedGroups = planReportGroups(reportDefinition.getGroups(), 0, patientCriteria);
+		List<CohortCriteria> cohorts = new ArrayList<>();
+		cohorts.add(patientCriteria != null ? withoutCPTAnalysis(patientCriteria) : new CohortCriteria());
+		collectGroupCriteria(plannedGroups, cohorts);
+		timer.split("plan report");
+
+		List<CohortCount> counts = patientQueryService.fetchCohortCountsBatch(cohorts, progress);
+		timer.split("cohort counts");
+
+		Iterator<CohortCount> countIterator = counts.iterator();
+		Report report = new Report(reportDefinition.getName(), countIterator.next().getCount(), patientCriteria);
+		addReportGroups(report, plannedGroups, countIterator);
 
 		LoggerFactory.getLogger(getClass()).info("Times: {}", timer.getTimes());
 		return report;
 	}
 
 	public StatisticalCorrelationReport runStatisticalReport(StatisticalCorrelationReportDefinition reportDefinition) throws ServiceException {
-		CohortCriteria patientCriteria = new CohortCriteria();
+		return runStatisticalReport(reportDefinition, (counted, total) -> {});
+	}
 
-		// Copy base criteria
-		patientCriteria.copyCriteriaWhereMoreSpecific(reportDefinition.getBaseCriteria());
+	public StatisticalCorrelationReport runStatisticalReport(StatisticalCorrelationReportDefinition reportDefinition,
+			PatientQueryService.CountProgress progress) throws ServiceException {
+
+		CohortCriteria baseCriteria = reportDefinition.getBaseCriteria();
 
 		EventCriterion treatmentCriterion = reportDefinition.getTreatmentCriterion();
 		InputValidationHelper.checkInput("treatmentCriterion is required for the statistical test.", treatmentCriterion != null);
 		EventCriterion negativeOutcomeCriterion = reportDefinition.getNegativeOutcomeCriterion();
 		InputValidationHelper.checkInput("negativeOutcomeCriterion is required for a statistical test.", negativeOutcomeCriterion != null);
-
-		// A. Count patients WITH treatment, WITH negative outcome
-		List<EventCriterion> eventCriteria = patientCriteria.getEventCriteria();
-		eventCriteria.add(treatmentCriterion);
-		eventCriteria.add(negativeOutcomeCriterion);
-		int withTreatmentWithNegativeOutcomeCount = patientQueryService.fetchCohortCount(patientCriteria);
-
-		// B. Count patients WITH treatment
-		removeLast(eventCriteria);
-		int withTreatmentCount = patientQueryService.fetchCohortCount(patientCriteria);
+		EventCriterion withoutTreatmentCriterion = treatmentCriterion.clone();
+		withoutTreatmentCriterion.setHas(false);
+
+		// All four cohorts and the total patient count are counted in one search.
+		CohortCounts counts = patientQueryService.fetchCohortCounts(Arrays.asList(
+				// A. Count patients WITH treatment, WITH negative outcome
+				combineCriteria(baseCriteria, treatmentCriterion, negativeOutcomeCriterion),
+				// B. Count patients WITH treatment
+				combineCriteria(baseCriteria, treatmentCriterion),
+				// C. Count patients WITHOUT treatment, WITH negative outcome
+				combineCriteria(baseCriteria, withoutTreatmentCriterion, negativeOutcomeCriterion),
+				// D. Count patients WITHOUT test variable
+				combineCriteria(baseCriteria, withoutTreatmentCriterion)), progress);
 
 		// Has test variable chance of outcome = A / B
-
-		// C. Count patients WITHOUT treatment, WITH negative outcome
-		treatmentCriterion.setHas(false);
-		eventCriteria.add(negativeOutcomeCriterion);
-		int withoutTreatmentWithNegativeOutcomeCount = patientQueryService.fetchCohortCount(patientCriteria);
-
-		// D. Count patients WITHOUT test variable
-		removeLast(eventCriteria);
-		int withoutTreatmentCount = patientQueryService.fetchCohortCount(patientCriteria);
-		treatmentCriterion.setHas(true);// reset
-
 		// Has not test variable chance of outcome = C / D
 
 		return new StatisticalCorrelationReport(
-				(int) patientQueryService.getStats().getPatientCount(),
-				withTreatmentCount,
-				withTreatmentWithNegativeOutcomeCount,
-				withoutTreatmentCount,
-				withoutTreatmentWithNegativeOutcomeCount);
+				counts.getAllPatientsCount(),
+				counts.getCount(1),
+				counts.getCount(0),
+				counts.getCount(3),
+				counts.getCount(2));
 	}
 
 
-	private void addReportGroups(Report report, List<List<SubReportDefinition>> groupLists, int listsIndex, CohortCriteria patientCriteria, Timer timer) throws ServiceException {
+	private List<PlannedGroup> planReportGroups(List<List<SubReportDefinition>> groupLists, int listsIndex, CohortCriteria patientCriteria) {
+		List<PlannedGroup> plannedGroups = new ArrayList<>();
 		if (groupLists != null && groupLists.size() > listsIndex) {
-			List<SubReportDefinition> groupList = groupLists.get(listsIndex);
-
 			// Clear CPT Analysis flag of inherited criterion to allow a report focused on the most specific criteria
 			if (patientCriteria != null) {
-				patientCriteria = patientCriteria.clone();
-				patientCriteria.getEventCriteria().forEach(eventCriterion -> eventCriterion.setIncludeCPTAnalysis(false));
+				patientCriteria = withoutCPTAnalysis(patientCriteria);
 			}
-
-			List<Future<Page<Patient>>> futures = new ArrayList<>();
-			List<CohortCriteria> combinedCriteriaList = new ArrayList<>();
-			for (SubReportDefinition reportDefinition : groupList) {
+			for (SubReportDefinition reportDefinition : groupLists.get(listsIndex)) {
 				CohortCriteria combinedCriteria = combineCriteria(patientCriteria, reportDefinition.getCriteria());
-				futures.add(executorService.submit(() -> patientQueryService.fetchCohort(combinedCriteria)));
-				combinedCriteriaList.add(combinedCriteria);
-			}
-			try {
-				for (int i = 0; i < futures.size(); i++) {
-					Future<Page<Patient>> future = futures.get(i);
-					SubReportDefinition reportDefinition = groupList.get(i);
-					CohortCriteria combinedCriteria = combinedCriteriaList.get(i);
-					Page<Patient> patientsPage = future.get();
-					Map<String, CPTTotals> cptTotals = null;
-					if (patientsPage instanceof PatientPageWithCPTTotals) {
-						PatientPageWithCPTTotals pageWithEventCounts = (PatientPageWithCPTTotals) patientsPage;
-						cptTotals = pageWithEventCounts.getCptTotals();
-					}
-					Report reportGroup = new Report(reportDefinition.getName(), (int) patientsPage.getTotalElements(), combinedCriteria, cptTotals);
-					report.addGroup(reportGroup);
-					addReportGroups(reportGroup, groupLists, listsIndex + 1, combinedCriteria, timer);
-
-				}
-			} catch (InterruptedException | ExecutionException e) {
-				throw new ServiceException("Failed to fetch cohort or group.", e);
+				plannedGroups.add(new PlannedGroup(reportDefinition.getName(), combinedCriteria,
+						planReportGroups(groupLists, listsIndex + 1, combinedCriteria)));
 			}
 		}
+		return plannedGroups;
+	}
+
+	private void collectGroupCriteria(List<PlannedGroup> plannedGroups, List<CohortCriteria> cohorts) {
+		for (PlannedGroup plannedGroup : plannedGroups) {
+			cohorts.add(plannedGroup.criteria);
+			collectGroupCriteria(plannedGroup.groups, cohorts);
+		}
+	}
+
+	private void addReportGroups(Report report, List<PlannedGroup> plannedGroups, Iterator<CohortCount> countIterator) {
+		// Same traversal order as collectGroupCriteria
+		for (PlannedGroup plannedGroup : plannedGroups) {
+			CohortCount count = countIterator.next();
+			Report reportGroup = new Report(plannedGroup.name, count.getCount(), plannedGroup.criteria, count.getCptTotals(), count.getRvuTotals());
+			report.addGroup(reportGroup);
+			addReportGroups(reportGroup, plannedGroup.groups, countIterator);
+		}
+	}
+
+	private CohortCriteria withoutCPTAnalysis(CohortCriteria patientCriteria) {
+		CohortCriteria criteria = patientCriteria.clone();
+		criteria.getEventCriteria().forEach(eventCriterion -> eventCriterion.setIncludeCPTAnalysis(false));
+		return criteria;
 	}
 
 	private CohortCriteria combineCriteria(CohortCriteria mainCriteria, CohortCriteria additionalCriteria) {
@@ -133,8 +129,26 @@ public class ReportService {
 		return combinedCriteria;
 	}
 
-	private void removeLast(List<EventCriterion> list) {
-		list.remove(list.size() - 1);
+	private CohortCriteria combineCriteria(CohortCriteria mainCriteria, EventCriterion... additionalEventCriteria) {
+		CohortCriteria combinedCriteria = new CohortCriteria();
+		combinedCriteria.copyCriteriaWhereMoreSpecific(mainCriteria);
+		for (EventCriterion eventCriterion : additionalEventCriteria) {
+			combinedCriteria.addEventCriterion(eventCriterion);
+		}
+		return combinedCriteria;
+	}
+
+	private static final class PlannedGroup {
+
+		private final String name;
+		private final CohortCriteria criteria;
+		private final List<PlannedGroup> groups;
+
+		private PlannedGroup(String name, CohortCriteria criteria, List<PlannedGroup> groups) {
+			this.name = name;
+			this.criteria = criteria;
+			this.groups = groups;
+		}
 	}
 
 }
@@ -0,0 +1,375 @@
+package org.snomed.heathanalytics.server.service;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * In-memory SNOMED CT IS-A hierarchy loaded from an RF2 snapshot.
+ * Concepts are held by index, their position in the sorted array of active concept ids, so that all structures are primitive int arrays.
+ * Parents and children are held as adjacency arrays. The transitive closure is precomputed so that ancestors and descendants
+ * of a concept are a single range of an array, sorted by concept index and therefore also by concept id.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class SnomedHierarchy {
+
+	private static final String TAB = "\t";
+	private static final String ACTIVE = "1";
+	private static final long IS_A = 116680003L;
+	private static final long INFERRED_RELATIONSHIP = 900000000000011006L;
+
+	private final long[] conceptIds;
+
+	private final int[] parentOffsets;
+	private final int[] parents;
+	private final int[] childOffsets;
+	private final int[] children;
+
+	// Ancestors of each concept are a range of the ancestors array, the ranges are in topological order rather than concept order.
+	private final int[] ancestorStart;
+	private final int[] ancestorEnd;
+	private final int[] ancestors;
+	private final int[] descendantOffsets;
+	private final int[] descendants;
+
+	private final Map<Long, int[]> refsetMembers;
+
+	private SnomedHierarchy(long[] conceptIds, int[][] parentAdjacency, int[][] childAdjacency, int[] ancestorStart, int[] ancestorEnd, int[] ancestors,
+			int[] descendantOffsets, int[] descendants, Map<Long, int[]> refsetMembers) {
+
+		this.conceptIds = conceptIds;
+		this.parentOffsets = parentAdjacency[0];
+		this.parents = parentAdjacency[1];
+		this.childOffsets = childAdjacency[0];
+		this.children = childAdjacency[1];
+		this.ancestorStart = ancestorStart;
+		this.ancestorEnd = ancestorEnd;
+		this.ancestors = ancestors;
+		this.descendantOffsets = descendantOffsets;
+		this.descendants = descendants;
+		this.refsetMembers = refsetMembers;
+	}
+
+	/**
+	 * Loads active concepts, active inferred IS-A relationships and active simple refset members from the RF2 snapshot files
+	 * found anywhere under the given directory. Files from more than one edition or extension can be combined in the same directory.
+	 */
+	public static SnomedHierarchy load(File rf2SnapshotDirectory) throws IOException {
+		Logger logger = LoggerFactory.getLogger(SnomedHierarchy.class);
+		List<Path> files;
+		try (Stream<Path> paths = Files.walk(rf2SnapshotDirectory.toPath())) {
+			files = paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<Path> conceptFiles = filesStartingWith(files, "sct2_Concept_Snapshot");
+		if (conceptFiles.isEmpty()) {
+			throw new IOException("No sct2_Concept_Snapshot file found in " + rf2SnapshotDirectory.getAbsolutePath());
+		}
+
+		Builder builder = new Builder();
+		for (Path conceptFile : conceptFiles) {
+			logger.info("Loading {}", conceptFile.getFileName());
+			readRows(conceptFile, columns -> {
+				if (ACTIVE.equals(columns[2])) {
+					builder.addConcept(Long.parseLong(columns[0]));
+				}
+			});
+		}
+		for (Path relationshipFile : filesStartingWith(files, "sct2_Relationship_Snapshot")) {
+			logger.info("Loading {}", relationshipFile.getFileName());
+			readRows(relationshipFile, columns -> {
+				if (ACTIVE.equals(columns[2]) && Long.parseLong(columns[7]) == IS_A && Long.parseLong(columns[8]) == INFERRED_RELATIONSHIP) {
+					builder.addIsA(Long.parseLong(columns[4]), Long.parseLong(columns[5]));
+				}
+			});
+		}
+		for (Path refsetFile : filesStartingWith(files, "der2_Refset_Simple")) {
+			if (refsetFile.getFileName().toString().contains("Snapshot")) {
+				logger.info("Loading {}", refsetFile.getFileName());
+				readRows(refsetFile, columns -> {
+					if (ACTIVE.equals(columns[2])) {
+						builder.addRefsetMember(Long.parseLong(columns[4]), Long.parseLong(columns[5]));
+					}
+				});
+			}
+		}
+		return builder.build();
+	}
+
+	private static List<Path> filesStartingWith(List<Path> files, String prefix) {
+		return files.stream().filter(file -> file.getFileName().toString().startsWith(prefix)).collect(Collectors.toList());
+	}
+
+	private static void readRows(Path file, RowConsumer rowConsumer) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			// Skip header
+			String line = reader.readLine();
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					rowConsumer.accept(line.split(TAB));
+				}
+			}
+		}
+	}
+
+	private interface RowConsumer {
+		void accept(String[] columns);
+	}
+
+	/**
+	 * @return the index of the concept or -1 if the concept is not active in this hierarchy.
+	 */
+	public int indexOf(long conceptId) {
+		int index = Arrays.binarySearch(conceptIds, conceptId);
+		return index >= 0 ? index : -1;
+	}
+
+	public int size() {
+		return conceptIds.length;
+	}
+
+	public long getConceptId(int index) {
+		return conceptIds[index];
+	}
+
+	public int[] getParents(int index) {
+		return Arrays.copyOfRange(parents, parentOffsets[index], parentOffsets[index + 1]);
+	}
+
+	public int[] getChildren(int index) {
+		return Arrays.copyOfRange(children, childOffsets[index], childOffsets[index + 1]);
+	}
+
+	public int[] getAncestors(int index) {
+		return Arrays.copyOfRange(ancestors, ancestorStart[index], ancestorEnd[index]);
+	}
+
+	public int[] getDescendants(int index) {
+		return Arrays.copyOfRange(descendants, descendantOffsets[index], descendantOffsets[index + 1]);
+	}
+
+	/**
+	 * @return the sorted ids of all ancestors of the concept, or null if the concept is not active in this hierarchy.
+	 */
+	public List<Long> getAncestorConceptIds(long conceptId) {
+		int index = indexOf(conceptId);
+		return index != -1 ? LongArrayList.wrap(toConceptIds(getAncestors(index))) : null;
+	}
+
+	/**
+	 * @return the sorted indexes of the active members of the refset, or null if no members of the refset were loaded.
+	 */
+	public int[] getRefsetMembers(long refsetId) {
+		return refsetMembers.get(refsetId);
+	}
+
+	/**
+	 * @param indexes sorted concept indexes
+	 * @return the sorted concept ids
+	 */
+	public long[] toConceptIds(int[] indexes) {
+		long[] ids = new long[indexes.length];
+		for (int i = 0; i < indexes.length; i++) {
+			ids[i] = conceptIds[indexes[i]];
+		}
+		return ids;
+	}
+
+	public long getTransitiveClosureSize() {
+		return ancestors.length;
+	}
+
+	static class Builder {
+
+		private final LongArrayList concepts = new LongArrayList();
+		private final LongArrayList isASources = new LongArrayList();
+		private final LongArrayList isADestinations = new LongArrayList();
+		private final Map<Long, LongArrayList> refsets = new HashMap<>();
+
+		Builder addConcept(long conceptId) {
+			concepts.add(conceptId);
+			return this;
+		}
+
+		Builder addIsA(long childId, long parentId) {
+			isASources.add(childId);
+			isADestinations.add(parentId);
+			return this;
+		}
+
+		Builder addRefsetMember(long refsetId, long conceptId) {
+			refsets.computeIfAbsent(refsetId, id -> new LongArrayList()).add(conceptId);
+			return this;
+		}
+
+		SnomedHierarchy build() {
+			long[] conceptIds = concepts.toLongArray();
+			Arrays.sort(conceptIds);
+			int size = 0;
+			for (int i = 0; i < conceptIds.length; i++) {
+				if (i == 0 || conceptIds[i] != conceptIds[size - 1]) {
+					conceptIds[size++] = conceptIds[i];
+				}
+			}
+			conceptIds = Arrays.copyOf(conceptIds, size);
+
+			// Relationships to or from concepts which are not active are ignored
+			IntArrayList childIndexes = new IntArrayList();
+			IntArrayList parentIndexes = new IntArrayList();
+			for (int i = 0; i < isASources.size(); i++) {
+				int child = Arrays.binarySearch(conceptIds, isASources.getLong(i));
+				int parent = Arrays.binarySearch(conceptIds, isADestinations.getLong(i));
+				if (child >= 0 && parent >= 0 && child != parent) {
+					childIndexes.add(child);
+					parentIndexes.add(parent);
+				}
+			}
+			int[][] parentAdjacency = toAdjacency(size, childIndexes.toIntArray(), parentIndexes.toIntArray());
+			int[][] childAdjacency = toAdjacency(size, parentIndexes.toIntArray(), childIndexes.toIntArray());
+
+			// Ancestors of each concept are its parents plus their ancestors. Concepts are visited after all of their parents.
+			int[] order = topologicalOrder(size, parentAdjacency, childAdjacency);
+			int[] ancestorStart = new int[size];
+			int[] ancestorEnd = new int[size];
+			IntArrayList ancestorList = new IntArrayList(size * 8);
+			int[] lastSeenBy = new int[size];
+			Arrays.fill(lastSeenBy, -1);
+			for (int concept : order) {
+				ancestorStart[concept] = ancestorList.size();
+				for (int i = parentAdjacency[0][concept]; i < parentAdjacency[0][concept + 1]; i++) {
+					int parent = parentAdjacency[1][i];
+					if (lastSeenBy[parent] != concept) {
+						lastSeenBy[parent] = concept;
+						ancestorList.add(parent);
+					}
+					for (int j = ancestorStart[parent]; j < ancestorEnd[parent]; j++) {
+						int ancestor = ancestorList.getInt(j);
+						if (lastSeenBy[ancestor] != concept) {
+							lastSeenBy[ancestor] = concept;
+							ancestorList.add(ancestor);
+						}
+					}
+				}
+				ancestorEnd[concept] = ancestorList.size();
+			}
+			int[] ancestors = ancestorList.toIntArray();
+			for (int concept = 0; concept < size; concept++) {
+				Arrays.sort(ancestors, ancestorStart[concept], ancestorEnd[concept]);
+			}
+
+			// Descendants are the transpose of the ancestors. Filling in concept order keeps each range sorted.
+			int[] descendantOffsets = new int[size + 1];
+			for (int ancestor : ancestors) {
+				descendantOffsets[ancestor + 1]++;
+			}
+			for (int i = 0; i < size; i++) {
+				descendantOffsets[i + 1] += descendantOffsets[i];
+			}
+			int[] descendants = new int[ancestors.length];
+			int[] position = Arrays.copyOf(descendantOffsets, size);
+			for (int concept = 0; concept < size; concept++) {
+				for (int j = ancestorStart[concept]; j < ancestorEnd[concept]; j++) {
+					descendants[position[ancestors[j]]++] = concept;
+				}
+			}
+
+			Map<Long, int[]> refsetMembers = new HashMap<>();
+			for (Map.Entry<Long, LongArrayList> refset : refsets.entrySet()) {
+				long[] memberIds = refset.getValue().toLongArray();
+				int[] members = new int[memberIds.length];
+				int count = 0;
+				for (long memberId : memberIds) {
+					int member = Arrays.binarySearch(conceptIds, memberId);
+					if (member >= 0) {
+						members[count++] = member;
+					}
+				}
+				if (count > 0) {
+					refsetMembers.put(refset.getKey(), sortUnique(members, count));
+				}
+			}
+
+			return new SnomedHierarchy(conceptIds, parentAdjacency, childAdjacency, ancestorStart, ancestorEnd, ancestors,
+					descendantOffsets, descendants, refsetMembers);
+		}
+
+		/**
+		 * @return offsets array of length size + 1 and a values array, each range sorted and without duplicates.
+		 */
+		private static int[][] toAdjacency(int size, int[] from, int[] to) {
+			int[] offsets = new int[size + 1];
+			for (int source : from) {
+				offsets[source + 1]++;
+			}
+			for (int i = 0; i < size; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			int[] values = new int[to.length];
+			int[] position = Arrays.copyOf(offsets, size);
+			for (int i = 0; i < from.length; i++) {
+				values[position[from[i]]++] = to[i];
+			}
+
+			// Remove duplicates, the same relationship can appear in more than one group or module
+			int[] uniqueOffsets = new int[size + 1];
+			int unique = 0;
+			for (int i = 0; i < size; i++) {
+				Arrays.sort(values, offsets[i], offsets[i + 1]);
+				for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+					if (j == offsets[i] || values[j] != values[j - 1]) {
+						values[unique++] = values[j];
+					}
+				}
+				uniqueOffsets[i + 1] = unique;
+			}
+			return new int[][] {uniqueOffsets, Arrays.copyOf(values, unique)};
+		}
+
+		private static int[] topologicalOrder(int size, int[][] parentAdjacency, int[][] childAdjacency) {
+			int[] remainingParents = new int[size];
+			int[] order = new int[size];
+			int orderLength = 0;
+			for (int concept = 0; concept < size; concept++) {
+				remainingParents[concept] = parentAdjacency[0][concept + 1] - parentAdjacency[0][concept];
+				if (remainingParents[concept] == 0) {
+					order[orderLength++] = concept;
+				}
+			}
+			for (int i = 0; i < orderLength; i++) {
+				int concept = order[i];
+				for (int j = childAdjacency[0][concept]; j < childAdjacency[0][concept + 1]; j++) {
+					int child = childAdjacency[1][j];
+					if (--remainingParents[child] == 0) {
+						order[orderLength++] = child;
+					}
+				}
+			}
+			if (orderLength != size) {
+				throw new IllegalStateException(String.format("IS-A relationships contain a cycle, %s concepts could not be ordered.", size - orderLength));
+			}
+			return order;
+		}
+
+		private static int[] sortUnique(int[] values, int length) {
+			Arrays.sort(values, 0, length);
+			int unique = 0;
+			for (int i = 0; i < length; i++) {
+				if (i == 0 || values[i] != values[unique - 1]) {
+					values[unique++] = values[i];
+				}
+			}
+			return Arrays.copyOf(values, unique);
+		}
+	}
+}
@@ -3,70 +3,192 @@ package org.snomed.heathanalytics.server.service;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongLists;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.snomed.heathanalytics.server.pojo.ConceptResult;
+import org.snomed.heathanalytics.server.pojo.EclCacheStats;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.concurrent.*;
 
 import static java.lang.String.format;
 
 @Service
 public class SnomedService {
 
+	private static final int EXPANSION_PAGE_SIZE = 10_000;
+
 	private final IGenericClient fhirClient;
 
-	private final Map<String, List<Long>> eclResultsCache;
+	private final ExecutorService expansionExecutor = Executors.newFixedThreadPool(4);
+
+	// Sorted concept ids by ECL. Concurrent requests for the same ECL wait for a single expansion, other ECLs are not blocked.
+	private final LoadingCache<String, long[]> eclResultsCache;
 
 	@Value("${fhir.codesystem.snomed.uri}")
 	private String snomedCodeSystemUri;
 
-	public SnomedService(@Value("${fhir-terminology-server-url}") String fhirTerminologyServerUrl) {
+	@Value("${snomed.rf2-snapshot.directory}")
+	private String rf2SnapshotDirectory;
+
+	// Hierarchy loaded from RF2, if configured. Used to evaluate ECL locally, ECL it does not support is sent to the terminology server.
+	private SnomedHierarchy hierarchy;
+	private LocalEclEvaluator localEclEvaluator;
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	public SnomedService(@Value("${fhir-terminology-server-url}") String fhirTerminologyServerUrl,
+			@Value("${ecl-cache.max-concepts}") long eclCacheMaxConcepts,
+			@Value("${ecl-cache.expire-after-write-minutes}") long eclCacheExpireMinutes) {
+
 		FhirContext context = FhirContext.forR4();
 		context.getRestfulClientFactory().setSocketTimeout(30_000);
 		fhirClient = context.newRestfulGenericClient(fhirTerminologyServerUrl);
-		eclResultsCache = new HashMap<>();
+		eclResultsCache = CacheBuilder.newBuilder()
+				.maximumWeight(eclCacheMaxConcepts)
+				.weigher((String ecl, long[] conceptIds) -> conceptIds.length)
+				.expireAfterWrite(eclCacheExpireMinutes, TimeUnit.MINUTES)
+				.recordStats()
+				.build(new CacheLoader<>() {
+					@Override
+					public long[] load(String ecl) throws ServiceException {
+						return expandEcl(ecl);
+					}
+				});
+	}
+
+	@PostConstruct
+	public void loadRF2Snapshot() throws IOException {
+		if (!StringUtils.isEmpty(rf2SnapshotDirectory)) {
+			File directory = new File(rf2SnapshotDirectory);
+			if (!directory.isDirectory()) {
+				throw new IOException("RF2 snapshot directory not found " + directory.getAbsolutePath());
+			}
+			long start = System.currentTimeMillis();
+			hierarchy = SnomedHierarchy.load(directory);
+			localEclEvaluator = new LocalEclEvaluator(hierarchy);
+			logger.info("Loaded SNOMED CT hierarchy of {} concepts with {} ancestor relationships in {} seconds.",
+					hierarchy.size(), hierarchy.getTransitiveClosureSize(), (System.currentTimeMillis() - start) / 1000f);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		expansionExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return the hierarchy loaded from the configured RF2 snapshot, or null if none is configured.
+	 */
+	public SnomedHierarchy getHierarchy() {
+		return hierarchy;
 	}
 
 	public List<Long> getConceptIds(String ecl) throws ServiceException {
-		System.out.println("_getConceptIds " + ecl);
-
-		List<Long> results = eclResultsCache.get(ecl);
-		if (results != null) {
-			return results;
-		} else {
-			synchronized (eclResultsCache) {
-				try {
-					// Grab all concept codes
-					List<Long> newResults = new LongArrayList();
-					valueSetExpand(
-							ecl,
-							0,
-							10_000,// No standardised pagination mechanism, grab first 10K for now
-							null,
-							stream -> stream.map(ValueSet.ValueSetExpansionContainsComponent::getCode).map(Long::parseLong).forEach(newResults::add));
-					eclResultsCache.put(ecl, newResults);
-					return newResults;
-				} catch (BaseServerResponseException exception) {
-					throw new ServiceException("Failed to expand ECL using FHIR server.", exception);
+		try {
+			return LongLists.unmodifiable(LongArrayList.wrap(eclResultsCache.get(ecl)));
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof ServiceException) {
+				throw (ServiceException) e.getCause();
+			}
+			throw new ServiceException("Failed to expand ECL.", e.getCause());
+		}
+	}
+
+	public EclCacheStats getEclCacheStats() {
+		long cachedConcepts = eclResultsCache.asMap().values().stream().mapToLong(conceptIds -> conceptIds.length).sum();
+		return new EclCacheStats(eclResultsCache.stats(), eclResultsCache.size(), cachedConcepts);
+	}
+
+	private long[] expandEcl(String ecl) throws ServiceException {
+		long start = System.currentTimeMillis();
+		if (localEclEvaluator != null) {
+			try {
+				long[] conceptIds = localEclEvaluator.evaluate(ecl);
+				logger.debug("Evaluated ECL {} locally to {} concepts in {} ms.", ecl, conceptIds.length, System.currentTimeMillis() - start);
+				return conceptIds;
+			} catch (LocalEclEvaluator.UnsupportedEclException e) {
+				logger.info("ECL {} can not be evaluated locally, using terminology server. {}", ecl, e.getMessage());
+			}
+		}
+		try {
+			// The first page gives the total, the remaining pages are fetched in parallel.
+			ValueSet.ValueSetExpansionComponent firstPage = valueSetExpand(ecl, 0, EXPANSION_PAGE_SIZE, null);
+			List<long[]> pages = new ArrayList<>();
+			pages.add(getConceptIds(firstPage));
+			if (firstPage.hasTotal()) {
+				List<Future<long[]>> pageFutures = new ArrayList<>();
+				for (int offset = EXPANSION_PAGE_SIZE; offset < firstPage.getTotal(); offset += EXPANSION_PAGE_SIZE) {
+					int pageOffset = offset;
+					pageFutures.add(expansionExecutor.submit(() -> getConceptIds(valueSetExpand(ecl, pageOffset, EXPANSION_PAGE_SIZE, null))));
+				}
+				for (Future<long[]> pageFuture : pageFutures) {
+					pages.add(pageFuture.get());
+				}
+			} else {
+				// Total not given by the server, keep paging until a short page
+				long[] page = pages.get(0);
+				for (int offset = EXPANSION_PAGE_SIZE; page.length == EXPANSION_PAGE_SIZE; offset += EXPANSION_PAGE_SIZE) {
+					page = getConceptIds(valueSetExpand(ecl, offset, EXPANSION_PAGE_SIZE, null));
+					pages.add(page);
 				}
 			}
+
+			long[] conceptIds = new long[pages.stream().mapToInt(page -> page.length).sum()];
+			int length = 0;
+			for (long[] page : pages) {
+				System.arraycopy(page, 0, conceptIds, length, page.length);
+				length += page.length;
+			}
+			Arrays.sort(conceptIds);
+			// Pages are not guaranteed to be stable so remove any duplicates
+			int unique = 0;
+			for (int i = 0; i < conceptIds.length; i++) {
+				if (i == 0 || conceptIds[i] != conceptIds[unique - 1]) {
+					conceptIds[unique++] = conceptIds[i];
+				}
+			}
+			if (unique < conceptIds.length) {
+				conceptIds = Arrays.copyOf(conceptIds, unique);
+			}
+			logger.info("Expanded ECL {} to {} concepts in {} pages in {} ms.", ecl, conceptIds.length, pages.size(), System.currentTimeMillis() - start);
+			return conceptIds;
+		} catch (BaseServerResponseException exception) {
+			throw new ServiceException("Failed to expand ECL using FHIR server.", exception);
+		} catch (ExecutionException e) {
+			throw new ServiceException("Failed to expand ECL using FHIR server.", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException("Interrupted while expanding ECL.", e);
 		}
 	}
 
+	private long[] getConceptIds(ValueSet.ValueSetExpansionComponent expansion) {
+		return expansion.getContains().stream().mapToLong(code -> Long.parseLong(code.getCode())).toArray();
+	}
+
 	public List<ConceptResult> findConcepts(String eclQuery, String prefix, int offset, int limit) {
 		List<ConceptResult> results = new ArrayList<>();
-		valueSetExpand(eclQuery, offset, limit, prefix, stream -> stream.forEach(code -> results.add(new ConceptResult(code.getCode(), code.getDisplay()))));
+		valueSetExpand(eclQuery, offset, limit, prefix).getContains().forEach(code -> results.add(new ConceptResult(code.getCode(), code.getDisplay())));
 		return results;
 
 	}
@@ -76,7 +198,7 @@ public class SnomedService {
 		return concepts.isEmpty() ? null : concepts.get(0);
 	}
 
-	private void valueSetExpand(String ecl, int offset, int limit, String filter, Consumer<Stream<ValueSet.ValueSetExpansionContainsComponent>> resultConsumer) {
+	private ValueSet.ValueSetExpansionComponent valueSetExpand(String ecl, int offset, int limit, String filter) {
 		ecl = URLEncoder.encode(ecl, StandardCharsets.UTF_8);
 		Parameters requestParameters = new Parameters()
 				.addParameter("url", format("%s?fhir_vs=ecl/%s", snomedCodeSystemUri, ecl))
@@ -92,7 +214,6 @@ public class SnomedService {
 		List<Parameters.ParametersParameterComponent> parameter = parameters.getParameter();
 		Parameters.ParametersParameterComponent param = parameter.iterator().next();
 		ValueSet valueSet = (ValueSet) param.getResource();
-		List<ValueSet.ValueSetExpansionContainsComponent> contains = valueSet.getExpansion().getContains();
-		resultConsumer.accept(contains.stream());
+		return valueSet.getExpansion();
 	}
 }
@@ -0,0 +1,7 @@
+package org.snomed.heathanalytics.server.service;
+
+public class TooManyJobsException extends RuntimeException {
+	public TooManyJobsException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,7 @@
+package org.snomed.heathanalytics.server.store;
+
+import org.snomed.heathanalytics.server.model.ConceptSetChunk;
+import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
+
+public interface ConceptSetChunkRepository extends ElasticsearchRepository<ConceptSetChunk, String> {
+}
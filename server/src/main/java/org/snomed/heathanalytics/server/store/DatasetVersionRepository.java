@@ -0,0 +1,7 @@
+package org.snomed.heathanalytics.server.store;
+
+import org.snomed.heathanalytics.server.model.DatasetVersion;
+import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
+
+public interface DatasetVersionRepository extends ElasticsearchRepository<DatasetVersion, String> {
+}
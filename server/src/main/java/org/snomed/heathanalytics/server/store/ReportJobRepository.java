@@ -0,0 +1,12 @@
+package org.snomed.heathanalytics.server.store;
+
+import org.snomed.heathanalytics.server.model.ReportJob;
+import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
+
+import java.util.List;
+
+public interface ReportJobRepository extends ElasticsearchRepository<ReportJob, String> {
+
+	List<ReportJob> findByResultKeyAndStatusAndFinishedGreaterThan(String resultKey, ReportJob.Status status, long finished);
+
+}
@@ -2,6 +2,7 @@ package org.snomed.heathanalytics.server;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.snomed.heathanalytics.server.service.CohortResultCache;
 import org.snomed.heathanalytics.server.store.PatientRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
@@ -16,9 +17,14 @@ public abstract class AbstractDataTest {
 	@Autowired
 	private PatientRepository patientRepository;
 
+	@Autowired
+	private CohortResultCache cohortResultCache;
+
 	@AfterEach
 	public void clearIndexes() {
 		patientRepository.deleteAll();
+		// Patients are deleted without an import completing so cached results must be cleared
+		cohortResultCache.invalidateAll();
 	}
 
 }
@@ -0,0 +1,93 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionUtilsTest {
+
+	// Larger than the read-ahead buffer so several buffers are passed between threads
+	private static final String CONTENT = "{\"roleId\":\"1\"}\n".repeat(200_000);
+
+	@Test
+	public void testHasExtension() {
+		assertTrue(CompressionUtils.hasExtension("Patient.ndjson", ".ndjson"));
+		assertTrue(CompressionUtils.hasExtension("Patient.ndjson.gz", ".ndjson"));
+		assertTrue(CompressionUtils.hasExtension("Patient.ndjson.zst", ".ndjson"));
+		assertFalse(CompressionUtils.hasExtension("Patient.ndjson.zip", ".ndjson"));
+		assertFalse(CompressionUtils.hasExtension("Patient.json.gz", ".ndjson"));
+	}
+
+	@Test
+	public void testOpenPlain() throws IOException {
+		File file = writeFile(".ndjson", out -> out);
+		assertFalse(CompressionUtils.isCompressed(file));
+		assertEquals(CONTENT, read(file));
+	}
+
+	@Test
+	public void testOpenGzip() throws IOException {
+		File file = writeFile(".ndjson.gz", GZIPOutputStream::new);
+		assertTrue(CompressionUtils.isCompressed(file));
+		assertEquals(CONTENT, read(file));
+	}
+
+	@Test
+	public void testOpenBzip2() throws IOException {
+		File file = writeFile(".ndjson.bz2", BZip2CompressorOutputStream::new);
+		assertTrue(CompressionUtils.isCompressed(file));
+		assertEquals(CONTENT, read(file));
+	}
+
+	@Test
+	public void testCloseBeforeEnd() throws IOException {
+		File file = writeFile(".ndjson.gz", GZIPOutputStream::new);
+		try (InputStream inputStream = CompressionUtils.open(file)) {
+			assertEquals('{', inputStream.read());
+		}
+	}
+
+	@Test
+	public void testReadAheadFailurePassedToConsumer() {
+		InputStream failing = new InputStream() {
+			private int count;
+
+			@Override
+			public int read() {
+				if (count++ == 10) {
+					throw new IllegalStateException("Corrupt data");
+				}
+				return 'a';
+			}
+		};
+		try (ReadAheadInputStream inputStream = new ReadAheadInputStream(failing, 4, 2)) {
+			IOException exception = assertThrows(IOException.class, inputStream::readAllBytes);
+			assertEquals("Corrupt data", exception.getCause().getMessage());
+		}
+	}
+
+	private File writeFile(String suffix, Compressor compressor) throws IOException {
+		File file = File.createTempFile("compression-test", suffix);
+		file.deleteOnExit();
+		try (OutputStream outputStream = compressor.wrap(new FileOutputStream(file))) {
+			outputStream.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+		}
+		return file;
+	}
+
+	private String read(File file) throws IOException {
+		try (InputStream inputStream = CompressionUtils.open(file)) {
+			return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private interface Compressor {
+		OutputStream wrap(OutputStream outputStream) throws IOException;
+	}
+}
@@ -0,0 +1,139 @@
+package org.snomed.heathanalytics.server.ingestion;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.model.Patient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SortMergePatientOutputStreamTest {
+
+	@Test
+	public void testPatientsWrittenOnceWithAllEvents() {
+		// Small run size so that several runs are spilled to disk and merged
+		assertMerged(3);
+	}
+
+	@Test
+	public void testInMemory() {
+		assertMerged(1_000);
+	}
+
+	@Test
+	public void testResumeSkipsPatientsBeforeCheckpoint() throws IOException {
+		File checkpointFile = File.createTempFile("import-checkpoint", ".json");
+		checkpointFile.deleteOnExit();
+		ObjectMapper objectMapper = new ObjectMapper();
+		RecordingOutputStream target = new RecordingOutputStream();
+		ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointFile, "A", false, objectMapper);
+		checkpoint.batchFlushed("A", "2", 2, target);
+		checkpoint.save();
+
+		ImportCheckpoint resumed = ImportCheckpoint.open(checkpointFile, "A", true, objectMapper);
+		assertEquals(2, resumed.getRecordsConsumed());
+		try (SortMergePatientOutputStream stream = new SortMergePatientOutputStream(target, 2, resumed)) {
+			stream.createPatients(List.of(new Patient("1", new Date(0), Gender.MALE), new Patient("2", new Date(0), Gender.FEMALE),
+					new Patient("3", new Date(0), Gender.MALE)), "A");
+			stream.addClinicalEvent("3", new ClinicalEvent(new Date(1000), 100L), "A");
+			stream.createPatient(new Patient("10", new Date(0), Gender.FEMALE), "B");
+		}
+
+		assertEquals("[A|3, B|10]", target.patients.keySet().toString());
+		assertEquals(1, target.patients.get("A|3").getNumEvents());
+		assertEquals("10", resumed.getLastFlushedRoleId());
+		assertEquals(4, resumed.getRecordsConsumed());
+	}
+
+	@Test
+	public void testDiscardWritesNothing() {
+		RecordingOutputStream target = new RecordingOutputStream();
+		SortMergePatientOutputStream stream = new SortMergePatientOutputStream(target, 2);
+		stream.createPatients(List.of(new Patient("1", new Date(0), Gender.MALE), new Patient("2", new Date(0), Gender.FEMALE),
+				new Patient("3", new Date(0), Gender.MALE)), "A");
+		stream.discard();
+		stream.close();
+
+		assertEquals(0, target.patients.size());
+	}
+
+	@Test
+	public void testEventsWithoutPatientPassedToIncrementalTarget() {
+		RecordingOutputStream target = new RecordingOutputStream();
+		target.incremental = true;
+		try (SortMergePatientOutputStream stream = new SortMergePatientOutputStream(target, 2)) {
+			stream.createPatient(new Patient("1", new Date(0), Gender.MALE), "A");
+			stream.addClinicalEvent("1", new ClinicalEvent(new Date(1000), 100L), "A");
+			stream.addClinicalEvent("2", new ClinicalEvent(new Date(1000), 100L), "A");
+			stream.addClinicalEvent("2", new ClinicalEvent(new Date(2000), 200L), "A");
+		}
+
+		assertEquals("[A|1]", target.patients.keySet().toString());
+		assertEquals(1, target.patients.get("A|1").getNumEvents());
+		assertEquals(2, target.eventsAdded);
+	}
+
+	private void assertMerged(int runSize) {
+		RecordingOutputStream target = new RecordingOutputStream();
+		try (SortMergePatientOutputStream stream = new SortMergePatientOutputStream(target, runSize)) {
+			stream.addClinicalEvent("2", new ClinicalEvent(new Date(3000), 300L), "A");
+			stream.createPatients(List.of(new Patient("1", new Date(0), Gender.MALE), new Patient("2", new Date(0), Gender.FEMALE)), "A");
+			stream.addClinicalEvent("1", new ClinicalEvent(new Date(1000), 100L), "A");
+			stream.addClinicalEvent("3", new ClinicalEvent(new Date(1000), 100L), "A");
+			stream.addClinicalEvent("2", new ClinicalEvent(new Date(2000), 200L), "A");
+			stream.createPatient(new Patient("1", new Date(0), Gender.FEMALE), "B");
+			stream.addClinicalEvent("1", new ClinicalEvent(new Date(4000), 400L), "A");
+		}
+
+		assertEquals(3, target.patients.size());
+		assertEquals("[A|1, A|2, B|1]", target.patients.keySet().toString());
+		Patient patient = target.patients.get("A|1");
+		assertEquals(Gender.MALE, patient.getGender());
+		assertEquals(Set.of(new ClinicalEvent(new Date(1000), 100L), new ClinicalEvent(new Date(4000), 400L)), patient.getEvents());
+		assertEquals(Set.of(new ClinicalEvent(new Date(2000), 200L), new ClinicalEvent(new Date(3000), 300L)), target.patients.get("A|2").getEvents());
+		assertEquals(Gender.FEMALE, target.patients.get("B|1").getGender());
+		assertEquals(0, target.patients.get("B|1").getNumEvents());
+		assertEquals(0, target.eventsAdded);
+		assertEquals(false, target.closed);
+	}
+
+	private static class RecordingOutputStream implements HealthDataOutputStream {
+
+		private final Map<String, Patient> patients = new TreeMap<>();
+		private int eventsAdded;
+		private boolean closed;
+		private boolean incremental;
+
+		@Override
+		public void createPatient(Patient patient, String dataset) {
+			if (patients.put(dataset + "|" + patient.getRoleId(), patient) != null) {
+				throw new IllegalStateException("Patient written twice.");
+			}
+		}
+
+		@Override
+		public void createPatients(Collection<Patient> patients, String dataset) {
+			patients.forEach(patient -> createPatient(patient, dataset));
+		}
+
+		@Override
+		public void addClinicalEvent(String roleId, ClinicalEvent event, String dataset) {
+			eventsAdded++;
+		}
+
+		@Override
+		public boolean isIncremental() {
+			return incremental;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.RVUTotals;
+import org.snomed.heathanalytics.server.service.CPTService;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CPTEnricherTest {
+
+	@Test
+	public void testEnrich() throws IOException {
+		CPTService cptService = new CPTService("src/test/resources/dummy-cpt-codes");
+		cptService.attemptToLoadCPTDataFiles();
+		CPTEnricher cptEnricher = new CPTEnricher(cptService, true);
+
+		Patient patient = new Patient("1")
+				.addEvent(new ClinicalEvent(new Date(1000), 268547008L))
+				.addEvent(new ClinicalEvent(new Date(2000), 268547008L))
+				.addEvent(new ClinicalEvent(new Date(1000), 12347001L))
+				.addEvent(new ClinicalEvent(new Date(1000), 100L));
+		cptEnricher.enrich(patient);
+
+		Map<Long, String> cptCodes = new HashMap<>();
+		patient.getEvents().forEach(event -> cptCodes.put(event.getConceptId(), event.getCptCode()));
+		assertEquals("12345", cptCodes.get(268547008L));
+		assertEquals("20123", cptCodes.get(12347001L));
+		assertNull(cptCodes.get(100L));
+
+		// Each event counts, values missing from the CPT file count as zero
+		RVUTotals totals = patient.getRvuTotals();
+		assertEquals(3, totals.getCptEvents());
+		assertEquals(3.15 * 2 + 0.82, totals.getWorkRVU(), 0.001);
+		assertEquals(1.25 * 2, totals.getFacilityPracticeExpenseRVU(), 0.001);
+		assertEquals(201.61 * 2 + 45.45, totals.getTotalMedicarePhysicianFeeScheduleNonFacilityPayment(), 0.001);
+
+		// Values of one event per code, as added by the merge script
+		Map<String, RVUTotals> eventValues = cptEnricher.getEventValues(patient.getEvents());
+		assertEquals(Set.of("12345", "20123"), eventValues.keySet());
+		assertEquals(1, eventValues.get("12345").getCptEvents());
+		assertEquals(3.15, eventValues.get("12345").getWorkRVU(), 0.001);
+
+		Patient noCpt = new Patient("2").addEvent(new ClinicalEvent(new Date(1000), 100L));
+		cptEnricher.enrich(noCpt);
+		assertNull(noCpt.getRvuTotals());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		CPTService cptService = new CPTService("src/test/resources/dummy-cpt-codes");
+		cptService.attemptToLoadCPTDataFiles();
+		CPTEnricher cptEnricher = new CPTEnricher(cptService, false);
+
+		Patient patient = new Patient("1").addEvent(new ClinicalEvent(new Date(1000), 268547008L));
+		cptEnricher.enrich(patient);
+		assertNull(patient.getEvents().iterator().next().getCptCode());
+		assertNull(patient.getRvuTotals());
+	}
+}
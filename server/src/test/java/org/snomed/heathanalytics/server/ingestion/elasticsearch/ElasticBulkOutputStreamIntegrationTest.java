@@ -0,0 +1,94 @@
+package org.snomed.heathanalytics.server.ingestion.elasticsearch;
+
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.AbstractDataTest;
+import org.snomed.heathanalytics.server.TestUtils;
+import org.snomed.heathanalytics.server.store.PatientRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// CPT enrichment is enabled so the RVU totals merged by the script can be checked
+@TestPropertySource(properties = "cpt.enrich-events.enabled=true")
+public class ElasticBulkOutputStreamIntegrationTest extends AbstractDataTest {
+
+	// 268547008 maps to dummy CPT code 12345
+	private static final long SCREENING = 268547008L;
+	// No CPT code
+	private static final long HYPERTENSION = 38341003L;
+
+	@Autowired
+	private ElasticBulkOutputStream bulkOutputStream;
+
+	@Autowired
+	private PatientRepository patientRepository;
+
+	@Autowired
+	private RestHighLevelClient elasticsearchRestClient;
+
+	@Autowired
+	private ElasticsearchOperations elasticsearchOperations;
+
+	@AfterEach
+	public void resetMode() {
+		bulkOutputStream.setIncremental(false);
+	}
+
+	@Test
+	public void testIncrementalImportMergesPatient() throws IOException {
+		bulkOutputStream.setIncremental(true);
+
+		bulkOutputStream.createPatients(List.of(new Patient("1", TestUtils.getDob(40), Gender.MALE)
+				.addEvent(new ClinicalEvent(TestUtils.date(2017, 0, 10), SCREENING))
+				.addEvent(new ClinicalEvent(TestUtils.date(2017, 0, 20), HYPERTENSION))), "A");
+		bulkOutputStream.close();
+
+		Patient firstImport = patientRepository.findById("A|1").orElseThrow();
+		assertEquals(2, firstImport.getNumEvents());
+		assertEquals(1, firstImport.getRvuTotals().getCptEvents());
+		double eventWorkRVU = firstImport.getRvuTotals().getWorkRVU();
+		assertTrue(eventWorkRVU > 0);
+
+		// Same patient again, one event already imported and one new
+		bulkOutputStream.createPatients(List.of(new Patient("1", TestUtils.getDob(40), Gender.MALE)
+				.addEvent(new ClinicalEvent(TestUtils.date(2017, 0, 10), SCREENING))
+				.addEvent(new ClinicalEvent(TestUtils.date(2018, 0, 10), SCREENING))), "A");
+		bulkOutputStream.close();
+
+		Patient merged = patientRepository.findById("A|1").orElseThrow();
+		assertEquals(3, merged.getEvents().size());
+		assertEquals(3, merged.getNumEvents());
+		assertEquals(2, merged.getEvents().stream().filter(event -> event.getConceptId() == SCREENING).count());
+
+		// Only the new event is added to the totals
+		assertEquals(2, merged.getRvuTotals().getCptEvents());
+		assertEquals(eventWorkRVU * 2, merged.getRvuTotals().getWorkRVU(), 0.0001);
+
+		// Packed events written by the script are the same as those the application writes for the merged events
+		String index = elasticsearchOperations.getIndexCoordinatesFor(Patient.class).getIndexName();
+		Object storedPacked = elasticsearchRestClient.get(new GetRequest(index, "A|1"), RequestOptions.DEFAULT)
+				.getSourceAsMap().get(Patient.Fields.EVENTS_PACKED);
+		assertNotNull(storedPacked);
+		assertEquals(merged.getEventsPacked(), storedPacked);
+
+		// Importing the same patient again changes nothing
+		bulkOutputStream.createPatients(List.of(new Patient("1", TestUtils.getDob(40), Gender.MALE)
+				.addEvent(new ClinicalEvent(TestUtils.date(2018, 0, 10), SCREENING))), "A");
+		bulkOutputStream.close();
+		Patient unchanged = patientRepository.findById("A|1").orElseThrow();
+		assertEquals(3, unchanged.getNumEvents());
+		assertEquals(2, unchanged.getRvuTotals().getCptEvents());
+	}
+}
@@ -10,9 +10,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.Pageable;
 
 import java.io.File;
+import java.io.UncheckedIOException;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class FHIRBulkLocalIngestionSourceTest extends AbstractDataTest {
 
@@ -90,6 +92,21 @@ public class FHIRBulkLocalIngestionSourceTest extends AbstractDataTest {
 				getPatientString("A|b5201a4b-c8a9-4a2d-9fc3-08e2f6a3d8e0"));
 	}
 
+	@Test
+	public void testReadFailureWritesNothing() {
+		FHIRBulkLocalIngestionSourceConfiguration configuration = new FHIRBulkLocalIngestionSourceConfiguration(
+				"A",
+				new File("src/test/resources/fhir/Patient.ndjson"),
+				new File("src/test/resources/fhir/Missing-Condition.ndjson"),
+				null,
+				null,
+				null);
+
+		// Patients without their conditions are not written
+		assertThrows(UncheckedIOException.class, () -> new FHIRBulkLocalIngestionSource(objectMapper).stream(configuration, elasticOutputStream));
+		assertEquals(0, patientRepository.count());
+	}
+
 	private String getPatientString(String id) {
 		return patientRepository.findById(id).orElseGet(Patient::new).toString();
 	}
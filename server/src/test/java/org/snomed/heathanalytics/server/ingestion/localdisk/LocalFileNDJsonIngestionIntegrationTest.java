@@ -16,7 +16,7 @@ import org.springframework.data.elasticsearch.core.query.NativeSearchQueryBuilde
 import java.io.File;
 import java.util.*;
 
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.*;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.snomed.heathanalytics.model.Gender.MALE;
@@ -53,10 +53,10 @@ public class LocalFileNDJsonIngestionIntegrationTest extends AbstractDataTest {
 		ClinicalEvent event = patient.getEvents().iterator().next();
 		assertEquals(195957006L, event.getConceptId());
 		assertEquals(getUTCTime(2017, Calendar.SEPTEMBER, 10, 11, 0, 11), event.getDate());
-		String conceptDate = "195957006," + event.getDate().getTime();
-		assertEquals(conceptDate, event.getConceptDate());
 		SearchHits<Patient> hits = elasticsearchOperations.search(
-				new NativeSearchQueryBuilder().withQuery(termQuery("events.conceptDate.keyword", conceptDate)).build(), Patient.class);
+				new NativeSearchQueryBuilder().withQuery(boolQuery()
+						.must(termQuery("events.conceptId", 195957006L))
+						.must(existsQuery(Patient.Fields.EVENTS_PACKED))).build(), Patient.class);
 		assertEquals(1, hits.getTotalHits());
 	}
 
@@ -0,0 +1,106 @@
+package org.snomed.heathanalytics.server.ingestion.localdisk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.ingestion.HealthDataOutputStream;
+import org.snomed.heathanalytics.server.ingestion.ImportCheckpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalFileNDJsonIngestionSourceTest {
+
+	@Test
+	public void testSplitFileOnLineBoundaries() throws IOException {
+		String content = "{\"roleId\":\"1\"}\n{\"roleId\":\"22\"}\n{\"roleId\":\"333\"}\n{\"roleId\":\"4\"}";
+		File file = File.createTempFile("patients", ".ndjson");
+		file.deleteOnExit();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+		List<LocalFileNDJsonIngestionSource.FileChunk> chunks = LocalFileNDJsonIngestionSource.splitFile(file, 10);
+		assertEquals(4, chunks.size());
+		StringBuilder joined = new StringBuilder();
+		for (LocalFileNDJsonIngestionSource.FileChunk chunk : chunks) {
+			try (InputStream inputStream = chunk.open()) {
+				String chunkContent = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+				if (chunk.getEnd() < file.length()) {
+					assertEquals('\n', chunkContent.charAt(chunkContent.length() - 1));
+				}
+				joined.append(chunkContent);
+			}
+		}
+		assertEquals(content, joined.toString());
+
+		assertEquals(1, LocalFileNDJsonIngestionSource.splitFile(file, 1024).size());
+	}
+
+	@Test
+	public void testReadFailureFailsImportWithoutCheckpointingChunk() throws IOException {
+		File directory = Files.createTempDirectory("patients").toFile();
+		Files.write(new File(directory, "a.ndjson").toPath(), "{\"roleId\":\"1\"}\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(new File(directory, "b.ndjson").toPath(), "{\"roleId\":\"2\"}\n{\"roleId\":\n".getBytes(StandardCharsets.UTF_8));
+		File checkpointFile = new File(directory, "checkpoint.json");
+		ObjectMapper objectMapper = new ObjectMapper();
+		ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointFile, "A", false, objectMapper);
+
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		HealthDataOutputStream stream = recordingStream(written);
+
+		assertThrows(RuntimeException.class, () -> new LocalFileNDJsonIngestionSource(objectMapper).stream(
+				new LocalFileNDJsonIngestionSourceConfiguration("A", directory, 1, 1, checkpoint), stream));
+
+		// The checkpoint is kept for --resume and does not record the chunk which failed
+		assertTrue(checkpointFile.isFile());
+		Set<String> completedChunks = objectMapper.readValue(checkpointFile, ImportCheckpoint.class).getCompletedChunks();
+		assertTrue(completedChunks.stream().noneMatch(chunk -> chunk.startsWith("b.ndjson")));
+	}
+
+	@Test
+	public void testSplitFailureFailsImportBeforeWriting() throws IOException {
+		File directory = Files.createTempDirectory("patients").toFile();
+		Files.write(new File(directory, "a.ndjson").toPath(), "{\"roleId\":\"1\"}\n".getBytes(StandardCharsets.UTF_8));
+		// Matches the file name pattern but can not be opened
+		assertTrue(new File(directory, "b.ndjson").mkdir());
+		File checkpointFile = new File(directory, "checkpoint.json");
+		ObjectMapper objectMapper = new ObjectMapper();
+		ImportCheckpoint checkpoint = ImportCheckpoint.open(checkpointFile, "A", false, objectMapper);
+
+		List<String> written = Collections.synchronizedList(new ArrayList<>());
+		assertThrows(UncheckedIOException.class, () -> new LocalFileNDJsonIngestionSource(objectMapper).stream(
+				new LocalFileNDJsonIngestionSourceConfiguration("A", directory, 1, 1, checkpoint), recordingStream(written)));
+
+		assertTrue(written.isEmpty());
+		assertFalse(checkpointFile.exists());
+	}
+
+	private static HealthDataOutputStream recordingStream(List<String> written) {
+		return new HealthDataOutputStream() {
+			@Override
+			public void createPatient(Patient patient, String dataset) {
+				written.add(patient.getRoleId());
+			}
+
+			@Override
+			public void createPatients(Collection<Patient> patients, String dataset) {
+				patients.forEach(patient -> written.add(patient.getRoleId()));
+			}
+
+			@Override
+			public void addClinicalEvent(String roleId, ClinicalEvent event, String dataset) {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
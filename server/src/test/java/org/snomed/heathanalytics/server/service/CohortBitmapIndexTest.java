@@ -0,0 +1,91 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.server.model.CohortCriteria;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CohortBitmapIndexTest {
+
+	private static final int THIS_YEAR = 2020;
+
+	private CohortBitmapIndex.Snapshot snapshot;
+	private Map<String, List<Long>> eclToConcepts;
+
+	@BeforeEach
+	public void setup() {
+		CohortBitmapIndex.Builder builder = new CohortBitmapIndex.Builder();
+		builder.addPatient("A|1", "A", Gender.MALE, 1985, events(38341003L, 304914007L));
+		builder.addPatient("A|2", "A", Gender.MALE, 1980, events(38341003L));
+		builder.addPatient("A|3", "A", Gender.FEMALE, 1970, events(268547008L));
+		builder.addPatient("B|1", "B", Gender.FEMALE, 1990, events(22298006L));
+		snapshot = builder.build(0);
+
+		eclToConcepts = new HashMap<>();
+		eclToConcepts.put("<<22298006", List.of(22298006L, 304914007L));
+		eclToConcepts.put("<<38341003", List.of(38341003L));
+		eclToConcepts.put("<<268547008", List.of(268547008L));
+	}
+
+	@Test
+	public void testEventCriteria() throws ServiceException {
+		assertEquals("[A|1, B|1]", select(new CohortCriteria().addEventCriterion(new EventCriterion("<<22298006"))));
+		assertEquals("[A|1]", select(new CohortCriteria("A", new EventCriterion("<<22298006"))));
+		assertEquals("[A|1]", select(new CohortCriteria("A", new EventCriterion("<<38341003"))
+				.addEventCriterion(new EventCriterion("<<22298006"))));
+
+		EventCriterion hasNot = new EventCriterion("<<22298006");
+		hasNot.setHas(false);
+		assertEquals("[A|2]", select(new CohortCriteria("A", new EventCriterion("<<38341003")).addEventCriterion(hasNot)));
+	}
+
+	@Test
+	public void testPatientCriteria() throws ServiceException {
+		assertEquals("[A|3, B|1]", select(new CohortCriteria().setGender(Gender.FEMALE)));
+		assertEquals("[A|1, B|1]", select(new CohortCriteria().setMaxAgeNow(35)));
+		assertEquals("[A|2, A|3]", select(new CohortCriteria().setMinAgeNow(36)));
+		assertEquals("[]", select(new CohortCriteria().setMinAgeNow(40).setMaxAgeNow(30)));
+		assertEquals("[]", select(new CohortCriteria("C", new EventCriterion("<<22298006"))));
+	}
+
+	@Test
+	public void testExclusionCriteria() throws ServiceException {
+		CohortCriteria cohortCriteria = new CohortCriteria("A", new EventCriterion("<<38341003"));
+		cohortCriteria.addExclusionCriterion(new CohortCriteria(null, new EventCriterion("<<22298006")));
+		assertEquals("[A|2]", select(cohortCriteria));
+
+		cohortCriteria = new CohortCriteria().setGender(Gender.FEMALE);
+		cohortCriteria.addExclusionCriterion(new CohortCriteria(null, 0, 35));
+		assertEquals("[A|3]", select(cohortCriteria));
+	}
+
+	@Test
+	public void testPaging() throws ServiceException {
+		CohortBitmapIndex.Selection selection = new CohortBitmapIndex.Selection(snapshot,
+				snapshot.selectCohort(new CohortCriteria(), criterion -> eclToConcepts.get(criterion.getConceptECL()), THIS_YEAR));
+		assertEquals(4, selection.getCount());
+		assertEquals("[A|1, A|2]", selection.getCompositeRoleIds(0, 2).toString());
+		assertEquals("[A|3, B|1]", selection.getCompositeRoleIds(2, 2).toString());
+		assertEquals("[]", selection.getCompositeRoleIds(4, 2).toString());
+	}
+
+	private String select(CohortCriteria cohortCriteria) throws ServiceException {
+		CohortBitmapIndex.Selection selection = new CohortBitmapIndex.Selection(snapshot,
+				snapshot.selectCohort(cohortCriteria, criterion -> eclToConcepts.get(criterion.getConceptECL()), THIS_YEAR));
+		return selection.getCompositeRoleIds(0, 100).toString();
+	}
+
+	private Set<ClinicalEvent> events(Long... conceptIds) {
+		Set<ClinicalEvent> events = new HashSet<>();
+		for (Long conceptId : conceptIds) {
+			events.add(new ClinicalEvent(new Date(), conceptId));
+		}
+		return events;
+	}
+}
@@ -0,0 +1,75 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.model.Gender;
+import org.snomed.heathanalytics.server.model.CohortCriteria;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+public class CohortResultCacheTest {
+
+	private static final int THIS_YEAR = 2020;
+
+	private final Map<String, String> subsetEcl = Map.of("subset1", "<< 38341003 |Hypertensive disorder|");
+	private final CohortResultCache.EclLookup eclLookup = criterion ->
+			criterion.getConceptSubsetId() != null ? subsetEcl.get(criterion.getConceptSubsetId()) : criterion.getConceptECL();
+
+	@Test
+	public void testIndependentCriteriaSorted() throws ServiceException {
+		CohortCriteria criteria = new CohortCriteria("A", new EventCriterion("<<38341003"))
+				.addEventCriterion(new EventCriterion("<<22298006"));
+		CohortCriteria reordered = new CohortCriteria("A", new EventCriterion("<<22298006"))
+				.addEventCriterion(new EventCriterion("<<38341003"));
+		assertEquals(key(criteria), key(reordered));
+
+		// The second criterion is relative to the event matched by the first
+		CohortCriteria sequence = new CohortCriteria("A", new EventCriterion("<<38341003"))
+				.addEventCriterion(new EventCriterion("<<22298006", 10, null));
+		CohortCriteria reversedSequence = new CohortCriteria("A", new EventCriterion("<<22298006", 10, null))
+				.addEventCriterion(new EventCriterion("<<38341003"));
+		assertNotEquals(key(sequence), key(reversedSequence));
+	}
+
+	@Test
+	public void testSubsetResolvedToEcl() throws ServiceException {
+		EventCriterion subsetCriterion = new EventCriterion();
+		subsetCriterion.setConceptSubsetId("subset1");
+		assertEquals(key(new CohortCriteria("A", new EventCriterion("<<38341003"))), key(new CohortCriteria("A", subsetCriterion)));
+		assertEquals(key(new CohortCriteria("A", new EventCriterion("<<38341003"))),
+				key(new CohortCriteria("A", new EventCriterion("  <<  38341003 |Hypertensive disorder, systemic arterial (disorder)|"))));
+	}
+
+	@Test
+	public void testCriteriaDistinguished() throws ServiceException {
+		CohortCriteria criteria = new CohortCriteria("A", new EventCriterion("<<38341003"));
+		assertNotEquals(key(criteria), key(criteria.clone().setGender(Gender.FEMALE)));
+		assertNotEquals(key(criteria), key(new CohortCriteria("A", new EventCriterion("<<38341003").includeCPTAnalysis())));
+		EventCriterion hasNot = new EventCriterion("<<38341003");
+		hasNot.setHas(false);
+		assertNotEquals(key(criteria), key(new CohortCriteria("A", hasNot)));
+
+		// Age is relative to the current year
+		CohortCriteria withAge = criteria.clone().setMaxAgeNow(40);
+		assertNotEquals(CohortResultCache.getCriteriaKey(withAge, eclLookup, THIS_YEAR), CohortResultCache.getCriteriaKey(withAge, eclLookup, THIS_YEAR + 1));
+		assertEquals(CohortResultCache.getCriteriaKey(criteria, eclLookup, THIS_YEAR), CohortResultCache.getCriteriaKey(criteria, eclLookup, THIS_YEAR + 1));
+	}
+
+	@Test
+	public void testExclusionCriteriaSorted() throws ServiceException {
+		CohortCriteria criteria = new CohortCriteria("A", new EventCriterion("<<38341003"))
+				.addExclusionCriterion(new CohortCriteria(null, new EventCriterion("<<22298006")))
+				.addExclusionCriterion(new CohortCriteria(Gender.MALE, null, null));
+		CohortCriteria reordered = new CohortCriteria("A", new EventCriterion("<<38341003"))
+				.addExclusionCriterion(new CohortCriteria(Gender.MALE, null, null))
+				.addExclusionCriterion(new CohortCriteria(null, new EventCriterion("<<22298006")));
+		assertEquals(key(criteria), key(reordered));
+	}
+
+	private String key(CohortCriteria criteria) throws ServiceException {
+		return CohortResultCache.getCriteriaKey(criteria, eclLookup, THIS_YEAR);
+	}
+}
@@ -0,0 +1,100 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.junit.jupiter.api.Test;
+import org.snomed.heathanalytics.elasticsearch.TemporalCriterion;
+import org.snomed.heathanalytics.elasticsearch.TemporalEventMatcher;
+import org.snomed.heathanalytics.model.ClinicalEvent;
+import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.server.model.EventCriterion;
+import org.snomed.heathanalytics.server.model.Frequency;
+import org.snomed.heathanalytics.server.model.TimeUnit;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventCriteriaMatcherTest {
+
+	private static final long DAY = TimeUnit.DAY.getMilliseconds();
+	private static final long START = new GregorianCalendar(2020, Calendar.JANUARY, 1).getTimeInMillis();
+
+	private final Patient patient = new Patient("1")
+			.addEvent(new ClinicalEvent(new Date(START), 100L))
+			.addEvent(new ClinicalEvent(new Date(START + 10 * DAY), 200L))
+			.addEvent(new ClinicalEvent(new Date(START + 100 * DAY), 200L));
+
+	@Test
+	public void testRelativeTime() throws ServiceException {
+		assertTrue(matches(new EventCriterion("100"), new EventCriterion("200", 30, null)));
+		assertFalse(matches(new EventCriterion("100"), new EventCriterion("200", 5, null)));
+		assertTrue(matches(new EventCriterion("100"), new EventCriterion("200", -1, null)));
+		assertFalse(matches(new EventCriterion("200"), new EventCriterion("100", null, 5)));
+		assertTrue(matches(new EventCriterion("200"), new EventCriterion("100", null, 20)));
+
+		EventCriterion hasNot = new EventCriterion("200", 5, null);
+		hasNot.setHas(false);
+		assertTrue(matches(new EventCriterion("100"), hasNot));
+		hasNot = new EventCriterion("200", 30, null);
+		hasNot.setHas(false);
+		assertFalse(matches(new EventCriterion("100"), hasNot));
+	}
+
+	@Test
+	public void testDateRange() throws ServiceException {
+		EventCriterion criterion = new EventCriterion("200");
+		criterion.setMinDate(new Date(START + 50 * DAY));
+		assertTrue(matches(criterion));
+		criterion.setMinDate(new Date(START + 20 * DAY));
+		criterion.setMaxDate(new Date(START + 50 * DAY));
+		assertFalse(matches(criterion));
+	}
+
+	@Test
+	public void testFrequency() throws ServiceException {
+		assertTrue(matches(new EventCriterion("200").setFrequency(new Frequency(2, null, null, null))));
+		assertFalse(matches(new EventCriterion("200").setFrequency(new Frequency(3, null, null, null))));
+		assertFalse(matches(new EventCriterion("200").setFrequency(new Frequency(2, null, 30, TimeUnit.DAY))));
+		assertTrue(matches(new EventCriterion("200").setFrequency(new Frequency(2, null, 100, TimeUnit.DAY))));
+		assertFalse(matches(new EventCriterion("200").setFrequency(new Frequency(2, 100, null, TimeUnit.DAY))));
+	}
+
+	@Test
+	public void testScriptParamsRoundTrip() throws ServiceException {
+		EventCriteriaMatcher matcher = new EventCriteriaMatcher(List.of(new EventCriterion("100"),
+				new EventCriterion("200", 30, null).setFrequency(new Frequency(2, null, 100, TimeUnit.DAY))), this::lookup);
+		List<TemporalCriterion> criteria = matcher.getScriptParams().stream().map(TemporalCriterion::fromParams).collect(Collectors.toList());
+
+		long[] conceptIds = {200, 100, 200, 200};
+		long[] dates = {START + 100 * DAY, START, START + 10 * DAY, START + 10 * DAY};
+		int length = TemporalEventMatcher.sortEvents(conceptIds, dates, conceptIds.length);
+		assertEquals(3, length);
+		assertArrayEquals(new long[] {100, 200, 200}, Arrays.copyOf(conceptIds, length));
+		assertTrue(new TemporalEventMatcher(criteria).matches(conceptIds, dates, length));
+		assertTrue(matcher.matches(patient));
+	}
+
+	@Test
+	public void testScriptParamsWithStoredConceptSet() {
+		Map<String, long[]> documents = Map.of("set_0", new long[] {300, 100}, "set_1", new long[] {200});
+		Map<String, Object> params = new TemporalCriterion(true, Collections.emptyList())
+				.toParams(List.of(TemporalCriterion.conceptSetDocument("concept-set", "set_0", "conceptIds"),
+						TemporalCriterion.conceptSetDocument("concept-set", "set_1", "conceptIds")));
+		assertFalse(params.containsKey(TemporalCriterion.CONCEPT_IDS_PARAM));
+
+		TemporalCriterion criterion = TemporalCriterion.fromParams(params, (index, id, path) -> documents.get(id));
+		assertArrayEquals(new long[] {100, 200, 300}, criterion.getConceptIds());
+		assertTrue(criterion.containsConcept(200));
+		// Loaded arrays may be cached by the loader so must not be changed
+		assertArrayEquals(new long[] {300, 100}, documents.get("set_0"));
+		assertThrows(IllegalArgumentException.class, () -> TemporalCriterion.fromParams(params));
+	}
+
+	private boolean matches(EventCriterion... criteria) throws ServiceException {
+		return new EventCriteriaMatcher(Arrays.asList(criteria), this::lookup).matches(patient);
+	}
+
+	private List<Long> lookup(EventCriterion criterion) {
+		return Collections.singletonList(Long.parseLong(criterion.getConceptECL()));
+	}
+}
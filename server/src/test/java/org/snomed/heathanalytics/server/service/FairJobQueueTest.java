@@ -0,0 +1,58 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FairJobQueueTest {
+
+	@Test
+	public void testUsersTakeTurns() {
+		FairJobQueue<String> queue = new FairJobQueue<>(10, 5);
+		queue.add("a", "a1");
+		queue.add("a", "a2");
+		queue.add("a", "a3");
+		queue.add("b", "b1");
+		queue.add("c", "c1");
+		queue.add("b", "b2");
+		assertEquals(6, queue.size());
+
+		assertEquals("a1", queue.poll());
+		assertEquals("b1", queue.poll());
+		assertEquals("c1", queue.poll());
+		assertEquals("a2", queue.poll());
+		// A user with no waiting jobs joins the back of the queue
+		queue.add("c", "c2");
+		assertEquals("b2", queue.poll());
+		assertEquals("a3", queue.poll());
+		assertEquals("c2", queue.poll());
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testRemove() {
+		FairJobQueue<String> queue = new FairJobQueue<>(10, 5);
+		queue.add("a", "a1");
+		queue.add("b", "b1");
+		queue.add("a", "a2");
+		assertTrue(queue.remove("b", "b1"));
+		assertFalse(queue.remove("b", "b1"));
+		assertEquals("a1", queue.poll());
+		assertEquals("a2", queue.poll());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testLimits() {
+		FairJobQueue<String> queue = new FairJobQueue<>(3, 2);
+		queue.add("a", "a1");
+		queue.add("a", "a2");
+		assertThrows(TooManyJobsException.class, () -> queue.add("a", "a3"));
+		queue.add("b", "b1");
+		assertThrows(TooManyJobsException.class, () -> queue.add("c", "c1"));
+		queue.poll();
+		queue.add("c", "c1");
+		assertEquals(3, queue.size());
+	}
+}
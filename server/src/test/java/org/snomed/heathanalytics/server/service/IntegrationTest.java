@@ -1,5 +1,7 @@
 package org.snomed.heathanalytics.server.service;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.ihtsdo.otf.snomedboot.factory.implementation.standard.ConceptImpl;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -7,6 +9,7 @@ import org.mockito.Mockito;
 import org.snomed.heathanalytics.model.ClinicalEvent;
 import org.snomed.heathanalytics.model.Gender;
 import org.snomed.heathanalytics.model.Patient;
+import org.snomed.heathanalytics.model.View;
 import org.snomed.heathanalytics.server.AbstractDataTest;
 import org.snomed.heathanalytics.server.TestUtils;
 import org.snomed.heathanalytics.server.ingestion.elasticsearch.ElasticOutputStream;
@@ -14,8 +17,12 @@ import org.snomed.heathanalytics.server.model.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.data.domain.Page;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.query.IndexQueryBuilder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -39,6 +46,15 @@ public class IntegrationTest extends AbstractDataTest {
 	@Autowired
 	private CPTService cptService;
 
+	@Autowired
+	private ElasticsearchOperations elasticsearchOperations;
+
+	@Autowired
+	private CohortCursorService cohortCursorService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	private ConceptImpl hypertension;
 	private ConceptImpl myocardialInfarction;
 	private ConceptImpl acuteQWaveMyocardialInfarction;
@@ -195,6 +211,47 @@ public class IntegrationTest extends AbstractDataTest {
 		assertEquals("[2]", toSortedPatientIdList(patients).toString());
 	}
 
+	@Test
+	public void testRelativeCriteriaUseSameBaseEventInPainlessAndNativeMatcher() throws ServiceException {
+		// 195967001 is after 22298006 as a number but before it as text
+		String ecl = "22298006 OR 195967001";
+		Mockito.when(snomedService.getConceptIds(ecl)).thenReturn(List.of(22298006L, 195967001L));
+		Patient patient = new Patient("200", TestUtils.getDob(60), Gender.MALE)
+				.addEvent(new ClinicalEvent(TestUtils.date(2010, 0, 1), 22298006L))
+				.addEvent(new ClinicalEvent(TestUtils.date(2020, 0, 1), 195967001L))
+				.addEvent(new ClinicalEvent(TestUtils.date(2020, 0, 11), hypertension.getId()));
+		healthDataStream.createPatient(patient, "A");
+		// Same events in a document written before the packed events field, read from the "conceptId,date" keywords
+		indexLegacyPatient("201", patient);
+
+		// The first event of the first criterion in concept id order is in 2010, so hypertension is not within 30 days
+		CohortCriteria within30Days = new CohortCriteria("A", new EventCriterion(ecl))
+				.addEventCriterion(new EventCriterion("<<" + hypertension.getId(), 30, null));
+		assertEquals("[]", toSortedPatientIdList(patientQueryService.fetchCohort(within30Days)).toString());
+		assertFalse(new EventCriteriaMatcher(within30Days.getEventCriteria(), this::getConceptIds).matches(patient));
+
+		CohortCriteria anyTimeAfter = new CohortCriteria("A", new EventCriterion(ecl))
+				.addEventCriterion(new EventCriterion("<<" + hypertension.getId(), -1, null));
+		assertEquals("[200, 201]", toSortedPatientIdList(patientQueryService.fetchCohort(anyTimeAfter)).toString());
+		assertTrue(new EventCriteriaMatcher(anyTimeAfter.getEventCriteria(), this::getConceptIds).matches(patient));
+	}
+
+	private List<Long> getConceptIds(EventCriterion criterion) throws ServiceException {
+		return snomedService.getConceptIds(criterion.getConceptECL());
+	}
+
+	private void indexLegacyPatient(String roleId, Patient patient) {
+		String events = patient.getEvents().stream()
+				.map(event -> String.format("{\"conceptId\":%s,\"dateLong\":%s,\"conceptDate\":\"%s,%s\"}",
+						event.getConceptId(), event.getDateLong(), event.getConceptId(), event.getDateLong()))
+				.collect(Collectors.joining(","));
+		String source = String.format("{\"roleId\":\"%s\",\"dataset\":\"A\",\"gender\":\"%s\",\"dobLong\":%s,\"dobYear\":%s,\"numEvents\":%s,\"events\":[%s]}",
+				roleId, patient.getGender(), patient.getDobLong(), patient.getDobYear(), patient.getNumEvents(), events);
+		elasticsearchOperations.index(new IndexQueryBuilder().withId("A|" + roleId).withSource(source).build(),
+				elasticsearchOperations.getIndexCoordinatesFor(Patient.class));
+		elasticsearchOperations.indexOps(Patient.class).refresh();
+	}
+
 	@Test
 	public void testGenderSelection() throws ServiceException {
 		CohortCriteria cohortCriteria = new CohortCriteria("A", new EventCriterion("<<" + myocardialInfarction.getId().toString()));
@@ -349,6 +406,60 @@ public class IntegrationTest extends AbstractDataTest {
 		assertEquals(Float.valueOf(18.900002f), actual.getWorkRVU());
 	}
 
+	@Test
+	public void testCursorPagesAndExport() throws ServiceException, IOException {
+		CohortCriteria cohortCriteria = new CohortCriteria();
+		List<String> expected = toSortedPatientIdList(patientQueryService.fetchCohort(cohortCriteria));
+		assertEquals(6, expected.size());
+
+		// Pages of two read from one point in time using search_after
+		List<String> paged = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			PatientCursorPage page = cohortCursorService.fetchCohortPage(cohortCriteria, cursor, 2);
+			assertEquals(6, page.getTotalElements());
+			assertTrue(page.getNumberOfElements() <= 2);
+			page.getContent().forEach(patient -> paged.add(patient.getRoleId()));
+			cursor = page.getCursor();
+			pages++;
+		} while (cursor != null);
+		assertTrue(pages >= 3);
+		// In roleId order, with no patient repeated or missed
+		assertEquals(expected, paged);
+
+		ByteArrayOutputStream ndJson = new ByteArrayOutputStream();
+		try (PatientExportWriter writer = PatientExportWriter.create(PatientExportWriter.Format.NDJSON, ndJson, objectMapper)) {
+			assertEquals(6, cohortCursorService.exportCohort(cohortCriteria, writer));
+		}
+		List<String> exported = new ArrayList<>();
+		for (String line : ndJson.toString(StandardCharsets.UTF_8).split("\n")) {
+			exported.add(objectMapper.readTree(line).get("roleId").asText());
+		}
+		assertEquals(expected, exported);
+
+		ByteArrayOutputStream csv = new ByteArrayOutputStream();
+		try (PatientExportWriter writer = PatientExportWriter.create(PatientExportWriter.Format.CSV, csv, objectMapper)) {
+			assertEquals(6, cohortCursorService.exportCohort(cohortCriteria, writer));
+		}
+		String[] rows = csv.toString(StandardCharsets.UTF_8).split("\n");
+		assertEquals("roleId,dataset,gender,dob,conceptId,date", rows[0]);
+		// One row per event
+		assertEquals(2 + 1 + 3 + 4 + 3 + 2, rows.length - 1);
+
+		// Dates are in the same format as the cohort API
+		Patient bob = patientQueryService.fetchCohort(cohortCriteria).getContent().stream()
+				.filter(patient -> patient.getRoleId().equals("1")).findFirst().orElseThrow();
+		JsonNode bobJson = objectMapper.readTree(objectMapper.writerWithView(View.API.class).writeValueAsString(bob));
+		Set<String> apiRows = new HashSet<>();
+		for (JsonNode event : bobJson.get("events")) {
+			apiRows.add(String.join(",", "1", "A", "MALE", bobJson.get("dob").asText(), event.get("conceptId").asText(), event.get("date").asText()));
+		}
+		Set<String> csvRows = Arrays.stream(rows).filter(row -> row.startsWith("1,")).collect(Collectors.toSet());
+		assertEquals(2, csvRows.size());
+		assertEquals(apiRows, csvRows);
+	}
+
 	private List<String> toSortedPatientIdList(Page<Patient> patients) {
 		return patients.getContent().stream().map(Patient::getRoleId).sorted().collect(Collectors.toList());
 	}
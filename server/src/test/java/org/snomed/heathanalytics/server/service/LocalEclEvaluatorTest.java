@@ -0,0 +1,72 @@
+package org.snomed.heathanalytics.server.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LocalEclEvaluatorTest {
+
+	private static LocalEclEvaluator evaluator;
+
+	@BeforeAll
+	public static void loadHierarchy() throws IOException {
+		evaluator = new LocalEclEvaluator(SnomedHierarchy.load(new File("src/test/resources/rf2-snapshot")));
+	}
+
+	@Test
+	public void testHierarchyOperators() throws LocalEclEvaluator.UnsupportedEclException {
+		assertEquals("[73211009]", evaluate("73211009 |Diabetes mellitus|"));
+		assertEquals("[900001, 44054006, 46635009, 73211009]", evaluate("<< 73211009 |Diabetes mellitus|"));
+		assertEquals("[900001, 44054006, 46635009, 73211009, 195967001]", evaluate("<64572001"));
+		assertEquals("[44054006, 46635009]", evaluate("<! 73211009"));
+		assertEquals("[44054006, 46635009, 73211009]", evaluate("<<! 73211009"));
+		assertEquals("[46635009, 64572001, 73211009, 138875005, 195967001, 404684003]", evaluate("> 900001"));
+		assertEquals("[46635009, 195967001]", evaluate(">! 900001"));
+		assertEquals("[]", evaluate("< 900001"));
+	}
+
+	@Test
+	public void testInactiveAndStatedIgnored() throws LocalEclEvaluator.UnsupportedEclException {
+		assertEquals("[64572001, 138875005, 404684003]", evaluate("> 195967001"));
+		assertEquals("[64572001, 73211009, 138875005, 404684003]", evaluate("> 44054006"));
+	}
+
+	@Test
+	public void testSetOperators() throws LocalEclEvaluator.UnsupportedEclException {
+		assertEquals("[195967001]", evaluate("< 64572001 MINUS << 73211009"));
+		assertEquals("[900001]", evaluate("<< 73211009 AND << 195967001"));
+		assertEquals("[900001]", evaluate("<< 73211009 , << 195967001"));
+		assertEquals("[44054006, 46635009]", evaluate("46635009 or 44054006"));
+		assertEquals("[44054006, 46635009, 73211009, 195967001]", evaluate("(<< 73211009 OR << 195967001) MINUS 900001"));
+		assertEquals("[44054006, 46635009, 73211009, 195967001]", evaluate("<< (73211009 OR 195967001) MINUS 900001"));
+	}
+
+	@Test
+	public void testMemberOf() throws LocalEclEvaluator.UnsupportedEclException {
+		assertEquals("[46635009, 195967001]", evaluate("^ 723264001"));
+		assertEquals("[900001, 46635009, 195967001]", evaluate("<< ^ 723264001"));
+		assertEquals("[46635009]", evaluate("^ 723264001 AND < 73211009"));
+	}
+
+	@Test
+	public void testUnsupported() {
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("<< 73211009 : 363698007 = *"));
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("46635009 OR 44054006 AND 73211009"));
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("^ 46635009"));
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("^ (723264001 OR 46635009)"));
+		// Inactive or missing from the snapshot
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("111111111"));
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("<< 73211009 OR 999999999"));
+		assertThrows(LocalEclEvaluator.UnsupportedEclException.class, () -> evaluate("(<< 73211009"));
+	}
+
+	private String evaluate(String ecl) throws LocalEclEvaluator.UnsupportedEclException {
+		return Arrays.toString(evaluator.evaluate(ecl));
+	}
+}
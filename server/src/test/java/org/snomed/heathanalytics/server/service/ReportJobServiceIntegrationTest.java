@@ -0,0 +1,131 @@
+package org.snomed.heathanalytics.server.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+import org.snomed.heathanalytics.server.AbstractDataTest;
+import org.snomed.heathanalytics.server.model.*;
+import org.snomed.heathanalytics.server.store.ReportJobRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// One job runs at a time and each user may have one job waiting
+@TestPropertySource(properties = {"report-jobs.threads=1", "report-jobs.max-queued-per-user=1"})
+public class ReportJobServiceIntegrationTest extends AbstractDataTest {
+
+	@MockBean
+	private ReportService reportService;
+
+	@Autowired
+	private ReportJobService reportJobService;
+
+	@Autowired
+	private ReportJobRepository reportJobRepository;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Test
+	public void testSubmitAndReuseResult() throws ServiceException, InterruptedException, IOException {
+		Mockito.when(reportService.runReport(ArgumentMatchers.any(ReportDefinition.class), ArgumentMatchers.any()))
+				.thenAnswer((Answer<Report>) invocation -> {
+					PatientQueryService.CountProgress progress = invocation.getArgument(1);
+					progress.cohortsCounted(1, 2);
+					progress.cohortsCounted(2, 2);
+					return new Report("All", 6, null);
+				});
+
+		ReportDefinition definition = getReportDefinition("Reused");
+		ReportJob job = reportJobService.submitReport(definition, "a");
+		assertEquals(ReportJob.Status.COMPLETED, waitUntilFinished(job.getId()).getStatus());
+		assertEquals(2, reportJobService.getJob(job.getId()).getCohortsCounted());
+		assertEquals(2, reportJobService.getJob(job.getId()).getCohortsTotal());
+		assertEquals(6, objectMapper.readTree(reportJobService.getResultJson(job.getId())).get("patientCount").asLong());
+
+		// The same report, from any user, is not run again
+		assertEquals(job.getId(), reportJobService.submitReport(getReportDefinition("Reused"), "b").getId());
+		Mockito.verify(reportService, Mockito.times(1)).runReport(ArgumentMatchers.any(ReportDefinition.class), ArgumentMatchers.any());
+
+		// A different report is run
+		ReportJob otherJob = reportJobService.submitReport(getReportDefinition("Other"), "a");
+		assertNotEquals(job.getId(), otherJob.getId());
+		assertEquals(ReportJob.Status.COMPLETED, waitUntilFinished(otherJob.getId()).getStatus());
+		Mockito.verify(reportService, Mockito.times(2)).runReport(ArgumentMatchers.any(ReportDefinition.class), ArgumentMatchers.any());
+	}
+
+	@Test
+	public void testStatisticalReportProgress() throws ServiceException, InterruptedException {
+		Mockito.when(reportService.runStatisticalReport(ArgumentMatchers.any(StatisticalCorrelationReportDefinition.class), ArgumentMatchers.any()))
+				.thenAnswer((Answer<StatisticalCorrelationReport>) invocation -> {
+					PatientQueryService.CountProgress progress = invocation.getArgument(1);
+					progress.cohortsCounted(0, 4);
+					progress.cohortsCounted(4, 4);
+					return new StatisticalCorrelationReport(10, 4, 2, 6, 1);
+				});
+
+		StatisticalCorrelationReportDefinition definition = new StatisticalCorrelationReportDefinition(new CohortCriteria(),
+				new EventCriterion("<<38341003"), new EventCriterion("<<22298006"));
+		ReportJob job = waitUntilFinished(reportJobService.submitStatisticalReport(definition, "a").getId());
+		assertEquals(ReportJob.Status.COMPLETED, job.getStatus());
+		assertEquals(4, job.getCohortsCounted());
+		assertEquals(4, job.getCohortsTotal());
+	}
+
+	@Test
+	public void testCancel() throws ServiceException, InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		Mockito.when(reportService.runReport(ArgumentMatchers.any(ReportDefinition.class), ArgumentMatchers.any()))
+				.thenAnswer((Answer<Report>) invocation -> {
+					PatientQueryService.CountProgress progress = invocation.getArgument(1);
+					started.countDown();
+					// Runs until the listener stops it
+					for (int i = 0; i < 1_000; i++) {
+						progress.cohortsCounted(0, 1);
+						Thread.sleep(10);
+					}
+					throw new IllegalStateException("Report was not cancelled.");
+				});
+
+		ReportJob running = reportJobService.submitReport(getReportDefinition("Running"), "a");
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		ReportJob waiting = reportJobService.submitReport(getReportDefinition("Waiting"), "a");
+		assertEquals(ReportJob.Status.QUEUED, waiting.getStatus());
+
+		// The user already has a job waiting, the rejected job is not stored
+		long storedJobs = reportJobRepository.count();
+		assertThrows(TooManyJobsException.class, () -> reportJobService.submitReport(getReportDefinition("Third"), "a"));
+		assertEquals(storedJobs, reportJobRepository.count());
+
+		// A waiting job is cancelled straight away
+		assertEquals(ReportJob.Status.CANCELLED, reportJobService.cancel(waiting.getId()).getStatus());
+
+		// A running job stops at the next progress update
+		reportJobService.cancel(running.getId());
+		assertEquals(ReportJob.Status.CANCELLED, waitUntilFinished(running.getId()).getStatus());
+		assertThrows(IllegalStateException.class, () -> reportJobService.getResultJson(running.getId()));
+		Mockito.verify(reportService, Mockito.times(1)).runReport(ArgumentMatchers.any(ReportDefinition.class), ArgumentMatchers.any());
+	}
+
+	private ReportDefinition getReportDefinition(String name) {
+		return new ReportDefinition().addReportToFirstListOfGroups(new SubReportDefinition(name, new CohortCriteria("A", new EventCriterion("<<38341003"))));
+	}
+
+	// Until the finished job is stored, where a report submitted again looks for it
+	private ReportJob waitUntilFinished(String id) throws InterruptedException {
+		long timeout = System.currentTimeMillis() + 10_000;
+		while (!reportJobRepository.findById(id).map(job -> job.getStatus().isFinished()).orElse(false)
+				&& System.currentTimeMillis() < timeout) {
+			Thread.sleep(20);
+		}
+		return reportJobService.getJob(id);
+	}
+}
@@ -119,7 +119,7 @@ public class StatisticTestingIntegrationTest extends AbstractDataTest {
 		healthDataStream.addClinicalEvent(patient.getRoleId(), new ClinicalEvent(date(2016, 0, 1), diabetes.getId()), "A");
 		healthDataStream.addClinicalEvent(patient.getRoleId(), new ClinicalEvent(date(2016, 3, 10), paracetamol.getId()), "A");
 		healthDataStream.addClinicalEvent(patient.getRoleId(), new ClinicalEvent(date(2017, 2, 1), acuteQWaveMyocardialInfarction.getId()), "A");
-		healthDataStream.flush();
+		healthDataStream.close();
 	}
 
 	@Test